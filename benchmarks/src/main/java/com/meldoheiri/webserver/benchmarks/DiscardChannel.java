@@ -0,0 +1,40 @@
+package com.meldoheiri.webserver.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A channel that accepts every byte written to it, standing in for a client
+ * socket with an empty send buffer.
+ */
+final class DiscardChannel implements GatheringByteChannel {
+    @Override
+    public int write(ByteBuffer src) {
+        int count = src.remaining();
+        src.position(src.limit());
+        return count;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        long count = 0;
+        for (int i = offset; i < offset + length; i++) {
+            count += write(srcs[i]);
+        }
+        return count;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
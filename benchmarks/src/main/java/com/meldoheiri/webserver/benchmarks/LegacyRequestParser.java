@@ -0,0 +1,67 @@
+package com.meldoheiri.webserver.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The String based parsing of HTTPSocketDataHandler before the byte level
+ * parser, kept as the baseline for {@link RequestParserBenchmark}.
+ */
+class LegacyRequestParser {
+    private final StringBuilder requestLines = new StringBuilder();
+    private Map<String, String> headersMap = null;
+    private int bytesCount = 0;
+    private int bodyLength = 0;
+    private int bodyStartIndex = -1;
+    private String[] firstLine;
+
+    boolean read(byte[] data, int offset, int length) {
+        bytesCount += length;
+        requestLines.append(new String(data, offset, length, StandardCharsets.UTF_8));
+        parseHeadersIfComplete();
+        return isComplete();
+    }
+
+    String[] getFirstLine() {
+        return firstLine;
+    }
+
+    Map<String, String> getHeaders() {
+        return headersMap;
+    }
+
+    String getBody() {
+        String requestString = requestLines.toString();
+        return requestString.substring(bodyStartIndex, bodyStartIndex + bodyLength);
+    }
+
+    private void parseHeadersIfComplete() {
+        if (headersMap != null) {
+            return;
+        }
+        String headers = requestLines.toString();
+        if (!headers.contains("\r\n\r\n")) {
+            return;
+        }
+        String[] lines = headers.split("\r\n");
+        firstLine = lines[0].split(" ");
+        headersMap = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            String[] keyValue = lines[i].split(": ");
+            if (keyValue.length != 2) {
+                continue;
+            }
+            headersMap.put(keyValue[0], keyValue[1]);
+            if (keyValue[0].equalsIgnoreCase("content-length")) {
+                bodyLength = Integer.parseInt(keyValue[1]);
+            }
+        }
+    }
+
+    private boolean isComplete() {
+        String requestString = requestLines.toString();
+        bodyStartIndex = requestString.indexOf("\r\n\r\n") + 4;
+        return headersMap != null && bytesCount - bodyStartIndex >= bodyLength;
+    }
+}
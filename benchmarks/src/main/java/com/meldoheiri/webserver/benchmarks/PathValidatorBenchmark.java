@@ -0,0 +1,51 @@
+package com.meldoheiri.webserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.meldoheiri.webserver.validators.PathValidator;
+
+/**
+ * Validates request paths of the kinds the servers see: a short static file
+ * path, a long one with many segments, and an invalid one that is refused at
+ * its last character.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathValidatorBenchmark {
+    @Param({ "short", "long", "invalid" })
+    public String path;
+
+    private final PathValidator validator = new PathValidator();
+    private String value;
+
+    @Setup
+    public void setUp() {
+        value = switch (path) {
+            case "short" -> "/MyWebApp/index.html";
+            case "long" -> "/MyWebApp" + "/assets-2024/v1.2.3".repeat(12) + "/app.min.js";
+            case "invalid" -> "/MyWebApp" + "/assets-2024/v1.2.3".repeat(12) + "/app min.js";
+            default -> throw new IllegalArgumentException("Unknown path kind " + path);
+        };
+    }
+
+    @Benchmark
+    public boolean validate() {
+        return validator.validate(value);
+    }
+}
@@ -0,0 +1,106 @@
+package com.meldoheiri.webserver.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.ServerContext;
+import com.meldoheiri.webserver.servers.bufferpool.BufferPool;
+import com.meldoheiri.webserver.servers.bufferpool.PooledOutputStream;
+import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.HTTPSocketDataHandler;
+
+/**
+ * Runs requests through {@link HTTPSocketDataHandler} the way an event loop
+ * does, from the bytes read off the socket to the response bytes written to
+ * it, without the socket: parsing, path validation, routing, building the
+ * response and queueing it for the write.
+ *
+ * {@code cached} requests a 1 KB page answered from the content cache, which
+ * is loaded from a temporary file in the setup, since the static files of the
+ * server are looked up on the class path. {@code notFound} requests a path
+ * without a route, so its response head is encoded for every request. Each
+ * invocation opens a connection and sends {@code pipelined} requests on it in
+ * one read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestHandlingBenchmark {
+    private static final String PAGE_PATH = "/MyWebApp/index.html";
+    private static final SocketAddress REMOTE_ADDRESS = new InetSocketAddress("127.0.0.1", 50000);
+
+    @Param({ "cached", "notFound" })
+    public String response;
+
+    @Param({ "1", "16" })
+    public int pipelined;
+
+    private ServerContext context;
+    private BufferPool bufferPool;
+    private Path page;
+    private ByteBuffer requests;
+    private final DiscardChannel client = new DiscardChannel();
+
+    @Setup
+    public void setUp() throws IOException {
+        context = new ServerContext(new ServerConfig());
+        bufferPool = context.getBufferPools().newPool();
+        byte[] body = "x".repeat(1024).getBytes(StandardCharsets.US_ASCII);
+        page = Files.createTempFile("benchmark", ".html");
+        Files.write(page, body);
+        byte[] head = ("HTTP/1.1 200 OK\r\nServer: MyWebServer\r\nContent-Type: text/html; charset=utf-8\r\nContent-Length: "
+                + body.length + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        context.getContentCache().load(PAGE_PATH, page, head, body.length, null);
+
+        String path = "cached".equals(response) ? PAGE_PATH : "/unknown/index.html";
+        String request = Requests.build("small").replace(PAGE_PATH, path);
+        requests = ByteBuffer.wrap(request.repeat(pipelined).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        context.close();
+        Files.deleteIfExists(page);
+    }
+
+    @Benchmark
+    public long handle() throws IOException, WebServerException {
+        PooledOutputStream responseStream = new PooledOutputStream(bufferPool);
+        HTTPSocketDataHandler handler = new HTTPSocketDataHandler(responseStream, context, REMOTE_ADDRESS, Runnable::run,
+                Runnable::run, null);
+        try {
+            handler.read(requests.duplicate());
+            long written = 0;
+            while (responseStream.hasRemaining()) {
+                written += responseStream.writeTo(client);
+            }
+            return written;
+        } finally {
+            handler.close();
+            responseStream.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.meldoheiri.webserver.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequest;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.HTTPRequestParser;
+
+/**
+ * Parses one request delivered in 1 KB reads, the way the servers receive it,
+ * with the byte level parser and with the old String based one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParserBenchmark {
+    private static final int READ_SIZE = 1024;
+
+    @Param({ "small", "largeHeaders", "largeBody" })
+    public String request;
+
+    private byte[] requestBytes;
+
+    @Setup
+    public void setUp() {
+        requestBytes = Requests.build(request).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Benchmark
+    public Object byteParser() throws WebServerException {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        ByteBuffer buffer = ByteBuffer.wrap(requestBytes);
+        HTTPRequest request = null;
+        // the request is available after its head, the body is streamed by the following reads
+        for (int offset = 0; offset < requestBytes.length; offset += READ_SIZE) {
+            buffer.limit(Math.min(offset + READ_SIZE, requestBytes.length)).position(offset);
+            while (buffer.hasRemaining()) {
+                if (parser.parse(buffer)) {
+                    request = parser.getRequest();
+                }
+            }
+        }
+        if (request == null || parser.isInProgress()) {
+            throw new IllegalStateException("Incomplete request");
+        }
+        return request;
+    }
+
+    @Benchmark
+    public Object legacyParser() {
+        LegacyRequestParser parser = new LegacyRequestParser();
+        for (int offset = 0; offset < requestBytes.length; offset += READ_SIZE) {
+            int length = Math.min(READ_SIZE, requestBytes.length - offset);
+            if (parser.read(requestBytes, offset, length)) {
+                return parser.getBody();
+            }
+        }
+        throw new IllegalStateException("Incomplete request");
+    }
+}
@@ -0,0 +1,37 @@
+package com.meldoheiri.webserver.benchmarks;
+
+/**
+ * Sample requests shared by the benchmarks.
+ */
+final class Requests {
+    private Requests() {
+    }
+
+    static String build(String kind) {
+        switch (kind) {
+            case "small":
+                return "GET /MyWebApp/index.html HTTP/1.1\r\n"
+                        + "Host: localhost:1024\r\n"
+                        + "User-Agent: benchmark\r\n"
+                        + "Accept: */*\r\n"
+                        + "\r\n";
+            case "largeHeaders": {
+                StringBuilder builder = new StringBuilder("GET /MyWebApp/index.html HTTP/1.1\r\nHost: localhost:1024\r\n");
+                for (int i = 0; i < 64; i++) {
+                    builder.append("X-Header-").append(i).append(": ").append("v".repeat(120)).append("\r\n");
+                }
+                return builder.append("\r\n").toString();
+            }
+            case "largeBody": {
+                String body = "b".repeat(256 * 1024);
+                return "POST /MyWebApp/index.html HTTP/1.1\r\n"
+                        + "Host: localhost:1024\r\n"
+                        + "Content-Length: " + body.length() + "\r\n"
+                        + "\r\n"
+                        + body;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown request kind " + kind);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.meldoheiri.webserver.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequestHandler;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPResponse;
+import com.meldoheiri.webserver.servers.router.Router;
+
+/**
+ * Matches paths against a router with the routes of a small application:
+ * literal routes, routes with parameters and a static file wildcard.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+    private static final HTTPRequestHandler HANDLER = request -> new HTTPResponse("HTTP/1.1 200 OK\r\n", Map.of(), "");
+
+    @Param({ "literal", "parameters", "wildcard", "miss" })
+    public String route;
+
+    private Router router;
+    private String path;
+
+    @Setup
+    public void setUp() {
+        Router.Builder builder = Router.builder()
+                .route("GET", "/metrics", HANDLER)
+                .route("GET", "/health", HANDLER)
+                .route("GET", "/api/users", HANDLER)
+                .route("POST", "/api/users", HANDLER)
+                .route("GET", "/api/users/{id}", HANDLER)
+                .route("GET", "/api/users/{id}/orders/{orderId}", HANDLER)
+                .route("GET", "/api/products/{id}", HANDLER)
+                .route(Router.ANY_METHOD, "/MyWebApp/*", HANDLER);
+        for (int i = 0; i < 32; i++) {
+            builder.route("GET", "/api/resource" + i + "/{id}", HANDLER);
+        }
+        router = builder.build();
+        path = switch (route) {
+            case "literal" -> "/api/users";
+            case "parameters" -> "/api/users/42/orders/1337";
+            case "wildcard" -> "/MyWebApp/assets/css/style.css";
+            case "miss" -> "/api/unknown/42";
+            default -> throw new IllegalArgumentException("Unknown route kind " + route);
+        };
+    }
+
+    @Benchmark
+    public Object match() {
+        return router.match("GET", path);
+    }
+}
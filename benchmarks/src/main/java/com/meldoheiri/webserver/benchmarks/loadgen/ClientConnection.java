@@ -0,0 +1,279 @@
+package com.meldoheiri.webserver.benchmarks.loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One client connection of a {@link Workload}, run on a thread of its own.
+ *
+ * Requests due before the end of the warmup are sent but not recorded. A
+ * failed request counts as an error and the next one reconnects. Responses
+ * are read to their end, by {@code Content-Length} or chunked
+ * transfer-coding, so the connection can be reused.
+ */
+final class ClientConnection implements Runnable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_LINE_BYTES = 8192;
+
+    private final Workload workload;
+    private final byte[] request;
+    private final long firstDue;
+    private final long intervalNanos;
+    private final long measureFrom;
+    private final long end;
+    private final byte[] line = new byte[MAX_LINE_BYTES];
+    private final LatencySamples samples = new LatencySamples();
+    private long errors = 0;
+    private long failedStatuses = 0;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    // whether the last response asked for the connection to be closed
+    private boolean closeRequested;
+
+    /**
+     * @param firstDue      when the first request of an open loop connection is
+     *                      due, so the connections do not all send at once
+     * @param intervalNanos time between requests of an open loop connection
+     */
+    ClientConnection(Workload workload, long firstDue, long intervalNanos, long measureFrom, long end) {
+        this.workload = workload;
+        this.request = workload.request();
+        this.firstDue = firstDue;
+        this.intervalNanos = intervalNanos;
+        this.measureFrom = measureFrom;
+        this.end = end;
+    }
+
+    @Override
+    public void run() {
+        long due = firstDue;
+        while (true) {
+            long start;
+            if (workload.isOpenLoop()) {
+                start = due;
+                due += intervalNanos;
+                long wait;
+                while ((wait = start - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                start = System.nanoTime();
+            }
+            if (start >= end) {
+                break;
+            }
+            boolean measured = start >= measureFrom;
+            try {
+                int status = exchange();
+                long latency = System.nanoTime() - start;
+                if (measured) {
+                    samples.add(latency);
+                    if (status >= 400) {
+                        failedStatuses++;
+                    }
+                }
+                if (!workload.keepAlive() || closeRequested) {
+                    disconnect();
+                }
+            } catch (IOException e) {
+                if (measured) {
+                    errors++;
+                }
+                disconnect();
+            }
+        }
+        disconnect();
+    }
+
+    LatencySamples getSamples() {
+        return samples;
+    }
+
+    /**
+     * Requests that failed with an I/O error or a timeout.
+     */
+    long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Responses with a 4xx or 5xx status.
+     */
+    long getFailedStatuses() {
+        return failedStatuses;
+    }
+
+    private int exchange() throws IOException {
+        if (socket == null) {
+            connect();
+        }
+        out.write(request);
+        out.flush();
+        return readResponse();
+    }
+
+    private void connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(workload.host(), workload.port()), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            this.in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            this.out = socket.getOutputStream();
+            this.socket = socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void disconnect() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to read from it
+        }
+        socket = null;
+    }
+
+    /**
+     * Reads the status line, the headers and the body of one response.
+     *
+     * @return the status code
+     */
+    private int readResponse() throws IOException {
+        int length = readLine();
+        // "HTTP/1.1 200 ..."
+        if (length < 12 || line[8] != ' ') {
+            throw new IOException("Malformed status line");
+        }
+        int status = (line[9] - '0') * 100 + (line[10] - '0') * 10 + (line[11] - '0');
+        long contentLength = -1;
+        boolean chunked = false;
+        closeRequested = false;
+        while ((length = readLine()) > 0) {
+            if (headerIs("content-length", length)) {
+                contentLength = parseDecimal(headerValueStart("content-length"), length);
+            } else if (headerIs("transfer-encoding", length)) {
+                chunked = valueContains("chunked", headerValueStart("transfer-encoding"), length);
+            } else if (headerIs("connection", length)) {
+                closeRequested = valueContains("close", headerValueStart("connection"), length);
+            }
+        }
+        if (status == 204 || status == 304 || status < 200) {
+            return status;
+        }
+        if (chunked) {
+            readChunkedBody();
+        } else if (contentLength >= 0) {
+            in.skipNBytes(contentLength);
+        } else {
+            // delimited by the end of the connection
+            in.transferTo(OutputStream.nullOutputStream());
+            closeRequested = true;
+        }
+        return status;
+    }
+
+    private void readChunkedBody() throws IOException {
+        while (true) {
+            int length = readLine();
+            long size = 0;
+            for (int i = 0; i < length; i++) {
+                int digit = Character.digit(line[i], 16);
+                if (digit < 0) {
+                    break;
+                }
+                size = size * 16 + digit;
+            }
+            if (size == 0) {
+                // trailers up to the blank line
+                while (readLine() > 0) {
+                }
+                return;
+            }
+            in.skipNBytes(size);
+            readLine();
+        }
+    }
+
+    /**
+     * Reads a line without its CRLF into {@link #line}.
+     *
+     * @return the length of the line
+     */
+    private int readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed by the server");
+            }
+            if (b == '\n') {
+                return length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+            }
+            if (length == line.length) {
+                throw new IOException("Response line too long");
+            }
+            line[length++] = (byte) b;
+        }
+    }
+
+    private boolean headerIs(String name, int length) {
+        if (length <= name.length() || line[name.length()] != ':') {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase(line[i]) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int headerValueStart(String name) {
+        return name.length() + 1;
+    }
+
+    private long parseDecimal(int from, int length) throws IOException {
+        long value = 0;
+        boolean digits = false;
+        for (int i = from; i < length; i++) {
+            byte b = line[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                digits = true;
+            } else if (b != ' ' && b != '\t') {
+                break;
+            }
+        }
+        if (!digits) {
+            throw new IOException("Malformed Content-Length");
+        }
+        return value;
+    }
+
+    private boolean valueContains(String token, int from, int length) {
+        for (int i = from; i + token.length() <= length; i++) {
+            int j = 0;
+            while (j < token.length() && Character.toLowerCase(line[i + j]) == token.charAt(j)) {
+                j++;
+            }
+            if (j == token.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
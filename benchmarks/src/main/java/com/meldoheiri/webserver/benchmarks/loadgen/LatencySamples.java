@@ -0,0 +1,43 @@
+package com.meldoheiri.webserver.benchmarks.loadgen;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Every latency recorded by one connection, kept exactly so the high
+ * percentiles are not blurred by bucketing. A run of a few million requests
+ * needs a few tens of megabytes.
+ */
+final class LatencySamples {
+    private long[] values = new long[1024];
+    private int size = 0;
+
+    void add(long nanos) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = nanos;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * All samples of the connections, sorted.
+     */
+    static long[] merge(List<LatencySamples> samples) {
+        int total = 0;
+        for (LatencySamples sample : samples) {
+            total += sample.size;
+        }
+        long[] merged = new long[total];
+        int position = 0;
+        for (LatencySamples sample : samples) {
+            System.arraycopy(sample.values, 0, merged, position, sample.size);
+            position += sample.size;
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+}
@@ -0,0 +1,215 @@
+package com.meldoheiri.webserver.benchmarks.loadgen;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig.SocketScheduler;
+
+/**
+ * Headless HTTP load generator for comparing the servers and catching
+ * performance regressions.
+ *
+ * Without {@code --target} every selected {@link SocketScheduler} is started
+ * in a {@link ServerProcess} of its own and runs each workload in turn: closed
+ * and open loop, with keep-alive on and off. With {@code --target host:port}
+ * the workloads run against a server that is already running. A table with
+ * throughput and latency percentiles is printed, one row per run.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.meldoheiri.webserver.benchmarks.loadgen.LoadGenerator \
+ *     [--target host:port] [--schedulers all|name,name] [--path /MyWebApp/index.html] [--pageBytes 1024]
+ *     [--connections 64] [--rate 10000] [--loop closed|open|both] [--keepAlive on|off|both]
+ *     [--warmup 3] [--duration 10] [--minThroughput req/s] [--maxP99Millis ms] [--maxErrorPercent %]
+ *     [--server.name value ...]
+ * </pre>
+ *
+ * {@code --server.*} options are written to the configuration of the started
+ * servers. {@code server.noThreads} defaults to the number of cores, and to
+ * the number of connections for the thread pool server. When a threshold is
+ * given and a run misses it, the exit status is 1, so the load test can fail
+ * a build.
+ */
+public final class LoadGenerator {
+    private static final Map<String, String> DEFAULTS = Map.ofEntries(
+            Map.entry("target", ""),
+            Map.entry("schedulers", "all"),
+            Map.entry("path", "/MyWebApp/index.html"),
+            Map.entry("pageBytes", "1024"),
+            Map.entry("connections", "64"),
+            Map.entry("rate", "10000"),
+            Map.entry("loop", "both"),
+            Map.entry("keepAlive", "both"),
+            Map.entry("warmup", "3"),
+            Map.entry("duration", "10"),
+            Map.entry("minThroughput", "0"),
+            Map.entry("maxP99Millis", "0"),
+            Map.entry("maxErrorPercent", "-1"));
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        Map<String, String> serverProperties = new LinkedHashMap<>();
+        // measure the server, not reconnects forced by the default request limit
+        serverProperties.put("server.keepAliveMaxRequests", Integer.toString(Integer.MAX_VALUE));
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                usage("Expected --name value, got " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (name.startsWith("server.")) {
+                serverProperties.put(name, args[i + 1]);
+            } else if (DEFAULTS.containsKey(name)) {
+                options.put(name, args[i + 1]);
+            } else {
+                usage("Unknown option " + args[i]);
+            }
+        }
+
+        List<LoadResult> results = new ArrayList<>();
+        System.out.println(LoadResult.HEADER);
+        String target = options.get("target");
+        if (!target.isEmpty()) {
+            int colon = target.lastIndexOf(':');
+            if (colon < 0) {
+                usage("--target must be host:port");
+            }
+            String host = target.substring(0, colon);
+            int port = Integer.parseInt(target.substring(colon + 1));
+            for (Workload workload : workloads(options, host, port)) {
+                results.add(print(run(target, workload)));
+            }
+        } else {
+            for (SocketScheduler scheduler : schedulers(options.get("schedulers"))) {
+                Map<String, String> properties = new LinkedHashMap<>(serverProperties);
+                properties.put("server.sockerscheduler", scheduler.name());
+                properties.putIfAbsent("server.noThreads", Integer.toString(defaultThreads(scheduler, options)));
+                try (ServerProcess server = ServerProcess.start(properties, options.get("path"),
+                        Integer.parseInt(options.get("pageBytes")))) {
+                    for (Workload workload : workloads(options, "127.0.0.1", server.getPort())) {
+                        results.add(print(run(scheduler.name(), workload)));
+                    }
+                }
+            }
+        }
+        if (!checkThresholds(options, results)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the workload, counting only the requests due after the warmup.
+     */
+    static LoadResult run(String server, Workload workload) throws InterruptedException {
+        long start = System.nanoTime() + Duration.ofMillis(100).toNanos();
+        long measureFrom = start + workload.warmup().toNanos();
+        long end = measureFrom + workload.duration().toNanos();
+        // each connection sends its share of the rate, offset so they do not send together
+        long intervalNanos = workload.isOpenLoop() ? 1_000_000_000L * workload.connections() / workload.rate() : 0;
+        List<ClientConnection> connections = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < workload.connections(); i++) {
+            ClientConnection connection = new ClientConnection(workload, start + intervalNanos * i / workload.connections(),
+                    intervalNanos, measureFrom, end);
+            connections.add(connection);
+            threads.add(Thread.ofPlatform().name("loadgen-" + i).daemon().start(connection));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return LoadResult.of(server, workload, connections, workload.duration().toNanos() / 1e9);
+    }
+
+    /**
+     * One event loop per core, or a pool thread for every connection, since
+     * the thread pool server holds a thread per keep-alive connection.
+     */
+    private static int defaultThreads(SocketScheduler scheduler, Map<String, String> options) {
+        if (scheduler == SocketScheduler.MultiThreadedBlockingIOServer) {
+            return Integer.parseInt(options.get("connections"));
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    private static LoadResult print(LoadResult result) {
+        System.out.println(result.row());
+        return result;
+    }
+
+    private static List<Workload> workloads(Map<String, String> options, String host, int port) {
+        List<Workload> workloads = new ArrayList<>();
+        int connections = Integer.parseInt(options.get("connections"));
+        int rate = Integer.parseInt(options.get("rate"));
+        Duration warmup = Duration.ofSeconds(Long.parseLong(options.get("warmup")));
+        Duration duration = Duration.ofSeconds(Long.parseLong(options.get("duration")));
+        for (int loopRate : choose(options.get("loop"), "closed", 0, "open", rate)) {
+            for (int keepAlive : choose(options.get("keepAlive"), "on", 1, "off", 0)) {
+                workloads.add(new Workload(host, port, options.get("path"), connections, loopRate, keepAlive == 1, warmup, duration));
+            }
+        }
+        return workloads;
+    }
+
+    /**
+     * The values selected by an option that names one of two choices or both.
+     */
+    private static List<Integer> choose(String option, String first, int firstValue, String second, int secondValue) {
+        if (option.equals(first)) {
+            return List.of(firstValue);
+        }
+        if (option.equals(second)) {
+            return List.of(secondValue);
+        }
+        if (option.equals("both")) {
+            return List.of(firstValue, secondValue);
+        }
+        usage("Expected " + first + ", " + second + " or both, got " + option);
+        return List.of();
+    }
+
+    private static List<SocketScheduler> schedulers(String option) {
+        if (option.equals("all")) {
+            return List.of(SocketScheduler.values());
+        }
+        List<SocketScheduler> schedulers = new ArrayList<>();
+        for (String name : option.split(",")) {
+            schedulers.add(SocketScheduler.valueOf(name.trim()));
+        }
+        return schedulers;
+    }
+
+    private static boolean checkThresholds(Map<String, String> options, List<LoadResult> results) {
+        double minThroughput = Double.parseDouble(options.get("minThroughput"));
+        double maxP99Millis = Double.parseDouble(options.get("maxP99Millis"));
+        double maxErrorPercent = Double.parseDouble(options.get("maxErrorPercent"));
+        boolean passed = true;
+        for (LoadResult result : results) {
+            String run = result.server() + " " + result.workload().describe().replaceAll(" +", " ");
+            // an open loop run cannot exceed its rate, so it is held to its latency only
+            if (minThroughput > 0 && !result.workload().isOpenLoop() && result.throughput() < minThroughput) {
+                System.err.printf("FAILED %s: %.0f req/s is below %.0f%n", run, result.throughput(), minThroughput);
+                passed = false;
+            }
+            if (maxP99Millis > 0 && result.percentileMillis(0.99) > maxP99Millis) {
+                System.err.printf("FAILED %s: p99 of %.3f ms is above %.3f ms%n", run, result.percentileMillis(0.99), maxP99Millis);
+                passed = false;
+            }
+            if (maxErrorPercent >= 0 && result.errorPercent() > maxErrorPercent) {
+                System.err.printf("FAILED %s: %.2f%% errors is above %.2f%%%n", run, result.errorPercent(), maxErrorPercent);
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("See the LoadGenerator class comment for the options");
+        System.exit(2);
+    }
+}
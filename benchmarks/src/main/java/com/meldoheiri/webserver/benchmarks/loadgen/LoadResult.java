@@ -0,0 +1,59 @@
+package com.meldoheiri.webserver.benchmarks.loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a {@link Workload} measured against one server: completed requests,
+ * failures and the latency distribution of the measured period.
+ */
+record LoadResult(String server, Workload workload, long requests, long errors, long failedStatuses,
+        double seconds, long[] sortedLatencies) {
+
+    static final String HEADER = String.format("%-32s %-6s %7s %-10s %6s %10s %7s %7s %10s %9s %9s %9s %9s",
+            "server", "loop", "rate", "connection", "conns", "requests", "errors", "4xx/5xx", "req/s", "p50 ms", "p99 ms",
+            "p999 ms", "max ms");
+
+    static LoadResult of(String server, Workload workload, List<ClientConnection> connections, double seconds) {
+        List<LatencySamples> samples = new ArrayList<>();
+        long errors = 0;
+        long failedStatuses = 0;
+        for (ClientConnection connection : connections) {
+            samples.add(connection.getSamples());
+            errors += connection.getErrors();
+            failedStatuses += connection.getFailedStatuses();
+        }
+        long[] latencies = LatencySamples.merge(samples);
+        return new LoadResult(server, workload, latencies.length, errors, failedStatuses, seconds, latencies);
+    }
+
+    double throughput() {
+        return requests / seconds;
+    }
+
+    /**
+     * Requests that failed or got a 4xx or 5xx status, in percent of all
+     * attempted requests.
+     */
+    double errorPercent() {
+        long attempted = requests + errors;
+        return attempted == 0 ? 0 : 100.0 * (errors + failedStatuses) / attempted;
+    }
+
+    /**
+     * The latency at the quantile by the nearest-rank method, in milliseconds.
+     */
+    double percentileMillis(double quantile) {
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(quantile * sortedLatencies.length);
+        return sortedLatencies[Math.max(0, Math.min(rank, sortedLatencies.length) - 1)] / 1e6;
+    }
+
+    String row() {
+        return String.format("%-32s %s %10d %7d %7d %10.0f %9.3f %9.3f %9.3f %9.3f", server, workload.describe(), requests, errors,
+                failedStatuses, throughput(), percentileMillis(0.5), percentileMillis(0.99), percentileMillis(0.999),
+                percentileMillis(1.0));
+    }
+}
@@ -0,0 +1,129 @@
+package com.meldoheiri.webserver.benchmarks.loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A server started in a JVM of its own, so it does not share a heap or a
+ * garbage collector with the load generator.
+ *
+ * The server reads its {@code application.properties} and static files from
+ * the class path, so both are written to a temporary directory that is put in
+ * front of the load generator's class path, which holds the server classes.
+ * Closing the process sends it {@code SIGTERM}, which drains the server.
+ */
+final class ServerProcess implements AutoCloseable {
+    private static final String MAIN_CLASS = "com.meldoheiri.webserver.App";
+    private static final String ROOT_PATH = "/usr/local/MyWebServer";
+    private static final long START_TIMEOUT_MILLIS = 15_000;
+
+    private final Path directory;
+    private final Process process;
+    private final int port;
+
+    private ServerProcess(Path directory, Process process, int port) {
+        this.directory = directory;
+        this.process = process;
+        this.port = port;
+    }
+
+    /**
+     * Starts the server and waits until it accepts connections.
+     *
+     * @param properties server properties, the port is picked here
+     * @param path       request path to serve a page of {@code pageBytes} on
+     */
+    static ServerProcess start(Map<String, String> properties, String path, int pageBytes) throws IOException {
+        Path directory = Files.createTempDirectory("loadgen-server");
+        int port = freePort();
+        Properties config = new Properties();
+        config.putAll(properties);
+        config.setProperty("server.host", "127.0.0.1");
+        config.setProperty("server.port", Integer.toString(port));
+        try (OutputStream out = Files.newOutputStream(directory.resolve("application.properties"))) {
+            config.store(out, null);
+        }
+        // the server looks a file up by its full path with the slashes replaced by dots
+        Path page = directory.resolve((ROOT_PATH + path).replace("/", "."));
+        Files.write(page, "x".repeat(pageBytes).getBytes(StandardCharsets.US_ASCII));
+
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        String classPath = directory + File.pathSeparator + System.getProperty("java.class.path");
+        Process process = new ProcessBuilder(List.of(java, "-cp", classPath, MAIN_CLASS))
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve("server.log").toFile())
+                .start();
+        ServerProcess server = new ServerProcess(directory, process, port);
+        try {
+            server.awaitListening();
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    private void awaitListening() throws IOException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            if (!process.isAlive()) {
+                throw new IOException("Server exited with " + process.exitValue() + ", see " + directory.resolve("server.log"));
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Server did not start listening on port " + port, e);
+                }
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while starting the server", e);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        process.destroy();
+        try {
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.meldoheiri.webserver.benchmarks.loadgen;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * One load test run: how many connections send which request, how often and
+ * for how long.
+ *
+ * A closed loop workload sends the next request on a connection as soon as
+ * the previous response has arrived, so the offered load drops when the
+ * server slows down. An open loop workload sends {@code rate} requests per
+ * second spread over the connections no matter how fast the server answers;
+ * a request's latency is measured from the time it was due, not the time it
+ * could be sent, so a stalled server shows in the percentiles instead of
+ * just sending fewer requests.
+ *
+ * @param rate requests per second of an open loop workload, 0 for a closed
+ *             loop
+ */
+record Workload(String host, int port, String path, int connections, int rate, boolean keepAlive, Duration warmup,
+        Duration duration) {
+
+    boolean isOpenLoop() {
+        return rate > 0;
+    }
+
+    byte[] request() {
+        String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + host + ":" + port + "\r\n"
+                + "User-Agent: loadgen\r\n"
+                + (keepAlive ? "" : "Connection: close\r\n")
+                + "\r\n";
+        return request.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    String describe() {
+        return String.format("%-6s %7s %-10s %6d", isOpenLoop() ? "open" : "closed", isOpenLoop() ? Integer.toString(rate) : "-",
+                keepAlive ? "keep-alive" : "close", connections);
+    }
+}
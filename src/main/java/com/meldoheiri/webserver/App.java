@@ -1,19 +1,26 @@
 package com.meldoheiri.webserver;
 
 import java.io.IOException;
+import java.time.Duration;
 
 import com.meldoheiri.webserver.serverconfig.ServerConfig;
 import com.meldoheiri.webserver.serverconfig.ServerConfig.SocketScheduler;
 import com.meldoheiri.webserver.servers.WebServer;
 import com.meldoheiri.webserver.servers.blockingmultithreaded.MultiThreadedBlockingIOServer;
 import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+import com.meldoheiri.webserver.servers.multireactornonblocking.MultiReactorNonBlockingIOServer;
+import com.meldoheiri.webserver.servers.proactor.ProactorIOServer;
 import com.meldoheiri.webserver.servers.singlethreadednonblocking.SingleThreadedNonBlockingIOServer;
+import com.meldoheiri.webserver.servers.virtualthreadblocking.VirtualThreadBlockingIOServer;
 
 public class App {
 
     public static void main(String[] args) throws IOException, WebServerException {
         ServerConfig config = new ServerConfig();
         WebServer server = creatWebServer(config);
+        // SIGTERM drains the server instead of cutting off the requests in flight
+        Duration drainTimeout = Duration.ofMillis(config.getDrainTimeoutMillis());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(drainTimeout), "server-shutdown"));
         server.start();
     }
 
@@ -24,6 +31,12 @@ public class App {
                 return new SingleThreadedNonBlockingIOServer(config);
             case MultiThreadedBlockingIOServer:
                 return new MultiThreadedBlockingIOServer(config);
+            case MultiReactorNonBlockingIOServer:
+                return new MultiReactorNonBlockingIOServer(config);
+            case VirtualThreadBlockingIOServer:
+                return new VirtualThreadBlockingIOServer(config);
+            case ProactorIOServer:
+                return new ProactorIOServer(config);
             default:
                 return new MultiThreadedBlockingIOServer(config);
         }
@@ -2,6 +2,10 @@ package com.meldoheiri.webserver.serverconfig;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 public class ServerConfig {
@@ -9,26 +13,136 @@ public class ServerConfig {
     private int port;
     private int noThreads;
     private SocketScheduler socketScheduler;
+    private int acceptBacklog;
+    private boolean reusePort;
+    private boolean tcpNoDelay;
+    private int receiveBufferBytes;
+    private int sendBufferBytes;
+    private int keepAliveMaxRequests;
+    private int keepAliveTimeoutMillis;
+    private int readHeaderTimeoutMillis;
+    private int readBodyTimeoutMillis;
+    private int writeTimeoutMillis;
+    private int drainTimeoutMillis;
+    private int maxConnections;
+    private int maxInFlightRequests;
+    private int maxQueuedConnections;
+    private int queueDelayTargetMillis;
+    private int queueDelayIntervalMillis;
+    private int retryAfterSeconds;
+    private long bufferPoolMaxBytes;
+    private long contentCacheMaxBytes;
+    private long contentCacheMaxEntryBytes;
+    private long compressionCacheMaxBytes;
+    private long compressionMinBytes;
+    private long compressionMaxBytes;
+    private int handlerThreads;
+    private int maxRequestHeaderBytes;
+    private long maxRequestBodyBytes;
+    private boolean http2Enabled;
+    private int http2MaxConcurrentStreams;
+    private boolean tlsEnabled;
+    private String tlsKeyStore;
+    private String tlsKeyStorePassword;
+    private String tlsKeyStoreType;
+    private String[] tlsProtocols;
+    private int tlsSessionCacheSize;
+    private int tlsSessionTimeoutSeconds;
+    private Map<String, List<String>> proxyRoutes;
+    private int proxyThreads;
+    private int proxyMaxIdleConnections;
+    private int proxyConnectTimeoutMillis;
+    private int proxyReadTimeoutMillis;
+    private int proxyIdleTimeoutMillis;
+    private int proxyMaxFails;
+    private int proxyFailTimeoutMillis;
+    private boolean metricsEnabled;
+    private String accessLogFile;
+    private long accessLogMaxFileBytes;
+    private int accessLogMaxFiles;
+    private int accessLogBufferEntries;
 
+    /**
+     * The configuration of {@code application.properties} on the class path.
+     */
     public ServerConfig() throws IOException {
+        this(load());
+    }
+
+    /**
+     * The configuration of the given {@code server.*} properties.
+     */
+    public ServerConfig(Properties properties) {
+        host = properties.getProperty("server.host");
+        port = Integer.parseInt(properties.getProperty("server.port"));
+        noThreads = Integer.parseInt(properties.getProperty("server.noThreads"));
+        String schedulerString = properties.getProperty("server.sockerscheduler");
+        if (schedulerString == null) {
+            schedulerString = "SingleThreadedNonBlockingIOServer";
+        }
+        this.socketScheduler = SocketScheduler.valueOf(schedulerString);
+        if (socketScheduler == null) {
+            this.socketScheduler = SocketScheduler.SingleThreadedNonBlockingIOServer;
+        }
+        acceptBacklog = getIntProperty(properties, "server.acceptBacklog", 50);
+        reusePort = getBooleanProperty(properties, "server.reusePort", false);
+        tcpNoDelay = getBooleanProperty(properties, "server.tcpNoDelay", true);
+        receiveBufferBytes = getIntProperty(properties, "server.receiveBufferBytes", 0);
+        sendBufferBytes = getIntProperty(properties, "server.sendBufferBytes", 0);
+        keepAliveMaxRequests = getIntProperty(properties, "server.keepAliveMaxRequests", 100);
+        keepAliveTimeoutMillis = getIntProperty(properties, "server.keepAliveTimeoutMillis", 30_000);
+        readHeaderTimeoutMillis = getIntProperty(properties, "server.readHeaderTimeoutMillis", 10_000);
+        readBodyTimeoutMillis = getIntProperty(properties, "server.readBodyTimeoutMillis", 30_000);
+        writeTimeoutMillis = getIntProperty(properties, "server.writeTimeoutMillis", 30_000);
+        drainTimeoutMillis = getIntProperty(properties, "server.drainTimeoutMillis", 30_000);
+        maxConnections = getIntProperty(properties, "server.maxConnections", 10_000);
+        maxInFlightRequests = getIntProperty(properties, "server.maxInFlightRequests", 1024);
+        maxQueuedConnections = getIntProperty(properties, "server.maxQueuedConnections", 1024);
+        queueDelayTargetMillis = getIntProperty(properties, "server.queueDelayTargetMillis", 10);
+        queueDelayIntervalMillis = getIntProperty(properties, "server.queueDelayIntervalMillis", 100);
+        retryAfterSeconds = getIntProperty(properties, "server.retryAfterSeconds", 1);
+        bufferPoolMaxBytes = getLongProperty(properties, "server.bufferPoolMaxBytes", 64L * 1024 * 1024);
+        contentCacheMaxBytes = getLongProperty(properties, "server.contentCacheMaxBytes", 32L * 1024 * 1024);
+        contentCacheMaxEntryBytes = getLongProperty(properties, "server.contentCacheMaxEntryBytes", 1024 * 1024);
+        compressionCacheMaxBytes = getLongProperty(properties, "server.compressionCacheMaxBytes", 16L * 1024 * 1024);
+        compressionMinBytes = getLongProperty(properties, "server.compressionMinBytes", 1024);
+        compressionMaxBytes = getLongProperty(properties, "server.compressionMaxBytes", 1024 * 1024);
+        handlerThreads = getIntProperty(properties, "server.handlerThreads", 0);
+        maxRequestHeaderBytes = getIntProperty(properties, "server.maxRequestHeaderBytes", 16 * 1024);
+        maxRequestBodyBytes = getLongProperty(properties, "server.maxRequestBodyBytes", 10L * 1024 * 1024);
+        http2Enabled = getBooleanProperty(properties, "server.http2Enabled", true);
+        http2MaxConcurrentStreams = getIntProperty(properties, "server.http2MaxConcurrentStreams", 100);
+        tlsEnabled = getBooleanProperty(properties, "server.tlsEnabled", false);
+        tlsKeyStore = properties.getProperty("server.tlsKeyStore");
+        tlsKeyStorePassword = properties.getProperty("server.tlsKeyStorePassword", "");
+        tlsKeyStoreType = properties.getProperty("server.tlsKeyStoreType", "PKCS12");
+        tlsProtocols = properties.getProperty("server.tlsProtocols", "TLSv1.3,TLSv1.2").trim().split("\\s*,\\s*");
+        tlsSessionCacheSize = getIntProperty(properties, "server.tlsSessionCacheSize", 20_000);
+        tlsSessionTimeoutSeconds = getIntProperty(properties, "server.tlsSessionTimeoutSeconds", 86_400);
+        proxyRoutes = parseProxyRoutes(properties.getProperty("server.proxyRoutes", ""));
+        proxyThreads = getIntProperty(properties, "server.proxyThreads", 2);
+        proxyMaxIdleConnections = getIntProperty(properties, "server.proxyMaxIdleConnections", 32);
+        proxyConnectTimeoutMillis = getIntProperty(properties, "server.proxyConnectTimeoutMillis", 2_000);
+        proxyReadTimeoutMillis = getIntProperty(properties, "server.proxyReadTimeoutMillis", 30_000);
+        proxyIdleTimeoutMillis = getIntProperty(properties, "server.proxyIdleTimeoutMillis", 4_000);
+        proxyMaxFails = getIntProperty(properties, "server.proxyMaxFails", 3);
+        proxyFailTimeoutMillis = getIntProperty(properties, "server.proxyFailTimeoutMillis", 10_000);
+        metricsEnabled = getBooleanProperty(properties, "server.metricsEnabled", true);
+        accessLogFile = properties.getProperty("server.accessLogFile");
+        accessLogMaxFileBytes = getLongProperty(properties, "server.accessLogMaxFileBytes", 100L * 1024 * 1024);
+        accessLogMaxFiles = getIntProperty(properties, "server.accessLogMaxFiles", 5);
+        accessLogBufferEntries = getIntProperty(properties, "server.accessLogBufferEntries", 8192);
+    }
+
+    private static Properties load() throws IOException {
         Properties properties = new Properties();
-        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream("application.properties")) {
+        try (InputStream inputStream = ServerConfig.class.getClassLoader().getResourceAsStream("application.properties")) {
             if (inputStream == null) {
                 throw new IOException("application.properties is not found in class path");
             }
             properties.load(inputStream);
-            host = properties.getProperty("server.host");
-            port = Integer.parseInt(properties.getProperty("server.port"));
-            noThreads = Integer.parseInt(properties.getProperty("server.noThreads"));
-            String schedulerString = properties.getProperty("server.sockerscheduler");
-            if (schedulerString == null) {
-                schedulerString = "SingleThreadedNonBlockingIOServer";
-            }
-            this.socketScheduler = SocketScheduler.valueOf(schedulerString);
-            if (socketScheduler == null) {
-                this.socketScheduler = SocketScheduler.SingleThreadedNonBlockingIOServer;
-            }
         }
+        return properties;
     }
 
     public String getHost() {
@@ -47,8 +161,406 @@ public class ServerConfig {
         return socketScheduler;
     }
 
+    /**
+     * Length of the queue of connections waiting to be accepted.
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * Whether listeners are bound with {@code SO_REUSEPORT}. The multi-reactor
+     * server then gives every event loop a listener of its own.
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Whether Nagle's algorithm is disabled on accepted connections.
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * {@code SO_RCVBUF} of accepted connections, 0 keeps the system default.
+     */
+    public int getReceiveBufferBytes() {
+        return receiveBufferBytes;
+    }
+
+    /**
+     * {@code SO_SNDBUF} of accepted connections, 0 keeps the system default.
+     */
+    public int getSendBufferBytes() {
+        return sendBufferBytes;
+    }
+
+    /**
+     * Maximum number of requests served on one connection before it is closed.
+     */
+    public int getKeepAliveMaxRequests() {
+        return keepAliveMaxRequests;
+    }
+
+    /**
+     * How long an idle persistent connection is kept open waiting for the next request.
+     */
+    public int getKeepAliveTimeoutMillis() {
+        return keepAliveTimeoutMillis;
+    }
+
+    /**
+     * Time a client has to send the request line and headers, counted from the
+     * first byte of the request (or from connecting, for the first request).
+     */
+    public int getReadHeaderTimeoutMillis() {
+        return readHeaderTimeoutMillis;
+    }
+
+    /**
+     * Longest pause allowed while receiving a request body.
+     */
+    public int getReadBodyTimeoutMillis() {
+        return readBodyTimeoutMillis;
+    }
+
+    /**
+     * Longest time a response may make no progress because the client does not read it.
+     */
+    public int getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    /**
+     * How long a stopping server waits for responses in flight before it
+     * closes the connections that are left.
+     */
+    public int getDrainTimeoutMillis() {
+        return drainTimeoutMillis;
+    }
+
+    /**
+     * Open connections at which a server stops accepting new ones, leaving
+     * them in the accept backlog.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Requests handled at the same time, further ones are answered with 503.
+     * 0 removes the limit.
+     */
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * Accepted connections waiting for a thread of the thread pool server,
+     * further ones are answered with 503.
+     */
+    public int getMaxQueuedConnections() {
+        return maxQueuedConnections;
+    }
+
+    /**
+     * Queueing delay work may keep for a whole interval before requests are
+     * shed, 0 disables shedding on delay.
+     */
+    public int getQueueDelayTargetMillis() {
+        return queueDelayTargetMillis;
+    }
+
+    /**
+     * Interval over which the smallest queueing delay is compared with the
+     * target.
+     */
+    public int getQueueDelayIntervalMillis() {
+        return queueDelayIntervalMillis;
+    }
+
+    /**
+     * Sent in the {@code Retry-After} header of shed requests.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Cap on the direct memory held by all buffer pools together.
+     */
+    public long getBufferPoolMaxBytes() {
+        return bufferPoolMaxBytes;
+    }
+
+    /**
+     * Memory budget of the static content cache, 0 disables the cache.
+     */
+    public long getContentCacheMaxBytes() {
+        return contentCacheMaxBytes;
+    }
+
+    /**
+     * Files larger than this are always streamed from disk.
+     */
+    public long getContentCacheMaxEntryBytes() {
+        return contentCacheMaxEntryBytes;
+    }
+
+    /**
+     * Memory budget of compressed static files, 0 disables compression of
+     * files without a precompressed {@code .gz} sibling.
+     */
+    public long getCompressionCacheMaxBytes() {
+        return compressionCacheMaxBytes;
+    }
+
+    /**
+     * Smaller files are sent uncompressed, the coding overhead would outweigh
+     * the savings.
+     */
+    public long getCompressionMinBytes() {
+        return compressionMinBytes;
+    }
+
+    /**
+     * Larger files are only sent compressed when they have a precompressed
+     * sibling.
+     */
+    public long getCompressionMaxBytes() {
+        return compressionMaxBytes;
+    }
+
+    /**
+     * Size of the pool running request handlers off the event loops, 0 runs
+     * every handler on its own virtual thread.
+     */
+    public int getHandlerThreads() {
+        return handlerThreads;
+    }
+
+    /**
+     * Largest request line plus headers accepted, larger ones get 431.
+     */
+    public int getMaxRequestHeaderBytes() {
+        return maxRequestHeaderBytes;
+    }
+
+    /**
+     * Largest request body accepted, larger ones get 413.
+     */
+    public long getMaxRequestBodyBytes() {
+        return maxRequestBodyBytes;
+    }
+
+    /**
+     * Whether the event loop servers speak HTTP/2: cleartext to clients that
+     * start with the connection preface or ask for {@code Upgrade: h2c}, over
+     * TLS to clients that pick {@code h2} by ALPN.
+     */
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    /**
+     * Streams an HTTP/2 client may have open at the same time, further ones
+     * are refused.
+     */
+    public int getHttp2MaxConcurrentStreams() {
+        return http2MaxConcurrentStreams;
+    }
+
+    /**
+     * Whether connections are TLS, using the key and certificate in
+     * {@link #getTlsKeyStore()}.
+     */
+    public boolean isTlsEnabled() {
+        return tlsEnabled;
+    }
+
+    /**
+     * Path of the key store holding the server's private key and certificate
+     * chain.
+     */
+    public String getTlsKeyStore() {
+        return tlsKeyStore;
+    }
+
+    /**
+     * Password of the key store, also used for the key in it.
+     */
+    public String getTlsKeyStorePassword() {
+        return tlsKeyStorePassword;
+    }
+
+    /**
+     * Type of the key store, {@code PKCS12} by default.
+     */
+    public String getTlsKeyStoreType() {
+        return tlsKeyStoreType;
+    }
+
+    /**
+     * TLS versions offered to clients.
+     */
+    public String[] getTlsProtocols() {
+        return tlsProtocols.clone();
+    }
+
+    /**
+     * TLS sessions kept for resumption, 0 for no limit.
+     */
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    /**
+     * How long a TLS session can be resumed, from cache or from a session
+     * ticket.
+     */
+    public int getTlsSessionTimeoutSeconds() {
+        return tlsSessionTimeoutSeconds;
+    }
+
+    /**
+     * Path patterns forwarded to backends, each with the {@code host:port} of
+     * its backends, in the order they are configured. Written as
+     * {@code /api/*=10.0.0.1:8080,10.0.0.2:8080;/images/*=10.0.0.3:8080}.
+     */
+    public Map<String, List<String>> getProxyRoutes() {
+        return proxyRoutes;
+    }
+
+    /**
+     * Threads completing the I/O of every connection to a backend.
+     */
+    public int getProxyThreads() {
+        return proxyThreads;
+    }
+
+    /**
+     * Idle persistent connections kept open to each backend for the next
+     * request, further ones are closed when their response is complete.
+     */
+    public int getProxyMaxIdleConnections() {
+        return proxyMaxIdleConnections;
+    }
+
+    public int getProxyConnectTimeoutMillis() {
+        return proxyConnectTimeoutMillis;
+    }
+
+    /**
+     * How long a backend may take for each read or write of an exchange
+     * before it is abandoned with a 504.
+     */
+    public int getProxyReadTimeoutMillis() {
+        return proxyReadTimeoutMillis;
+    }
+
+    /**
+     * How long an idle connection to a backend is reused. Kept below the
+     * backend's own keep-alive timeout, so a connection is rarely reused just
+     * as the backend closes it.
+     */
+    public int getProxyIdleTimeoutMillis() {
+        return proxyIdleTimeoutMillis;
+    }
+
+    /**
+     * Failures in a row, connection errors or timeouts, after which a backend
+     * is taken out of rotation for {@link #getProxyFailTimeoutMillis()}.
+     */
+    public int getProxyMaxFails() {
+        return proxyMaxFails;
+    }
+
+    public int getProxyFailTimeoutMillis() {
+        return proxyFailTimeoutMillis;
+    }
+
+    /**
+     * Whether the metrics are served on {@code /metrics}.
+     */
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * File the access log is written to, access logging is off when unset.
+     */
+    public String getAccessLogFile() {
+        return accessLogFile;
+    }
+
+    /**
+     * Size at which the access log file is rotated.
+     */
+    public long getAccessLogMaxFileBytes() {
+        return accessLogMaxFileBytes;
+    }
+
+    /**
+     * Rotated access log files kept next to the current one.
+     */
+    public int getAccessLogMaxFiles() {
+        return accessLogMaxFiles;
+    }
+
+    /**
+     * Entries buffered for the access log writer, further entries are dropped
+     * until it catches up.
+     */
+    public int getAccessLogBufferEntries() {
+        return accessLogBufferEntries;
+    }
+
+    private static Map<String, List<String>> parseProxyRoutes(String value) {
+        Map<String, List<String>> routes = new LinkedHashMap<>();
+        for (String route : value.split(";")) {
+            if (route.isBlank()) {
+                continue;
+            }
+            int separator = route.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("server.proxyRoutes entry without backends: " + route.trim());
+            }
+            routes.put(route.substring(0, separator).trim(), List.of(route.substring(separator + 1).trim().split("\\s*,\\s*")));
+        }
+        return Collections.unmodifiableMap(routes);
+    }
+
+    private static int getIntProperty(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    private static long getLongProperty(Properties properties, String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return Long.parseLong(value.trim());
+    }
+
+    private static boolean getBooleanProperty(Properties properties, String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
     public enum SocketScheduler {
         MultiThreadedBlockingIOServer,
-        SingleThreadedNonBlockingIOServer;
+        SingleThreadedNonBlockingIOServer,
+        MultiReactorNonBlockingIOServer,
+        VirtualThreadBlockingIOServer,
+        ProactorIOServer;
     }
 }
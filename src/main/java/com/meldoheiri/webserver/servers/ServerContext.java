@@ -0,0 +1,148 @@
+package com.meldoheiri.webserver.servers;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.accesslog.AccessLog;
+import com.meldoheiri.webserver.servers.admission.AdmissionController;
+import com.meldoheiri.webserver.servers.bufferpool.BufferPools;
+import com.meldoheiri.webserver.servers.contentcache.StaticContentCache;
+import com.meldoheiri.webserver.servers.httprequesthandler.DefaultHTTPRequestHandler;
+import com.meldoheiri.webserver.servers.metrics.MetricsHTTPRequestHandler;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+import com.meldoheiri.webserver.servers.proxy.ProxyHTTPRequestHandler;
+import com.meldoheiri.webserver.servers.router.Router;
+import com.meldoheiri.webserver.servers.tls.TlsContext;
+
+/**
+ * State shared by every connection of a server, created once at startup.
+ */
+public class ServerContext {
+    private static final Logger LOGGER = System.getLogger(ServerContext.class.getName());
+    private final ServerConfig config;
+    private final BufferPools bufferPools;
+    private final StaticContentCache contentCache;
+    private final ExecutorService handlerThreads;
+    private final Executor handlerExecutor;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final AdmissionController admission;
+    private final AccessLog accessLog;
+    // completes the I/O of the proxy routes' backend connections, null without proxy routes
+    private final AsynchronousChannelGroup proxyGroup;
+    private final Router router;
+    private final TlsContext tls;
+
+    public ServerContext(ServerConfig config) {
+        this.config = config;
+        this.bufferPools = new BufferPools(config);
+        this.contentCache = new StaticContentCache(config);
+        this.accessLog = AccessLog.open(config, metrics);
+        this.proxyGroup = openProxyGroup(config);
+        this.router = createRouter(config);
+        this.tls = TlsContext.create(config);
+        this.admission = new AdmissionController(config, metrics);
+        if (config.getHandlerThreads() > 0) {
+            this.handlerThreads = Executors.newFixedThreadPool(config.getHandlerThreads(),
+                    Thread.ofPlatform().name("request-handler-", 0).daemon().factory());
+        } else {
+            this.handlerThreads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("request-handler-", 0).factory());
+        }
+        this.handlerExecutor = admission.monitor(handlerThreads);
+    }
+
+    private Router createRouter(ServerConfig config) {
+        Router.Builder builder = Router.builder()
+                .route(Router.ANY_METHOD, "/MyWebApp/*", new DefaultHTTPRequestHandler(config));
+        for (Map.Entry<String, List<String>> route : config.getProxyRoutes().entrySet()) {
+            builder.route(Router.ANY_METHOD, route.getKey(), new ProxyHTTPRequestHandler(route.getValue(), config, proxyGroup, metrics));
+        }
+        if (config.isMetricsEnabled()) {
+            builder.route("GET", "/metrics", new MetricsHTTPRequestHandler(metrics));
+        }
+        return builder.build();
+    }
+
+    private static AsynchronousChannelGroup openProxyGroup(ServerConfig config) {
+        if (config.getProxyRoutes().isEmpty()) {
+            return null;
+        }
+        try {
+            return AsynchronousChannelGroup.withFixedThreadPool(config.getProxyThreads(),
+                    Thread.ofPlatform().name("proxy-io-", 0).daemon().factory());
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot start the proxy's I/O threads", e);
+        }
+    }
+
+    /**
+     * Releases the handler threads, closes the connections to proxied
+     * backends and writes out the access log, once the server has drained its
+     * connections.
+     */
+    public void close() {
+        handlerThreads.shutdown();
+        if (proxyGroup != null) {
+            try {
+                proxyGroup.shutdownNow();
+            } catch (IOException e) {
+                if (LOGGER.isLoggable(Level.WARNING)) {
+                    LOGGER.log(Level.WARNING, "Failed to shut down the proxy channel group", e);
+                }
+            }
+        }
+        accessLog.close();
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public BufferPools getBufferPools() {
+        return bufferPools;
+    }
+
+    public StaticContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * Runs request handlers for the event loop servers, so application code
+     * never blocks a selector thread. The time handlers wait for a thread is
+     * fed to {@link #getAdmission() admission control}.
+     */
+    public Executor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Router getRouter() {
+        return router;
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * Creates the TLS engines and sockets of the connections, null when TLS
+     * is not enabled.
+     */
+    public TlsContext getTls() {
+        return tls;
+    }
+}
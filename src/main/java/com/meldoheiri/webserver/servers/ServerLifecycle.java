@@ -0,0 +1,75 @@
+package com.meldoheiri.webserver.servers;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.meldoheiri.webserver.servers.WebServer.State;
+
+/**
+ * The {@link State} of a server and the hand-off between the thread running
+ * it and the thread stopping it. The running thread does the draining; the
+ * stopping thread only asks for it and waits.
+ */
+public final class ServerLifecycle {
+    private final AtomicReference<State> state = new AtomicReference<>(State.NEW);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile long drainDeadlineNanos;
+
+    public State getState() {
+        return state.get();
+    }
+
+    public boolean isRunning() {
+        return state.get() == State.RUNNING;
+    }
+
+    /**
+     * Called by {@code start()} once the server is ready to serve.
+     *
+     * @throws IllegalStateException if the server was started or stopped before
+     */
+    public void running() {
+        if (!state.compareAndSet(State.NEW, State.RUNNING)) {
+            throw new IllegalStateException("Server cannot be started in state " + state.get());
+        }
+    }
+
+    /**
+     * Asks the running server to drain within the timeout. A server that was
+     * never started is stopped right away.
+     *
+     * @return true for the call that began the drain
+     */
+    public boolean drain(Duration timeout) {
+        drainDeadlineNanos = System.nanoTime() + timeout.toNanos();
+        if (state.compareAndSet(State.NEW, State.STOPPED)) {
+            stopped.countDown();
+            return false;
+        }
+        return state.compareAndSet(State.RUNNING, State.DRAINING);
+    }
+
+    /**
+     * Time left until connections are closed whether they are done or not.
+     */
+    public Duration remainingDrainTime() {
+        return Duration.ofNanos(Math.max(0, drainDeadlineNanos - System.nanoTime()));
+    }
+
+    /**
+     * Called by {@code start()} when it returns, drained or failed.
+     */
+    public void stopped() {
+        state.set(State.STOPPED);
+        stopped.countDown();
+    }
+
+    public void awaitStopped() {
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.meldoheiri.webserver.servers;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+
+/**
+ * Opens listening sockets and sets up accepted ones with the socket options of
+ * the {@link ServerConfig}, the same way for every server.
+ */
+public final class ServerSockets {
+    private static final Logger LOGGER = System.getLogger(ServerSockets.class.getName());
+    // how often a thread blocked in accept checks whether the server is stopping
+    private static final int ACCEPT_POLL_MILLIS = 100;
+
+    private ServerSockets() {
+    }
+
+    /**
+     * A channel bound to the configured address. With {@code server.reusePort}
+     * several of them can be bound to the same port, and the kernel spreads
+     * incoming connections across them.
+     */
+    public static ServerSocketChannel openListener(ServerConfig config) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            setListenerOptions(serverChannel, config);
+            serverChannel.bind(new InetSocketAddress(config.getHost(), config.getPort()), config.getAcceptBacklog());
+            serverChannel.socket().setSoTimeout(ACCEPT_POLL_MILLIS);
+            return serverChannel;
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * An asynchronous channel of the group bound to the configured address,
+     * with the same options as {@link #openListener(ServerConfig)}.
+     */
+    public static AsynchronousServerSocketChannel openListener(ServerConfig config, AsynchronousChannelGroup group) throws IOException {
+        AsynchronousServerSocketChannel serverChannel = AsynchronousServerSocketChannel.open(group);
+        try {
+            setListenerOptions(serverChannel, config);
+            serverChannel.bind(new InetSocketAddress(config.getHost(), config.getPort()), config.getAcceptBacklog());
+            return serverChannel;
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    private static void setListenerOptions(NetworkChannel serverChannel, ServerConfig config) throws IOException {
+        if (config.isReusePort()) {
+            if (!serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                throw new IOException("SO_REUSEPORT is not supported on this platform");
+            }
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (config.getReceiveBufferBytes() > 0) {
+            // set on the listener, so accepted sockets inherit it before the handshake negotiates the window scale
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferBytes());
+        }
+    }
+
+    /**
+     * Blocking accept that gives up after a short while, so an acceptor
+     * thread notices a stop without its listener being closed under it. A
+     * connection that fails to be accepted, e.g. when the process is out of
+     * file descriptors, does not end the accept loop: accepting backs off for
+     * a poll and the connection stays in the backlog.
+     *
+     * @return the accepted channel, or null when none arrived in time
+     */
+    public static SocketChannel accept(ServerSocketChannel serverChannel) throws IOException {
+        try {
+            return serverChannel.socket().accept().getChannel();
+        } catch (SocketTimeoutException e) {
+            return null;
+        } catch (IOException e) {
+            if (!serverChannel.isOpen()) {
+                throw e;
+            }
+            acceptFailed(e);
+            pauseAccept();
+            return null;
+        }
+    }
+
+    /**
+     * Logs an accept that failed on an open listener, which only affects the
+     * connection being accepted.
+     */
+    public static void acceptFailed(IOException e) {
+        if (LOGGER.isLoggable(Level.WARNING)) {
+            LOGGER.log(Level.WARNING, "Accept failed, backing off: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits as long as an accept poll, for an acceptor that leaves new
+     * connections in the backlog while the server is saturated.
+     */
+    public static void pauseAccept() {
+        try {
+            Thread.sleep(ACCEPT_POLL_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Accepts the connections the kernel has already queued on a listener
+     * that is about to be closed, so none of them is reset. An accept that
+     * fails ends it with the channels accepted so far.
+     *
+     * @return the queued channels, in the order they were accepted
+     */
+    public static List<SocketChannel> acceptQueued(ServerSocketChannel serverChannel) throws IOException {
+        serverChannel.configureBlocking(false);
+        List<SocketChannel> queued = new ArrayList<>();
+        try {
+            SocketChannel clientChannel;
+            while ((clientChannel = serverChannel.accept()) != null) {
+                queued.add(clientChannel);
+            }
+        } catch (IOException e) {
+            acceptFailed(e);
+        }
+        return queued;
+    }
+
+    /**
+     * Applies the per connection options to an accepted channel.
+     */
+    public static void configure(NetworkChannel clientChannel, ServerConfig config) throws IOException {
+        clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, config.isTcpNoDelay());
+        if (config.getSendBufferBytes() > 0) {
+            clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferBytes());
+        }
+    }
+}
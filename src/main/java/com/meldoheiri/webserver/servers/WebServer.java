@@ -1,7 +1,32 @@
 package com.meldoheiri.webserver.servers;
 
+import java.time.Duration;
+
 import com.meldoheiri.webserver.servers.exceptions.WebServerException;
 
+/**
+ * A server runs on the thread calling {@link #start()} until another thread
+ * calls {@link #stop(Duration)}.
+ */
 public interface WebServer {
+    enum State {
+        NEW, RUNNING, DRAINING, STOPPED
+    }
+
+    /**
+     * Binds the listener and serves connections, returning once the server
+     * has been stopped and drained.
+     */
     void start() throws WebServerException;
+
+    /**
+     * Stops accepting connections and drains the open ones: requests already
+     * received are answered, each connection is closed after its last
+     * response, and idle keep-alive connections are closed right away.
+     * Connections still open after the drain timeout are closed. Returns once
+     * the server has stopped; safe to call from any thread and more than once.
+     */
+    void stop(Duration drainTimeout);
+
+    State getState();
 }
@@ -0,0 +1,245 @@
+package com.meldoheiri.webserver.servers.accesslog;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+
+/**
+ * Access log written off the I/O threads.
+ *
+ * {@link #log} only allocates the entry and puts it on a lock-free ring
+ * buffer; when the buffer is full the entry is dropped and counted rather
+ * than blocking the caller. A single daemon thread drains the buffer in
+ * batches, formats them and appends them to the log file with one write per
+ * batch. The file is rotated once it reaches the configured size, keeping
+ * {@code server.accessLogMaxFiles} older files as {@code <file>.1},
+ * {@code <file>.2} and so on. Entries still buffered are written by
+ * {@link #close()}, which the server calls once it has drained.
+ *
+ * Lines look like {@code 127.0.0.1:51234 [18/Oct/2026:10:15:30 +0000] "GET /MyWebApp/index.html" 200 1043 212},
+ * the last two fields being the body bytes and the latency in microseconds.
+ */
+public class AccessLog {
+    private static final Logger LOGGER = System.getLogger(AccessLog.class.getName());
+    private static final int MAX_BATCH = 512;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter
+            .ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ROOT).withZone(ZoneId.systemDefault());
+
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final ServerMetrics metrics;
+    private final MpscRingBuffer<Entry> entries;
+    private final StringBuilder batch = new StringBuilder(MAX_BATCH * 128);
+    private FileChannel channel;
+    private long fileBytes;
+    private long formattedSecond = -1;
+    private String formattedTime;
+    private volatile boolean running = true;
+    private Thread writer;
+
+    private record Entry(long timeMillis, SocketAddress remoteAddress, String method, String path, int status,
+            long bytes, long latencyNanos) {
+    }
+
+    /**
+     * A log that is enabled when {@code server.accessLogFile} is set, otherwise
+     * one that ignores every entry.
+     */
+    public static AccessLog open(ServerConfig config, ServerMetrics metrics) {
+        String file = config.getAccessLogFile();
+        if (file == null || file.isBlank()) {
+            return new AccessLog();
+        }
+        return new AccessLog(Paths.get(file), config.getAccessLogMaxFileBytes(), config.getAccessLogMaxFiles(),
+                config.getAccessLogBufferEntries(), metrics);
+    }
+
+    private AccessLog() {
+        this.file = null;
+        this.maxFileBytes = 0;
+        this.maxFiles = 0;
+        this.metrics = null;
+        this.entries = null;
+    }
+
+    private AccessLog(Path file, long maxFileBytes, int maxFiles, int bufferEntries, ServerMetrics metrics) {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.metrics = metrics;
+        this.entries = new MpscRingBuffer<>(Integer.highestOneBit(Math.max(2, bufferEntries) - 1) << 1);
+        this.writer = Thread.ofPlatform().name("access-log-writer").daemon().start(this::run);
+    }
+
+    public boolean isEnabled() {
+        return entries != null;
+    }
+
+    /**
+     * Queues an entry for a completed request. Never blocks, safe to call from
+     * any thread.
+     */
+    public void log(SocketAddress remoteAddress, String method, String path, int status, long bytes, long latencyNanos) {
+        if (entries == null) {
+            return;
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), remoteAddress, method, path, status, bytes, latencyNanos);
+        if (!entries.offer(entry)) {
+            metrics.accessLogEntryDropped();
+        }
+    }
+
+    /**
+     * Writes out what is buffered and stops the writer.
+     */
+    public void close() {
+        if (entries == null || !running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            openFile();
+            while (true) {
+                // checked before draining, so entries queued before close() are still written
+                boolean stopping = !running;
+                int drained = drain();
+                if (drained == 0) {
+                    if (stopping) {
+                        break;
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.ERROR)) {
+                LOGGER.log(Level.ERROR, "Access log writer failed, access logging stops", e);
+            }
+        } finally {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                if (LOGGER.isLoggable(Level.WARNING)) {
+                    LOGGER.log(Level.WARNING, "Failed to close the access log: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private int drain() throws IOException {
+        batch.setLength(0);
+        int count = 0;
+        Entry entry;
+        while (count < MAX_BATCH && (entry = entries.poll()) != null) {
+            format(entry);
+            count++;
+        }
+        if (count > 0) {
+            write(StandardCharsets.UTF_8.encode(CharBuffer.wrap(batch)));
+        }
+        return count;
+    }
+
+    private void format(Entry entry) {
+        if (entry.remoteAddress() instanceof InetSocketAddress address) {
+            batch.append(address.getHostString()).append(':').append(address.getPort());
+        } else {
+            batch.append('-');
+        }
+        long second = entry.timeMillis() / 1000;
+        if (second != formattedSecond) {
+            formattedSecond = second;
+            formattedTime = TIME_FORMAT.format(Instant.ofEpochSecond(second));
+        }
+        batch.append(" [").append(formattedTime).append("] \"");
+        appendEscaped(entry.method());
+        batch.append(' ');
+        appendEscaped(entry.path());
+        batch.append("\" ").append(entry.status()).append(' ').append(entry.bytes()).append(' ')
+                .append(entry.latencyNanos() / 1000).append('\n');
+    }
+
+    /**
+     * Keeps a client from forging lines or fields through the request line.
+     */
+    private void appendEscaped(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 || c == 0x7f || c == '"' || c == '\\') {
+                batch.append("\\x").append(Character.forDigit(c >> 4 & 0xf, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                batch.append(c);
+            }
+        }
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        if (fileBytes > 0 && fileBytes + bytes.remaining() > maxFileBytes) {
+            rotate();
+        }
+        while (bytes.hasRemaining()) {
+            fileBytes += channel.write(bytes);
+        }
+    }
+
+    private void openFile() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        if (maxFiles > 0) {
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path older = rotated(i);
+                if (Files.exists(older)) {
+                    Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        openFile();
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+}
@@ -0,0 +1,144 @@
+package com.meldoheiri.webserver.servers.admission;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPResponse;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics.ShedReason;
+
+/**
+ * Decides whether the server takes on more work, so an overloaded server
+ * answers the excess right away with {@code 503} and {@code Retry-After}
+ * instead of letting every request wait longer.
+ *
+ * Requests are admitted up to {@code server.maxInFlightRequests} handlers
+ * running at once. The time work waits in the server's queues, handler tasks
+ * for the event loop servers and accepted connections for the thread pool
+ * server, is fed to a {@link QueueDelayMonitor}; while it reports a standing
+ * queue and handlers are running, new requests are shed as well. Servers stop accepting connections
+ * while {@link #isSaturated()}, leaving new clients in the kernel's backlog.
+ */
+public class AdmissionController {
+    private final ServerMetrics metrics;
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final QueueDelayMonitor queueDelay;
+    private final HTTPResponse rejection;
+    private final ByteBuffer connectionRejection;
+
+    public AdmissionController(ServerConfig config, ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.maxInFlight = config.getMaxInFlightRequests() > 0 ? config.getMaxInFlightRequests() : Integer.MAX_VALUE;
+        this.queueDelay = new QueueDelayMonitor(TimeUnit.MILLISECONDS.toNanos(config.getQueueDelayTargetMillis()),
+                TimeUnit.MILLISECONDS.toNanos(config.getQueueDelayIntervalMillis()));
+        String retryAfter = Integer.toString(config.getRetryAfterSeconds());
+        this.rejection = new HTTPResponse("HTTP/1.1 503 Service Unavailable\r\n", Map.of("Retry-After", retryAfter), "");
+        byte[] connectionRejection = ("HTTP/1.1 503 Service Unavailable\r\nServer: MyWebServer\r\nRetry-After: " + retryAfter
+                + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.connectionRejection = ByteBuffer.allocateDirect(connectionRejection.length).put(connectionRejection).flip()
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Admits a request to its handler; an admitted request must be
+     * {@link #release() released} once its handler has completed.
+     *
+     * @return false when the request is to be answered with {@link #rejection()}
+     */
+    public boolean tryAdmit() {
+        if (isQueueStanding(System.nanoTime())) {
+            metrics.requestShed(ShedReason.QUEUE_DELAY);
+            return false;
+        }
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            metrics.requestShed(ShedReason.IN_FLIGHT_LIMIT);
+            return false;
+        }
+        metrics.requestAdmitted();
+        return true;
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+        metrics.requestReleased();
+    }
+
+    /**
+     * The response to a request that was not admitted.
+     */
+    public HTTPResponse rejection() {
+        return rejection;
+    }
+
+    /**
+     * Whether new connections should wait in the backlog rather than be
+     * accepted.
+     */
+    public boolean isSaturated() {
+        return inFlight.get() >= maxInFlight || isQueueStanding(System.nanoTime());
+    }
+
+    /**
+     * Whether the queue delay monitor reports a standing queue. With no
+     * handler running nothing is waiting behind other work, so nothing is shed.
+     */
+    private boolean isQueueStanding(long now) {
+        return inFlight.get() > 0 && queueDelay.shouldShed(now);
+    }
+
+    /**
+     * The executor with the time each task waits in it fed to the queue delay
+     * monitor.
+     */
+    public Executor monitor(Executor executor) {
+        return task -> {
+            long queued = System.nanoTime();
+            executor.execute(() -> {
+                long now = System.nanoTime();
+                queueDelay.record(now - queued, now);
+                task.run();
+            });
+        };
+    }
+
+    /**
+     * For an accepted connection leaving the queue it waited in for a thread.
+     *
+     * @return false when the connection is to be {@link #reject rejected}
+     *         because the queue is standing
+     */
+    public boolean admitQueued(long queuedNanos) {
+        long now = System.nanoTime();
+        queueDelay.record(now - queuedNanos, now);
+        return !isQueueStanding(now);
+    }
+
+    /**
+     * Answers a connection that is not going to be served with a 503 and
+     * closes it, without waiting for the client.
+     */
+    public void reject(SocketChannel clientChannel, ShedReason reason) {
+        metrics.requestShed(reason);
+        try (clientChannel) {
+            // best effort, a client that is not reading simply gets the close
+            clientChannel.configureBlocking(false);
+            clientChannel.write(connectionRejection.duplicate());
+            clientChannel.shutdownOutput();
+            // closing with the request unread would reset the connection and could discard the response
+            ByteBuffer discard = ByteBuffer.allocate(1024);
+            while (clientChannel.read(discard.clear()) > 0) {
+            }
+        } catch (IOException e) {
+            // the client is gone already
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.meldoheiri.webserver.servers.admission;
+
+/**
+ * Detects a standing queue from the time work waited in it, the way CoDel
+ * does.
+ *
+ * A queue that absorbs a burst drains again, so its delay drops below the
+ * target within an interval. The interval starts with the first delay above
+ * the target, and any delay at or below the target ends it. Only when the
+ * delay has stayed above the target for a whole interval, over at least
+ * {@link #MIN_SAMPLES} measurements, has the queue stopped draining; it then
+ * counts as overloaded until a delay below the target is measured. Nothing
+ * measured for an interval means the queue is idle, which resets the monitor,
+ * so shedding everything cannot keep the queue marked forever and a sample
+ * left over from before an idle period is never judged on its own.
+ * Safe to use from any thread.
+ */
+final class QueueDelayMonitor {
+    /**
+     * Measurements above the target needed before a queue counts as standing,
+     * so a few slow samples in a quiet interval are not mistaken for one.
+     */
+    static final int MIN_SAMPLES = 4;
+
+    private final long targetNanos;
+    private final long intervalNanos;
+    private long firstAboveTime;
+    private boolean aboveTarget = false;
+    private int samplesAbove;
+    private volatile long lastSample;
+    private volatile boolean overloaded = false;
+
+    /**
+     * @param targetNanos delay a queue may keep for a whole interval, 0 never
+     *                    sheds
+     */
+    QueueDelayMonitor(long targetNanos, long intervalNanos) {
+        this.targetNanos = targetNanos;
+        this.intervalNanos = intervalNanos;
+    }
+
+    synchronized void record(long delayNanos, long now) {
+        if (targetNanos <= 0) {
+            return;
+        }
+        if (aboveTarget && now - lastSample > intervalNanos) {
+            // idle since the last measurement, the queue has drained
+            aboveTarget = false;
+            overloaded = false;
+        }
+        lastSample = now;
+        if (delayNanos <= targetNanos) {
+            aboveTarget = false;
+            overloaded = false;
+            return;
+        }
+        if (!aboveTarget) {
+            aboveTarget = true;
+            firstAboveTime = now;
+            samplesAbove = 0;
+        }
+        samplesAbove++;
+        if (!overloaded && now - firstAboveTime >= intervalNanos && samplesAbove >= MIN_SAMPLES) {
+            overloaded = true;
+        }
+    }
+
+    boolean shouldShed(long now) {
+        if (targetNanos <= 0) {
+            return false;
+        }
+        // shed work is never measured, so an interval without samples ends the overload
+        return overloaded && now - lastSample <= intervalNanos;
+    }
+}
@@ -0,0 +1,364 @@
+package com.meldoheiri.webserver.servers.blockingmultithreaded;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.ServerContext;
+import com.meldoheiri.webserver.servers.ServerLifecycle;
+import com.meldoheiri.webserver.servers.ServerSockets;
+import com.meldoheiri.webserver.servers.WebServer;
+import com.meldoheiri.webserver.servers.admission.AdmissionController;
+import com.meldoheiri.webserver.servers.bufferpool.PooledOutputStream;
+import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.HTTPSocketDataHandler;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics.ShedReason;
+import com.meldoheiri.webserver.servers.tls.SSLSocketChannel;
+import com.meldoheiri.webserver.servers.tls.TlsContext;
+
+/**
+ * Thread per connection server using blocking socket I/O. Subclasses decide
+ * which threads run the connections.
+ *
+ * Accepting pauses while {@code server.maxConnections} connections are
+ * accepted or admission control is saturated, leaving new connections in the
+ * backlog. A connection the executor refuses, or one that waited for a thread
+ * while the wait is standing, is answered with {@code 503} and closed.
+ *
+ * With TLS enabled each connection's thread runs the handshake of its
+ * {@link SSLSocket} within the header timeout of the first request, and
+ * responses are written through an {@link SSLSocketChannel}.
+ *
+ * Stopping ends the accept loop, which still hands the connections queued on
+ * the listener to the executor. Connections waiting for their next request
+ * are closed, the others are closed by their own thread after their last
+ * response. Once the executor has finished, or the drain timeout has passed
+ * and the remaining sockets have been closed, it is shut down.
+ */
+public abstract class BlockingIOServer implements WebServer {
+    private static final Logger LOGGER = System.getLogger(BlockingIOServer.class.getName());
+
+    protected final ServerConfig config;
+    protected final ServerContext context;
+    private final ServerMetrics metrics;
+    private final AdmissionController admission;
+    private final ServerLifecycle lifecycle = new ServerLifecycle();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    // accepted connections, waiting for a thread or being served
+    private final AtomicInteger connectionCount = new AtomicInteger(0);
+
+    protected BlockingIOServer(ServerConfig config) {
+        this.config = config;
+        this.context = new ServerContext(config);
+        this.metrics = context.getMetrics();
+        this.admission = context.getAdmission();
+    }
+
+    /**
+     * Executor running one task per accepted connection. It may refuse tasks
+     * with a {@link RejectedExecutionException} to bound its queue.
+     */
+    protected abstract ExecutorService createExecutor();
+
+    /**
+     * Buffer the connection running on the calling thread reads into. Reads go
+     * through the socket stream, which honours the read timeouts.
+     */
+    protected abstract byte[] readBuffer();
+
+    @Override
+    public void start() throws WebServerException {
+        ExecutorService executor = createExecutor();
+        try {
+            try (ServerSocketChannel serverChannel = ServerSockets.openListener(config)) {
+                lifecycle.running();
+                boolean paused = false;
+                while (lifecycle.isRunning()) {
+                    if (connectionCount.get() >= config.getMaxConnections() || admission.isSaturated()) {
+                        if (!paused) {
+                            paused = true;
+                            metrics.acceptPaused();
+                        }
+                        ServerSockets.pauseAccept();
+                        continue;
+                    }
+                    paused = false;
+                    SocketChannel clientChannel = ServerSockets.accept(serverChannel);
+                    if (clientChannel != null) {
+                        submit(executor, clientChannel);
+                    }
+                }
+                for (SocketChannel clientChannel : ServerSockets.acceptQueued(serverChannel)) {
+                    submit(executor, clientChannel);
+                }
+            }
+            drain(executor);
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.ERROR)) {
+                LOGGER.log(Level.ERROR, "Server failed", e);
+            }
+            throw new WebServerException("Server Failure", e);
+        } finally {
+            executor.shutdownNow();
+            context.close();
+            lifecycle.stopped();
+        }
+    }
+
+    @Override
+    public void stop(Duration drainTimeout) {
+        lifecycle.drain(drainTimeout);
+        lifecycle.awaitStopped();
+    }
+
+    @Override
+    public State getState() {
+        return lifecycle.getState();
+    }
+
+    private void submit(ExecutorService executor, SocketChannel clientChannel) {
+        metrics.connectionAccepted();
+        connectionCount.incrementAndGet();
+        long accepted = System.nanoTime();
+        try {
+            executor.execute(() -> handleClient(clientChannel, accepted));
+        } catch (RejectedExecutionException e) {
+            connectionCount.decrementAndGet();
+            admission.reject(clientChannel, ShedReason.QUEUE_FULL);
+        }
+    }
+
+    private void drain(ExecutorService executor) {
+        executor.shutdown();
+        for (Connection connection : connections) {
+            connection.closeIfIdle();
+        }
+        try {
+            long remaining = lifecycle.remainingDrainTime().toNanos();
+            if (!executor.awaitTermination(remaining, TimeUnit.NANOSECONDS)) {
+                // past the drain timeout, the threads are released by closing their sockets
+                for (Connection connection : connections) {
+                    connection.close();
+                }
+                executor.shutdownNow();
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleClient(SocketChannel clientChannel, long accepted) {
+        if (!admission.admitQueued(accepted)) {
+            connectionCount.decrementAndGet();
+            admission.reject(clientChannel, ShedReason.QUEUE_DELAY);
+            return;
+        }
+        Socket socket = clientChannel.socket();
+        // replaced by the TLS socket layered over it, which closes it as well
+        Socket connectionSocket = socket;
+        PooledOutputStream responseStream = new PooledOutputStream(context.getBufferPools().forCurrentThread());
+        HTTPSocketDataHandler requestHandler = new HTTPSocketDataHandler(responseStream, context, socket.getRemoteSocketAddress());
+        Connection connection = new Connection(socket);
+        connections.add(connection);
+        metrics.connectionOpened();
+        boolean draining = false;
+        try {
+            ServerSockets.configure(clientChannel, config);
+            byte[] buffer = readBuffer();
+            long headerDeadline = System.nanoTime() / 1_000_000 + config.getReadHeaderTimeoutMillis();
+            InputStream in = socket.getInputStream();
+            GatheringByteChannel out = clientChannel;
+            TlsContext tls = context.getTls();
+            if (tls != null) {
+                SSLSocket tlsSocket = tls.wrap(socket);
+                connectionSocket = tlsSocket;
+                handshake(tlsSocket);
+                in = tlsSocket.getInputStream();
+                out = new SSLSocketChannel(tlsSocket);
+            }
+            boolean firstRequest = true;
+            int readBytes;
+            while (true) {
+                if (!draining && !lifecycle.isRunning()) {
+                    draining = true;
+                    requestHandler.drain();
+                }
+                // Release the thread when a persistent connection goes idle or a client stalls
+                long now = System.nanoTime() / 1_000_000;
+                boolean readingHeaders = !requestHandler.isReadingBody() && (firstRequest || requestHandler.isRequestInProgress());
+                boolean idle = !readingHeaders && !requestHandler.isReadingBody();
+                if (idle && draining) {
+                    return;
+                }
+                if (requestHandler.isReadingBody()) {
+                    socket.setSoTimeout(config.getReadBodyTimeoutMillis());
+                } else if (readingHeaders) {
+                    if (now >= headerDeadline) {
+                        throw new SocketTimeoutException("Request headers took too long");
+                    }
+                    socket.setSoTimeout((int) (headerDeadline - now));
+                } else {
+                    socket.setSoTimeout(config.getKeepAliveTimeoutMillis());
+                }
+                if (idle) {
+                    connection.idle();
+                    if (!lifecycle.isRunning()) {
+                        // a drain began after the check above and may have missed this connection
+                        return;
+                    }
+                }
+                readBytes = in.read(buffer, 0, buffer.length);
+                if (idle && !connection.busy()) {
+                    // closed by a drain while waiting, whatever arrived is not answered
+                    return;
+                }
+                if (readBytes == -1) {
+                    break;
+                }
+                if (!readingHeaders) {
+                    // the header deadline counts from the read that brought the first bytes
+                    headerDeadline = System.nanoTime() / 1_000_000 + config.getReadHeaderTimeoutMillis();
+                }
+                firstRequest = false;
+                metrics.bytesReceived(readBytes);
+                requestHandler.read(ByteBuffer.wrap(buffer, 0, readBytes));
+                // responses may also have been completed by the body bytes just read,
+                // streamed bodies are pulled once the queued bytes are out
+                do {
+                    while (responseStream.hasRemaining()) {
+                        metrics.bytesSent(responseStream.writeTo(out));
+                    }
+                } while (requestHandler.pumpResponse());
+                if (requestHandler.shouldCloseConnection()) {
+                    return;
+                }
+                if (requestHandler.isReadPaused() && !requestHandler.awaitReadResumed(config.getReadBodyTimeoutMillis())) {
+                    throw new SocketTimeoutException("Request body not consumed");
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            metrics.connectionTimedOut();
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Connection timed out: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SSLException e) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "TLS failure: " + e.getMessage());
+            }
+        } catch (IOException | WebServerException e) {
+            // malformed requests are counted as parse errors by the handler
+            if (!connection.isClosed() && LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Failed to handle client connection", e);
+            }
+        } finally {
+            connections.remove(connection);
+            connectionCount.decrementAndGet();
+            requestHandler.close();
+            responseStream.close();
+            closeConnection(connectionSocket);
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Runs the TLS handshake, within the header timeout of the first request.
+     */
+    private void handshake(SSLSocket tlsSocket) throws IOException {
+        tlsSocket.setSoTimeout(config.getReadHeaderTimeoutMillis());
+        long started = System.currentTimeMillis();
+        try {
+            tlsSocket.startHandshake();
+        } catch (SSLException e) {
+            metrics.tlsHandshakeFailed();
+            throw e;
+        }
+        metrics.tlsHandshakeCompleted(TlsContext.isResumed(tlsSocket.getSession(), started));
+    }
+
+    private void closeConnection(Socket socket) {
+        try {
+            socket.close();
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Socket closed");
+            }
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Failed to close client socket: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A connection's socket, with whether its thread is waiting for the next
+     * request, so a drain closes it only while it is idle and never while a
+     * request is being handled.
+     */
+    private static final class Connection {
+        private static final int BUSY = 0;
+        private static final int IDLE = 1;
+        private static final int CLOSED = 2;
+
+        private final Socket socket;
+        private final AtomicInteger state = new AtomicInteger(BUSY);
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        void idle() {
+            state.compareAndSet(BUSY, IDLE);
+        }
+
+        /**
+         * @return false when the connection was closed while idle
+         */
+        boolean busy() {
+            return state.compareAndSet(IDLE, BUSY);
+        }
+
+        boolean isClosed() {
+            return state.get() == CLOSED;
+        }
+
+        void closeIfIdle() {
+            if (state.compareAndSet(IDLE, CLOSED)) {
+                closeQuietly();
+            }
+        }
+
+        void close() {
+            state.set(CLOSED);
+            closeQuietly();
+        }
+
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing to release the thread, which is all that matters
+            }
+        }
+    }
+}
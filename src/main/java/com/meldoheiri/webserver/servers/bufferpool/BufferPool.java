@@ -0,0 +1,86 @@
+package com.meldoheiri.webserver.servers.bufferpool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Free lists of direct buffers in a few size classes, confined to one thread.
+ *
+ * {@link #acquire(int)} returns a cleared buffer of the smallest size class
+ * that fits; the buffer has to be given back with {@link #release(ByteBuffer)}
+ * on the same thread. Requests above the largest size class, and requests
+ * made while the shared off-heap budget is exhausted, get an unpooled heap
+ * buffer, which is simply dropped on release.
+ */
+public class BufferPool {
+    public static final int SMALL = 4 * 1024;
+    public static final int MEDIUM = 16 * 1024;
+    public static final int LARGE = 64 * 1024;
+
+    private static final int[] SIZE_CLASSES = { SMALL, MEDIUM, LARGE };
+    private static final int MAX_FREE_BUFFERS_PER_CLASS = 256;
+
+    private final BufferPools pools;
+    private final ArrayDeque<ByteBuffer>[] freeLists = newFreeLists(SIZE_CLASSES.length);
+
+    BufferPool(BufferPools pools) {
+        this.pools = pools;
+    }
+
+    public ByteBuffer acquire(int minCapacity) {
+        int sizeClass = sizeClassOf(minCapacity);
+        if (sizeClass < 0) {
+            pools.recordAcquire(false, minCapacity);
+            return ByteBuffer.allocate(minCapacity);
+        }
+
+        ByteBuffer buffer = freeLists[sizeClass].pollLast();
+        if (buffer != null) {
+            pools.recordAcquire(true, buffer.capacity());
+            return buffer;
+        }
+
+        int capacity = SIZE_CLASSES[sizeClass];
+        pools.recordAcquire(false, capacity);
+        if (pools.reserveDirect(capacity)) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        return ByteBuffer.allocate(capacity);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        pools.recordRelease(buffer.capacity());
+        if (!buffer.isDirect()) {
+            return;
+        }
+        int sizeClass = sizeClassOf(buffer.capacity());
+        if (freeLists[sizeClass].size() >= MAX_FREE_BUFFERS_PER_CLASS) {
+            // let the GC reclaim it
+            pools.releaseDirect(buffer.capacity());
+            return;
+        }
+        buffer.clear();
+        freeLists[sizeClass].addLast(buffer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<ByteBuffer>[] newFreeLists(int count) {
+        ArrayDeque<ByteBuffer>[] freeLists = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[count];
+        for (int i = 0; i < count; i++) {
+            freeLists[i] = new ArrayDeque<>();
+        }
+        return freeLists;
+    }
+
+    private static int sizeClassOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,122 @@
+package com.meldoheiri.webserver.servers.bufferpool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+
+/**
+ * Hands out {@link BufferPool}s that share one off-heap budget and one set of
+ * counters.
+ *
+ * Event loops own a pool each through {@link #newPool()}; threads of the
+ * blocking servers get theirs from {@link #forCurrentThread()}, virtual
+ * threads share a few striped pools instead, as do the connections of the
+ * asynchronous server through {@link #newSharedPool()}. Once the
+ * direct memory held by all pools reaches the configured cap, pools fall back
+ * to heap buffers instead of failing.
+ */
+public final class BufferPools {
+    private final long maxDirectBytes;
+    private final AtomicLong directBytes = new AtomicLong(0);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bytesOutstanding = new LongAdder();
+    private final ThreadLocal<BufferPool> threadPools = ThreadLocal.withInitial(this::newPool);
+    private final BufferPool[] sharedPools;
+
+    public BufferPools(ServerConfig config) {
+        this(config.getBufferPoolMaxBytes());
+    }
+
+    public BufferPools(long maxDirectBytes) {
+        this.maxDirectBytes = maxDirectBytes;
+        this.sharedPools = new BufferPool[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < sharedPools.length; i++) {
+            sharedPools[i] = new SharedBufferPool(this);
+        }
+    }
+
+    /**
+     * A pool that must only be used by the calling thread.
+     */
+    public BufferPool newPool() {
+        return new BufferPool(this);
+    }
+
+    /**
+     * A pool that may be used by several threads, for connections whose
+     * completions run on whichever thread of a channel group is free.
+     */
+    public BufferPool newSharedPool() {
+        return new SharedBufferPool(this);
+    }
+
+    public BufferPool forCurrentThread() {
+        Thread thread = Thread.currentThread();
+        if (thread.isVirtual()) {
+            return sharedPools[(int) (thread.threadId() % sharedPools.length)];
+        }
+        return threadPools.get();
+    }
+
+    /**
+     * Number of acquisitions served from a free list.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of acquisitions that had to allocate a new buffer.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Capacity of all buffers that are currently leased out.
+     */
+    public long getBytesOutstanding() {
+        return bytesOutstanding.sum();
+    }
+
+    /**
+     * Direct memory held by all pools, leased or free.
+     */
+    public long getDirectBytes() {
+        return directBytes.get();
+    }
+
+    public long getMaxDirectBytes() {
+        return maxDirectBytes;
+    }
+
+    boolean reserveDirect(int bytes) {
+        long current;
+        do {
+            current = directBytes.get();
+            if (current + bytes > maxDirectBytes) {
+                return false;
+            }
+        } while (!directBytes.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    void releaseDirect(int bytes) {
+        directBytes.addAndGet(-bytes);
+    }
+
+    void recordAcquire(boolean hit, int capacity) {
+        if (hit) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        bytesOutstanding.add(capacity);
+    }
+
+    void recordRelease(int capacity) {
+        bytesOutstanding.add(-capacity);
+    }
+}
@@ -0,0 +1,285 @@
+package com.meldoheiri.webserver.servers.bufferpool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Output stream collecting bytes in pooled buffers until they are written to
+ * a channel.
+ *
+ * Bytes are appended to a tail buffer; {@link #writeTo(GatheringByteChannel)}
+ * seals the tail and does one gathering write of everything queued, handing
+ * every fully written buffer back to the pool. File regions queued with
+ * {@link #transferFrom(FileChannel, long, long)} are sent with
+ * {@link FileChannel#transferTo}, so their bytes never enter the heap, and
+ * buffers queued with {@link #writeShared(ByteBuffer)} are sent in place.
+ * Channels other than sockets, which have to see the bytes to encrypt them,
+ * get file regions through a pooled buffer instead. On a non-blocking channel
+ * it writes what the socket accepts and can simply be called again.
+ */
+public class PooledOutputStream extends OutputStream {
+    private static final int MAX_GATHER = 16;
+    // upper bound of a single transferTo call
+    private static final long MAX_TRANSFER = 1024 * 1024;
+
+    private final BufferPool pool;
+    // pooled ByteBuffers ready to be written, interleaved with SharedBuffers and FileSegments
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private ByteBuffer tail;
+
+    public PooledOutputStream(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureTail(1);
+        tail.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            ensureTail(length);
+            int chunk = Math.min(length, tail.remaining());
+            tail.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Copies the buffer's remaining bytes without moving its position, so a
+     * buffer shared between threads can be passed as it is. Cheaper than
+     * {@link #writeShared(ByteBuffer)} for a few hundred bytes.
+     */
+    public void write(ByteBuffer buffer) {
+        int position = buffer.position();
+        int length = buffer.remaining();
+        while (length > 0) {
+            ensureTail(length);
+            int chunk = Math.min(length, tail.remaining());
+            tail.put(tail.position(), buffer, position, chunk);
+            tail.position(tail.position() + chunk);
+            position += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Queues a buffer owned by somebody else, without copying it. The buffer's
+     * position is advanced as it is written and it is never returned to the
+     * pool, so callers pass a duplicate of shared data.
+     */
+    public void writeShared(ByteBuffer buffer) {
+        sealTail();
+        pending.addLast(new SharedBuffer(buffer));
+    }
+
+    /**
+     * Queues a region of a file behind the bytes written so far. The channel is
+     * closed once the region has been sent or the stream is closed.
+     */
+    public void transferFrom(FileChannel fileChannel, long position, long count) {
+        transferFrom(fileChannel, position, count, true);
+    }
+
+    /**
+     * Queues a region of a file that is sent in several regions, with other
+     * bytes in between. Only the region queued with {@code close} closes the
+     * channel, once it has been sent; queuing an empty one closes the channel
+     * after the regions in front of it.
+     */
+    public void transferFrom(FileChannel fileChannel, long position, long count, boolean close) {
+        sealTail();
+        pending.addLast(new FileSegment(fileChannel, position, position + count, close));
+    }
+
+    public boolean hasRemaining() {
+        return !pending.isEmpty() || (tail != null && tail.position() > 0);
+    }
+
+    /**
+     * Number of bytes queued and not written yet.
+     */
+    public long remaining() {
+        long remaining = tail == null ? 0 : tail.position();
+        for (Object segment : pending) {
+            if (segment instanceof ByteBuffer buffer) {
+                remaining += buffer.remaining();
+            } else if (segment instanceof SharedBuffer shared) {
+                remaining += shared.buffer().remaining();
+            } else if (segment instanceof FileSegment fileSegment) {
+                remaining += fileSegment.remaining();
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Writes as much of the queued data as the channel accepts.
+     *
+     * @return the number of bytes written
+     */
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        sealTail();
+        long total = 0;
+        while (!pending.isEmpty()) {
+            long written;
+            if (pending.peekFirst() instanceof FileSegment segment) {
+                written = segment.isDone() ? 0 : segment.transferTo(channel, pool);
+                total += written;
+                if (segment.isDone()) {
+                    pending.pollFirst();
+                    segment.close();
+                    continue;
+                }
+            } else {
+                written = writeBuffers(channel);
+                total += written;
+            }
+            if (written <= 0) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    private long writeBuffers(GatheringByteChannel channel) throws IOException {
+        int count = 0;
+        for (Object segment : pending) {
+            if (count == MAX_GATHER || segment instanceof FileSegment) {
+                break;
+            }
+            gather[count++] = segment instanceof SharedBuffer shared ? shared.buffer() : (ByteBuffer) segment;
+        }
+        long written = channel.write(gather, 0, count);
+        for (int i = 0; i < count; i++) {
+            gather[i] = null;
+        }
+        while (!pending.isEmpty()) {
+            Object segment = pending.peekFirst();
+            if (segment instanceof ByteBuffer buffer && !buffer.hasRemaining()) {
+                pending.pollFirst();
+                pool.release(buffer);
+            } else if (segment instanceof SharedBuffer shared && !shared.buffer().hasRemaining()) {
+                pending.pollFirst();
+            } else {
+                break;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Returns every buffer to the pool and closes queued files, dropping
+     * unwritten bytes.
+     */
+    @Override
+    public void close() {
+        while (!pending.isEmpty()) {
+            Object segment = pending.pollFirst();
+            if (segment instanceof FileSegment fileSegment) {
+                fileSegment.close();
+            } else if (segment instanceof ByteBuffer buffer) {
+                pool.release(buffer);
+            }
+        }
+        pool.release(tail);
+        tail = null;
+    }
+
+    private void ensureTail(int length) {
+        if (tail != null && tail.hasRemaining()) {
+            return;
+        }
+        sealTail();
+        tail = pool.acquire(length <= BufferPool.SMALL ? BufferPool.SMALL : BufferPool.MEDIUM);
+    }
+
+    private void sealTail() {
+        if (tail == null) {
+            return;
+        }
+        if (tail.position() == 0) {
+            return;
+        }
+        tail.flip();
+        pending.addLast(tail);
+        tail = null;
+    }
+
+    private record SharedBuffer(ByteBuffer buffer) {
+    }
+
+    private static class FileSegment {
+        private final FileChannel fileChannel;
+        private final long end;
+        private final boolean close;
+        private long position;
+
+        FileSegment(FileChannel fileChannel, long position, long end, boolean close) {
+            this.fileChannel = fileChannel;
+            this.position = position;
+            this.end = end;
+            this.close = close;
+        }
+
+        long transferTo(GatheringByteChannel channel, BufferPool pool) throws IOException {
+            if (!(channel instanceof SocketChannel)) {
+                return copyTo(channel, pool);
+            }
+            long written = fileChannel.transferTo(position, Math.min(end - position, MAX_TRANSFER), channel);
+            if (written == 0 && position >= fileChannel.size()) {
+                throw new IOException("File truncated while sending it");
+            }
+            position += written;
+            return written;
+        }
+
+        /**
+         * Sends the next part of the region through a pooled buffer. Bytes the
+         * channel does not take are read again on the next call.
+         */
+        private long copyTo(GatheringByteChannel channel, BufferPool pool) throws IOException {
+            ByteBuffer buffer = pool.acquire(BufferPool.LARGE);
+            try {
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                if (fileChannel.read(buffer, position) <= 0) {
+                    throw new IOException("File truncated while sending it");
+                }
+                buffer.flip();
+                long written = channel.write(buffer);
+                position += written;
+                return written;
+            } finally {
+                pool.release(buffer);
+            }
+        }
+
+        boolean isDone() {
+            return position >= end;
+        }
+
+        long remaining() {
+            return end - position;
+        }
+
+        void close() {
+            if (!close) {
+                return;
+            }
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                // opened for reading, nothing is lost
+            }
+        }
+    }
+}
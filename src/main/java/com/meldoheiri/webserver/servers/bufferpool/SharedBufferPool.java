@@ -0,0 +1,24 @@
+package com.meldoheiri.webserver.servers.bufferpool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link BufferPool} that may be used by several threads. Used by virtual
+ * threads, which are too many and too short lived to own a pool each.
+ */
+class SharedBufferPool extends BufferPool {
+
+    SharedBufferPool(BufferPools pools) {
+        super(pools);
+    }
+
+    @Override
+    public synchronized ByteBuffer acquire(int minCapacity) {
+        return super.acquire(minCapacity);
+    }
+
+    @Override
+    public synchronized void release(ByteBuffer buffer) {
+        super.release(buffer);
+    }
+}
@@ -0,0 +1,105 @@
+package com.meldoheiri.webserver.servers.contentcache;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * A cached 200 response, encoded once and shared by all connections.
+ *
+ * The response is split around the connection headers, which differ between
+ * keep-alive and close, and the {@code Date} header, which changes every
+ * second: {@link #head()} holds the status line and the remaining headers,
+ * {@link #tail()} the blank line and the body. Both are read-only direct
+ * buffers shared by every writer, which copy them or send duplicates and never
+ * move their position.
+ *
+ * When the response carries validators, the head of the matching 304 is
+ * encoded along with it, so conditional requests for cached files are
+ * answered without touching the file or allocating.
+ *
+ * HTTP/2 connections encode the heads as header blocks of their own the first
+ * time they send the response, and keep them here for the other connections.
+ */
+public class CachedResponse {
+    private final Path file;
+    private final ByteBuffer head;
+    private final ByteBuffer tail;
+    private final Validators validators;
+    private final ByteBuffer notModifiedHead;
+    private volatile byte[] http2Head;
+    private volatile byte[] http2NotModifiedHead;
+    volatile boolean referenced = true;
+
+    /**
+     * @param notModifiedHead status line and headers of the 304 response,
+     *                        without the connection headers and the blank line
+     */
+    public record Validators(String etag, long lastModifiedSeconds, byte[] notModifiedHead) {
+    }
+
+    CachedResponse(Path file, ByteBuffer head, ByteBuffer tail, Validators validators) {
+        this.file = file;
+        this.head = head;
+        this.tail = tail;
+        this.validators = validators;
+        this.notModifiedHead = validators == null ? null
+                : ByteBuffer.allocateDirect(validators.notModifiedHead().length).put(validators.notModifiedHead()).flip().asReadOnlyBuffer();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public ByteBuffer head() {
+        return head;
+    }
+
+    public ByteBuffer tail() {
+        return tail;
+    }
+
+    /**
+     * Validators of the cached version, or null when the response had none.
+     */
+    public Validators validators() {
+        return validators;
+    }
+
+    public ByteBuffer notModifiedHead() {
+        return notModifiedHead;
+    }
+
+    /**
+     * {@link #head()} as an HTTP/2 header block, or null until one is set.
+     */
+    public byte[] http2Head() {
+        return http2Head;
+    }
+
+    public void setHttp2Head(byte[] http2Head) {
+        this.http2Head = http2Head;
+    }
+
+    /**
+     * {@link #notModifiedHead()} as an HTTP/2 header block, or null until one
+     * is set.
+     */
+    public byte[] http2NotModifiedHead() {
+        return http2NotModifiedHead;
+    }
+
+    public void setHttp2NotModifiedHead(byte[] http2NotModifiedHead) {
+        this.http2NotModifiedHead = http2NotModifiedHead;
+    }
+
+    /**
+     * Length of the body, without the blank line that starts the tail.
+     */
+    public long bodyLength() {
+        return tail.capacity() - 2;
+    }
+
+    long size() {
+        return head.capacity() + tail.capacity() + (notModifiedHead == null ? 0 : notModifiedHead.capacity());
+    }
+}
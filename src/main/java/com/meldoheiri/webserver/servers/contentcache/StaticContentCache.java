@@ -0,0 +1,254 @@
+package com.meldoheiri.webserver.servers.contentcache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+
+/**
+ * In-memory cache of static file responses, keyed by normalized request path.
+ *
+ * Lookups are a single {@link ConcurrentHashMap} read, so hits never touch
+ * the filesystem or take a lock. Entries are evicted with the CLOCK
+ * approximation of LRU once the cached bytes exceed the configured budget:
+ * a hit marks an entry as referenced, and the eviction sweep gives referenced
+ * entries a second chance before dropping them. A {@link WatchService} on
+ * the directories of cached files drops entries whose file changes.
+ */
+public class StaticContentCache {
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final ConcurrentHashMap<String, CachedResponse> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, Set<String>> keysByFile = new ConcurrentHashMap<>();
+    // keys in the order the CLOCK hand visits them, each at most once, guarded by evictionLock
+    private final ArrayDeque<String> clock = new ArrayDeque<>();
+    private final Set<String> queued = new HashSet<>();
+    private final AtomicLong size = new AtomicLong(0);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final Object evictionLock = new Object();
+    private final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+    private WatchService watchService;
+
+    public StaticContentCache(ServerConfig config) {
+        this.maxBytes = config.getContentCacheMaxBytes();
+        this.maxEntryBytes = config.getContentCacheMaxEntryBytes();
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    public CachedResponse get(String key) {
+        CachedResponse entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * Reads the file into memory and caches it together with its encoded head.
+     *
+     * @param head       status line and headers, without the connection headers
+     *                   and the blank line
+     * @param validators validators of the file version, or null
+     * @return the new entry, or null if the file is too large to be cached or
+     *         changed while it was read
+     */
+    public CachedResponse load(String key, Path file, byte[] head, long length, CachedResponse.Validators validators) throws IOException {
+        if (!isEnabled() || length > maxEntryBytes) {
+            return null;
+        }
+        // watch and register the key first, so a change while reading is noticed below
+        watch(file);
+        Set<String> keys = keysByFile.computeIfAbsent(file, ignored -> ConcurrentHashMap.newKeySet());
+        keys.add(key);
+
+        ByteBuffer tail = ByteBuffer.allocateDirect(CRLF.length + (int) length);
+        tail.put(CRLF);
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (tail.hasRemaining()) {
+                if (fileChannel.read(tail) < 0) {
+                    // file shrank since the handler looked at it
+                    return null;
+                }
+            }
+        }
+        tail.flip();
+        ByteBuffer headBuffer = ByteBuffer.allocateDirect(head.length).put(head).flip();
+
+        CachedResponse entry = new CachedResponse(file, headBuffer.asReadOnlyBuffer(), tail.asReadOnlyBuffer(), validators);
+        CachedResponse previous = entries.put(key, entry);
+        if (previous != null) {
+            size.addAndGet(-previous.size());
+        }
+        size.addAndGet(entry.size());
+        // again, in case the previous entry was just evicted
+        keys.add(key);
+        if (keysByFile.get(file) != keys) {
+            // invalidated while the file was read, possibly before the entry was there to drop
+            if (entries.remove(key, entry)) {
+                size.addAndGet(-entry.size());
+            }
+            return null;
+        }
+        synchronized (evictionLock) {
+            if (queued.add(key)) {
+                clock.add(key);
+            }
+        }
+        evictIfNeeded();
+        return entry;
+    }
+
+    /**
+     * Drops every entry backed by the given file.
+     */
+    public void invalidate(Path file) {
+        Set<String> keys = keysByFile.remove(file);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            CachedResponse entry = entries.remove(key);
+            if (entry != null) {
+                size.addAndGet(-entry.size());
+            }
+        }
+    }
+
+    public void clear() {
+        for (Path file : keysByFile.keySet()) {
+            invalidate(file);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * Collapses {@code //}, {@code .} and {@code ..} segments and trailing
+     * slashes, leaving already normal paths untouched.
+     */
+    public static String normalize(String path) {
+        boolean normal = path.indexOf("//") < 0 && path.indexOf("/.") < 0
+                && (path.length() <= 1 || path.charAt(path.length() - 1) != '/');
+        if (normal) {
+            return path;
+        }
+        String normalized = Paths.get(path).normalize().toString();
+        return normalized.isEmpty() ? "/" : normalized;
+    }
+
+    private void evictIfNeeded() {
+        synchronized (evictionLock) {
+            while (size.get() > maxBytes) {
+                String key = clock.poll();
+                if (key == null) {
+                    return;
+                }
+                CachedResponse entry = entries.get(key);
+                if (entry == null) {
+                    // invalidated, queued again when it is loaded again
+                    queued.remove(key);
+                    continue;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    clock.add(key);
+                    continue;
+                }
+                if (!entries.remove(key, entry)) {
+                    // loaded again meanwhile, the key stays queued for the new entry
+                    clock.add(key);
+                    continue;
+                }
+                queued.remove(key);
+                size.addAndGet(-entry.size());
+                evictions.increment();
+                Set<String> keys = keysByFile.get(entry.getFile());
+                if (keys != null) {
+                    keys.remove(key);
+                    if (entries.containsKey(key)) {
+                        keys.add(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private void watch(Path file) throws IOException {
+        Path directory = file.getParent();
+        if (directory == null || watchedDirectories.contains(directory)) {
+            return;
+        }
+        synchronized (watchedDirectories) {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread watcher = new Thread(this::watchLoop, "content-cache-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+            if (watchedDirectories.add(directory)) {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey watchKey = watchService.take();
+                Path directory = (Path) watchKey.watchable();
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        clear();
+                    } else {
+                        invalidate(directory.resolve((Path) event.context()));
+                    }
+                }
+                if (!watchKey.reset()) {
+                    watchedDirectories.remove(directory);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
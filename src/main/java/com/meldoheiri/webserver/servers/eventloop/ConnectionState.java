@@ -0,0 +1,202 @@
+package com.meldoheiri.webserver.servers.eventloop;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+import com.meldoheiri.webserver.servers.ServerContext;
+import com.meldoheiri.webserver.servers.bufferpool.BufferPool;
+import com.meldoheiri.webserver.servers.bufferpool.PooledOutputStream;
+import com.meldoheiri.webserver.servers.http2.Http2Connection;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.HTTPSocketDataHandler;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.ProtocolSwitch;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.SocketDataHandler;
+import com.meldoheiri.webserver.servers.tls.TlsChannel;
+import com.meldoheiri.webserver.servers.tls.TlsContext;
+
+class ConnectionState extends TimerWheel.Timeout {
+    /**
+     * What the connection is currently waiting for, each with its own timeout.
+     */
+    enum Deadline {
+        READ_HEADER, READ_BODY, WRITE, KEEP_ALIVE,
+        // the last response is written, waiting for the client to close
+        LINGER
+    }
+
+    private final SocketChannel channel;
+    private final PooledOutputStream responseStream;
+    // null on a plaintext connection
+    private final TlsChannel tls;
+    private final ServerContext context;
+    private final SocketAddress remoteAddress;
+    private final Executor completionExecutor;
+    // replaced by an HTTP/2 connection when the client switches to h2c or picks h2 by ALPN
+    private SocketDataHandler requestHandler;
+    private Deadline deadline;
+    private boolean inputClosed = false;
+
+    ConnectionState(SocketChannel channel, ServerContext context, BufferPool bufferPool, EventLoop eventLoop) throws IOException {
+        this.channel = channel;
+        this.context = context;
+        this.responseStream = new PooledOutputStream(bufferPool);
+        this.remoteAddress = remoteAddress(channel);
+        // responses of offloaded handlers are written on the loop thread, which then updates the interest set
+        this.completionExecutor = task -> eventLoop.execute(() -> {
+            task.run();
+            eventLoop.onHandlerProgress(this);
+        });
+        TlsContext tlsContext = context.getTls();
+        if (tlsContext != null) {
+            // the handshake tasks run on the handler threads, never on the loop thread
+            this.tls = new TlsChannel(channel, tlsContext.newEngine(context.getConfig().isHttp2Enabled()), bufferPool,
+                    context.getHandlerExecutor(), () -> eventLoop.execute(() -> eventLoop.onTlsProgress(this)), context.getMetrics());
+        } else {
+            this.tls = null;
+        }
+        ProtocolSwitch http2 = null;
+        // over TLS HTTP/2 is chosen in the handshake, not by h2c
+        if (context.getConfig().isHttp2Enabled() && tls == null) {
+            http2 = (upgradeRequest, received) -> newHttp2Connection().start(upgradeRequest, received);
+        }
+        this.requestHandler = new HTTPSocketDataHandler(responseStream, context, remoteAddress, context.getHandlerExecutor(),
+                completionExecutor, http2);
+    }
+
+    private Http2Connection newHttp2Connection() {
+        Http2Connection connection = new Http2Connection(responseStream, context, remoteAddress, context.getHandlerExecutor(),
+                completionExecutor);
+        this.requestHandler = connection;
+        return connection;
+    }
+
+    private static SocketAddress remoteAddress(SocketChannel channel) {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            // already closed, the connection is about to be dropped
+            return null;
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Responses written by the request handler that are not on the wire yet.
+     */
+    public PooledOutputStream getResponseStream() {
+        return responseStream;
+    }
+
+    public SocketDataHandler getRequestHandler() {
+        return requestHandler;
+    }
+
+    /**
+     * Reads what the client sent, decrypted on a TLS connection. Once the
+     * handshake has chosen {@code h2}, the request handler is replaced by an
+     * HTTP/2 connection before any request bytes are returned.
+     *
+     * @return the number of bytes read, 0 when a TLS connection has no whole
+     *         record or is in the middle of its handshake, -1 at the end of
+     *         input
+     */
+    public int read(ByteBuffer buffer) throws IOException {
+        if (tls == null) {
+            return channel.read(buffer);
+        }
+        boolean negotiated = tls.isNegotiated();
+        int read = tls.read(buffer);
+        if (!negotiated && tls.isNegotiated() && TlsContext.H2.equals(tls.getApplicationProtocol())) {
+            newHttp2Connection().startNegotiated();
+        }
+        return read;
+    }
+
+    /**
+     * Writes as much of the pending responses as the socket takes.
+     *
+     * @return the number of response bytes written
+     */
+    public long writeResponse() throws IOException {
+        if (tls == null) {
+            return responseStream.writeTo(channel);
+        }
+        long written = responseStream.writeTo(tls);
+        tls.flush();
+        return written;
+    }
+
+    public boolean hasPendingWrites() {
+        return responseStream.hasRemaining() || (tls != null && tls.hasPendingOutput());
+    }
+
+    /**
+     * Whether a TLS connection holds input the selector will not report,
+     * because it was read from the socket already.
+     */
+    public boolean hasBufferedInput() {
+        return tls != null && tls.hasBufferedInput();
+    }
+
+    /**
+     * Whether the TLS handshake waits for its delegated tasks, which resume
+     * it through {@link EventLoop#onTlsProgress(ConnectionState)}.
+     */
+    public boolean isWaitingForTls() {
+        return tls != null && tls.isWaitingForTasks();
+    }
+
+    /**
+     * Sends {@code close_notify} on a TLS connection, before its output is
+     * shut down.
+     */
+    public void closeTls() {
+        if (tls != null) {
+            tls.closeOutbound();
+        }
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * The client has shut down its side of the connection; it is closed as
+     * soon as pending responses are written.
+     */
+    public void setInputClosed() {
+        this.inputClosed = true;
+    }
+
+    public boolean isInputClosed() {
+        return inputClosed;
+    }
+
+    public boolean shouldCloseAfterWrite() {
+        return (inputClosed && !requestHandler.isResponsePending()) || requestHandler.shouldCloseConnection();
+    }
+
+    /**
+     * Gives the buffers held by this connection back to the pool.
+     */
+    public void release() {
+        requestHandler.close();
+        responseStream.close();
+        if (tls != null) {
+            try {
+                tls.close();
+            } catch (IOException e) {
+                // the buffers are given back all the same
+            }
+        }
+    }
+}
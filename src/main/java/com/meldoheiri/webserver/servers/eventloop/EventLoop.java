@@ -0,0 +1,682 @@
+package com.meldoheiri.webserver.servers.eventloop;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLException;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.ServerContext;
+import com.meldoheiri.webserver.servers.ServerSockets;
+import com.meldoheiri.webserver.servers.admission.AdmissionController;
+import com.meldoheiri.webserver.servers.bufferpool.BufferPool;
+import com.meldoheiri.webserver.servers.eventloop.ConnectionState.Deadline;
+import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+
+/**
+ * A single selector thread that owns a set of client connections.
+ *
+ * All connection state is confined to the thread running {@link #loop()}, so
+ * the read/write path needs no locks. Other threads hand over accepted
+ * channels through {@link #adopt(SocketChannel)}, which queues the channel and
+ * wakes the selector up so it gets registered on the loop thread. Request
+ * handlers run on the server's handler executor, their responses come back
+ * the same way through {@link #execute(Runnable)}.
+ *
+ * Every connection has a single deadline in a {@link TimerWheel}, for reading
+ * the headers, reading the body, writing, waiting for the next request, or
+ * lingering after the last response until the client closes too. The
+ * clock is read once per loop iteration and expired deadlines are collected
+ * once per iteration, instead of scanning all connections.
+ *
+ * Connection events are counted in the server's {@link ServerMetrics} rather
+ * than printed; they are logged at debug level only.
+ *
+ * With TLS enabled every connection reads and writes through a
+ * {@link com.meldoheiri.webserver.servers.tls.TlsChannel}. Its handshake
+ * advances with the connection's reads and writes; while the delegated tasks
+ * of the handshake run on a handler thread, the connection is left out of
+ * the selector and is picked up again when they are done.
+ *
+ * While the loop is at {@code server.maxConnections} or the server's
+ * {@link AdmissionController} is saturated, the loop stops accepting and
+ * leaves new connections in the listener's backlog, checking again every
+ * tick.
+ *
+ * {@link #drain(Duration)} makes the loop stop accepting, close idle
+ * connections and close the others after their last response; the loop
+ * returns once it has no connections left or the drain timeout has passed.
+ */
+public class EventLoop implements Runnable {
+    private static final Logger LOGGER = System.getLogger(EventLoop.class.getName());
+    private final static long TICK_MILLIS = 100;
+    private final static int WHEEL_SLOTS = 1024;
+    private final static long LINGER_MILLIS = 2_000;
+
+    private final ServerContext context;
+    private final ServerConfig config;
+    private final ServerMetrics metrics;
+    private final AdmissionController admission;
+    private final Selector selector;
+    private final BufferPool bufferPool;
+    // Shared by all connections of this loop, the parser copies what it keeps
+    private final ByteBuffer readBuffer;
+    private final Map<SocketChannel, ConnectionState> connections = new HashMap<>();
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connectionCount = new AtomicInteger(0);
+    private final TimerWheel<ConnectionState> timerWheel = new TimerWheel<>(TICK_MILLIS, WHEEL_SLOTS);
+    private final long readHeaderTimeoutMillis;
+    private final long readBodyTimeoutMillis;
+    private final long writeTimeoutMillis;
+    private final long keepAliveTimeoutMillis;
+    private final int maxConnections;
+    private SelectionKey acceptKey;
+    private boolean acceptPaused = false;
+    // after a failed accept, accepting resumes no earlier than this
+    private long acceptResumeTime;
+    // Milliseconds of the monotonic clock, updated once per loop iteration
+    private long now;
+    private boolean draining = false;
+    private long drainDeadline;
+
+    public EventLoop(ServerContext context) throws IOException {
+        this.context = context;
+        this.metrics = context.getMetrics();
+        this.admission = context.getAdmission();
+        this.selector = Selector.open();
+        this.bufferPool = context.getBufferPools().newPool();
+        this.readBuffer = bufferPool.acquire(BufferPool.MEDIUM);
+        this.config = context.getConfig();
+        this.readHeaderTimeoutMillis = config.getReadHeaderTimeoutMillis();
+        this.readBodyTimeoutMillis = config.getReadBodyTimeoutMillis();
+        this.writeTimeoutMillis = config.getWriteTimeoutMillis();
+        this.keepAliveTimeoutMillis = config.getKeepAliveTimeoutMillis();
+        this.maxConnections = config.getMaxConnections();
+        this.now = System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * Lets this loop accept connections itself. Must be called before the loop
+     * is started. The channel is closed when the loop ends, so the kernel
+     * stops queueing connections on it.
+     */
+    public void registerServerChannel(ServerSocketChannel serverChannel) throws IOException {
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Hands an accepted channel over to this loop. Safe to call from any thread.
+     */
+    public void adopt(SocketChannel clientChannel) {
+        connectionCount.incrementAndGet();
+        pendingChannels.add(clientChannel);
+        selector.wakeup();
+    }
+
+    /**
+     * Starts draining the loop. Safe to call from any thread.
+     */
+    public void drain(Duration timeout) {
+        execute(() -> startDrain(now + timeout.toMillis()));
+    }
+
+    /**
+     * Runs the task on the loop thread. Safe to call from any thread.
+     */
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Number of connections owned by this loop, including the ones that are
+     * adopted but not registered yet.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            loop();
+        } catch (WebServerException e) {
+            // logged by the loop, the other loops keep serving
+        }
+    }
+
+    public void loop() throws WebServerException {
+        try {
+            while (true) {
+                // block until a channel is ready, a channel or task is handed over or the next tick is due
+                selector.select(timerWheel.isEmpty() && !acceptPaused ? 0 : timerWheel.getTickMillis());
+                long iterationStart = System.nanoTime();
+                now = iterationStart / 1_000_000;
+
+                registerPendingChannels();
+                runPendingTasks();
+                if (acceptPaused && now >= acceptResumeTime && !isSaturated()) {
+                    resumeAccept();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable()) {
+                        handleAccept(key);
+                    } else if (key.isReadable()) {
+                        handleRead(key);
+                    } else if (key.isWritable()) {
+                        handlWrite(key);
+                    }
+                }
+
+                timerWheel.expire(now, this::closeExpiredConnection);
+                metrics.eventLoopIteration(System.nanoTime() - iterationStart);
+                if (draining && (connections.isEmpty() || now >= drainDeadline)) {
+                    break;
+                }
+            }
+            // whatever is left after the drain timeout is cut off
+            for (SocketChannel clientChannel : new ArrayList<>(connections.keySet())) {
+                closeConnection(clientChannel);
+            }
+        } catch (IOException e) {
+            // the connections of this loop are gone
+            if (LOGGER.isLoggable(Level.ERROR)) {
+                LOGGER.log(Level.ERROR, "Event loop failed", e);
+            }
+            throw new WebServerException("Event loop failure", e);
+        } finally {
+            bufferPool.release(readBuffer);
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.channel() instanceof ServerSocketChannel serverChannel) {
+                        serverChannel.close();
+                    }
+                }
+                selector.close();
+            } catch (IOException e) {
+                if (LOGGER.isLoggable(Level.DEBUG)) {
+                    LOGGER.log(Level.DEBUG, "Failed to close the selector: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel clientChannel;
+        while ((clientChannel = pendingChannels.poll()) != null) {
+            register(clientChannel);
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Sets up a connection counted in {@link #connectionCount}. A connection
+     * that cannot be set up, reset by the client already or failing its socket
+     * options or TLS engine, is closed on its own.
+     */
+    private void register(SocketChannel clientChannel) {
+        ConnectionState connectionState;
+        try {
+            ServerSockets.configure(clientChannel, config);
+            clientChannel.configureBlocking(false);
+            connectionState = new ConnectionState(clientChannel, context, bufferPool, this);
+        } catch (IOException | RuntimeException e) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Connection setup failed: " + e);
+            }
+            connectionCount.decrementAndGet();
+            closeQuietly(clientChannel);
+            return;
+        }
+        if (draining) {
+            connectionState.getRequestHandler().drain();
+        }
+        connections.put(clientChannel, connectionState);
+        metrics.connectionOpened();
+        setDeadline(connectionState, Deadline.READ_HEADER);
+        try {
+            // Register the new channel with selector for read operations
+            clientChannel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closeConnection(clientChannel);
+        }
+    }
+
+    private void closeExpiredConnection(ConnectionState connectionState) {
+        if (connectionState.getDeadline() == Deadline.LINGER) {
+            closeConnection(connectionState.getChannel());
+            return;
+        }
+        metrics.connectionTimedOut();
+        if (LOGGER.isLoggable(Level.DEBUG)) {
+            LOGGER.log(Level.DEBUG, "Connection timed out: " + connectionState.getDeadline());
+        }
+        closeConnection(connectionState.getChannel());
+    }
+
+    private void handleAccept(SelectionKey key) throws IOException {
+        if (isSaturated()) {
+            pauseAccept();
+            return;
+        }
+        accept((ServerSocketChannel) key.channel());
+    }
+
+    private boolean isSaturated() {
+        return connectionCount.get() >= maxConnections || admission.isSaturated();
+    }
+
+    private void pauseAccept() {
+        acceptPaused = true;
+        acceptKey.interestOps(0);
+        metrics.acceptPaused();
+        if (LOGGER.isLoggable(Level.DEBUG)) {
+            LOGGER.log(Level.DEBUG, "Accepting paused at " + connectionCount.get() + " connections");
+        }
+    }
+
+    private void resumeAccept() {
+        acceptPaused = false;
+        if (acceptKey.isValid()) {
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * Accepting backs off for a tick, leaving the connection in the backlog.
+     */
+    private void backOffAccept() {
+        acceptResumeTime = now + TICK_MILLIS;
+        if (!acceptPaused) {
+            pauseAccept();
+        }
+    }
+
+    /**
+     * @return false when no connection was waiting or accepting failed
+     */
+    private boolean accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel clientChannel;
+        try {
+            clientChannel = serverChannel.accept(); // Non-blocking accept new socket connection
+        } catch (IOException e) {
+            if (!serverChannel.isOpen()) {
+                throw e;
+            }
+            // e.g. out of file descriptors, which only this connection is affected by
+            ServerSockets.acceptFailed(e);
+            backOffAccept();
+            return false;
+        }
+        if (clientChannel == null) {
+            return false;
+        }
+        if (connectionCount.get() >= maxConnections) {
+            // only reached while draining the backlog, which is not left for later
+            metrics.connectionRejected();
+            closeQuietly(clientChannel);
+            return true;
+        }
+
+        metrics.connectionAccepted();
+        connectionCount.incrementAndGet();
+        register(clientChannel);
+        return true;
+    }
+
+    /**
+     * Closes the listeners after accepting what the kernel has queued on them,
+     * closes idle connections and lets the others finish their responses.
+     */
+    private void startDrain(long deadline) {
+        if (draining) {
+            return;
+        }
+        draining = true;
+        drainDeadline = deadline;
+        acceptPaused = false;
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            if (key.channel() instanceof ServerSocketChannel serverChannel) {
+                try {
+                    while (accept(serverChannel)) {
+                        // accepted connections are registered in drain mode
+                    }
+                    serverChannel.close();
+                } catch (IOException e) {
+                    if (LOGGER.isLoggable(Level.DEBUG)) {
+                        LOGGER.log(Level.DEBUG, "Failed to close the listener: " + e.getMessage());
+                    }
+                }
+            }
+        }
+        for (ConnectionState connectionState : new ArrayList<>(connections.values())) {
+            if (connectionState.getDeadline() == Deadline.LINGER) {
+                continue;
+            }
+            if (connectionState.getDeadline() == Deadline.KEEP_ALIVE && !connectionState.hasPendingWrites()
+                    && !connectionState.getRequestHandler().isResponsePending()
+                    && !connectionState.getRequestHandler().isRequestInProgress()) {
+                closeConnection(connectionState.getChannel());
+                continue;
+            }
+            connectionState.getRequestHandler().drain();
+            if (!connectionState.hasPendingWrites() && connectionState.shouldCloseAfterWrite()) {
+                closeAfterResponse(connectionState);
+            }
+        }
+    }
+
+    private void handleRead(SelectionKey key) {
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        ConnectionState requestState = connections.get(clientChannel);
+
+        ByteBuffer buffer = readBuffer;
+        if (requestState.getDeadline() == Deadline.LINGER) {
+            // discarded undecrypted, the deadline is not extended
+            buffer.clear();
+            try {
+                if (clientChannel.read(buffer) == -1) {
+                    closeConnection(clientChannel);
+                }
+            } catch (IOException e) {
+                closeConnection(clientChannel);
+            }
+            return;
+        }
+        // TLS records already read from the socket are not reported by the selector again
+        do {
+            buffer.clear();
+            int bytesRead;
+            try {
+                bytesRead = requestState.read(buffer);
+            } catch (SSLException e) {
+                if (LOGGER.isLoggable(Level.DEBUG)) {
+                    LOGGER.log(Level.DEBUG, "TLS failure: " + e.getMessage());
+                }
+                closeConnection(clientChannel);
+                return;
+            } catch (IOException e) {
+                if (LOGGER.isLoggable(Level.DEBUG)) {
+                    LOGGER.log(Level.DEBUG, "Read failed: " + e.getMessage());
+                }
+                closeConnection(clientChannel);
+                return;
+            }
+            if (bytesRead == 0) {
+                // an incomplete TLS record or a handshake step, which may have something to send
+                if (requestState.isWaitingForTls()) {
+                    key.interestOps(0);
+                } else if (requestState.hasPendingWrites()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(readInterest(requestState));
+                }
+                return;
+            }
+            if (bytesRead == -1) {
+                requestState.setInputClosed();
+                if (requestState.hasPendingWrites()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    setDeadline(requestState, Deadline.WRITE);
+                } else if (requestState.getRequestHandler().isResponsePending()) {
+                    // nothing to read any more, wait for the handler
+                    key.interestOps(0);
+                    setDeadline(requestState, Deadline.WRITE);
+                } else {
+                    closeConnection(clientChannel);
+                }
+                return;
+            }
+
+            metrics.bytesReceived(bytesRead);
+            buffer.flip();
+            boolean isReadyToWriteResponse;
+            try {
+                isReadyToWriteResponse = requestState.getRequestHandler().read(buffer);
+            } catch (WebServerException e) {
+                // malformed requests are counted as parse errors by the handler
+                if (LOGGER.isLoggable(Level.DEBUG)) {
+                    LOGGER.log(Level.DEBUG, "Request failed", e);
+                }
+                closeConnection(clientChannel);
+                return;
+            }
+            if (!isReadyToWriteResponse) {
+                // stops reading while the handler is behind on the request body
+                key.interestOps(readInterest(requestState));
+                setReadDeadline(requestState);
+            } else {
+                key.interestOps(SelectionKey.OP_WRITE);
+                setDeadline(requestState, Deadline.WRITE);
+            }
+        } while (key.interestOps() == SelectionKey.OP_READ && requestState.hasBufferedInput());
+    }
+
+    private void handlWrite(SelectionKey key) {
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        ConnectionState requestState = connections.get(clientChannel);
+
+        if (!clientChannel.isOpen()) {
+            return;
+        }
+
+        long written;
+        try {
+            written = requestState.writeResponse();
+        } catch (SSLException e) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "TLS failure: " + e.getMessage());
+            }
+            closeConnection(clientChannel);
+            return;
+        } catch (IOException e) {
+            // even a transient failure such as ENOBUFS only costs this connection, not the loop
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Write failed: " + e.getMessage());
+            }
+            closeConnection(clientChannel);
+            return;
+        }
+        metrics.bytesSent(written);
+        try {
+            // streamed bodies are pulled as fast as the client reads them
+            requestState.getRequestHandler().pumpResponse();
+        } catch (WebServerException e) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Response failed", e);
+            }
+            closeConnection(clientChannel);
+            return;
+        }
+
+        if (requestState.hasPendingWrites()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            if (written > 0) {
+                // the write timeout runs from the last progress, not from the start of the response
+                setDeadline(requestState, Deadline.WRITE);
+            }
+        } else if (requestState.shouldCloseAfterWrite()) {
+            closeAfterResponse(requestState);
+        } else {
+            // All responses are out, wait for the next request on this connection
+            key.interestOps(readInterest(requestState));
+            setReadDeadline(requestState);
+            readBuffered(key, requestState);
+        }
+    }
+
+    /**
+     * Reads a pipelined request that a TLS connection took off the socket
+     * while the response in front of it was pending.
+     */
+    private void readBuffered(SelectionKey key, ConnectionState connectionState) {
+        if (key.interestOps() == SelectionKey.OP_READ && connectionState.hasBufferedInput()) {
+            handleRead(key);
+        }
+    }
+
+    private int readInterest(ConnectionState connectionState) {
+        if (connectionState.isInputClosed() || connectionState.getRequestHandler().isReadPaused()) {
+            return 0;
+        }
+        return SelectionKey.OP_READ;
+    }
+
+    /**
+     * Called on the loop thread after an offloaded handler wrote its response
+     * or drained the request body it was behind on.
+     */
+    void onHandlerProgress(ConnectionState connectionState) {
+        SocketChannel clientChannel = connectionState.getChannel();
+        if (connections.get(clientChannel) != connectionState || connectionState.getDeadline() == Deadline.LINGER) {
+            // closed while the handler was running
+            return;
+        }
+        SelectionKey key = clientChannel.keyFor(selector);
+        if (connectionState.hasPendingWrites()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            setDeadline(connectionState, Deadline.WRITE);
+        } else if (connectionState.shouldCloseAfterWrite()) {
+            closeAfterResponse(connectionState);
+        } else if (key.interestOps() != SelectionKey.OP_WRITE) {
+            key.interestOps(readInterest(connectionState));
+            readBuffered(key, connectionState);
+        }
+    }
+
+    /**
+     * Called on the loop thread once the delegated tasks of a TLS handshake
+     * have run, to carry on with the handshake.
+     */
+    void onTlsProgress(ConnectionState connectionState) {
+        SocketChannel clientChannel = connectionState.getChannel();
+        if (connections.get(clientChannel) != connectionState || connectionState.getDeadline() == Deadline.LINGER) {
+            // closed while the tasks were running
+            return;
+        }
+        handleRead(clientChannel.keyFor(selector));
+    }
+
+    /**
+     * Picks the read deadline matching how far the next request got. The body
+     * deadline is extended by every read, the header deadline is not, so a
+     * client cannot hold on to a connection by trickling header bytes.
+     */
+    private void setReadDeadline(ConnectionState connectionState) {
+        if (connectionState.getRequestHandler().isReadingBody()) {
+            setDeadline(connectionState, Deadline.READ_BODY);
+        } else if (connectionState.getRequestHandler().isResponsePending()) {
+            // a handler is producing the response, the write timeout covers it
+            if (connectionState.getDeadline() != Deadline.WRITE) {
+                setDeadline(connectionState, Deadline.WRITE);
+            }
+        } else if (connectionState.getDeadline() == Deadline.READ_HEADER) {
+            return;
+        } else if (connectionState.getRequestHandler().isRequestInProgress()) {
+            setDeadline(connectionState, Deadline.READ_HEADER);
+        } else {
+            setDeadline(connectionState, Deadline.KEEP_ALIVE);
+        }
+    }
+
+    private void setDeadline(ConnectionState connectionState, Deadline deadline) {
+        long timeout = switch (deadline) {
+            case READ_HEADER -> readHeaderTimeoutMillis;
+            case READ_BODY -> readBodyTimeoutMillis;
+            case WRITE -> writeTimeoutMillis;
+            case KEEP_ALIVE -> keepAliveTimeoutMillis;
+            case LINGER -> LINGER_MILLIS;
+        };
+        connectionState.setDeadline(deadline);
+        timerWheel.schedule(connectionState, now + timeout);
+    }
+
+    /**
+     * Closes a connection whose last response is written. The client may
+     * still be sending, a pipelined request or HTTP/2 window updates, and
+     * closing with unread input resets the connection, which can discard the
+     * end of the response before the client has read it. So only the output
+     * is shut down, and input is discarded until the client closes as well or
+     * {@link #LINGER_MILLIS} have passed.
+     */
+    private void closeAfterResponse(ConnectionState connectionState) {
+        SocketChannel clientChannel = connectionState.getChannel();
+        if (connectionState.isInputClosed()) {
+            closeConnection(clientChannel);
+            return;
+        }
+        connectionState.closeTls();
+        try {
+            clientChannel.shutdownOutput();
+        } catch (IOException e) {
+            closeConnection(clientChannel);
+            return;
+        }
+        clientChannel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+        setDeadline(connectionState, Deadline.LINGER);
+    }
+
+    /**
+     * Closes a channel no connection state was set up for.
+     */
+    private static void closeQuietly(SocketChannel clientChannel) {
+        try {
+            clientChannel.close();
+        } catch (IOException e) {
+            // nothing else refers to it
+        }
+    }
+
+    private void closeConnection(SocketChannel clientChannel) {
+        try {
+            clientChannel.close();
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Connection closed");
+            }
+        } catch (IOException ex) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Close failed: " + ex.getMessage());
+            }
+        } finally {
+            ConnectionState connectionState = connections.remove(clientChannel);
+            if (connectionState != null) {
+                timerWheel.cancel(connectionState);
+                connectionState.release();
+                connectionCount.decrementAndGet();
+                metrics.connectionClosed();
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.meldoheiri.webserver.servers.eventloop;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for the deadlines of an event loop's connections.
+ *
+ * Timeouts are intrusive list nodes hashed by deadline tick into a ring of
+ * slots, so scheduling, rescheduling and cancelling are O(1) and allocation
+ * free. {@link #expire(long, Consumer)} only visits the slots of the ticks
+ * that passed since the previous call; a node whose deadline is more than one
+ * revolution away stays in its slot until a later pass. Not thread-safe, owned
+ * by the loop thread.
+ */
+class TimerWheel<T extends TimerWheel.Timeout> {
+    private final long tickMillis;
+    private final Timeout[] slots;
+    private final int mask;
+    private long lastTick = -1;
+    private int size = 0;
+
+    TimerWheel(long tickMillis, int slotCount) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("Slot count must be a power of two");
+        }
+        this.tickMillis = tickMillis;
+        this.slots = new Timeout[slotCount];
+        this.mask = slotCount - 1;
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Schedules the timeout at the given deadline, moving it if it is already
+     * scheduled.
+     */
+    void schedule(T timeout, long deadlineMillis) {
+        cancel(timeout);
+        // round up, so the deadline has passed by the time its slot is visited
+        long tick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, lastTick + 1);
+        int slot = (int) (tick & mask);
+        timeout.deadline = deadlineMillis;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (slots[slot] != null) {
+            slots[slot].prev = timeout;
+        }
+        slots[slot] = timeout;
+        size++;
+    }
+
+    void cancel(T timeout) {
+        if (timeout.slot < 0) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        size--;
+    }
+
+    /**
+     * Removes every timeout whose deadline has passed and hands it to the
+     * callback, which may schedule or cancel timeouts itself.
+     */
+    @SuppressWarnings("unchecked")
+    void expire(long nowMillis, Consumer<T> onExpired) {
+        long currentTick = nowMillis / tickMillis;
+        if (lastTick < 0) {
+            lastTick = currentTick - 1;
+        }
+        long ticks = Math.min(currentTick - lastTick, slots.length);
+        for (long tick = currentTick - ticks + 1; tick <= currentTick; tick++) {
+            // timeouts the callback schedules go to a tick not visited yet
+            lastTick = tick;
+            int slot = (int) (tick & mask);
+            Timeout timeout = slots[slot];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadline <= nowMillis) {
+                    cancel((T) timeout);
+                    onExpired.accept((T) timeout);
+                    if (next != null && next.slot != slot) {
+                        // the callback cancelled or moved the next timeout, the slot is walked again
+                        next = slots[slot];
+                    }
+                }
+                timeout = next;
+            }
+        }
+        lastTick = Math.max(lastTick, currentTick);
+    }
+
+    /**
+     * A node of the wheel, extended by whatever has a deadline.
+     */
+    abstract static class Timeout {
+        long deadline;
+        int slot = -1;
+        Timeout prev;
+        Timeout next;
+
+        boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+}
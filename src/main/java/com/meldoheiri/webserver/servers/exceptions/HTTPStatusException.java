@@ -0,0 +1,20 @@
+package com.meldoheiri.webserver.servers.exceptions;
+
+/**
+ * A request the server refuses with a specific status, e.g. 413 when the body
+ * is larger than allowed. The message is the reason phrase.
+ */
+public class HTTPStatusException extends WebServerException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public HTTPStatusException(int statusCode, String reasonPhrase) {
+        super(reasonPhrase);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
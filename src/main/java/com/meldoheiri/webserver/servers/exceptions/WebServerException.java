@@ -1,6 +1,8 @@
 package com.meldoheiri.webserver.servers.exceptions;
 
 public class WebServerException extends Exception {
+    private static final long serialVersionUID = 1L;
+
     public WebServerException(String message, Throwable cause) {
         super(message, cause);
     }
@@ -0,0 +1,257 @@
+package com.meldoheiri.webserver.servers.http2;
+
+import java.util.Arrays;
+
+/**
+ * Decodes the header blocks of one connection (RFC 7541).
+ *
+ * The names and values of a block are written back to back into an array of
+ * their own, with four offsets per field, the layout
+ * {@link com.meldoheiri.webserver.servers.httprequesthandler.HTTPHeaders}
+ * keeps, so request headers are built without turning every field into a
+ * {@link String}. The dynamic table is a ring of byte arrays bounded by the
+ * 4096 bytes of the default {@code SETTINGS_HEADER_TABLE_SIZE}, which the
+ * server never changes.
+ */
+final class HpackDecoder {
+    static final int MAX_TABLE_SIZE = 4096;
+    // size of a table entry on top of its name and value
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final int CAPACITY = MAX_TABLE_SIZE / ENTRY_OVERHEAD;
+
+    // dynamic table, the newest entry at head
+    private final byte[][] names = new byte[CAPACITY][];
+    private final byte[][] values = new byte[CAPACITY][];
+    private int head = 0;
+    private int entries = 0;
+    private int tableSize = 0;
+    private int maxTableSize = MAX_TABLE_SIZE;
+
+    private byte[] block;
+    private int position;
+    private int end;
+    // the fields of the last block
+    private byte[] data;
+    private int length;
+    private int[] offsets;
+    private int count;
+    private long listSize;
+
+    /**
+     * Decodes a complete header block. The fields are available until the
+     * next call.
+     */
+    void decode(byte[] block, int offset, int blockLength) throws Http2Exception {
+        this.block = block;
+        this.position = offset;
+        this.end = offset + blockLength;
+        data = new byte[Math.max(64, blockLength * 2)];
+        length = 0;
+        offsets = new int[16 * 4];
+        count = 0;
+        listSize = 0;
+        while (position < end) {
+            int b = block[position] & 0xff;
+            if ((b & 0x80) != 0) {
+                int index = readInteger(7);
+                addField(name(index), value(index));
+            } else if ((b & 0xc0) == 0x40) {
+                int index = readInteger(6);
+                readLiteral(index);
+                int field = (count - 1) * 4;
+                insert(Arrays.copyOfRange(data, offsets[field], offsets[field + 1]),
+                        Arrays.copyOfRange(data, offsets[field + 2], offsets[field + 3]));
+            } else if ((b & 0xe0) == 0x20) {
+                if (count > 0) {
+                    throw error("Table size update after a field");
+                }
+                int size = readInteger(5);
+                if (size > MAX_TABLE_SIZE) {
+                    throw error("Table size " + size + " above the limit");
+                }
+                maxTableSize = size;
+                evict(0);
+            } else {
+                // without indexing or never indexed, the same to a decoder
+                readLiteral(readInteger(4));
+            }
+        }
+        this.block = null;
+    }
+
+    /**
+     * Names and values of the decoded fields.
+     */
+    byte[] data() {
+        return data;
+    }
+
+    /**
+     * Name start, name end, value start and value end of every field.
+     */
+    int[] offsets() {
+        return offsets;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * Size of the decoded header list as {@code SETTINGS_MAX_HEADER_LIST_SIZE}
+     * counts it.
+     */
+    long listSize() {
+        return listSize;
+    }
+
+    /**
+     * Size of the dynamic table, each entry counted with its 32 bytes of
+     * overhead.
+     */
+    int tableSize() {
+        return tableSize;
+    }
+
+    private void readLiteral(int nameIndex) throws Http2Exception {
+        int nameStart = length;
+        if (nameIndex == 0) {
+            readString();
+        } else {
+            write(name(nameIndex));
+        }
+        int nameEnd = length;
+        readString();
+        addOffsets(nameStart, nameEnd, nameEnd, length);
+    }
+
+    private void addField(byte[] name, byte[] value) {
+        int nameStart = length;
+        write(name);
+        int nameEnd = length;
+        write(value);
+        addOffsets(nameStart, nameEnd, nameEnd, length);
+    }
+
+    private void addOffsets(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (offsets.length < (count + 1) * 4) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[count * 4] = nameStart;
+        offsets[count * 4 + 1] = nameEnd;
+        offsets[count * 4 + 2] = valueStart;
+        offsets[count * 4 + 3] = valueEnd;
+        count++;
+        listSize += nameEnd - nameStart + valueEnd - valueStart + ENTRY_OVERHEAD;
+    }
+
+    private byte[] name(int index) throws Http2Exception {
+        if (index <= HpackStaticTable.SIZE) {
+            if (index == 0) {
+                throw error("Index 0");
+            }
+            return HpackStaticTable.name(index);
+        }
+        return names[dynamicSlot(index)];
+    }
+
+    private byte[] value(int index) throws Http2Exception {
+        if (index <= HpackStaticTable.SIZE) {
+            if (index == 0) {
+                throw error("Index 0");
+            }
+            return HpackStaticTable.value(index);
+        }
+        return values[dynamicSlot(index)];
+    }
+
+    private int dynamicSlot(int index) throws Http2Exception {
+        int age = index - HpackStaticTable.SIZE - 1;
+        if (age >= entries) {
+            throw error("Index " + index + " beyond the dynamic table");
+        }
+        return (head + age) % CAPACITY;
+    }
+
+    private void insert(byte[] name, byte[] value) {
+        int size = name.length + value.length + ENTRY_OVERHEAD;
+        evict(size);
+        if (size > maxTableSize) {
+            // an entry larger than the table empties it and is not added
+            return;
+        }
+        head = (head + CAPACITY - 1) % CAPACITY;
+        names[head] = name;
+        values[head] = value;
+        entries++;
+        tableSize += size;
+    }
+
+    /**
+     * Drops the oldest entries until {@code room} bytes fit.
+     */
+    private void evict(int room) {
+        while (entries > 0 && tableSize + room > maxTableSize) {
+            int oldest = (head + entries - 1) % CAPACITY;
+            tableSize -= names[oldest].length + values[oldest].length + ENTRY_OVERHEAD;
+            names[oldest] = null;
+            values[oldest] = null;
+            entries--;
+        }
+    }
+
+    private void readString() throws Http2Exception {
+        if (position == end) {
+            throw error("Truncated string");
+        }
+        boolean huffman = (block[position] & 0x80) != 0;
+        int stringLength = readInteger(7);
+        if (stringLength > end - position) {
+            throw error("String beyond the end of the block");
+        }
+        if (huffman) {
+            ensureCapacity(stringLength * 8 / 5 + 1);
+            length = Huffman.decode(block, position, stringLength, data, length);
+        } else {
+            ensureCapacity(stringLength);
+            System.arraycopy(block, position, data, length, stringLength);
+            length += stringLength;
+        }
+        position += stringLength;
+    }
+
+    private int readInteger(int prefixBits) throws Http2Exception {
+        int max = (1 << prefixBits) - 1;
+        int value = block[position++] & max;
+        if (value < max) {
+            return value;
+        }
+        for (int shift = 0; shift <= 21; shift += 7) {
+            if (position == end) {
+                throw error("Truncated integer");
+            }
+            int b = block[position++] & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw error("Integer too large");
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, data, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (data.length < length + extra) {
+            data = Arrays.copyOf(data, Math.max(length + extra, data.length * 2));
+        }
+    }
+
+    private static Http2Exception error(String message) {
+        return Http2Exception.connectionError(Http2Frame.COMPRESSION_ERROR, message);
+    }
+}
@@ -0,0 +1,201 @@
+package com.meldoheiri.webserver.servers.http2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPDates;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPResponse;
+
+/**
+ * Encodes the header blocks of responses (RFC 7541) without a dynamic table:
+ * status codes in the static table are sent by index, every other field as a
+ * literal that is not indexed, with its name taken from the static table when
+ * it is there and its value Huffman coded when that is shorter.
+ *
+ * A block therefore depends only on the response and not on the connection,
+ * so the blocks of cached responses are encoded once and shared, and the
+ * {@code date} field is encoded once a second for all connections.
+ */
+final class HpackEncoder {
+    private static final int STATUS_NAME_INDEX = 8;
+    private static final int DATE_NAME_INDEX = 33;
+    // the headers of HTTP/1.1 connections, which HTTP/2 does not have
+    private static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "upgrade");
+    private static final Map<Integer, Integer> STATUS_INDEX = Map.of(200, 8, 204, 9, 206, 10, 304, 11, 400, 12, 404, 13, 500, 14);
+
+    private record DateField(long second, byte[] bytes) {
+    }
+
+    private static volatile DateField currentDate = new DateField(-1, null);
+
+    private byte[] buffer = new byte[256];
+    private int length = 0;
+
+    void reset() {
+        length = 0;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Encodes the status and headers of a response, like the HTTP/1.1 head: a
+     * default {@code content-type} when the response sets none, and the
+     * content length when it is known, both left out for statuses without a
+     * body.
+     */
+    void response(HTTPResponse response, long contentLength) {
+        int status = statusCode(response.firstLine());
+        status(status);
+        boolean bodiless = isBodiless(status);
+        field("server", "MyWebServer");
+        if (!bodiless && !response.headers().containsKey("Content-Type")) {
+            field("content-type", "text/plain");
+        }
+        for (Map.Entry<String, String> header : response.headers().entrySet()) {
+            field(header.getKey().toLowerCase(Locale.ROOT), header.getValue());
+        }
+        if (!bodiless && contentLength >= 0) {
+            field("content-length", Long.toString(contentLength));
+        }
+    }
+
+    /**
+     * Encodes a head encoded for HTTP/1.1 already, the status line and
+     * headers of a cached response.
+     */
+    void http1Head(ByteBuffer head) {
+        byte[] bytes = new byte[head.remaining()];
+        head.get(head.position(), bytes);
+        String[] lines = new String(bytes, StandardCharsets.ISO_8859_1).split("\r\n");
+        status(statusCode(lines[0]));
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                field(lines[i].substring(0, colon).toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+            }
+        }
+    }
+
+    void status(int status) {
+        Integer index = STATUS_INDEX.get(status);
+        if (index != null) {
+            writeInteger(index, 7, 0x80);
+        } else {
+            writeInteger(STATUS_NAME_INDEX, 4, 0x00);
+            writeString(Integer.toString(status).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * A literal field without indexing, the name in lower case. Headers of
+     * HTTP/1.1 connections are dropped.
+     */
+    void field(String name, String value) {
+        if (CONNECTION_HEADERS.contains(name)) {
+            return;
+        }
+        int nameIndex = HpackStaticTable.indexOfName(name);
+        writeInteger(nameIndex, 4, 0x00);
+        if (nameIndex == 0) {
+            writeString(name.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        writeString(value.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Appends fields encoded before, e.g. the block of a cached response.
+     */
+    void write(byte[] encoded) {
+        ensureCapacity(encoded.length);
+        System.arraycopy(encoded, 0, buffer, length, encoded.length);
+        length += encoded.length;
+    }
+
+    /**
+     * Appends the {@code date} field of the current second.
+     */
+    void date() {
+        long second = System.currentTimeMillis() / 1000;
+        DateField date = currentDate;
+        if (date.second() != second) {
+            // connections racing at a second boundary encode the same field, whichever is stored last wins
+            HpackEncoder encoder = new HpackEncoder();
+            encoder.writeInteger(DATE_NAME_INDEX, 4, 0x00);
+            encoder.writeString(HTTPDates.format(second).getBytes(StandardCharsets.US_ASCII));
+            date = new DateField(second, encoder.toByteArray());
+            currentDate = date;
+        }
+        write(date.bytes());
+    }
+
+    private void writeString(byte[] value) {
+        int huffmanLength = Huffman.encodedLength(value);
+        if (huffmanLength < value.length) {
+            writeInteger(huffmanLength, 7, 0x80);
+            ensureCapacity(huffmanLength);
+            length = Huffman.encode(value, buffer, length);
+        } else {
+            writeInteger(value.length, 7, 0x00);
+            ensureCapacity(value.length);
+            System.arraycopy(value, 0, buffer, length, value.length);
+            length += value.length;
+        }
+    }
+
+    private void writeInteger(int value, int prefixBits, int flags) {
+        ensureCapacity(6);
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            buffer[length++] = (byte) (flags | value);
+            return;
+        }
+        buffer[length++] = (byte) (flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            buffer[length++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (buffer.length < length + extra) {
+            buffer = Arrays.copyOf(buffer, Math.max(length + extra, buffer.length * 2));
+        }
+    }
+
+    /**
+     * The status code of a status line, 0 when it has none.
+     */
+    static int statusCode(String statusLine) {
+        int status = 0;
+        int start = statusLine.indexOf(' ') + 1;
+        for (int i = start; i < start + 3 && i < statusLine.length(); i++) {
+            char c = statusLine.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            status = status * 10 + (c - '0');
+        }
+        return status;
+    }
+
+    static boolean isBodiless(int status) {
+        return status == 204 || status == 304 || status < 200;
+    }
+}
@@ -0,0 +1,66 @@
+package com.meldoheiri.webserver.servers.http2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The static table of HPACK (RFC 7541, Appendix A), shared by every
+ * connection: the decoder copies its entries by index, the encoder looks
+ * names up in it.
+ */
+final class HpackStaticTable {
+    static final int SIZE = 61;
+    private static final String[][] ENTRIES = {
+            { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+            { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+            { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+            { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" },
+            { "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+            { "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" },
+            { "content-disposition", "" }, { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+            { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+            { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+            { "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+            { "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" },
+            { "link", "" }, { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+            { "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+            { "retry-after", "" }, { "server", "" }, { "set-cookie", "" }, { "strict-transport-security", "" },
+            { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+            { "www-authenticate", "" } };
+    private static final byte[][] NAMES = new byte[SIZE + 1][];
+    private static final byte[][] VALUES = new byte[SIZE + 1][];
+    private static final Map<String, Integer> NAME_INDEX = new HashMap<>();
+
+    static {
+        for (int index = 1; index <= SIZE; index++) {
+            String name = ENTRIES[index - 1][0];
+            String value = ENTRIES[index - 1][1];
+            NAMES[index] = name.getBytes(StandardCharsets.ISO_8859_1);
+            VALUES[index] = value.getBytes(StandardCharsets.ISO_8859_1);
+            NAME_INDEX.putIfAbsent(name, index);
+        }
+    }
+
+    private HpackStaticTable() {
+    }
+
+    /**
+     * @param index from 1 to {@link #SIZE}
+     */
+    static byte[] name(int index) {
+        return NAMES[index];
+    }
+
+    static byte[] value(int index) {
+        return VALUES[index];
+    }
+
+    /**
+     * Index of the first entry with the name, or 0.
+     */
+    static int indexOfName(String name) {
+        Integer index = NAME_INDEX.get(name);
+        return index == null ? 0 : index;
+    }
+}
@@ -0,0 +1,1052 @@
+package com.meldoheiri.webserver.servers.http2;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import com.meldoheiri.webserver.servers.ServerContext;
+import com.meldoheiri.webserver.servers.accesslog.AccessLog;
+import com.meldoheiri.webserver.servers.bufferpool.PooledOutputStream;
+import com.meldoheiri.webserver.servers.contentcache.CachedResponse;
+import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPHeaders;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequest;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPResponse;
+import com.meldoheiri.webserver.servers.httprequesthandler.RequestBody;
+import com.meldoheiri.webserver.servers.httprequesthandler.ResponseBody;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.RequestDispatcher;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.SocketDataHandler;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.StreamingRequestBody;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+
+/**
+ * HTTP/2 (RFC 9113) on a connection taken over from HTTP/1.1, after the client
+ * started with the connection preface or asked for {@code Upgrade: h2c}, or on
+ * a TLS connection whose client chose {@code h2} by ALPN.
+ *
+ * Each stream's request is dispatched as soon as its headers are complete,
+ * through the same {@link RequestDispatcher} as HTTP/1.1, so the handlers of
+ * many streams run at once and each response is sent when it is ready,
+ * without waiting for the streams opened before it. Request bodies are fed
+ * from DATA frames into a {@link StreamingRequestBody}, and a stream's receive
+ * window is given back as its handler consumes the body, so a slow handler
+ * only holds up its own stream.
+ *
+ * Response bodies are cut into DATA frames no larger than the client's frame
+ * size, within the send windows of the stream and of the connection. Streams
+ * with something to send take turns, one frame each, while less than
+ * {@link #MAX_QUEUED_RESPONSE_BYTES} wait to be written; the owner of the
+ * connection calls {@link #pumpResponse()} after each write to queue more.
+ * File bodies are queued as file regions behind their frame headers and never
+ * read into the heap.
+ *
+ * A protocol error ends the connection with {@code GOAWAY}, an error confined
+ * to a stream resets only that stream. Draining sends {@code GOAWAY} and
+ * closes the connection once the open streams are answered.
+ */
+public final class Http2Connection implements SocketDataHandler {
+    private static final Logger LOGGER = System.getLogger(Http2Connection.class.getName());
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // what the HTTP/1.1 parser takes of the preface, as the head of a request
+    private static final int PREFACE_HEAD_LENGTH = 18;
+    private static final int MAX_QUEUED_RESPONSE_BYTES = 64 * 1024;
+    // frames of buffers up to this size are copied behind their header instead of being queued as shared buffers
+    private static final int MAX_COPIED_BYTES = 8 * 1024;
+    private static final int CONNECTION_WINDOW = 1024 * 1024;
+    private static final int STREAM_WINDOW = Http2Frame.DEFAULT_WINDOW_SIZE;
+
+    private static final HTTPResponse CONTENT_TOO_LARGE = new HTTPResponse("HTTP/1.1 413 Content Too Large\r\n", Map.of(), "");
+    private static final HTTPResponse HEADERS_TOO_LARGE = new HTTPResponse("HTTP/1.1 431 Request Header Fields Too Large\r\n", Map.of(), "");
+
+    private final PooledOutputStream responseStream;
+    private final RequestDispatcher dispatcher;
+    private final Executor handlerExecutor;
+    private final Executor completionExecutor;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog;
+    private final SocketAddress remoteAddress;
+    private final int maxConcurrentStreams;
+    private final int maxHeaderListBytes;
+    private final long maxRequestBodyBytes;
+    private final Http2FrameReader frameReader = new Http2FrameReader(Http2Frame.DEFAULT_MAX_FRAME_SIZE);
+    private final HpackDecoder decoder = new HpackDecoder();
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final Map<Integer, Http2Stream> streams = new HashMap<>();
+    // streams with a frame to send, in turn
+    private final ArrayDeque<Http2Stream> sendQueue = new ArrayDeque<>();
+    private int prefaceOffset = 0;
+    private int lastStreamId = 0;
+    private long connectionSendWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+    private int connectionReceiveWindow = CONNECTION_WINDOW;
+    private int peerInitialWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+    // header block of the stream whose HEADERS frame is continued in CONTINUATION frames
+    private byte[] headerBlock = new byte[1024];
+    private int headerBlockLength = 0;
+    private int continuedStreamId = 0;
+    private int continuedFlags = 0;
+    private boolean goAwaySent = false;
+    private boolean closeConnection = false;
+    // nothing after a connection error is read
+    private boolean inputDiscarded = false;
+    private boolean closed = false;
+
+    /**
+     * @param completionExecutor runs the completions of handlers and body reads
+     *                           on the thread owning the response stream
+     */
+    public Http2Connection(PooledOutputStream responseStream, ServerContext context, SocketAddress remoteAddress,
+            Executor handlerExecutor, Executor completionExecutor) {
+        this.responseStream = responseStream;
+        this.remoteAddress = remoteAddress;
+        this.handlerExecutor = handlerExecutor;
+        this.completionExecutor = completionExecutor;
+        this.dispatcher = new RequestDispatcher(context, handlerExecutor);
+        this.metrics = context.getMetrics();
+        this.accessLog = context.getAccessLog();
+        this.maxConcurrentStreams = context.getConfig().getHttp2MaxConcurrentStreams();
+        this.maxHeaderListBytes = context.getConfig().getMaxRequestHeaderBytes();
+        this.maxRequestBodyBytes = context.getConfig().getMaxRequestBodyBytes();
+    }
+
+    /**
+     * Sends the server's preface and reads what the client sent after the
+     * switch.
+     *
+     * @param upgradeRequest the request that asked for {@code Upgrade: h2c},
+     *                       answered on stream 1, or null when the HTTP/1.1
+     *                       parser took the start of the client's preface
+     * @return true when frames are waiting in the response stream
+     */
+    public boolean start(HTTPRequest upgradeRequest, ByteBuffer received) throws WebServerException {
+        writePreface();
+        if (upgradeRequest == null) {
+            prefaceOffset = PREFACE_HEAD_LENGTH;
+            return read(received);
+        }
+        try {
+            // the 101 acknowledges these settings, they get no SETTINGS ack
+            applySettings(ByteBuffer.wrap(Base64.getUrlDecoder().decode(upgradeRequest.headers().get("HTTP2-Settings").trim())));
+        } catch (IllegalArgumentException | Http2Exception e) {
+            connectionError(Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "Invalid HTTP2-Settings"));
+            return true;
+        }
+        lastStreamId = 1;
+        Http2Stream stream = new Http2Stream(1, System.nanoTime(), STREAM_WINDOW, peerInitialWindow);
+        stream.remoteClosed = true;
+        streams.put(stream.id, stream);
+        dispatch(stream, upgradeRequest);
+        return read(received);
+    }
+
+    /**
+     * Sends the server's preface on a connection that chose {@code h2} during
+     * the TLS handshake, whose client starts with the whole connection
+     * preface.
+     */
+    public void startNegotiated() {
+        writePreface();
+    }
+
+    private void writePreface() {
+        Http2Frame.writeSettings(responseStream, new int[] {
+                Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams,
+                Http2Frame.SETTINGS_MAX_HEADER_LIST_SIZE, maxHeaderListBytes });
+        Http2Frame.writeWindowUpdate(responseStream, 0, CONNECTION_WINDOW - Http2Frame.DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @return true when frames are waiting in the response stream
+     */
+    @Override
+    public boolean read(ByteBuffer data) throws WebServerException {
+        try {
+            while (!inputDiscarded && prefaceOffset < PREFACE.length && data.hasRemaining()) {
+                if (data.get() != PREFACE[prefaceOffset++]) {
+                    throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "Invalid connection preface");
+                }
+            }
+            while (!inputDiscarded && prefaceOffset == PREFACE.length && frameReader.read(data)) {
+                handleFrame();
+            }
+        } catch (Http2Exception e) {
+            connectionError(e);
+        }
+        if (inputDiscarded) {
+            data.position(data.limit());
+        }
+        flush();
+        return responseStream.hasRemaining();
+    }
+
+    @Override
+    public boolean pumpResponse() {
+        long queued = responseStream.remaining();
+        flush();
+        return responseStream.remaining() > queued;
+    }
+
+    private void handleFrame() throws Http2Exception {
+        int type = frameReader.type();
+        if (continuedStreamId != 0 && (type != Http2Frame.CONTINUATION || frameReader.streamId() != continuedStreamId)) {
+            throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "Expected CONTINUATION of stream " + continuedStreamId);
+        }
+        try {
+            switch (type) {
+                case Http2Frame.DATA -> onData();
+                case Http2Frame.HEADERS -> onHeaders();
+                case Http2Frame.PRIORITY -> onPriority();
+                case Http2Frame.RST_STREAM -> onRstStream();
+                case Http2Frame.SETTINGS -> onSettings();
+                case Http2Frame.PUSH_PROMISE -> throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+                case Http2Frame.PING -> onPing();
+                case Http2Frame.GOAWAY -> onGoAway();
+                case Http2Frame.WINDOW_UPDATE -> onWindowUpdate();
+                case Http2Frame.CONTINUATION -> onContinuation();
+                default -> {
+                    // frames of unknown types are ignored
+                }
+            }
+        } catch (Http2Exception e) {
+            if (e.isConnectionError()) {
+                throw e;
+            }
+            streamError(e);
+        }
+    }
+
+    private void onData() throws Http2Exception {
+        int streamId = requireStream();
+        int length = frameReader.length();
+        ByteBuffer payload = frameReader.payload();
+        int padding = stripPadding(payload);
+        if (length > connectionReceiveWindow) {
+            throw Http2Exception.connectionError(Http2Frame.FLOW_CONTROL_ERROR, "DATA beyond the connection window");
+        }
+        connectionReceiveWindow -= length;
+        if (connectionReceiveWindow <= CONNECTION_WINDOW / 2) {
+            // the streams' windows bound what is buffered, the connection's is given back on receipt
+            Http2Frame.writeWindowUpdate(responseStream, 0, CONNECTION_WINDOW - connectionReceiveWindow);
+            connectionReceiveWindow = CONNECTION_WINDOW;
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            // a stream answered or reset already, the client may not know yet
+            return;
+        }
+        if (stream.remoteClosed) {
+            throw Http2Exception.streamError(streamId, Http2Frame.STREAM_CLOSED, "DATA after the end of the stream");
+        }
+        if (length > stream.receiveWindow) {
+            throw Http2Exception.streamError(streamId, Http2Frame.FLOW_CONTROL_ERROR, "DATA beyond the stream window");
+        }
+        stream.receiveWindow -= length;
+        giveBack(stream, padding);
+        int dataLength = payload.remaining();
+        stream.bodyBytes += dataLength;
+        if (stream.declaredLength >= 0 && stream.bodyBytes > stream.declaredLength) {
+            throw Http2Exception.streamError(streamId, Http2Frame.PROTOCOL_ERROR, "Body longer than its content-length");
+        }
+        if (stream.body == null) {
+            // refused before it arrived
+            giveBack(stream, dataLength);
+        } else if (stream.bodyBytes > maxRequestBodyBytes) {
+            throw Http2Exception.streamError(streamId, Http2Frame.CANCEL, "Body larger than " + maxRequestBodyBytes + " bytes");
+        } else if (dataLength > 0) {
+            byte[] chunk = new byte[dataLength];
+            payload.get(chunk);
+            stream.body.offer(ByteBuffer.wrap(chunk));
+        }
+        if (frameReader.hasFlag(Http2Frame.FLAG_END_STREAM)) {
+            endOfBody(stream);
+        }
+    }
+
+    private void onHeaders() throws Http2Exception {
+        int streamId = requireStream();
+        ByteBuffer payload = frameReader.payload();
+        stripPadding(payload);
+        if (frameReader.hasFlag(Http2Frame.FLAG_PRIORITY)) {
+            if (payload.remaining() < 5) {
+                throw Http2Exception.connectionError(Http2Frame.FRAME_SIZE_ERROR, "HEADERS too short for its priority");
+            }
+            // priorities are not followed, every stream takes its turn
+            payload.position(payload.position() + 5);
+        }
+        headerBlockLength = 0;
+        appendHeaderBlock(payload);
+        if (!frameReader.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+            continuedStreamId = streamId;
+            continuedFlags = frameReader.flags();
+            return;
+        }
+        onHeaderBlock(streamId, frameReader.flags());
+    }
+
+    private void onContinuation() throws Http2Exception {
+        if (continuedStreamId == 0) {
+            throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+        }
+        appendHeaderBlock(frameReader.payload());
+        if (frameReader.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+            int streamId = continuedStreamId;
+            continuedStreamId = 0;
+            onHeaderBlock(streamId, continuedFlags);
+        }
+    }
+
+    private void appendHeaderBlock(ByteBuffer fragment) throws Http2Exception {
+        int length = fragment.remaining();
+        // a compressed block is smaller than the header list it stands for
+        if (headerBlockLength + length > maxHeaderListBytes) {
+            throw Http2Exception.connectionError(Http2Frame.ENHANCE_YOUR_CALM, "Header block larger than " + maxHeaderListBytes + " bytes");
+        }
+        if (headerBlock.length < headerBlockLength + length) {
+            headerBlock = Arrays.copyOf(headerBlock, Math.max(headerBlockLength + length, headerBlock.length * 2));
+        }
+        fragment.get(headerBlock, headerBlockLength, length);
+        headerBlockLength += length;
+    }
+
+    /**
+     * Opens a stream with a complete header block, or ends the body of an open
+     * one with trailers, which are not passed on.
+     */
+    private void onHeaderBlock(int streamId, int flags) throws Http2Exception {
+        // decoded even for streams that are refused, to keep the dynamic table in step with the client's
+        decoder.decode(headerBlock, 0, headerBlockLength);
+        boolean endStream = (flags & Http2Frame.FLAG_END_STREAM) != 0;
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            if (stream.remoteClosed) {
+                throw Http2Exception.streamError(streamId, Http2Frame.STREAM_CLOSED, "HEADERS after the end of the stream");
+            }
+            if (!endStream) {
+                throw Http2Exception.streamError(streamId, Http2Frame.PROTOCOL_ERROR, "Trailers without END_STREAM");
+            }
+            endOfBody(stream);
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            // trailers of a stream answered or reset already
+            return;
+        }
+        if (streamId % 2 == 0) {
+            throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "Stream " + streamId + " opened by the client");
+        }
+        lastStreamId = streamId;
+        if (goAwaySent) {
+            // beyond the last stream the GOAWAY promised to answer
+            return;
+        }
+        if (streams.size() >= maxConcurrentStreams) {
+            Http2Frame.writeRstStream(responseStream, streamId, Http2Frame.REFUSED_STREAM);
+            return;
+        }
+        stream = new Http2Stream(streamId, System.nanoTime(), STREAM_WINDOW, peerInitialWindow);
+        stream.remoteClosed = endStream;
+        HTTPRequest request = toRequest(stream);
+        streams.put(streamId, stream);
+        if (decoder.listSize() > maxHeaderListBytes) {
+            stream.request = request;
+            respond(stream, HEADERS_TOO_LARGE);
+        } else if (stream.declaredLength > maxRequestBodyBytes) {
+            stream.request = request;
+            respond(stream, CONTENT_TOO_LARGE);
+        } else {
+            dispatch(stream, request);
+        }
+    }
+
+    /**
+     * The request of the decoded header block: the pseudo-header fields give
+     * the method and path, the remaining fields back its headers.
+     */
+    private HTTPRequest toRequest(Http2Stream stream) throws Http2Exception {
+        byte[] data = decoder.data();
+        int[] offsets = decoder.offsets();
+        int count = decoder.count();
+        String method = null;
+        String path = null;
+        String scheme = null;
+        int pseudoFields = 0;
+        for (int i = 0; i < count; i++) {
+            int nameStart = offsets[i * 4];
+            int nameEnd = offsets[i * 4 + 1];
+            String value = new String(data, offsets[i * 4 + 2], offsets[i * 4 + 3] - offsets[i * 4 + 2], StandardCharsets.ISO_8859_1);
+            if (nameEnd > nameStart && data[nameStart] == ':') {
+                if (i != pseudoFields) {
+                    throw malformed(stream, "Pseudo-header field after a regular field");
+                }
+                pseudoFields++;
+                switch (new String(data, nameStart, nameEnd - nameStart, StandardCharsets.ISO_8859_1)) {
+                    case ":method" -> method = value;
+                    case ":path" -> path = value;
+                    case ":scheme" -> scheme = value;
+                    case ":authority" -> {
+                        // the target is identified by the path alone
+                    }
+                    default -> throw malformed(stream, "Unknown pseudo-header field");
+                }
+                continue;
+            }
+            for (int j = nameStart; j < nameEnd; j++) {
+                if (data[j] >= 'A' && data[j] <= 'Z') {
+                    throw malformed(stream, "Upper case field name");
+                }
+            }
+            String name = new String(data, nameStart, nameEnd - nameStart, StandardCharsets.ISO_8859_1);
+            if (name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection")
+                    || name.equals("transfer-encoding") || name.equals("upgrade") || (name.equals("te") && !value.equals("trailers"))) {
+                throw malformed(stream, "Connection-specific field " + name);
+            }
+            if (name.equals("content-length")) {
+                try {
+                    stream.declaredLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw malformed(stream, "Invalid content-length");
+                }
+            }
+        }
+        if (method == null || path == null || path.isEmpty() || scheme == null) {
+            throw malformed(stream, "Missing pseudo-header field");
+        }
+        if (stream.remoteClosed && stream.declaredLength > 0) {
+            throw malformed(stream, "Empty body with a content-length");
+        }
+        HTTPHeaders headers = new HTTPHeaders(data, Arrays.copyOfRange(offsets, pseudoFields * 4, count * 4), count - pseudoFields);
+        RequestBody body = RequestBody.EMPTY;
+        if (!stream.remoteClosed && stream.declaredLength <= maxRequestBodyBytes) {
+            // the window is given back on the loop thread, whichever thread the handler reads on
+            stream.body = new StreamingRequestBody(stream.declaredLength, handlerExecutor,
+                    consumed -> completionExecutor.execute(() -> onBodyConsumed(stream, consumed)));
+            body = stream.body;
+        }
+        return new HTTPRequest(method, path, headers, body);
+    }
+
+    private static Http2Exception malformed(Http2Stream stream, String message) {
+        return Http2Exception.streamError(stream.id, Http2Frame.PROTOCOL_ERROR, message);
+    }
+
+    private void onPriority() throws Http2Exception {
+        requireStream();
+        if (frameReader.length() != 5) {
+            throw Http2Exception.streamError(frameReader.streamId(), Http2Frame.FRAME_SIZE_ERROR, "PRIORITY of " + frameReader.length() + " bytes");
+        }
+    }
+
+    private void onRstStream() throws Http2Exception {
+        int streamId = requireStream();
+        if (frameReader.length() != 4) {
+            throw Http2Exception.connectionError(Http2Frame.FRAME_SIZE_ERROR, "RST_STREAM of " + frameReader.length() + " bytes");
+        }
+        if (streamId > lastStreamId) {
+            throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            abandon(stream, new IOException("Stream reset by the client"));
+        }
+    }
+
+    private void onSettings() throws Http2Exception {
+        if (frameReader.streamId() != 0) {
+            throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if (frameReader.hasFlag(Http2Frame.FLAG_ACK)) {
+            if (frameReader.length() != 0) {
+                throw Http2Exception.connectionError(Http2Frame.FRAME_SIZE_ERROR, "SETTINGS ack with a payload");
+            }
+            return;
+        }
+        if (frameReader.length() % 6 != 0) {
+            throw Http2Exception.connectionError(Http2Frame.FRAME_SIZE_ERROR, "SETTINGS of " + frameReader.length() + " bytes");
+        }
+        applySettings(frameReader.payload());
+        Http2Frame.writeHeader(responseStream, 0, Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0);
+    }
+
+    /**
+     * Applies the client's settings. The server's encoder uses no dynamic
+     * table and pushes nothing, so only the window and frame sizes matter.
+     */
+    private void applySettings(ByteBuffer payload) throws Http2Exception {
+        while (payload.remaining() >= 6) {
+            int id = payload.getShort() & 0xffff;
+            int value = payload.getInt();
+            switch (id) {
+                case Http2Frame.SETTINGS_ENABLE_PUSH -> {
+                    if (value != 0 && value != 1) {
+                        throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "SETTINGS_ENABLE_PUSH of " + value);
+                    }
+                }
+                case Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value < 0) {
+                        throw Http2Exception.connectionError(Http2Frame.FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE above 2^31-1");
+                    }
+                    int delta = value - peerInitialWindow;
+                    peerInitialWindow = value;
+                    for (Http2Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                        if (stream.sendWindow > Http2Frame.MAX_WINDOW_SIZE) {
+                            throw Http2Exception.connectionError(Http2Frame.FLOW_CONTROL_ERROR, "Stream window above 2^31-1");
+                        }
+                        schedule(stream);
+                    }
+                }
+                case Http2Frame.SETTINGS_MAX_FRAME_SIZE -> {
+                    if (value < Http2Frame.DEFAULT_MAX_FRAME_SIZE || value > Http2Frame.MAX_MAX_FRAME_SIZE) {
+                        throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE of " + value);
+                    }
+                    peerMaxFrameSize = value;
+                }
+                default -> {
+                    // the header table and header list sizes and unknown settings do not affect the server
+                }
+            }
+        }
+    }
+
+    private void onPing() throws Http2Exception {
+        if (frameReader.streamId() != 0) {
+            throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "PING on a stream");
+        }
+        if (frameReader.length() != 8) {
+            throw Http2Exception.connectionError(Http2Frame.FRAME_SIZE_ERROR, "PING of " + frameReader.length() + " bytes");
+        }
+        if (!frameReader.hasFlag(Http2Frame.FLAG_ACK)) {
+            Http2Frame.writeHeader(responseStream, 8, Http2Frame.PING, Http2Frame.FLAG_ACK, 0);
+            responseStream.write(frameReader.payload());
+        }
+    }
+
+    private void onGoAway() throws Http2Exception {
+        if (frameReader.streamId() != 0) {
+            throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "GOAWAY on a stream");
+        }
+        if (frameReader.length() < 8) {
+            throw Http2Exception.connectionError(Http2Frame.FRAME_SIZE_ERROR, "GOAWAY of " + frameReader.length() + " bytes");
+        }
+        LOGGER.log(Level.DEBUG, "Client sent GOAWAY with error code {0}", frameReader.payload().getInt(4));
+        // the client opens no more streams, the open ones are still answered
+        closeConnection = true;
+    }
+
+    private void onWindowUpdate() throws Http2Exception {
+        int streamId = frameReader.streamId();
+        if (frameReader.length() != 4) {
+            throw Http2Exception.connectionError(Http2Frame.FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + frameReader.length() + " bytes");
+        }
+        int increment = frameReader.payload().getInt(0) & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            }
+            connectionSendWindow += increment;
+            if (connectionSendWindow > Http2Frame.MAX_WINDOW_SIZE) {
+                throw Http2Exception.connectionError(Http2Frame.FLOW_CONTROL_ERROR, "Connection window above 2^31-1");
+            }
+            return;
+        }
+        if (increment == 0) {
+            throw Http2Exception.streamError(streamId, Http2Frame.PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+        stream.sendWindow += increment;
+        if (stream.sendWindow > Http2Frame.MAX_WINDOW_SIZE) {
+            throw Http2Exception.streamError(streamId, Http2Frame.FLOW_CONTROL_ERROR, "Stream window above 2^31-1");
+        }
+        schedule(stream);
+    }
+
+    private int requireStream() throws Http2Exception {
+        int streamId = frameReader.streamId();
+        if (streamId == 0) {
+            throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "Frame type " + frameReader.type() + " without a stream");
+        }
+        return streamId;
+    }
+
+    /**
+     * Skips the pad length of a padded frame and cuts the padding off.
+     *
+     * @return the bytes of the frame that were padding
+     */
+    private int stripPadding(ByteBuffer payload) throws Http2Exception {
+        if (!frameReader.hasFlag(Http2Frame.FLAG_PADDED)) {
+            return 0;
+        }
+        if (!payload.hasRemaining()) {
+            throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "Padded frame without a pad length");
+        }
+        int padLength = payload.get() & 0xff;
+        if (padLength > payload.remaining()) {
+            throw Http2Exception.connectionError(Http2Frame.PROTOCOL_ERROR, "Padding longer than the frame");
+        }
+        payload.limit(payload.limit() - padLength);
+        return padLength + 1;
+    }
+
+    private void endOfBody(Http2Stream stream) throws Http2Exception {
+        stream.remoteClosed = true;
+        if (stream.declaredLength >= 0 && stream.bodyBytes != stream.declaredLength) {
+            throw Http2Exception.streamError(stream.id, Http2Frame.PROTOCOL_ERROR, "Body shorter than its content-length");
+        }
+        if (stream.body != null) {
+            stream.body.complete();
+        }
+    }
+
+    private void onBodyConsumed(Http2Stream stream, int consumed) {
+        if (!closed && streams.get(stream.id) == stream) {
+            giveBack(stream, consumed);
+        }
+    }
+
+    /**
+     * Returns received bytes to the stream's window once half of it is used
+     * up, so the client is not sent an update for every frame.
+     */
+    private void giveBack(Http2Stream stream, int bytes) {
+        stream.consumed += bytes;
+        if (!stream.remoteClosed && stream.consumed >= STREAM_WINDOW / 2) {
+            Http2Frame.writeWindowUpdate(responseStream, stream.id, stream.consumed);
+            stream.receiveWindow += stream.consumed;
+            stream.consumed = 0;
+        }
+    }
+
+    private void dispatch(Http2Stream stream, HTTPRequest request) {
+        stream.request = request;
+        Object answer = dispatcher.dispatch(request);
+        if (answer instanceof CompletableFuture<?> result) {
+            stream.handlerRunning = true;
+            result.whenCompleteAsync((response, error) -> onHandlerCompleted(stream, result), completionExecutor);
+            return;
+        }
+        respond(stream, answer);
+    }
+
+    private void onHandlerCompleted(Http2Stream stream, CompletableFuture<?> result) {
+        stream.handlerRunning = false;
+        if (closed || stream.reset) {
+            if (!result.isCompletedExceptionally() && result.join() instanceof HTTPResponse response
+                    && response.body() instanceof ResponseBody.Stream streamed) {
+                streamed.producer().cancel();
+            }
+            return;
+        }
+        respond(stream, RequestDispatcher.resultOf(result));
+        flush();
+    }
+
+    /**
+     * Sends the headers of the answer right away and queues its body.
+     */
+    private void respond(Http2Stream stream, Object answer) {
+        if (answer instanceof RequestDispatcher.NotModified notModified) {
+            CachedResponse cached = notModified.cached();
+            byte[] block = cached.http2NotModifiedHead();
+            if (block == null) {
+                block = encodeHttp1Head(cached.notModifiedHead());
+                cached.setHttp2NotModifiedHead(block);
+            }
+            sendHeaders(stream, 304, block, true);
+        } else if (answer instanceof CachedResponse cached) {
+            byte[] block = cached.http2Head();
+            if (block == null) {
+                block = encodeHttp1Head(cached.head());
+                cached.setHttp2Head(block);
+            }
+            boolean empty = cached.bodyLength() == 0 || isHead(stream);
+            sendHeaders(stream, 200, block, empty);
+            if (!empty) {
+                // the tail starts with the blank line that ends an HTTP/1.1 head
+                stream.segments.add(cached.tail().duplicate().position(2));
+                stream.bodyComplete = true;
+                schedule(stream);
+            }
+        } else {
+            respond(stream, (HTTPResponse) answer);
+        }
+    }
+
+    private byte[] encodeHttp1Head(ByteBuffer head) {
+        encoder.reset();
+        encoder.http1Head(head);
+        return encoder.toByteArray();
+    }
+
+    private void sendHeaders(Http2Stream stream, int status, byte[] block, boolean endStream) {
+        encoder.reset();
+        encoder.write(block);
+        encoder.date();
+        writeHeaderBlock(stream, status, endStream);
+    }
+
+    /**
+     * Opens the files of the body before sending anything, so a missing file
+     * still gets a complete 404.
+     */
+    private void respond(Http2Stream stream, HTTPResponse response) {
+        ResponseBody body = response.body();
+        List<ResponseBody> parts = body instanceof ResponseBody.Parts multipart ? multipart.parts() : List.of(body);
+        List<Object> segments = new ArrayList<>(parts.size());
+        for (ResponseBody part : parts) {
+            if (part instanceof ResponseBody.FileRegion fileRegion) {
+                try {
+                    segments.add(new Http2Stream.FileSegment(FileChannel.open(fileRegion.path(), StandardOpenOption.READ),
+                            fileRegion.position(), fileRegion.length()));
+                } catch (IOException e) {
+                    if (LOGGER.isLoggable(Level.DEBUG)) {
+                        LOGGER.log(Level.DEBUG, "Cannot open " + fileRegion.path() + ": " + e.getMessage());
+                    }
+                    closeFiles(segments);
+                    respond(stream, RequestDispatcher.NOT_FOUND);
+                    return;
+                }
+            } else if (part instanceof ResponseBody.Bytes bytes) {
+                segments.add(ByteBuffer.wrap(bytes.bytes()));
+            }
+        }
+        int status = HpackEncoder.statusCode(response.firstLine());
+        boolean empty = HpackEncoder.isBodiless(status) || isHead(stream) || body.length() == 0;
+        encoder.reset();
+        encoder.response(response, body.length());
+        encoder.date();
+        writeHeaderBlock(stream, status, empty);
+        if (empty) {
+            closeFiles(segments);
+            if (body instanceof ResponseBody.Stream streamed) {
+                streamed.producer().cancel();
+            }
+            return;
+        }
+        if (body instanceof ResponseBody.Stream streamed) {
+            // pulled a chunk at a time, as fast as the stream's window allows
+            stream.producer = streamed.producer();
+        } else {
+            for (Object segment : segments) {
+                if (segment instanceof Http2Stream.FileSegment file && file.remaining == 0) {
+                    closeFiles(List.of(file));
+                } else if (!(segment instanceof ByteBuffer buffer) || buffer.hasRemaining()) {
+                    stream.segments.add(segment);
+                }
+            }
+            stream.bodyComplete = true;
+        }
+        schedule(stream);
+    }
+
+    private static boolean isHead(Http2Stream stream) {
+        return "HEAD".equals(stream.request.method());
+    }
+
+    private static void closeFiles(List<Object> segments) {
+        for (Object segment : segments) {
+            if (segment instanceof Http2Stream.FileSegment file) {
+                try {
+                    file.channel.close();
+                } catch (IOException e) {
+                    // opened for reading, nothing is lost
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the block in the encoder as a HEADERS frame, followed by
+     * CONTINUATION frames when it is larger than the client's frame size.
+     */
+    private void writeHeaderBlock(Http2Stream stream, int status, boolean endStream) {
+        stream.status = status;
+        stream.headersSent = true;
+        metrics.responseStarted(System.nanoTime() - stream.received);
+        byte[] block = encoder.buffer();
+        int length = encoder.length();
+        int offset = 0;
+        int type = Http2Frame.HEADERS;
+        do {
+            int count = Math.min(length - offset, peerMaxFrameSize);
+            int flags = offset + count == length ? Http2Frame.FLAG_END_HEADERS : 0;
+            if (type == Http2Frame.HEADERS && endStream) {
+                flags |= Http2Frame.FLAG_END_STREAM;
+            }
+            Http2Frame.writeHeader(responseStream, count, type, flags, stream.id);
+            responseStream.write(block, offset, count);
+            offset += count;
+            type = Http2Frame.CONTINUATION;
+        } while (offset < length);
+        if (endStream) {
+            stream.bodyComplete = true;
+            streamEnded(stream);
+        }
+    }
+
+    private void schedule(Http2Stream stream) {
+        if (!stream.queued && stream.isReadyToSend()) {
+            stream.queued = true;
+            sendQueue.addLast(stream);
+        }
+    }
+
+    /**
+     * Sends a frame of each stream in turn until the response stream holds
+     * enough or nothing can be sent.
+     */
+    private void flush() {
+        while (!sendQueue.isEmpty() && responseStream.remaining() < MAX_QUEUED_RESPONSE_BYTES) {
+            Http2Stream stream = sendQueue.pollFirst();
+            stream.queued = false;
+            if (!stream.isReadyToSend()) {
+                continue;
+            }
+            if (!stream.segments.isEmpty() && connectionSendWindow <= 0) {
+                // resumed by the client's WINDOW_UPDATE of the connection
+                stream.queued = true;
+                sendQueue.addFirst(stream);
+                return;
+            }
+            sendFrame(stream);
+            schedule(stream);
+        }
+    }
+
+    private void sendFrame(Http2Stream stream) {
+        if (stream.segments.isEmpty()) {
+            if (stream.bodyComplete) {
+                Http2Frame.writeHeader(responseStream, 0, Http2Frame.DATA, Http2Frame.FLAG_END_STREAM, stream.id);
+                streamEnded(stream);
+            } else {
+                pullChunk(stream);
+            }
+            return;
+        }
+        long window = Math.min(Math.min(stream.sendWindow, connectionSendWindow), peerMaxFrameSize);
+        Object segment = stream.segments.peekFirst();
+        boolean lastSegment = stream.segments.size() == 1 && stream.bodyComplete;
+        int length;
+        if (segment instanceof ByteBuffer buffer) {
+            length = (int) Math.min(window, buffer.remaining());
+            boolean segmentDone = length == buffer.remaining();
+            boolean endStream = segmentDone && lastSegment;
+            Http2Frame.writeHeader(responseStream, length, Http2Frame.DATA, endStream ? Http2Frame.FLAG_END_STREAM : 0, stream.id);
+            ByteBuffer frame = buffer.slice(buffer.position(), length);
+            if (length <= MAX_COPIED_BYTES) {
+                responseStream.write(frame);
+            } else {
+                responseStream.writeShared(frame);
+            }
+            buffer.position(buffer.position() + length);
+            if (segmentDone) {
+                stream.segments.pollFirst();
+            }
+        } else {
+            Http2Stream.FileSegment file = (Http2Stream.FileSegment) segment;
+            length = (int) Math.min(window, file.remaining);
+            boolean segmentDone = length == file.remaining;
+            boolean endStream = segmentDone && lastSegment;
+            Http2Frame.writeHeader(responseStream, length, Http2Frame.DATA, endStream ? Http2Frame.FLAG_END_STREAM : 0, stream.id);
+            responseStream.transferFrom(file.channel, file.position, length, segmentDone);
+            file.position += length;
+            file.remaining -= length;
+            if (segmentDone) {
+                stream.segments.pollFirst();
+            }
+        }
+        stream.sendWindow -= length;
+        connectionSendWindow -= length;
+        stream.responseBytes += length;
+        if (stream.segments.isEmpty() && stream.bodyComplete) {
+            streamEnded(stream);
+        }
+    }
+
+    private void pullChunk(Http2Stream stream) {
+        CompletableFuture<ByteBuffer> next;
+        try {
+            next = stream.producer.next();
+        } catch (RuntimeException e) {
+            next = CompletableFuture.failedFuture(e);
+        }
+        if (!next.isDone()) {
+            stream.chunkPending = true;
+            CompletableFuture<ByteBuffer> pending = next;
+            next.whenCompleteAsync((chunk, error) -> onChunkCompleted(stream, pending), completionExecutor);
+            return;
+        }
+        takeChunk(stream, next);
+    }
+
+    private void onChunkCompleted(Http2Stream stream, CompletableFuture<ByteBuffer> next) {
+        stream.chunkPending = false;
+        if (closed || stream.reset) {
+            return;
+        }
+        takeChunk(stream, next);
+        schedule(stream);
+        flush();
+    }
+
+    private void takeChunk(Http2Stream stream, CompletableFuture<ByteBuffer> next) {
+        ByteBuffer chunk;
+        try {
+            chunk = next.join();
+        } catch (RuntimeException e) {
+            // the headers are out already, the client learns about the failure from the reset
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Response body failed", e);
+            }
+            resetStream(stream, Http2Frame.INTERNAL_ERROR);
+            return;
+        }
+        if (chunk == null) {
+            stream.producer = null;
+            stream.bodyComplete = true;
+        } else if (chunk.hasRemaining()) {
+            stream.segments.add(chunk);
+        }
+    }
+
+    /**
+     * The response is complete. A client still sending the request body is
+     * told to stop, as the response no longer needs it.
+     */
+    private void streamEnded(Http2Stream stream) {
+        stream.ended = true;
+        long latency = System.nanoTime() - stream.received;
+        metrics.requestCompleted(latency);
+        accessLog.log(remoteAddress, stream.request.method(), stream.request.target(), stream.status, stream.responseBytes, latency);
+        streams.remove(stream.id);
+        if (!stream.remoteClosed) {
+            Http2Frame.writeRstStream(responseStream, stream.id, Http2Frame.NO_ERROR);
+        }
+        if (stream.body != null) {
+            stream.body.discard();
+        }
+    }
+
+    private void streamError(Http2Exception e) {
+        LOGGER.log(Level.DEBUG, "Stream {0} reset: {1}", e.getStreamId(), e.getMessage());
+        metrics.parseError();
+        Http2Frame.writeRstStream(responseStream, e.getStreamId(), e.getErrorCode());
+        Http2Stream stream = streams.get(e.getStreamId());
+        if (stream != null) {
+            abandon(stream, new IOException(e.getMessage()));
+        }
+    }
+
+    private void resetStream(Http2Stream stream, int errorCode) {
+        Http2Frame.writeRstStream(responseStream, stream.id, errorCode);
+        abandon(stream, new IOException("Stream reset by the server"));
+    }
+
+    /**
+     * Forgets a stream without answering it; a handler still running has its
+     * response discarded when it completes.
+     */
+    private void abandon(Http2Stream stream, IOException cause) {
+        stream.reset = true;
+        streams.remove(stream.id);
+        if (stream.body != null) {
+            stream.body.fail(cause);
+        }
+        stream.dropBody(responseStream);
+    }
+
+    /**
+     * Ends the connection with {@code GOAWAY} once it is written; nothing more
+     * is read or answered.
+     */
+    private void connectionError(Http2Exception e) {
+        LOGGER.log(Level.DEBUG, "Connection error: {0}", e.getMessage());
+        metrics.parseError();
+        if (!goAwaySent) {
+            Http2Frame.writeGoAway(responseStream, lastStreamId, e.getErrorCode());
+            goAwaySent = true;
+        }
+        closeConnection = true;
+        inputDiscarded = true;
+        IOException cause = new IOException("Connection error: " + e.getMessage());
+        for (Http2Stream stream : new ArrayList<>(streams.values())) {
+            abandon(stream, cause);
+        }
+    }
+
+    /**
+     * Promises to answer the streams opened so far and no others, and closes
+     * the connection after them.
+     */
+    @Override
+    public void drain() {
+        if (!goAwaySent) {
+            Http2Frame.writeGoAway(responseStream, lastStreamId, Http2Frame.NO_ERROR);
+            goAwaySent = true;
+        }
+        closeConnection = true;
+    }
+
+    @Override
+    public boolean isRequestInProgress() {
+        return !inputDiscarded && (frameReader.isInProgress() || continuedStreamId != 0 || prefaceOffset < PREFACE.length);
+    }
+
+    @Override
+    public boolean isReadingBody() {
+        for (Http2Stream stream : streams.values()) {
+            if (!stream.remoteClosed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Never, flow control holds back clients that send faster than the
+     * handlers read.
+     */
+    @Override
+    public boolean isReadPaused() {
+        return false;
+    }
+
+    @Override
+    public boolean isResponsePending() {
+        return !streams.isEmpty();
+    }
+
+    @Override
+    public boolean shouldCloseConnection() {
+        return closeConnection && streams.isEmpty();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        IOException cause = new IOException("Connection closed");
+        for (Http2Stream stream : new ArrayList<>(streams.values())) {
+            abandon(stream, cause);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.meldoheiri.webserver.servers.http2;
+
+import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+
+/**
+ * The peer broke the HTTP/2 protocol. A connection error ends the connection
+ * with {@code GOAWAY}, a stream error only resets the stream it names.
+ */
+final class Http2Exception extends WebServerException {
+    private static final long serialVersionUID = 1L;
+
+    private final int errorCode;
+    // 0 for a connection error
+    private final int streamId;
+
+    private Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    static Http2Exception connectionError(int errorCode, String message) {
+        return new Http2Exception(errorCode, 0, message);
+    }
+
+    static Http2Exception streamError(int streamId, int errorCode, String message) {
+        return new Http2Exception(errorCode, streamId, message);
+    }
+
+    int getErrorCode() {
+        return errorCode;
+    }
+
+    int getStreamId() {
+        return streamId;
+    }
+
+    boolean isConnectionError() {
+        return streamId == 0;
+    }
+}
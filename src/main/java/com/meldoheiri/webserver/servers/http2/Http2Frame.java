@@ -0,0 +1,98 @@
+package com.meldoheiri.webserver.servers.http2;
+
+import com.meldoheiri.webserver.servers.bufferpool.PooledOutputStream;
+
+/**
+ * Frame types, flags, settings and error codes of HTTP/2 (RFC 9113), and the
+ * writing of the frames the server sends.
+ *
+ * Every frame starts with a 9 byte header: a 24 bit payload length, the type,
+ * the flags and a 31 bit stream identifier, 0 for frames about the whole
+ * connection.
+ */
+final class Http2Frame {
+    static final int HEADER_LENGTH = 9;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16_384;
+    static final int MAX_MAX_FRAME_SIZE = 16_777_215;
+    static final int DEFAULT_WINDOW_SIZE = 65_535;
+    static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private Http2Frame() {
+    }
+
+    static void writeHeader(PooledOutputStream out, int length, int type, int flags, int streamId) {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        writeInt(out, streamId);
+    }
+
+    static void writeSettings(PooledOutputStream out, int[] settings) {
+        writeHeader(out, settings.length / 2 * 6, SETTINGS, 0, 0);
+        for (int i = 0; i < settings.length; i += 2) {
+            out.write(settings[i] >>> 8);
+            out.write(settings[i]);
+            writeInt(out, settings[i + 1]);
+        }
+    }
+
+    static void writeWindowUpdate(PooledOutputStream out, int streamId, int increment) {
+        writeHeader(out, 4, WINDOW_UPDATE, 0, streamId);
+        writeInt(out, increment);
+    }
+
+    static void writeRstStream(PooledOutputStream out, int streamId, int errorCode) {
+        writeHeader(out, 4, RST_STREAM, 0, streamId);
+        writeInt(out, errorCode);
+    }
+
+    static void writeGoAway(PooledOutputStream out, int lastStreamId, int errorCode) {
+        writeHeader(out, 8, GOAWAY, 0, 0);
+        writeInt(out, lastStreamId);
+        writeInt(out, errorCode);
+    }
+
+    static void writeInt(PooledOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
@@ -0,0 +1,109 @@
+package com.meldoheiri.webserver.servers.http2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts frames out of the bytes read from a connection, which may end anywhere
+ * in a frame.
+ *
+ * The payload of a frame that arrived in one read is a view of the read
+ * buffer, valid until the next call; only a frame split across reads is
+ * collected in a buffer of its own, allocated the first time it is needed.
+ */
+final class Http2FrameReader {
+    private final byte[] header = new byte[Http2Frame.HEADER_LENGTH];
+    private final int maxFrameSize;
+    private int headerLength = 0;
+    private ByteBuffer collected;
+    private boolean collecting = false;
+    private int length;
+    private int type;
+    private int flags;
+    private int streamId;
+    private ByteBuffer payload;
+
+    /**
+     * @param maxFrameSize the largest payload this side accepts, as
+     *                     announced in {@code SETTINGS_MAX_FRAME_SIZE}
+     */
+    Http2FrameReader(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Reads up to the end of the next frame.
+     *
+     * @return true when a whole frame is available
+     */
+    boolean read(ByteBuffer data) throws Http2Exception {
+        if (headerLength < Http2Frame.HEADER_LENGTH) {
+            int count = Math.min(Http2Frame.HEADER_LENGTH - headerLength, data.remaining());
+            data.get(header, headerLength, count);
+            headerLength += count;
+            if (headerLength < Http2Frame.HEADER_LENGTH) {
+                return false;
+            }
+            length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | (header[2] & 0xff);
+            type = header[3] & 0xff;
+            flags = header[4] & 0xff;
+            streamId = ((header[5] & 0x7f) << 24 | (header[6] & 0xff) << 16 | (header[7] & 0xff) << 8 | (header[8] & 0xff));
+            if (length > maxFrameSize) {
+                throw Http2Exception.connectionError(Http2Frame.FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+            }
+        }
+        if (!collecting && data.remaining() >= length) {
+            payload = data.slice(data.position(), length);
+            data.position(data.position() + length);
+        } else {
+            if (!collecting) {
+                if (collected == null) {
+                    collected = ByteBuffer.allocate(maxFrameSize);
+                }
+                collected.clear().limit(length);
+                collecting = true;
+            }
+            int count = Math.min(collected.remaining(), data.remaining());
+            collected.put(collected.position(), data, data.position(), count);
+            collected.position(collected.position() + count);
+            data.position(data.position() + count);
+            if (collected.hasRemaining()) {
+                return false;
+            }
+            payload = collected.flip();
+            collecting = false;
+        }
+        headerLength = 0;
+        return true;
+    }
+
+    /**
+     * Whether part of a frame has been read, but not all of it.
+     */
+    boolean isInProgress() {
+        return headerLength > 0;
+    }
+
+    int length() {
+        return length;
+    }
+
+    int type() {
+        return type;
+    }
+
+    int flags() {
+        return flags;
+    }
+
+    boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    int streamId() {
+        return streamId;
+    }
+
+    ByteBuffer payload() {
+        return payload;
+    }
+}
@@ -0,0 +1,104 @@
+package com.meldoheiri.webserver.servers.http2;
+
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+import com.meldoheiri.webserver.servers.bufferpool.PooledOutputStream;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequest;
+import com.meldoheiri.webserver.servers.httprequesthandler.ResponseBody;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.StreamingRequestBody;
+
+/**
+ * One request and its response on an HTTP/2 connection, owned by the
+ * connection's I/O thread.
+ *
+ * The response body waits here as a queue of buffers and file regions, or as
+ * a producer pulled a chunk at a time, and is cut into DATA frames as the
+ * stream's and the connection's send windows allow.
+ */
+final class Http2Stream {
+    /**
+     * Part of a file still to be sent. Regions of the same file are sent as
+     * one DATA frame each, the channel is closed by the last one.
+     */
+    static final class FileSegment {
+        final FileChannel channel;
+        long position;
+        long remaining;
+
+        FileSegment(FileChannel channel, long position, long remaining) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = remaining;
+        }
+    }
+
+    final int id;
+    // System.nanoTime() at which the request headers were received
+    final long received;
+    HTTPRequest request;
+    // null when the request has no body
+    StreamingRequestBody body;
+    long declaredLength = -1;
+    long bodyBytes = 0;
+    // the client has ended its side of the stream
+    boolean remoteClosed = false;
+    int receiveWindow;
+    // bytes of the body the handler consumed and the client has not been given back yet
+    int consumed = 0;
+    long sendWindow;
+    boolean handlerRunning = false;
+    boolean headersSent = false;
+    boolean reset = false;
+    // the whole response is sent
+    boolean ended = false;
+    // the response body: ByteBuffers and FileSegments, then the producer if any
+    final ArrayDeque<Object> segments = new ArrayDeque<>();
+    ResponseBody.ChunkProducer producer;
+    boolean chunkPending = false;
+    // nothing is added to the segments any more
+    boolean bodyComplete = false;
+    // waiting in the connection's send queue
+    boolean queued = false;
+    int status;
+    long responseBytes = 0;
+
+    Http2Stream(int id, long received, int receiveWindow, long sendWindow) {
+        this.id = id;
+        this.received = received;
+        this.receiveWindow = receiveWindow;
+        this.sendWindow = sendWindow;
+    }
+
+    /**
+     * Whether the stream can send its next frame.
+     */
+    boolean isReadyToSend() {
+        if (reset || ended || !headersSent || chunkPending) {
+            return false;
+        }
+        if (segments.isEmpty()) {
+            // the end of the body, or the next chunk to pull, needs no window
+            return bodyComplete || producer != null;
+        }
+        return sendWindow > 0;
+    }
+
+    /**
+     * Drops the rest of the response body, e.g. after a reset. Each file is
+     * closed once the regions of it already queued have been written.
+     */
+    void dropBody(PooledOutputStream out) {
+        for (Object segment : segments) {
+            if (segment instanceof FileSegment file) {
+                out.transferFrom(file.channel, 0, 0, true);
+            }
+        }
+        segments.clear();
+        if (producer != null) {
+            producer.cancel();
+            producer = null;
+        }
+        bodyComplete = true;
+    }
+}
@@ -0,0 +1,141 @@
+package com.meldoheiri.webserver.servers.http2;
+
+/**
+ * The static Huffman code HPACK uses for string literals (RFC 7541,
+ * Appendix B).
+ *
+ * The code is canonical: codes of the same length are consecutive in symbol
+ * order, and each length continues from the last code of the shorter length.
+ * Only the code lengths are listed; the codes and the decoding tree are
+ * derived from them when the class is loaded, and shared by every
+ * connection.
+ */
+final class Huffman {
+    private static final int EOS = 256;
+    private static final byte[] CODE_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+    private static final int[] CODES = new int[CODE_LENGTHS.length];
+    // children of node n at 2n (bit 0) and 2n + 1 (bit 1), a symbol s as -(s + 1)
+    private static final int[] TREE;
+
+    static {
+        int code = 0;
+        for (int length = 1; length <= 30; length++) {
+            for (int symbol = 0; symbol < CODE_LENGTHS.length; symbol++) {
+                if (CODE_LENGTHS[symbol] == length) {
+                    CODES[symbol] = code++;
+                }
+            }
+            code <<= 1;
+        }
+        // a complete prefix code over 257 symbols has 256 inner nodes
+        int[] tree = new int[2 * EOS];
+        int nodes = 1;
+        for (int symbol = 0; symbol < CODE_LENGTHS.length; symbol++) {
+            int node = 0;
+            for (int bit = CODE_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int branch = 2 * node + (CODES[symbol] >>> bit & 1);
+                if (tree[branch] == 0) {
+                    tree[branch] = nodes++;
+                }
+                node = tree[branch];
+            }
+            tree[2 * node + (CODES[symbol] & 1)] = -(symbol + 1);
+        }
+        TREE = tree;
+    }
+
+    private Huffman() {
+    }
+
+    /**
+     * Decodes {@code length} bytes of {@code source} into {@code target},
+     * which has room for {@code length * 8 / 5} bytes, the most the shortest
+     * codes can produce.
+     *
+     * @return the end of the decoded bytes in {@code target}
+     */
+    static int decode(byte[] source, int offset, int length, byte[] target, int targetOffset) throws Http2Exception {
+        int node = 0;
+        // bits read since the last symbol, which must be a prefix of EOS at the end
+        int pendingBits = 0;
+        boolean pendingOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = source[i];
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = b >>> bit & 1;
+                int next = TREE[2 * node + one];
+                if (next < 0) {
+                    int symbol = -next - 1;
+                    if (symbol == EOS) {
+                        throw Http2Exception.connectionError(Http2Frame.COMPRESSION_ERROR, "EOS in a Huffman coded string");
+                    }
+                    target[targetOffset++] = (byte) symbol;
+                    node = 0;
+                    pendingBits = 0;
+                    pendingOnes = true;
+                } else {
+                    node = next;
+                    pendingBits++;
+                    pendingOnes &= one == 1;
+                }
+            }
+        }
+        if (pendingBits > 7 || !pendingOnes) {
+            throw Http2Exception.connectionError(Http2Frame.COMPRESSION_ERROR, "Invalid Huffman padding");
+        }
+        return targetOffset;
+    }
+
+    /**
+     * Length of the string in Huffman code, in bytes.
+     */
+    static int encodedLength(byte[] value) {
+        long bits = 0;
+        for (byte b : value) {
+            bits += CODE_LENGTHS[b & 0xff];
+        }
+        return (int) ((bits + 7) / 8);
+    }
+
+    /**
+     * Encodes the string into {@code target}, padding the last byte with the
+     * most significant bits of EOS.
+     *
+     * @return the end of the encoded bytes in {@code target}
+     */
+    static int encode(byte[] value, byte[] target, int targetOffset) {
+        long bits = 0;
+        int bitCount = 0;
+        for (byte b : value) {
+            int symbol = b & 0xff;
+            bits = bits << CODE_LENGTHS[symbol] | CODES[symbol];
+            bitCount += CODE_LENGTHS[symbol];
+            while (bitCount >= 8) {
+                bitCount -= 8;
+                target[targetOffset++] = (byte) (bits >>> bitCount);
+            }
+        }
+        if (bitCount > 0) {
+            target[targetOffset++] = (byte) (bits << (8 - bitCount) | 0xff >>> bitCount);
+        }
+        return targetOffset;
+    }
+}
@@ -0,0 +1,32 @@
+package com.meldoheiri.webserver.servers.httprequesthandler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A body that is already in memory, read as a single chunk.
+ */
+final class ByteArrayRequestBody implements RequestBody {
+    private static final CompletableFuture<ByteBuffer> END = CompletableFuture.completedFuture(null);
+
+    private final byte[] bytes;
+    private final AtomicBoolean read = new AtomicBoolean(false);
+
+    ByteArrayRequestBody(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    @Override
+    public long contentLength() {
+        return bytes.length;
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> read() {
+        if (bytes.length == 0 || read.getAndSet(true)) {
+            return END;
+        }
+        return CompletableFuture.completedFuture(ByteBuffer.wrap(bytes));
+    }
+}
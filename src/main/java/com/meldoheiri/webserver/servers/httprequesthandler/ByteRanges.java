@@ -0,0 +1,98 @@
+package com.meldoheiri.webserver.servers.httprequesthandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the {@code bytes} ranges of a {@code Range} header against the size
+ * of the representation.
+ */
+public final class ByteRanges {
+    /**
+     * More ranges than this are not worth a multipart response, the whole
+     * representation is sent instead.
+     */
+    public static final int MAX_RANGES = 16;
+
+    public record ByteRange(long start, long length) {
+        public long end() {
+            return start + length - 1;
+        }
+    }
+
+    private ByteRanges() {
+    }
+
+    /**
+     * @return the satisfiable ranges in request order, an empty list when none
+     *         is satisfiable (416), or null when the header is to be ignored
+     *         because it is malformed, not in bytes or asks for too many ranges
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>(1);
+        int specs = 0;
+        int start = 6;
+        while (start <= header.length()) {
+            int end = header.indexOf(',', start);
+            if (end < 0) {
+                end = header.length();
+            }
+            String spec = header.substring(start, end).trim();
+            start = end + 1;
+            if (spec.isEmpty()) {
+                // empty list elements are allowed
+                continue;
+            }
+            if (++specs > MAX_RANGES) {
+                return null;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first = parseDigits(spec, 0, dash);
+            long last = parseDigits(spec, dash + 1, spec.length());
+            if (dash == 0) {
+                // suffix range, the last n bytes
+                if (last < 0) {
+                    return null;
+                }
+                if (last > 0 && size > 0) {
+                    long length = Math.min(last, size);
+                    ranges.add(new ByteRange(size - length, length));
+                }
+            } else {
+                if (first < 0 || (dash + 1 < spec.length() && (last < 0 || last < first))) {
+                    return null;
+                }
+                if (first < size) {
+                    long lastByte = dash + 1 == spec.length() ? size - 1 : Math.min(last, size - 1);
+                    ranges.add(new ByteRange(first, lastByte - first + 1));
+                }
+            }
+        }
+        return specs == 0 ? null : ranges;
+    }
+
+    /**
+     * @return the value, or -1 when the region is empty, not all digits or too long
+     */
+    private static long parseDigits(String value, int start, int end) {
+        if (start >= end || end - start > 18) {
+            return -1;
+        }
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
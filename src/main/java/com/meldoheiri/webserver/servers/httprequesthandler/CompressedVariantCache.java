@@ -0,0 +1,110 @@
+package com.meldoheiri.webserver.servers.httprequesthandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed bodies of static files, keyed by file and content coding, so
+ * each version of a file is compressed once per coding.
+ *
+ * An entry remembers the entity tag of the file version it was made from and
+ * is compressed again when the file's tag changes. Requests for a variant
+ * that is being compressed wait for that compression instead of starting
+ * their own. Entries are dropped oldest first once the compressed bytes
+ * exceed the budget.
+ */
+public class CompressedVariantCache {
+    private final long maxBytes;
+    private final ConcurrentHashMap<Key, Variant> entries = new ConcurrentHashMap<>();
+    // keys in the order they were added, the eviction order
+    private final ConcurrentLinkedQueue<Key> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicLong size = new AtomicLong(0);
+    private final Object evictionLock = new Object();
+
+    private record Key(Path file, String coding) {
+    }
+
+    private record Variant(String sourceEtag, byte[] body) {
+    }
+
+    /**
+     * @param maxBytes budget of the compressed bodies, 0 disables compression
+     */
+    public CompressedVariantCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * The body of the file version with the given entity tag in the given
+     * coding, compressing it if it is not cached yet.
+     */
+    public byte[] get(Path file, String coding, String sourceEtag) throws IOException {
+        Key key = new Key(file, coding);
+        Variant variant = entries.get(key);
+        if (variant != null && variant.sourceEtag().equals(sourceEtag)) {
+            return variant.body();
+        }
+        try {
+            variant = entries.compute(key, (ignored, current) -> {
+                if (current != null && current.sourceEtag().equals(sourceEtag)) {
+                    return current;
+                }
+                if (current == null) {
+                    insertionOrder.add(key);
+                } else {
+                    size.addAndGet(-current.body().length);
+                }
+                byte[] body = compress(file, coding);
+                size.addAndGet(body.length);
+                return new Variant(sourceEtag, body);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        evictIfNeeded();
+        return variant.body();
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    private void evictIfNeeded() {
+        synchronized (evictionLock) {
+            while (size.get() > maxBytes) {
+                Key key = insertionOrder.poll();
+                if (key == null) {
+                    return;
+                }
+                Variant variant = entries.remove(key);
+                if (variant != null) {
+                    size.addAndGet(-variant.body().length);
+                }
+            }
+        }
+    }
+
+    private static byte[] compress(Path file, String coding) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = ContentCodings.GZIP.equals(coding) ? new GZIPOutputStream(compressed, 8192)
+                : new DeflaterOutputStream(compressed)) {
+            Files.copy(file, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compressed.toByteArray();
+    }
+}
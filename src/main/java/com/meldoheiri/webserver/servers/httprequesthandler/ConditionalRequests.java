@@ -0,0 +1,72 @@
+package com.meldoheiri.webserver.servers.httprequesthandler;
+
+/**
+ * Evaluates the conditional request headers of RFC 9110 against a
+ * representation's validators.
+ */
+public final class ConditionalRequests {
+    private ConditionalRequests() {
+    }
+
+    /**
+     * Whether a GET can be answered with 304. {@code If-None-Match} is
+     * compared weakly and, when present, overrides {@code If-Modified-Since}.
+     */
+    public static boolean isNotModified(HTTPHeaders headers, String etag, long lastModifiedSeconds) {
+        String ifNoneMatch = headers.get("If-None-Match");
+        if (ifNoneMatch != null) {
+            return etag != null && matchesAny(ifNoneMatch, etag);
+        }
+        String ifModifiedSince = headers.get("If-Modified-Since");
+        if (ifModifiedSince != null && lastModifiedSeconds >= 0) {
+            long since = HTTPDates.parse(ifModifiedSince);
+            return since >= 0 && lastModifiedSeconds <= since;
+        }
+        return false;
+    }
+
+    /**
+     * Whether a {@code Range} header may be honoured: there is no
+     * {@code If-Range}, or it names the current version by strong tag or
+     * exact date.
+     */
+    public static boolean isRangeApplicable(HTTPHeaders headers, String etag, String lastModified) {
+        String ifRange = headers.get("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && !isWeak(etag) && ifRange.equals(etag);
+        }
+        return ifRange.equals(lastModified);
+    }
+
+    private static boolean matchesAny(String list, String etag) {
+        String opaque = opaqueTag(etag);
+        int start = 0;
+        while (start < list.length()) {
+            int end = list.indexOf(',', start);
+            if (end < 0) {
+                end = list.length();
+            }
+            String candidate = list.substring(start, end).trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (opaqueTag(candidate).equals(opaque)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static boolean isWeak(String etag) {
+        return etag.startsWith("W/");
+    }
+
+    private static String opaqueTag(String etag) {
+        return isWeak(etag) ? etag.substring(2) : etag;
+    }
+}
@@ -0,0 +1,102 @@
+package com.meldoheiri.webserver.servers.httprequesthandler;
+
+/**
+ * {@code Accept-Encoding} negotiation between the codings the server can
+ * produce, gzip and deflate.
+ */
+public final class ContentCodings {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int UNLISTED = 0;
+    private static final int ACCEPTED = 1;
+    private static final int REFUSED = 2;
+
+    private ContentCodings() {
+    }
+
+    /**
+     * The coding to send, or null for identity. gzip is preferred whenever it
+     * is acceptable; quality values only matter as far as {@code q=0} refuses
+     * a coding. Runs on every request, so the header is scanned in place
+     * without splitting it.
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        int gzip = UNLISTED;
+        int deflate = UNLISTED;
+        int any = UNLISTED;
+        int length = acceptEncoding.length();
+        int start = 0;
+        while (start < length) {
+            int end = acceptEncoding.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            int nameEnd = acceptEncoding.indexOf(';', start);
+            if (nameEnd < 0 || nameEnd > end) {
+                nameEnd = end;
+            }
+            int state = isRefused(acceptEncoding, nameEnd, end) ? REFUSED : ACCEPTED;
+            int nameStart = start;
+            while (nameStart < nameEnd && acceptEncoding.charAt(nameStart) == ' ') {
+                nameStart++;
+            }
+            while (nameEnd > nameStart && acceptEncoding.charAt(nameEnd - 1) == ' ') {
+                nameEnd--;
+            }
+            if (is(acceptEncoding, nameStart, nameEnd, GZIP) || is(acceptEncoding, nameStart, nameEnd, "x-gzip")) {
+                gzip = state;
+            } else if (is(acceptEncoding, nameStart, nameEnd, DEFLATE)) {
+                deflate = state;
+            } else if (is(acceptEncoding, nameStart, nameEnd, "*")) {
+                any = state;
+            }
+            start = end + 1;
+        }
+        if (gzip == ACCEPTED || (gzip == UNLISTED && any == ACCEPTED)) {
+            return GZIP;
+        }
+        if (deflate == ACCEPTED || (deflate == UNLISTED && any == ACCEPTED)) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * The entity tag of a coded representation, e.g. {@code "5e-b7-gzip"}
+     * for {@code "5e-b7"}, so caches never mix it up with the identity one.
+     */
+    public static String tag(String etag, String coding) {
+        return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+    }
+
+    private static boolean is(String value, int start, int end, String name) {
+        return end - start == name.length() && value.regionMatches(true, start, name, 0, name.length());
+    }
+
+    /**
+     * Whether the parameters between {@code start} and {@code end} hold a
+     * quality value of zero.
+     */
+    private static boolean isRefused(String value, int start, int end) {
+        for (int i = start; i + 1 < end; i++) {
+            char c = value.charAt(i);
+            if ((c == 'q' || c == 'Q') && value.charAt(i + 1) == '=') {
+                int digit = i + 2;
+                if (digit >= end || value.charAt(digit) != '0') {
+                    return false;
+                }
+                for (; digit < end && value.charAt(digit) != ';' && value.charAt(digit) != ' '; digit++) {
+                    if (value.charAt(digit) != '0' && value.charAt(digit) != '.') {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
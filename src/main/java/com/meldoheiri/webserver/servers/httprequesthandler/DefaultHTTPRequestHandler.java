@@ -1,29 +1,181 @@
 package com.meldoheiri.webserver.servers.httprequesthandler;
 
 import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.httprequesthandler.ByteRanges.ByteRange;
+
+/**
+ * Serves static files from the class path.
+ *
+ * Responses carry an {@code ETag} and {@code Last-Modified} taken from
+ * {@link FileValidators}, so repeat requests with {@code If-None-Match} or
+ * {@code If-Modified-Since} get a 304 without a body. A GET with a
+ * {@code Range} header gets the requested ranges as a 206, a single range as
+ * a plain file region and several as {@code multipart/byteranges}; every
+ * range is sent straight from the file.
+ *
+ * The content type comes from {@link MimeTypes}. When the client accepts
+ * gzip and a sibling file with a {@code .gz} suffix exists, that file is
+ * sent instead. Otherwise compressible files within the configured size
+ * bounds are compressed once per version and coding and kept in a
+ * {@link CompressedVariantCache}. Ranges are always taken from the identity
+ * representation.
+ */
 public class DefaultHTTPRequestHandler implements HTTPRequestHandler {
+    private static final Logger LOGGER = System.getLogger(DefaultHTTPRequestHandler.class.getName());
+    // request paths are resolved below this directory, whose files are looked up on the class path
+    private static final String ROOT_PATH = "/usr/local/MyWebServer";
+
+    private final CompressedVariantCache compressedVariants;
+    private final long compressionMinBytes;
+    private final long compressionMaxBytes;
+
+    public DefaultHTTPRequestHandler(ServerConfig config) {
+        this.compressedVariants = new CompressedVariantCache(config.getCompressionCacheMaxBytes());
+        this.compressionMinBytes = config.getCompressionMinBytes();
+        this.compressionMaxBytes = config.getCompressionMaxBytes();
+    }
+
     @Override
     public HTTPResponse handle(HTTPRequest request) {
         try {
-            Path path = Paths.get(request.path());
+            Path path = Paths.get(ROOT_PATH + request.path());
             if (Files.isDirectory(path)) {
-                path = Paths.get(request.path() + "/index.html");
+                path = Paths.get(ROOT_PATH + request.path() + "/index.html");
             }
             URL resource = getClass().getClassLoader().getResource(path.toString().replace("/", "."));
+            if (resource == null) {
+                return new HTTPResponse("HTTP/1.1 404 Not Found\r\n", Map.of(), "");
+            }
             Path finalPath = Paths.get(resource.toURI());
-            String body = Files.readString(finalPath);
-            return new HTTPResponse("HTTP/1.1 200 OK\r\n", Map.of(), body);
+            BasicFileAttributes attributes = Files.readAttributes(finalPath, BasicFileAttributes.class);
+            FileValidators validators = FileValidators.of(finalPath, attributes);
+            String contentType = MimeTypes.of(finalPath);
+            boolean compressible = MimeTypes.isCompressible(contentType);
+            String range = request.headers().get("Range");
+            String coding = range == null ? ContentCodings.negotiate(request.headers().get("Accept-Encoding")) : null;
+            if (ContentCodings.GZIP.equals(coding)) {
+                Path precompressed = finalPath.resolveSibling(finalPath.getFileName() + ".gz");
+                if (Files.isRegularFile(precompressed)) {
+                    BasicFileAttributes precompressedAttributes = Files.readAttributes(precompressed, BasicFileAttributes.class);
+                    return codedResponse(request, contentType, coding, FileValidators.of(precompressed, precompressedAttributes),
+                            ResponseBody.ofFile(precompressed, 0, precompressedAttributes.size()));
+                }
+            }
+            if (coding != null && compressible && compressedVariants.isEnabled()
+                    && attributes.size() >= compressionMinBytes && attributes.size() <= compressionMaxBytes) {
+                byte[] compressed = compressedVariants.get(finalPath, coding, validators.etag());
+                if (compressed.length < attributes.size()) {
+                    return codedResponse(request, contentType, coding, validators, ResponseBody.of(compressed));
+                }
+            }
+
+            // the identity representation still varies when a coded one could have been sent
+            String vary = compressible ? "Accept-Encoding" : null;
+            if (ConditionalRequests.isNotModified(request.headers(), validators.etag(), validators.lastModifiedSeconds())) {
+                return new HTTPResponse("HTTP/1.1 304 Not Modified\r\n", validatorHeaders(validators.etag(), validators, vary),
+                        ResponseBody.EMPTY);
+            }
+            if (range != null && "GET".equals(request.method())
+                    && ConditionalRequests.isRangeApplicable(request.headers(), validators.etag(), validators.lastModified())) {
+                List<ByteRange> ranges = ByteRanges.parse(range, attributes.size());
+                if (ranges != null) {
+                    return rangeResponse(finalPath, attributes.size(), contentType, validators, vary, ranges);
+                }
+            }
+            Map<String, String> headers = contentHeaders(contentType, validators.etag(), validators, vary);
+            headers.put("Accept-Ranges", "bytes");
+            // streamed by the server straight from the file, see ResponseBody.FileRegion
+            return new HTTPResponse("HTTP/1.1 200 OK\r\n", headers, ResponseBody.ofFile(finalPath, 0, attributes.size()));
         } catch (IOException | InvalidPathException | URISyntaxException e) {
-            e.printStackTrace();
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Not found: " + e);
+            }
             return new HTTPResponse("HTTP/1.1 404 Not Found\r\n", Map.of(), "");
         }
     }
+
+    /**
+     * A response in the given coding, with an entity tag of its own.
+     */
+    private static HTTPResponse codedResponse(HTTPRequest request, String contentType, String coding, FileValidators validators,
+            ResponseBody body) {
+        String etag = ContentCodings.tag(validators.etag(), coding);
+        if (ConditionalRequests.isNotModified(request.headers(), etag, validators.lastModifiedSeconds())) {
+            return new HTTPResponse("HTTP/1.1 304 Not Modified\r\n", validatorHeaders(etag, validators, "Accept-Encoding"),
+                    ResponseBody.EMPTY);
+        }
+        Map<String, String> headers = contentHeaders(contentType, etag, validators, "Accept-Encoding");
+        headers.put("Content-Encoding", coding);
+        return new HTTPResponse("HTTP/1.1 200 OK\r\n", headers, body);
+    }
+
+    private static HTTPResponse rangeResponse(Path file, long size, String contentType, FileValidators validators, String vary,
+            List<ByteRange> ranges) {
+        if (ranges.isEmpty()) {
+            Map<String, String> headers = validatorHeaders(validators.etag(), validators, vary);
+            headers.put("Content-Range", "bytes */" + size);
+            return new HTTPResponse("HTTP/1.1 416 Range Not Satisfiable\r\n", headers, ResponseBody.EMPTY);
+        }
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            Map<String, String> headers = contentHeaders(contentType, validators.etag(), validators, vary);
+            headers.put("Content-Range", contentRange(range, size));
+            return new HTTPResponse("HTTP/1.1 206 Partial Content\r\n", headers, ResponseBody.ofFile(file, range.start(), range.length()));
+        }
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        List<ResponseBody> parts = new ArrayList<>(ranges.size() * 2 + 1);
+        for (ByteRange range : ranges) {
+            parts.add(ascii("\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: "
+                    + contentRange(range, size) + "\r\n\r\n"));
+            parts.add(ResponseBody.ofFile(file, range.start(), range.length()));
+        }
+        parts.add(ascii("\r\n--" + boundary + "--\r\n"));
+        Map<String, String> headers = contentHeaders("multipart/byteranges; boundary=" + boundary, validators.etag(), validators, vary);
+        return new HTTPResponse("HTTP/1.1 206 Partial Content\r\n", headers, ResponseBody.ofParts(parts));
+    }
+
+    private static Map<String, String> contentHeaders(String contentType, String etag, FileValidators validators, String vary) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", contentType);
+        headers.putAll(validatorHeaders(etag, validators, vary));
+        return headers;
+    }
+
+    /**
+     * The headers a 304 repeats from the 200 it stands for.
+     */
+    private static Map<String, String> validatorHeaders(String etag, FileValidators validators, String vary) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("ETag", etag);
+        headers.put("Last-Modified", validators.lastModified());
+        if (vary != null) {
+            headers.put("Vary", vary);
+        }
+        return headers;
+    }
+
+    private static String contentRange(ByteRange range, long size) {
+        return "bytes " + range.start() + "-" + range.end() + "/" + size;
+    }
+
+    private static ResponseBody ascii(String value) {
+        return ResponseBody.of(value.getBytes(StandardCharsets.US_ASCII));
+    }
 }
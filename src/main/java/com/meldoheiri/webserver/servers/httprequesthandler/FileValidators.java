@@ -0,0 +1,52 @@
+package com.meldoheiri.webserver.servers.httprequesthandler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@code ETag} and {@code Last-Modified} of a file version.
+ *
+ * The tag is made of the file's size and modification time, like most static
+ * servers do. It is strong unless the file changed within the last second,
+ * when a write may still be going on; such a tag is weak and is not kept.
+ *
+ * @param lastModifiedSeconds modification time truncated to the second, the
+ *                            precision of HTTP dates
+ */
+public record FileValidators(long size, long modifiedMillis, String etag, String lastModified, long lastModifiedSeconds) {
+    private static final long SETTLE_MILLIS = 1000;
+    // one entry per file, replaced when the file changes
+    private static final ConcurrentHashMap<Path, FileValidators> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * Validators of the file's current version, computed once per version.
+     */
+    public static FileValidators of(Path file, BasicFileAttributes attributes) {
+        long size = attributes.size();
+        long modifiedMillis = attributes.lastModifiedTime().toMillis();
+        FileValidators cached = CACHE.get(file);
+        if (cached != null && cached.size == size && cached.modifiedMillis == modifiedMillis) {
+            return cached;
+        }
+        boolean weak = System.currentTimeMillis() - modifiedMillis < SETTLE_MILLIS;
+        String tag = "\"" + Long.toHexString(modifiedMillis) + "-" + Long.toHexString(size) + "\"";
+        long lastModifiedSeconds = Math.floorDiv(modifiedMillis, 1000);
+        FileValidators validators = new FileValidators(size, modifiedMillis, weak ? "W/" + tag : tag,
+                HTTPDates.format(lastModifiedSeconds), lastModifiedSeconds);
+        if (!weak) {
+            CACHE.put(file, validators);
+        }
+        return validators;
+    }
+
+    public static FileValidators of(Path file) throws IOException {
+        return of(file, Files.readAttributes(file, BasicFileAttributes.class));
+    }
+
+    public boolean isWeak() {
+        return etag.startsWith("W/");
+    }
+}
@@ -0,0 +1,36 @@
+package com.meldoheiri.webserver.servers.httprequesthandler;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Formats and parses the IMF-fixdate form of HTTP dates, e.g.
+ * {@code Sun, 06 Nov 1994 08:49:37 GMT}.
+ */
+public final class HTTPDates {
+    private static final DateTimeFormatter IMF_FIXDATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private HTTPDates() {
+    }
+
+    public static String format(long epochSeconds) {
+        return IMF_FIXDATE.format(Instant.ofEpochSecond(epochSeconds));
+    }
+
+    /**
+     * @return the date in seconds since the epoch, or -1 when it is not a
+     *         valid HTTP date
+     */
+    public static long parse(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.meldoheiri.webserver.servers.httprequesthandler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Request headers as they came off the wire.
+ *
+ * The raw header bytes are kept together with the offsets of every name and
+ * value. Lookups compare bytes directly, and a name or value is only turned
+ * into a {@link String} the first time somebody asks for it.
+ */
+public final class HTTPHeaders {
+    public static final HTTPHeaders EMPTY = new HTTPHeaders(new byte[0], new int[0], 0);
+
+    private final byte[] data;
+    // nameStart, nameEnd, valueStart, valueEnd for every header
+    private final int[] offsets;
+    private final int count;
+    private String[] names;
+    private String[] values;
+
+    public HTTPHeaders(byte[] data, int[] offsets, int count) {
+        this.data = data;
+        this.offsets = offsets;
+        this.count = count;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String name(int index) {
+        if (names == null) {
+            names = new String[count];
+        }
+        if (names[index] == null) {
+            names[index] = decode(offsets[index * 4], offsets[index * 4 + 1]);
+        }
+        return names[index];
+    }
+
+    public String value(int index) {
+        if (values == null) {
+            values = new String[count];
+        }
+        if (values[index] == null) {
+            values[index] = decode(offsets[index * 4 + 2], offsets[index * 4 + 3]);
+        }
+        return values[index];
+    }
+
+    /**
+     * Value of the first header with the given name, compared case-insensitively, or null.
+     */
+    public String get(String name) {
+        int index = indexOf(name);
+        return index < 0 ? null : value(index);
+    }
+
+    public boolean contains(String name) {
+        return indexOf(name) >= 0;
+    }
+
+    /**
+     * Whether the comma separated value of the named header contains the given
+     * token, compared case-insensitively, e.g. {@code Connection: close}.
+     */
+    public boolean containsToken(String name, String token) {
+        for (int i = 0; i < count; i++) {
+            if (!regionEqualsIgnoreCase(offsets[i * 4], offsets[i * 4 + 1], name)) {
+                continue;
+            }
+            int start = offsets[i * 4 + 2];
+            int end = offsets[i * 4 + 3];
+            while (start < end) {
+                int tokenEnd = start;
+                while (tokenEnd < end && data[tokenEnd] != ',') {
+                    tokenEnd++;
+                }
+                int tokenStart = start;
+                int trimmedEnd = tokenEnd;
+                while (tokenStart < trimmedEnd && isWhitespace(data[tokenStart])) {
+                    tokenStart++;
+                }
+                while (trimmedEnd > tokenStart && isWhitespace(data[trimmedEnd - 1])) {
+                    trimmedEnd--;
+                }
+                if (regionEqualsIgnoreCase(tokenStart, trimmedEnd, token)) {
+                    return true;
+                }
+                start = tokenEnd + 1;
+            }
+        }
+        return false;
+    }
+
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            map.putIfAbsent(name(i), value(i));
+        }
+        return map;
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < count; i++) {
+            if (regionEqualsIgnoreCase(offsets[i * 4], offsets[i * 4 + 1], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean regionEqualsIgnoreCase(int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (toLowerCase(data[start + i]) != toLowerCase(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int start, int end) {
+        return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
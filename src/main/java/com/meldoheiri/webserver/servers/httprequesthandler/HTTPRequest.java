@@ -2,6 +2,37 @@ package com.meldoheiri.webserver.servers.httprequesthandler;
 
 import java.util.Map;
 
-public record HTTPRequest(String path, Map<String, String> headers, String body) {
-	
+/**
+ * A parsed request. The request target is split into {@code path} and
+ * {@code query}, the part after the first {@code ?}, which is null when the
+ * target has none. {@code pathParameters} holds the values captured by the
+ * {@code {name}} segments of the matched route, and by its trailing {@code *}
+ * under the name {@code "*"}.
+ */
+public record HTTPRequest(String method, String path, String query, HTTPHeaders headers, RequestBody body,
+        Map<String, String> pathParameters) {
+
+    /**
+     * A request for the target as it was received.
+     */
+    public HTTPRequest(String method, String target, HTTPHeaders headers, RequestBody body) {
+        this(method, pathOf(target), queryOf(target), headers, body, Map.of());
+    }
+
+    /**
+     * The request target, the path followed by the query as received.
+     */
+    public String target() {
+        return query == null ? path : path + '?' + query;
+    }
+
+    private static String pathOf(String target) {
+        int queryStart = target == null ? -1 : target.indexOf('?');
+        return queryStart < 0 ? target : target.substring(0, queryStart);
+    }
+
+    private static String queryOf(String target) {
+        int queryStart = target == null ? -1 : target.indexOf('?');
+        return queryStart < 0 ? null : target.substring(queryStart + 1);
+    }
 }
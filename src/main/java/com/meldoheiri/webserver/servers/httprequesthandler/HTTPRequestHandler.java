@@ -1,5 +1,17 @@
 package com.meldoheiri.webserver.servers.httprequesthandler;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 public interface HTTPRequestHandler {
     HTTPResponse handle(HTTPRequest request);
+
+    /**
+     * Produces the response without blocking the calling thread. By default
+     * {@link #handle(HTTPRequest)} is run on the given executor; handlers that
+     * do their own asynchronous I/O override this and may ignore the executor.
+     */
+    default CompletableFuture<HTTPResponse> handleAsync(HTTPRequest request, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> handle(request), executor);
+    }
 }
@@ -2,6 +2,9 @@ package com.meldoheiri.webserver.servers.httprequesthandler;
 
 import java.util.Map;
 
-public record HTTPResponse(String firstLine, Map<String, String> headers, String body) {
-    
+public record HTTPResponse(String firstLine, Map<String, String> headers, ResponseBody body) {
+
+    public HTTPResponse(String firstLine, Map<String, String> headers, String body) {
+        this(firstLine, headers, ResponseBody.of(body));
+    }
 }
@@ -0,0 +1,78 @@
+package com.meldoheiri.webserver.servers.httprequesthandler;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Media types of static files by extension, from a table built once at class
+ * load, so a lookup is a single map read.
+ */
+public final class MimeTypes {
+    public static final String DEFAULT = "application/octet-stream";
+
+    private static final Map<String, String> BY_EXTENSION = Map.ofEntries(
+            Map.entry("html", "text/html; charset=utf-8"),
+            Map.entry("htm", "text/html; charset=utf-8"),
+            Map.entry("css", "text/css; charset=utf-8"),
+            Map.entry("js", "text/javascript; charset=utf-8"),
+            Map.entry("mjs", "text/javascript; charset=utf-8"),
+            Map.entry("txt", "text/plain; charset=utf-8"),
+            Map.entry("csv", "text/csv; charset=utf-8"),
+            Map.entry("md", "text/markdown; charset=utf-8"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("json", "application/json"),
+            Map.entry("map", "application/json"),
+            Map.entry("webmanifest", "application/manifest+json"),
+            Map.entry("wasm", "application/wasm"),
+            Map.entry("pdf", "application/pdf"),
+            Map.entry("zip", "application/zip"),
+            Map.entry("gz", "application/gzip"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("avif", "image/avif"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("ttf", "font/ttf"),
+            Map.entry("otf", "font/otf"),
+            Map.entry("mp3", "audio/mpeg"),
+            Map.entry("ogg", "audio/ogg"),
+            Map.entry("wav", "audio/wav"),
+            Map.entry("mp4", "video/mp4"),
+            Map.entry("webm", "video/webm"));
+
+    private MimeTypes() {
+    }
+
+    /**
+     * Media type of the file, {@link #DEFAULT} for unknown extensions.
+     */
+    public static String of(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return DEFAULT;
+        }
+        String type = BY_EXTENSION.get(name.substring(dot + 1));
+        if (type == null) {
+            // the table is lower case, only mixed case names pay for the conversion
+            type = BY_EXTENSION.get(name.substring(dot + 1).toLowerCase());
+        }
+        return type != null ? type : DEFAULT;
+    }
+
+    /**
+     * Whether content coding makes the body noticeably smaller. Most image,
+     * font and media formats are compressed already.
+     */
+    public static boolean isCompressible(String type) {
+        return type.startsWith("text/") || type.startsWith("application/json") || type.startsWith("application/xml")
+                || type.startsWith("application/manifest+json") || type.startsWith("application/wasm")
+                || type.startsWith("image/svg+xml") || type.startsWith("image/x-icon") || type.startsWith("font/ttf")
+                || type.startsWith("font/otf");
+    }
+}
@@ -0,0 +1,80 @@
+package com.meldoheiri.webserver.servers.httprequesthandler;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Body of an {@link HTTPRequest}, delivered in chunks while it arrives.
+ *
+ * The handler is dispatched as soon as the request headers are complete, the
+ * body follows through {@link #read()}. The server stops reading from the
+ * connection while too many chunks are waiting to be read, so a handler that
+ * reads slowly slows the client down instead of filling the heap. Whatever is
+ * left unread when the response has been written is discarded.
+ */
+public interface RequestBody {
+    RequestBody EMPTY = new ByteArrayRequestBody(new byte[0]);
+
+    /**
+     * Length announced by the client, or -1 for a chunked body.
+     */
+    long contentLength();
+
+    /**
+     * Next chunk of the body, or null once the whole body has been read. The
+     * returned buffer belongs to the caller. Only one read may be pending at a
+     * time; the future fails when the connection is closed or the body turns
+     * out to be malformed or too large.
+     */
+    CompletableFuture<ByteBuffer> read();
+
+    /**
+     * Collects the remaining chunks, for handlers that want the whole body at
+     * once. The size is bounded by the server's request body limit.
+     */
+    default CompletableFuture<byte[]> readAllBytes() {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        readRemaining(new ByteArrayOutputStream(), result);
+        return result;
+    }
+
+    static RequestBody of(byte[] body) {
+        return new ByteArrayRequestBody(body);
+    }
+
+    private void readRemaining(ByteArrayOutputStream out, CompletableFuture<byte[]> result) {
+        while (true) {
+            CompletableFuture<ByteBuffer> next = read();
+            if (!next.isDone() || next.isCompletedExceptionally()) {
+                next.whenComplete((chunk, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else if (chunk == null) {
+                        result.complete(out.toByteArray());
+                    } else {
+                        append(out, chunk);
+                        readRemaining(out, result);
+                    }
+                });
+                return;
+            }
+            ByteBuffer chunk = next.join();
+            if (chunk == null) {
+                result.complete(out.toByteArray());
+                return;
+            }
+            append(out, chunk);
+        }
+    }
+
+    private static void append(ByteArrayOutputStream out, ByteBuffer chunk) {
+        if (chunk.hasArray()) {
+            out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        } else {
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.get(bytes);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+}
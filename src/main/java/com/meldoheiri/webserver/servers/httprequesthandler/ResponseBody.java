@@ -0,0 +1,105 @@
+package com.meldoheiri.webserver.servers.httprequesthandler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Body of an {@link HTTPResponse}: bytes held in memory, a region of a file
+ * that is streamed to the socket without being copied through the heap, a
+ * sequence of those, or a stream of chunks pulled from a producer while the
+ * response is being sent.
+ */
+public sealed interface ResponseBody permits ResponseBody.Bytes, ResponseBody.FileRegion, ResponseBody.Parts, ResponseBody.Stream {
+    ResponseBody EMPTY = new Bytes(new byte[0]);
+
+    long length();
+
+    static ResponseBody of(String body) {
+        return body.isEmpty() ? EMPTY : new Bytes(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static ResponseBody of(byte[] body) {
+        return new Bytes(body);
+    }
+
+    static ResponseBody ofFile(Path path, long position, long length) {
+        return new FileRegion(path, position, length);
+    }
+
+    /**
+     * Bytes and file regions sent back to back, e.g. the parts of a
+     * {@code multipart/byteranges} body.
+     */
+    static ResponseBody ofParts(List<ResponseBody> parts) {
+        for (ResponseBody part : parts) {
+            if (!(part instanceof Bytes) && !(part instanceof FileRegion)) {
+                throw new IllegalArgumentException("Parts are bytes or file regions: " + part);
+            }
+        }
+        return new Parts(List.copyOf(parts));
+    }
+
+    /**
+     * A body of unknown length, sent with {@code Transfer-Encoding: chunked}.
+     */
+    static ResponseBody ofStream(ChunkProducer producer) {
+        return new Stream(-1, producer);
+    }
+
+    static ResponseBody ofStream(long length, ChunkProducer producer) {
+        return new Stream(length, producer);
+    }
+
+    record Bytes(byte[] bytes) implements ResponseBody {
+        @Override
+        public long length() {
+            return bytes.length;
+        }
+    }
+
+    record FileRegion(Path path, long position, long length) implements ResponseBody {
+    }
+
+    record Parts(List<ResponseBody> parts) implements ResponseBody {
+        @Override
+        public long length() {
+            long length = 0;
+            for (ResponseBody part : parts) {
+                length += part.length();
+            }
+            return length;
+        }
+    }
+
+    /**
+     * @param length the number of bytes the producer delivers, or -1 when unknown
+     */
+    record Stream(long length, ChunkProducer producer) implements ResponseBody {
+    }
+
+    /**
+     * Source of a streamed body. The server asks for the next chunk only once
+     * the previous one is queued and the connection has room for more, so a
+     * producer never runs ahead of a slow client.
+     */
+    @FunctionalInterface
+    interface ChunkProducer {
+        /**
+         * Next chunk, or null at the end of the body. The buffer is sent as it
+         * is, without copying, and must not be changed afterwards. A failed
+         * future aborts the response and closes the connection.
+         */
+        CompletableFuture<ByteBuffer> next();
+
+        /**
+         * The rest of the body will not be asked for, because the connection
+         * or the stream is gone. Called at most once, possibly while a chunk
+         * is pending, so the producer can give up what it holds.
+         */
+        default void cancel() {
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.meldoheiri.webserver.servers.httpsocketdatahandler;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import com.meldoheiri.webserver.servers.bufferpool.PooledOutputStream;
+
+/**
+ * The {@code Date} header line, shared by all connections.
+ *
+ * The value only changes once a second, so the encoded line is kept together
+ * with the second it was made for and replaced by the first writer that sees
+ * a newer second; every other response copies the same bytes.
+ */
+final class DateHeader {
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private record Line(long second, byte[] bytes) {
+    }
+
+    private static volatile Line current = new Line(-1, null);
+
+    private DateHeader() {
+    }
+
+    static void writeTo(PooledOutputStream out) {
+        long second = System.currentTimeMillis() / 1000;
+        Line line = current;
+        if (line.second() != second) {
+            // threads racing at a second boundary encode the same line, whichever is stored last wins
+            line = new Line(second, ("Date: " + format(second * 1000) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            current = line;
+        }
+        out.write(line.bytes(), 0, line.bytes().length);
+    }
+
+    /**
+     * Formats a time in the IMF-fixdate format HTTP uses.
+     */
+    static String format(long epochMillis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(epochMillis));
+    }
+}
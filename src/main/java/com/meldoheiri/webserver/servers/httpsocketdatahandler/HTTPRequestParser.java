@@ -0,0 +1,559 @@
+package com.meldoheiri.webserver.servers.httpsocketdatahandler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import com.meldoheiri.webserver.servers.exceptions.HTTPStatusException;
+import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPHeaders;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequest;
+import com.meldoheiri.webserver.servers.httprequesthandler.RequestBody;
+
+/**
+ * Incremental HTTP/1.1 request parser working on raw bytes.
+ *
+ * {@link #parse(ByteBuffer)} can be fed the request in arbitrary slices; it
+ * resumes where the previous slice stopped and looks at every byte exactly
+ * once. Request line and header bytes are copied once into a head array whose
+ * offsets back the returned {@link HTTPHeaders}. The request is available as
+ * soon as its headers are complete; its body, fixed length or chunked, is then
+ * copied chunk by chunk into a {@link StreamingRequestBody} by the following
+ * calls, after which the parser moves on to the next request.
+ *
+ * Heads larger than the header limit are refused with 431 (414 for the request
+ * line), bodies larger than the body limit with 413, before any of their bytes
+ * are buffered. A request whose body length is ambiguous, with Content-Length
+ * headers that disagree or with both Transfer-Encoding and Content-Length, is
+ * refused with 400 (RFC 9112 section 6.3), so no intermediary in front of the
+ * server can read a different request boundary than the server does. For the
+ * same reason the head and the chunk framing are parsed strictly: whitespace
+ * before a header's colon, lines without a colon, folded header lines and
+ * chunk sizes with anything but trailing whitespace are refused, and a
+ * transfer coding other than chunked alone is refused with 501.
+ *
+ * The start of the HTTP/2 connection preface, {@code PRI * HTTP/2.0} followed
+ * by a blank line, is returned as a request with the method {@link #PREFACE};
+ * the rest of the preface is left unread for the HTTP/2 connection.
+ */
+public class HTTPRequestParser {
+    public static final int DEFAULT_MAX_HEADER_BYTES = 16 * 1024;
+    public static final long DEFAULT_MAX_BODY_BYTES = 10L * 1024 * 1024;
+    /**
+     * Method of the request standing for an HTTP/2 connection preface.
+     */
+    public static final String PREFACE = "PRI";
+    private static final int INITIAL_HEAD_SIZE = 512;
+    private static final int INITIAL_HEADER_COUNT = 16;
+    private static final int MAX_CHUNK_EXTENSION = 1024;
+    private static final String[] METHODS = { "GET", "POST", "DELETE", "PUT", "PATCH", "HEAD", "OPTIONS" };
+    private static final byte[] VERSION = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VERSION_PREFIX = "HTTP/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PREFACE_LINE = "PRI * HTTP/2.0".getBytes(StandardCharsets.US_ASCII);
+
+    private enum State {
+        REQUEST_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_SIZE_END, CHUNK_EXTENSION, CHUNK_DATA, CHUNK_DATA_END, TRAILERS
+    }
+
+    private final int maxHeaderBytes;
+    private final long maxBodyBytes;
+    private final Executor bodyExecutor;
+    private final Runnable onBodyDrained;
+    private State state = State.REQUEST_LINE;
+    private byte[] head = new byte[INITIAL_HEAD_SIZE];
+    private int headLength = 0;
+    private int lineStart = 0;
+    private int[] headerOffsets = new int[INITIAL_HEADER_COUNT * 4];
+    private int headerCount = 0;
+    private String method;
+    private String path;
+    // -1 until a Content-Length header is seen
+    private long contentLength = -1;
+    private boolean transferEncoding = false;
+    // whether chunked was the only transfer coding
+    private boolean chunked = false;
+    private HTTPRequest request;
+    // body of the last request, while it is being received
+    private StreamingRequestBody body;
+    // bytes left of the body, or of the current chunk
+    private long bodyRemaining = 0;
+    private long bodyReceived = 0;
+    private long chunkSize = 0;
+    private int chunkSizeDigits = 0;
+    private int chunkLineLength = 0;
+    private int trailerBytes = 0;
+    // a CR was read in the chunk framing, only LF may follow
+    private boolean carriageReturn = false;
+
+    public HTTPRequestParser() {
+        this(DEFAULT_MAX_HEADER_BYTES, DEFAULT_MAX_BODY_BYTES, Runnable::run, () -> {
+        });
+    }
+
+    /**
+     * @param bodyExecutor  completes the reads of request bodies
+     * @param onBodyDrained called when a paused body has been drained by its reader
+     */
+    HTTPRequestParser(int maxHeaderBytes, long maxBodyBytes, Executor bodyExecutor, Runnable onBodyDrained) {
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxBodyBytes = maxBodyBytes;
+        this.bodyExecutor = bodyExecutor;
+        this.onBodyDrained = onBodyDrained;
+    }
+
+    /**
+     * Consumes bytes from the buffer until the head of a request is complete or
+     * the buffer is drained. Body bytes are handed to the body of the request
+     * they belong to.
+     *
+     * @return true when the head of a new request is available from
+     *         {@link #getRequest()}
+     */
+    public boolean parse(ByteBuffer buffer) throws WebServerException {
+        while (buffer.hasRemaining()) {
+            switch (state) {
+                case REQUEST_LINE, HEADERS -> {
+                    if (!readLine(buffer)) {
+                        return false;
+                    }
+                    if (onLine()) {
+                        return true;
+                    }
+                }
+                case BODY, CHUNK_DATA -> readBody(buffer);
+                default -> readChunkFraming(buffer.get());
+            }
+        }
+        return false;
+    }
+
+    public HTTPRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Whether some bytes of the next request have been consumed already.
+     */
+    public boolean isInProgress() {
+        return state != State.REQUEST_LINE || headLength > 0;
+    }
+
+    /**
+     * Whether the headers are complete and the body is still being received.
+     */
+    public boolean isReadingBody() {
+        return state != State.REQUEST_LINE && state != State.HEADERS;
+    }
+
+    /**
+     * The body being received, or null.
+     */
+    StreamingRequestBody getBody() {
+        return body;
+    }
+
+    /**
+     * Drops a partially received request. The arrays backing the last complete
+     * request have been handed over to it, so it stays valid.
+     */
+    public void reset() {
+        state = State.REQUEST_LINE;
+        headLength = 0;
+        lineStart = 0;
+        headerCount = 0;
+        method = null;
+        path = null;
+        contentLength = -1;
+        transferEncoding = false;
+        chunked = false;
+        body = null;
+        bodyRemaining = 0;
+        carriageReturn = false;
+    }
+
+    /**
+     * Copies bytes up to the next LF into the head array.
+     *
+     * @return true when a full line is available, without its CRLF, between
+     *         lineStart and headLength
+     */
+    private boolean readLine(ByteBuffer buffer) throws HTTPStatusException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int lineFeed = -1;
+        for (int i = start; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                lineFeed = i;
+                break;
+            }
+        }
+        int end = lineFeed < 0 ? limit : lineFeed;
+        if (headLength + end - start > maxHeaderBytes) {
+            throw state == State.REQUEST_LINE
+                    ? new HTTPStatusException(414, "URI Too Long")
+                    : new HTTPStatusException(431, "Request Header Fields Too Large");
+        }
+        ensureHeadCapacity(headLength + end - start);
+        buffer.get(head, headLength, end - start);
+        headLength += end - start;
+        if (lineFeed < 0) {
+            return false;
+        }
+        buffer.get(); // LF
+        if (headLength > lineStart && head[headLength - 1] == '\r') {
+            headLength--;
+        }
+        return true;
+    }
+
+    /**
+     * @return true when the line completed the head of a request
+     */
+    private boolean onLine() throws WebServerException {
+        if (state == State.REQUEST_LINE) {
+            if (headLength == lineStart) {
+                // tolerate empty lines ahead of a request
+                return false;
+            }
+            parseRequestLine(lineStart, headLength);
+            state = State.HEADERS;
+        } else if (headLength == lineStart) {
+            completeHead();
+            return true;
+        } else {
+            parseHeaderLine(lineStart, headLength);
+        }
+        lineStart = headLength;
+        return false;
+    }
+
+    private void completeHead() throws WebServerException {
+        HTTPHeaders headers = new HTTPHeaders(head, headerOffsets, headerCount);
+        RequestBody requestBody = RequestBody.EMPTY;
+        State next = State.REQUEST_LINE;
+        if (transferEncoding) {
+            if (contentLength >= 0) {
+                throw new HTTPStatusException(400, "Bad Request");
+            }
+            // a body in any other coding could not be handed over decoded
+            if (!chunked) {
+                throw new HTTPStatusException(501, "Not Implemented");
+            }
+            body = new StreamingRequestBody(-1, bodyExecutor, onBodyDrained);
+            requestBody = body;
+            bodyReceived = 0;
+            chunkSize = 0;
+            chunkSizeDigits = 0;
+            carriageReturn = false;
+            next = State.CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            if (contentLength > maxBodyBytes) {
+                throw new HTTPStatusException(413, "Content Too Large");
+            }
+            body = new StreamingRequestBody(contentLength, bodyExecutor, onBodyDrained);
+            requestBody = body;
+            bodyRemaining = contentLength;
+            next = State.BODY;
+        }
+        request = new HTTPRequest(method, path, headers, requestBody);
+
+        // the arrays now back the request's headers
+        head = new byte[INITIAL_HEAD_SIZE];
+        headerOffsets = new int[INITIAL_HEADER_COUNT * 4];
+        headLength = 0;
+        lineStart = 0;
+        headerCount = 0;
+        method = null;
+        path = null;
+        contentLength = -1;
+        transferEncoding = false;
+        chunked = false;
+        state = next;
+    }
+
+    private void readBody(ByteBuffer buffer) {
+        int length = (int) Math.min(buffer.remaining(), bodyRemaining);
+        // the buffer is reused for the next read, the handler gets a copy
+        ByteBuffer chunk = ByteBuffer.allocate(length);
+        chunk.put(0, buffer, buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        body.offer(chunk);
+        bodyRemaining -= length;
+        if (bodyRemaining > 0) {
+            return;
+        }
+        if (state == State.BODY) {
+            completeBody();
+        } else {
+            state = State.CHUNK_DATA_END;
+        }
+    }
+
+    private void readChunkFraming(byte b) throws WebServerException {
+        if (carriageReturn) {
+            carriageReturn = false;
+            if (b != '\n') {
+                throw new WebServerException("CR without LF in chunk framing");
+            }
+        } else if (b == '\r') {
+            carriageReturn = true;
+            return;
+        }
+        switch (state) {
+            case CHUNK_SIZE -> {
+                int digit = hexValue(b);
+                if (digit >= 0) {
+                    if (chunkSize > (Long.MAX_VALUE >> 4)) {
+                        throw new HTTPStatusException(413, "Content Too Large");
+                    }
+                    chunkSize = chunkSize * 16 + digit;
+                    chunkSizeDigits++;
+                } else if (chunkSizeDigits == 0) {
+                    throw new WebServerException("Malformed chunk size");
+                } else if (isWhitespace(b)) {
+                    state = State.CHUNK_SIZE_END;
+                } else {
+                    endChunkSize(b);
+                }
+            }
+            case CHUNK_SIZE_END -> {
+                // only whitespace may follow the digits before the extension or the line end
+                if (!isWhitespace(b)) {
+                    endChunkSize(b);
+                }
+            }
+            case CHUNK_EXTENSION -> {
+                // extensions are ignored
+                if (b == '\n') {
+                    onChunkSize();
+                } else if (++chunkLineLength > MAX_CHUNK_EXTENSION) {
+                    throw new WebServerException("Chunk extension too long");
+                }
+            }
+            case CHUNK_DATA_END -> {
+                if (b != '\n') {
+                    throw new WebServerException("Missing CRLF after chunk data");
+                }
+                state = State.CHUNK_SIZE;
+            }
+            case TRAILERS -> {
+                // trailer fields are skipped, they only count towards the header limit
+                if (b == '\n') {
+                    if (chunkLineLength == 0) {
+                        completeBody();
+                    }
+                    chunkLineLength = 0;
+                } else {
+                    chunkLineLength++;
+                    if (++trailerBytes > maxHeaderBytes) {
+                        throw new HTTPStatusException(431, "Request Header Fields Too Large");
+                    }
+                }
+            }
+            default -> throw new IllegalStateException(state.name());
+        }
+    }
+
+    private void endChunkSize(byte b) throws WebServerException {
+        if (b == ';') {
+            chunkLineLength = 0;
+            state = State.CHUNK_EXTENSION;
+        } else if (b == '\n') {
+            onChunkSize();
+        } else {
+            throw new WebServerException("Malformed chunk size");
+        }
+    }
+
+    private void onChunkSize() throws WebServerException {
+        if (chunkSizeDigits == 0) {
+            throw new WebServerException("Malformed chunk size");
+        }
+        if (chunkSize == 0) {
+            chunkLineLength = 0;
+            trailerBytes = 0;
+            state = State.TRAILERS;
+            return;
+        }
+        bodyReceived += chunkSize;
+        if (bodyReceived > maxBodyBytes) {
+            throw new HTTPStatusException(413, "Content Too Large");
+        }
+        bodyRemaining = chunkSize;
+        chunkSize = 0;
+        chunkSizeDigits = 0;
+        state = State.CHUNK_DATA;
+    }
+
+    private void completeBody() {
+        body.complete();
+        body = null;
+        state = State.REQUEST_LINE;
+    }
+
+    private void parseRequestLine(int start, int end) throws WebServerException {
+        if (Arrays.equals(head, start, end, PREFACE_LINE, 0, PREFACE_LINE.length)) {
+            method = PREFACE;
+            path = "*";
+            return;
+        }
+        int firstSpace = indexOf(' ', start, end);
+        int lastSpace = lastIndexOf(' ', start, end);
+        if (firstSpace < 0 || firstSpace == lastSpace || indexOf(' ', firstSpace + 1, lastSpace) >= 0) {
+            throw new HTTPStatusException(400, "Bad Request");
+        }
+
+        if (!regionEqualsIgnoreCase(lastSpace + 1, end, VERSION)) {
+            throw regionStartsWith(lastSpace + 1, end, VERSION_PREFIX)
+                    ? new HTTPStatusException(505, "HTTP Version Not Supported")
+                    : new HTTPStatusException(400, "Bad Request");
+        }
+
+        method = matchMethod(start, firstSpace);
+        if (method == null) {
+            throw new HTTPStatusException(501, "Not Implemented");
+        }
+
+        path = new String(head, firstSpace + 1, lastSpace - firstSpace - 1, StandardCharsets.ISO_8859_1);
+    }
+
+    private void parseHeaderLine(int start, int end) throws WebServerException {
+        int colon = indexOf(':', start, end);
+        // a folded line starts with whitespace, and whitespace before the colon would hide the name from the parser
+        if (colon <= start || indexOf(' ', start, colon) >= 0 || indexOf('\t', start, colon) >= 0) {
+            throw new HTTPStatusException(400, "Bad Request");
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(head[valueStart])) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(head[valueEnd - 1])) {
+            valueEnd--;
+        }
+
+        if (headerOffsets.length < (headerCount + 1) * 4) {
+            int[] grown = new int[headerOffsets.length * 2];
+            System.arraycopy(headerOffsets, 0, grown, 0, headerCount * 4);
+            headerOffsets = grown;
+        }
+        headerOffsets[headerCount * 4] = start;
+        headerOffsets[headerCount * 4 + 1] = colon;
+        headerOffsets[headerCount * 4 + 2] = valueStart;
+        headerOffsets[headerCount * 4 + 3] = valueEnd;
+        headerCount++;
+
+        if (regionEqualsIgnoreCase(start, colon, "content-length")) {
+            long value = parseContentLength(valueStart, valueEnd);
+            if (contentLength >= 0 && contentLength != value) {
+                throw new HTTPStatusException(400, "Bad Request");
+            }
+            contentLength = value;
+        } else if (regionEqualsIgnoreCase(start, colon, "transfer-encoding")) {
+            // chunked is applied once and only on its own, in one header
+            chunked = !transferEncoding && regionEqualsIgnoreCase(valueStart, valueEnd, "chunked");
+            transferEncoding = true;
+        }
+    }
+
+    private long parseContentLength(int start, int end) throws WebServerException {
+        if (start == end) {
+            throw new HTTPStatusException(400, "Bad Request");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = head[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new HTTPStatusException(400, "Bad Request");
+            }
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                throw new HTTPStatusException(413, "Content Too Large");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private String matchMethod(int start, int end) {
+        for (String candidate : METHODS) {
+            if (regionEqualsIgnoreCase(start, end, candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private void ensureHeadCapacity(int capacity) {
+        if (head.length < capacity) {
+            byte[] grown = new byte[Math.max(capacity, head.length * 2)];
+            System.arraycopy(head, 0, grown, 0, headLength);
+            head = grown;
+        }
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (head[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int lastIndexOf(char c, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (head[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean regionEqualsIgnoreCase(int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (toLowerCase(head[start + i]) != toLowerCase(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEqualsIgnoreCase(int start, int end, byte[] value) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (toLowerCase(head[start + i]) != toLowerCase(value[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionStartsWith(int start, int end, byte[] prefix) {
+        return end - start >= prefix.length && regionEqualsIgnoreCase(start, start + prefix.length, prefix);
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        int lower = toLowerCase(b);
+        if (lower >= 'a' && lower <= 'f') {
+            return lower - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
@@ -1,166 +1,802 @@
 package com.meldoheiri.webserver.servers.httpsocketdatahandler;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import com.meldoheiri.webserver.servers.ServerContext;
+import com.meldoheiri.webserver.servers.accesslog.AccessLog;
+import com.meldoheiri.webserver.servers.admission.AdmissionController;
+import com.meldoheiri.webserver.servers.bufferpool.PooledOutputStream;
+import com.meldoheiri.webserver.servers.contentcache.CachedResponse;
+import com.meldoheiri.webserver.servers.contentcache.StaticContentCache;
+import com.meldoheiri.webserver.servers.exceptions.HTTPStatusException;
 import com.meldoheiri.webserver.servers.exceptions.WebServerException;
-import com.meldoheiri.webserver.servers.httprequesthandler.DefaultHTTPRequestHandler;
 import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequest;
-import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequestHandler;
 import com.meldoheiri.webserver.servers.httprequesthandler.HTTPResponse;
-import com.meldoheiri.webserver.validators.PathValidator;
+import com.meldoheiri.webserver.servers.httprequesthandler.RequestBody;
+import com.meldoheiri.webserver.servers.httprequesthandler.ResponseBody;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
 
+/**
+ * Parses HTTP/1.1 requests off a persistent connection and writes one response
+ * per request to the response stream, in request order. File bodies are queued
+ * as file regions behind their headers and never read into the heap; small
+ * files are answered from the shared {@link StaticContentCache} instead.
+ *
+ * Request handlers run through {@link HTTPRequestHandler#handleAsync} on the
+ * handler executor. Pipelined requests are queued and handed to the handler one
+ * at a time, so responses go out in request order; a response that completes
+ * later is written from a task run on the completion executor, which must run
+ * on the thread owning the response stream. With the default inline executors
+ * every request is answered before {@link #read(ByteBuffer)} returns, and a
+ * handler completing on a thread of its own is waited for, unless it may
+ * still need more of the body; such a handler has to chain on the body's
+ * futures rather than block on them, since the calling thread is the one
+ * feeding the body.
+ *
+ * Requests are dispatched once their headers are complete and their bodies
+ * are streamed to the handler, see {@link RequestBody}.
+ * While the body being received is paused, {@link #isReadPaused()} tells the
+ * caller to stop reading from the socket. Requests with oversized heads or
+ * bodies are answered with the matching error status and end the connection.
+ *
+ * Streamed response bodies are pulled from their producer only while less
+ * than {@link #MAX_QUEUED_RESPONSE_BYTES} are waiting to be written; the owner
+ * of the connection calls {@link #pumpResponse()} after each write to pull
+ * more. Bodies of unknown length are sent with chunked transfer-coding.
+ *
+ * Requests are answered through a {@link RequestDispatcher}: cached
+ * responses need no handler and are always answered, requests routed to a
+ * handler first pass the server's {@link AdmissionController}.
+ *
+ * Every answered request is timed in the server metrics and written to the
+ * access log, if one is configured.
+ *
+ * The connection is kept alive until the client asks for
+ * {@code Connection: close} or the configured maximum number of requests has
+ * been served. Given a {@link ProtocolSwitch}, a connection that starts with
+ * the HTTP/2 preface, or a request asking for {@code Upgrade: h2c}, is handed
+ * over to HTTP/2 once the responses in front of it are out.
+ */
 public class HTTPSocketDataHandler implements SocketDataHandler {
-    private static final PathValidator pathValidator = new PathValidator();
-    private static final Set<String> ACCEPTED_METHODS = Set.of("GET", "POST", "DELETE", "PUT", "PATCH", "HEAD", "OPTIONS").stream().map(String::toLowerCase).collect(Collectors.toSet());
+    private static final Logger LOGGER = System.getLogger(HTTPSocketDataHandler.class.getName());
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final ByteBuffer CONNECTION_CLOSE = encodeShared("Connection: close\r\n");
+    private static final ByteBuffer SWITCHING_PROTOCOLS = encodeShared(
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_QUEUED_RESPONSE_BYTES = 64 * 1024;
+    // cached bodies up to this size are copied behind their head instead of being queued as shared buffers
+    private static final int MAX_COPIED_BODY_BYTES = 8 * 1024;
 
-    private final BufferedWriter responseWriter;
-    private final StringBuilder requestLines = new StringBuilder();
-    private Map<String, String> headersMap = null;
-    private int bytesCount = 0;
-    private int bodyLength = 0;
-    private int bodyStartIndex = -1;
-    private String[] firstLine;
-    private boolean closeConnections;
+    private final PooledOutputStream responseStream;
+    private final HTTPRequestParser requestParser;
+    private final RequestDispatcher dispatcher;
+    private final ByteBuffer connectionKeepAlive;
+    private final int maxRequests;
+    private final Executor completionExecutor;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog;
+    // null when the connection stays on HTTP/1.1
+    private final ProtocolSwitch protocolSwitch;
+    private final SocketAddress remoteAddress;
+    // whether the calling thread may wait for a producer, true when it is dedicated to this connection
+    private final boolean mayBlock;
+    private final byte[] chunkSize = new byte[16];
+    // parsed requests waiting for the response to the one in front of them
+    private final ArrayDeque<HTTPRequest> queuedRequests = new ArrayDeque<>();
+    // System.nanoTime() at which the head of each queued request was received
+    private final ArrayDeque<Long> receivedTimes = new ArrayDeque<>();
+    // the request whose response is being produced
+    private HTTPRequest currentRequest;
+    private long currentRequestReceived;
+    // status and body bytes of the response to the current request, for the access log
+    private int responseStatus;
+    private long responseBytes;
+    private ResponseBody.Stream streamingBody;
+    private boolean chunkPending = false;
+    // answer to a request refused while parsing, written after the responses in front of it
+    private HTTPResponse errorResponse;
+    private int requestCount = 0;
+    private boolean closeConnection = false;
+    // the server is draining, the next request received is the last one answered
+    private boolean lastRequestNext = false;
+    // nothing after the last request on this connection is parsed
+    private boolean inputDiscarded = false;
+    // the response being produced is the last one on this connection
+    private boolean lastResponse = false;
+    private boolean handlerRunning = false;
+    // the running handler's answer, awaited by a thread dedicated to the connection
+    private CompletableFuture<?> pendingResult;
+    private boolean closed = false;
+    // the request switching the connection to HTTP/2, and the bytes received after it
+    private HTTPRequest switchRequest;
+    private ByteBuffer switchInput;
 
-    private static final String ROOT_PATH = "/usr/local/MyWebServer";
+    /**
+     * Runs request handlers on the calling thread, for servers that already
+     * dedicate a thread to each connection.
+     */
+    public HTTPSocketDataHandler(PooledOutputStream responseStream, ServerContext context, SocketAddress remoteAddress) {
+        this(responseStream, context, remoteAddress, Runnable::run, Runnable::run, null, true);
+    }
 
-    private final Map<String, HTTPRequestHandler> routingTable = Map.of("MyWebApp", new DefaultHTTPRequestHandler());
+    /**
+     * @param protocolSwitch takes the connection over when the client switches
+     *                       to HTTP/2, or null to stay on HTTP/1.1
+     */
+    public HTTPSocketDataHandler(PooledOutputStream responseStream, ServerContext context, SocketAddress remoteAddress,
+            Executor handlerExecutor, Executor completionExecutor, ProtocolSwitch protocolSwitch) {
+        this(responseStream, context, remoteAddress, handlerExecutor, completionExecutor, protocolSwitch, false);
+    }
 
-    public HTTPSocketDataHandler(OutputStream responseOutputStream, boolean closeConnections) {
-        this.responseWriter = new BufferedWriter(new OutputStreamWriter(responseOutputStream));
-        this.closeConnections = closeConnections;
+    private HTTPSocketDataHandler(PooledOutputStream responseStream, ServerContext context, SocketAddress remoteAddress,
+            Executor handlerExecutor, Executor completionExecutor, ProtocolSwitch protocolSwitch, boolean mayBlock) {
+        this.responseStream = responseStream;
+        this.remoteAddress = remoteAddress;
+        this.accessLog = context.getAccessLog();
+        this.mayBlock = mayBlock;
+        this.completionExecutor = completionExecutor;
+        this.protocolSwitch = protocolSwitch;
+        this.metrics = context.getMetrics();
+        this.dispatcher = new RequestDispatcher(context, handlerExecutor);
+        // a drained body wakes the owner of the connection up, so it resumes reading
+        this.requestParser = new HTTPRequestParser(context.getConfig().getMaxRequestHeaderBytes(),
+                context.getConfig().getMaxRequestBodyBytes(), handlerExecutor, () -> completionExecutor.execute(() -> {
+                }));
+        this.maxRequests = context.getConfig().getKeepAliveMaxRequests();
+        int keepAliveTimeoutSeconds = Math.max(1, context.getConfig().getKeepAliveTimeoutMillis() / 1000);
+        this.connectionKeepAlive = encodeShared("Connection: keep-alive\r\nKeep-Alive: timeout=" + keepAliveTimeoutSeconds + "\r\n");
     }
 
+    /**
+     * @return true when responses are waiting in the response stream
+     */
     @Override
-    public boolean read(byte[] data) throws WebServerException {
+    public boolean read(ByteBuffer data) throws WebServerException {
+        if (switchRequest != null) {
+            // sent ahead of the switch, it belongs to HTTP/2
+            switchInput = append(switchInput, data);
+            advance();
+            return responseStream.hasRemaining();
+        }
         try {
-            bytesCount += data.length;
-            requestLines.append(new String(data, StandardCharsets.UTF_8.name()));
-            parseHeadersIfComplete();
-            if (isReadyToWriteResponse()) {
-                writeResponse();
-                return true;
+            while (!inputDiscarded && requestParser.parse(data)) {
+                HTTPRequest request = requestParser.getRequest();
+                if (closeConnection) {
+                    // a request after the last one, it is not answered
+                    inputDiscarded = true;
+                    break;
+                }
+                requestCount++;
+                if (switchesToHttp2(request)) {
+                    switchRequest = request;
+                    switchInput = append(null, data);
+                    inputDiscarded = true;
+                    queuedRequests.addLast(request);
+                    receivedTimes.addLast(System.nanoTime());
+                    break;
+                }
+                closeConnection = request.headers().containsToken("Connection", "close") || requestCount >= maxRequests || lastRequestNext;
+                queuedRequests.addLast(request);
+                receivedTimes.addLast(System.nanoTime());
             }
+        } catch (WebServerException e) {
+            refuseRequest(e);
+        }
+        if (inputDiscarded) {
+            data.position(data.limit());
+        }
+        advance();
+        return responseStream.hasRemaining();
+    }
+
+    @Override
+    public boolean pumpResponse() throws WebServerException {
+        long queued = responseStream.remaining();
+        advance();
+        return responseStream.remaining() > queued;
+    }
+
+    /**
+     * Whether the request starts the HTTP/2 preface on a new connection, or
+     * asks to upgrade to HTTP/2 without a body that would have to be received
+     * first.
+     */
+    private boolean switchesToHttp2(HTTPRequest request) {
+        if (protocolSwitch == null) {
             return false;
+        }
+        if (HTTPRequestParser.PREFACE.equals(request.method())) {
+            return requestCount == 1;
+        }
+        return request.body() == RequestBody.EMPTY && request.headers().containsToken("Upgrade", "h2c")
+                && request.headers().containsToken("Connection", "Upgrade") && request.headers().contains("HTTP2-Settings");
+    }
+
+    /**
+     * Hands the connection over once the responses in front of the switching
+     * request are out. Nothing is answered on HTTP/1.1 afterwards.
+     */
+    private void switchProtocols() throws WebServerException {
+        HTTPRequest request = switchRequest;
+        ByteBuffer received = switchInput;
+        currentRequest = null;
+        switchRequest = null;
+        switchInput = null;
+        boolean upgrade = !HTTPRequestParser.PREFACE.equals(request.method());
+        if (upgrade) {
+            responseStream.write(SWITCHING_PROTOCOLS);
+        }
+        protocolSwitch.switchToHttp2(upgrade ? request : null, received);
+    }
+
+    private static ByteBuffer append(ByteBuffer buffer, ByteBuffer data) {
+        ByteBuffer grown = ByteBuffer.allocate((buffer == null ? 0 : buffer.remaining()) + data.remaining());
+        if (buffer != null) {
+            grown.put(buffer);
+        }
+        return grown.put(data).flip();
+    }
+
+    /**
+     * A request whose head was refused is answered with the error status once
+     * the responses in front of it are out. A body that turns out to be too
+     * large or malformed fails the body, and its handler decides the response.
+     * Either way nothing more is read from the connection.
+     */
+    private void refuseRequest(WebServerException e) throws WebServerException {
+        metrics.parseError();
+        StreamingRequestBody body = requestParser.getBody();
+        if (requestParser.isReadingBody() && body != null) {
+            LOGGER.log(Level.DEBUG, "Request body refused: {0}", e.getMessage());
+            body.fail(e);
+        } else if (e instanceof HTTPStatusException statusException) {
+            LOGGER.log(Level.DEBUG, "Request refused: {0}", e.getMessage());
+            errorResponse = new HTTPResponse("HTTP/1.1 " + statusException.getStatusCode() + " " + e.getMessage() + "\r\n", Map.of(), "");
+        } else {
+            throw e;
+        }
+        closeConnection = true;
+        inputDiscarded = true;
+    }
+
+    /**
+     * Answers queued requests in order and pulls streamed bodies, as far as it
+     * goes without waiting for a handler, a producer or the socket.
+     */
+    private void advance() throws WebServerException {
+        try {
+            while (true) {
+                if (streamingBody != null) {
+                    if (!pumpStream()) {
+                        return;
+                    }
+                } else if (handlerRunning) {
+                    if (!mayBlock || !awaitHandler()) {
+                        return;
+                    }
+                } else if (!queuedRequests.isEmpty()) {
+                    currentRequest = queuedRequests.pollFirst();
+                    currentRequestReceived = receivedTimes.pollFirst();
+                    if (currentRequest == switchRequest) {
+                        switchProtocols();
+                        return;
+                    }
+                    lastResponse = closeConnection && queuedRequests.isEmpty() && errorResponse == null;
+                    if (handleRequest(currentRequest) && streamingBody == null) {
+                        completeResponse();
+                    }
+                } else {
+                    if (errorResponse != null) {
+                        lastResponse = true;
+                        writeResponse(errorResponse);
+                        errorResponse = null;
+                    }
+                    return;
+                }
+            }
         } catch (IOException e) {
-            e.printStackTrace();
             throw new WebServerException("Failed to handle client request", e);
         }
     }
 
-    private String buildBody() {
-        String requestString = requestLines.toString();
-        return requestString.substring(bodyStartIndex, bodyStartIndex + bodyLength);
+    /**
+     * Continues after something completed off the calling thread.
+     */
+    private void resume() {
+        try {
+            advance();
+        } catch (WebServerException e) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Request failed", e);
+            }
+            stopAnswering();
+        }
+    }
+
+    /**
+     * Nothing more is answered on this connection, it is closed once the
+     * responses written so far are out.
+     */
+    private void stopAnswering() {
+        closeConnection = true;
+        inputDiscarded = true;
+        cancelStream();
+        errorResponse = null;
+        IOException cause = new IOException("Connection is closing");
+        if (currentRequest != null) {
+            failBody(currentRequest, cause);
+            currentRequest = null;
+        }
+        for (HTTPRequest request : queuedRequests) {
+            failBody(request, cause);
+        }
+        queuedRequests.clear();
+        receivedTimes.clear();
+    }
+
+    private void completeResponse() {
+        long latency = System.nanoTime() - currentRequestReceived;
+        metrics.requestCompleted(latency);
+        accessLog.log(remoteAddress, currentRequest.method(), currentRequest.target(), responseStatus, responseBytes, latency);
+        discardBody(currentRequest);
+        currentRequest = null;
+    }
+
+    private void responseStarted(int status, long bodyBytes) {
+        // refusals written after the last request have no request of their own
+        if (currentRequest != null) {
+            metrics.responseStarted(System.nanoTime() - currentRequestReceived);
+            responseStatus = status;
+            responseBytes = isHead() ? 0 : bodyBytes;
+        }
+    }
+
+    /**
+     * Writes the response right away when it is available without waiting,
+     * otherwise leaves it to the completion executor.
+     *
+     * @return true when the response was written
+     */
+    private boolean handleRequest(HTTPRequest request) throws IOException {
+        Object answer = dispatcher.dispatch(request);
+        if (answer instanceof CompletableFuture<?> result) {
+            handlerRunning = true;
+            if (mayBlock) {
+                pendingResult = result;
+            } else {
+                result.whenCompleteAsync((response, error) -> onHandlerCompleted(result), completionExecutor);
+            }
+            return false;
+        }
+        writeAnswer(answer);
+        return true;
     }
 
-    private void parseHeadersIfComplete() throws WebServerException {
-        if (headersMap != null) {
+    private void onHandlerCompleted(CompletableFuture<?> result) {
+        handlerRunning = false;
+        if (closed) {
+            cancelStream(result);
             return;
         }
-        String headers = requestLines.toString();
-        boolean headersComplete = headers.contains("\r\n\r\n");
-        if (!headersComplete) {
+        try {
+            writeAnswer(RequestDispatcher.resultOf(result));
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Response failed", e);
+            }
+            stopAnswering();
             return;
         }
-        String[] lines = headers.split("\r\n");
-        firstLine = parseFirstLine(lines[0]);
-        headersMap = new HashMap<>();
-
-        for (int i = 1; i < lines.length; i++) {
-            String line = lines[i];
-            String[] keyValue = line.split(": ");
-            if (keyValue.length != 2) {
-                continue;
-            }
-            headersMap.put(keyValue[0], keyValue[1]);
-            if (keyValue[0].equalsIgnoreCase("content-length")) {
-                try {
-                    bodyLength = Integer.parseInt(keyValue[1]);
-                } catch (NumberFormatException e) {
-                    throw new WebServerException("Bad Request", e);
-                }
+        if (streamingBody == null) {
+            completeResponse();
+        }
+        resume();
+    }
+
+    /**
+     * Waits for the running handler on the thread dedicated to the connection,
+     * once the handler can no longer be waiting for more of the request body,
+     * and writes its answer. While the body is still arriving the thread
+     * keeps reading it instead.
+     *
+     * @return false when the handler is still running
+     */
+    private boolean awaitHandler() throws IOException {
+        StreamingRequestBody body = requestParser.getBody();
+        boolean receivingBody = !inputDiscarded && requestParser.isReadingBody() && body != null && body == currentRequest.body();
+        if (receivingBody && !pendingResult.isDone()) {
+            return false;
+        }
+        CompletableFuture<?> result = pendingResult;
+        pendingResult = null;
+        handlerRunning = false;
+        writeAnswer(RequestDispatcher.resultOf(result));
+        if (streamingBody == null) {
+            completeResponse();
+        }
+        return true;
+    }
+
+    /**
+     * Tells the producer of a streamed answer that nobody will send it, when
+     * the handler completed after the connection was closed.
+     */
+    private static void cancelStream(CompletableFuture<?> result) {
+        if (!result.isCompletedExceptionally() && result.join() instanceof HTTPResponse response
+                && response.body() instanceof ResponseBody.Stream stream) {
+            stream.producer().cancel();
+        }
+    }
+
+    /**
+     * Queues chunks of the streamed body until the queue is full or the
+     * producer has to be waited for.
+     *
+     * @return true when the stream has ended
+     */
+    private boolean pumpStream() {
+        while (!chunkPending && responseStream.remaining() < MAX_QUEUED_RESPONSE_BYTES) {
+            CompletableFuture<ByteBuffer> next = nextChunk();
+            if (!next.isDone() && !mayBlock) {
+                chunkPending = true;
+                next.whenCompleteAsync((chunk, error) -> onChunkCompleted(next), completionExecutor);
+                return false;
+            }
+            if (writeChunk(next)) {
+                return true;
             }
         }
+        return false;
     }
 
-    private boolean isReadyToWriteResponse() throws UnsupportedEncodingException {
-        String requestString = requestLines.toString();
-        bodyStartIndex = requestString.indexOf("\r\n\r\n") + 4;
-        int bodyBytes = bytesCount - bodyStartIndex;
-        return bodyBytes >= bodyLength;
+    /**
+     * Tells the producer of the body being streamed that the rest of it is
+     * not wanted.
+     */
+    private void cancelStream() {
+        if (streamingBody != null) {
+            streamingBody.producer().cancel();
+            streamingBody = null;
+        }
     }
 
-    private void writeResponse() throws IOException, WebServerException {
-        String fullPath = firstLine[1];
-        if (!pathValidator.validate(fullPath)) {
-            throw new WebServerException("Invalid path: " + firstLine);
+    private CompletableFuture<ByteBuffer> nextChunk() {
+        try {
+            return streamingBody.producer().next();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
         }
-        String[] components = fullPath.split("/");
-        String root;
-        if (components.length < 2) {
-            root = "";
-        } else {
-            root = components[1];
+    }
+
+    private void onChunkCompleted(CompletableFuture<ByteBuffer> next) {
+        chunkPending = false;
+        if (closed) {
+            return;
         }
-        HTTPRequestHandler responseHandler = routingTable.get(root);
-        HTTPResponse response;
-        if (responseHandler == null) {
-            response = new HTTPResponse("HTTP/1.1 404 Not Found\r\n", Map.of(), "");
-        } else {
-            response = responseHandler.handle(new HTTPRequest(ROOT_PATH + fullPath, headersMap, buildBody()));
+        writeChunk(next);
+        resume();
+    }
+
+    /**
+     * @return true when the stream has ended
+     */
+    private boolean writeChunk(CompletableFuture<ByteBuffer> next) {
+        ByteBuffer chunk;
+        try {
+            chunk = next.join();
+        } catch (RuntimeException e) {
+            // the status line is out already, the client learns about the failure from the truncated body
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Response body failed", e);
+            }
+            stopAnswering();
+            return true;
+        }
+        boolean chunked = streamingBody.length() < 0;
+        if (chunk == null) {
+            if (chunked) {
+                responseStream.write(LAST_CHUNK, 0, LAST_CHUNK.length);
+            }
+            streamingBody = null;
+            completeResponse();
+            return true;
+        }
+        if (!chunk.hasRemaining()) {
+            // an empty chunk would end a chunked body
+            return false;
+        }
+        if (chunked) {
+            responseBytes += chunk.remaining();
+            writeChunkSize(chunk.remaining());
+        }
+        responseStream.writeShared(chunk);
+        if (chunked) {
+            responseStream.write(CRLF, 0, CRLF.length);
         }
-        String reponse = buildResponse(response);
-        responseWriter.write(reponse);
-        responseWriter.flush();
+        return false;
     }
 
-    private String buildResponse(HTTPResponse response) throws WebServerException {
-        StringBuilder responseBuilder = new StringBuilder();
-        responseBuilder.append(response.firstLine());
-        responseBuilder.append("Content-Type: text/plain\r\n");
-        if (shouldCloseConnection() || closeConnections) {
-            responseBuilder.append("Connection: close\r\n");
+    private void writeChunkSize(int size) {
+        int start = chunkSize.length;
+        do {
+            chunkSize[--start] = HEX_DIGITS[size & 0xf];
+            size >>>= 4;
+        } while (size != 0);
+        responseStream.write(chunkSize, start, chunkSize.length - start);
+        responseStream.write(CRLF, 0, CRLF.length);
+    }
+
+    /**
+     * Whatever the handler did not read of the body is dropped while it is
+     * received, the parser still needs to find its end.
+     */
+    private static void discardBody(HTTPRequest request) {
+        if (request.body() instanceof StreamingRequestBody body) {
+            body.discard();
+        }
+    }
+
+    private void writeAnswer(Object answer) throws IOException {
+        if (answer instanceof RequestDispatcher.NotModified notModified) {
+            writeNotModified(notModified.cached());
+        } else if (answer instanceof CachedResponse cached) {
+            writeCachedResponse(cached);
         } else {
-            responseBuilder.append("Connection: keep-alive\r\n");
+            writeResponse((HTTPResponse) answer);
         }
+    }
 
-        for (Map.Entry<String, String> header : response.headers().entrySet()) {
-            responseBuilder.append(header.getKey() + ": " + header.getValue() + "\r\n");
+    /**
+     * Copies the shared buffers of the cached response, so a small cached
+     * response is written without allocating.
+     */
+    private void writeCachedResponse(CachedResponse cached) {
+        responseStarted(200, cached.bodyLength());
+        responseStream.write(cached.head());
+        DateHeader.writeTo(responseStream);
+        responseStream.write(connectionHeaders());
+        if (isHead()) {
+            // the tail starts with the blank line that ends the head
+            responseStream.write(CRLF, 0, CRLF.length);
+        } else if (cached.bodyLength() <= MAX_COPIED_BODY_BYTES) {
+            responseStream.write(cached.tail());
+        } else {
+            responseStream.writeShared(cached.tail().duplicate());
         }
-        responseBuilder.append("Content-Length: " + response.body().getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n");
-        responseBuilder.append(response.body());
+    }
+
+    private void writeNotModified(CachedResponse cached) {
+        responseStarted(304, 0);
+        responseStream.write(cached.notModifiedHead());
+        DateHeader.writeTo(responseStream);
+        responseStream.write(connectionHeaders());
+        responseStream.write(CRLF, 0, CRLF.length);
+    }
 
-        return  responseBuilder.toString();
+    private void writeResponse(HTTPResponse response) throws IOException {
+        ResponseBody body = response.body();
+        if (body instanceof ResponseBody.FileRegion fileRegion) {
+            FileChannel fileChannel;
+            try {
+                fileChannel = FileChannel.open(fileRegion.path(), StandardOpenOption.READ);
+            } catch (IOException e) {
+                if (LOGGER.isLoggable(Level.DEBUG)) {
+                    LOGGER.log(Level.DEBUG, "Cannot open " + fileRegion.path() + ": " + e.getMessage());
+                }
+                writeResponse(RequestDispatcher.NOT_FOUND);
+                return;
+            }
+            writeHeaders(response, fileRegion.length());
+            if (fileRegion.length() > 0 && !isHead()) {
+                responseStream.transferFrom(fileChannel, fileRegion.position(), fileRegion.length());
+            } else {
+                fileChannel.close();
+            }
+        } else if (body instanceof ResponseBody.Bytes bytes) {
+            writeHeaders(response, bytes.length());
+            if (!isHead()) {
+                responseStream.write(bytes.bytes());
+            }
+        } else if (body instanceof ResponseBody.Parts parts) {
+            writeParts(response, parts);
+        } else if (body instanceof ResponseBody.Stream stream) {
+            writeHeaders(response, stream.length());
+            if (isHead()) {
+                stream.producer().cancel();
+            } else {
+                // pulled by advance(), as fast as the client reads
+                streamingBody = stream;
+            }
+        }
     }
 
-    private String[] parseFirstLine(String firstLine) throws WebServerException {
-        String[] components = firstLine.split(" ");
-        if (components.length != 3) {
-            throw new WebServerException("Unexpected first line");
+    /**
+     * Opens the files of all parts before writing anything, so a missing file
+     * still gets a complete 404 instead of a truncated body.
+     */
+    private void writeParts(HTTPResponse response, ResponseBody.Parts parts) throws IOException {
+        List<ResponseBody> bodies = parts.parts();
+        FileChannel[] fileChannels = new FileChannel[bodies.size()];
+        try {
+            for (int i = 0; i < bodies.size(); i++) {
+                if (bodies.get(i) instanceof ResponseBody.FileRegion fileRegion) {
+                    fileChannels[i] = FileChannel.open(fileRegion.path(), StandardOpenOption.READ);
+                }
+            }
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Cannot open a part: " + e.getMessage());
+            }
+            for (FileChannel fileChannel : fileChannels) {
+                if (fileChannel != null) {
+                    fileChannel.close();
+                }
+            }
+            writeResponse(RequestDispatcher.NOT_FOUND);
+            return;
+        }
+        writeHeaders(response, parts.length());
+        for (int i = 0; i < bodies.size(); i++) {
+            if (bodies.get(i) instanceof ResponseBody.FileRegion fileRegion) {
+                if (fileRegion.length() > 0 && !isHead()) {
+                    responseStream.transferFrom(fileChannels[i], fileRegion.position(), fileRegion.length());
+                } else {
+                    fileChannels[i].close();
+                }
+            } else if (bodies.get(i) instanceof ResponseBody.Bytes bytes && !isHead()) {
+                responseStream.write(bytes.bytes());
+            }
         }
+    }
+
+    private void writeHeaders(HTTPResponse response, long contentLength) throws IOException {
+        responseStarted(statusCode(response.firstLine()), Math.max(0, contentLength));
+        ResponseHeadEncoder.write(responseStream, response, contentLength);
+        DateHeader.writeTo(responseStream);
+        responseStream.write(connectionHeaders());
+        responseStream.write(CRLF);
+    }
+
+    /**
+     * Whether the response being written answers a HEAD request, which gets
+     * the headers of a GET, Content-Length included, and no body.
+     */
+    private boolean isHead() {
+        return currentRequest != null && "HEAD".equals(currentRequest.method());
+    }
 
-        if (!ACCEPTED_METHODS.contains(components[0].toLowerCase())) {
-            throw new WebServerException("Only GET method is allowed");
+    private static int statusCode(String firstLine) {
+        int status = 0;
+        int start = firstLine.indexOf(' ') + 1;
+        for (int i = start; i < start + 3 && i < firstLine.length(); i++) {
+            char c = firstLine.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            status = status * 10 + (c - '0');
         }
+        return status;
+    }
+
+    private ByteBuffer connectionHeaders() {
+        return lastResponse ? CONNECTION_CLOSE : connectionKeepAlive;
+    }
 
-        if (!"HTTP/1.1".equalsIgnoreCase(components[2])) {
-            throw new WebServerException("Only HTTP/1.1 is supported");
+    private static ByteBuffer encodeShared(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * The server is shutting down: requests received so far are still
+     * answered and the connection is closed after them. A request that is
+     * partly received, or the first request of a new connection, is still
+     * answered as the last one. Called on the connection's I/O thread.
+     */
+    @Override
+    public void drain() {
+        if (requestCount == 0 || isRequestInProgress()) {
+            lastRequestNext = true;
+        } else {
+            closeConnection = true;
         }
+    }
+
+    /**
+     * Whether part of a request has been received, but not all of it.
+     */
+    @Override
+    public boolean isRequestInProgress() {
+        return !inputDiscarded && requestParser.isInProgress();
+    }
+
+    @Override
+    public boolean isReadingBody() {
+        return !inputDiscarded && requestParser.isReadingBody();
+    }
+
+    /**
+     * Whether the handler has fallen behind on the body being received, so the
+     * socket should not be read until it catches up.
+     */
+    @Override
+    public boolean isReadPaused() {
+        StreamingRequestBody body = requestParser.getBody();
+        return !inputDiscarded && body != null && body.isPaused();
+    }
 
-        return components;
+    /**
+     * Blocks until reading may resume, for servers reading on a thread of their
+     * own.
+     *
+     * @return false when reading is still paused after the timeout
+     */
+    public boolean awaitReadResumed(long timeoutMillis) throws InterruptedException {
+        StreamingRequestBody body = requestParser.getBody();
+        return inputDiscarded || body == null || body.awaitDrained(timeoutMillis);
     }
 
+    /**
+     * Whether requests have been received whose responses are not complete yet.
+     */
+    @Override
+    public boolean isResponsePending() {
+        return handlerRunning || streamingBody != null || !queuedRequests.isEmpty();
+    }
+
+    /**
+     * Whether the connection has to be closed once the responses written so
+     * far are flushed.
+     */
     @Override
     public boolean shouldCloseConnection() {
-        return headersMap.containsKey("Connection") && headersMap.get("Connection").equals("close");
+        return closeConnection && !isResponsePending();
+    }
+
+    /**
+     * Drops queued requests; a handler still running has its response
+     * discarded when it completes.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        cancelStream();
+        if (pendingResult != null) {
+            CompletableFuture<?> result = pendingResult;
+            result.whenComplete((response, error) -> cancelStream(result));
+            pendingResult = null;
+        }
+        IOException closedException = new IOException("Connection closed");
+        if (requestParser.getBody() != null) {
+            requestParser.getBody().fail(closedException);
+        }
+        if (currentRequest != null) {
+            failBody(currentRequest, closedException);
+        }
+        for (HTTPRequest request : queuedRequests) {
+            failBody(request, closedException);
+        }
+        queuedRequests.clear();
+        receivedTimes.clear();
+    }
+
+    private static void failBody(HTTPRequest request, Throwable cause) {
+        if (request.body() instanceof StreamingRequestBody body) {
+            body.fail(cause);
+        }
     }
 }
@@ -0,0 +1,26 @@
+package com.meldoheiri.webserver.servers.httpsocketdatahandler;
+
+import java.nio.ByteBuffer;
+
+import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequest;
+
+/**
+ * Hands a connection over from HTTP/1.1 to HTTP/2. Implemented by the owner of
+ * the connection, which replaces its {@link SocketDataHandler} with an HTTP/2
+ * one and feeds it what has been received so far.
+ */
+@FunctionalInterface
+public interface ProtocolSwitch {
+    /**
+     * Called on the connection's I/O thread once the responses in front of the
+     * switch are written, with the {@code 101} already queued for an upgrade.
+     *
+     * @param upgradeRequest the request carrying {@code Upgrade: h2c}, to be
+     *                       answered on stream 1, or null after the start of a
+     *                       connection preface
+     * @param received       bytes received after the request, the rest of the
+     *                       preface and the first frames
+     */
+    void switchToHttp2(HTTPRequest upgradeRequest, ByteBuffer received) throws WebServerException;
+}
@@ -0,0 +1,188 @@
+package com.meldoheiri.webserver.servers.httpsocketdatahandler;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import com.meldoheiri.webserver.servers.ServerContext;
+import com.meldoheiri.webserver.servers.admission.AdmissionController;
+import com.meldoheiri.webserver.servers.contentcache.CachedResponse;
+import com.meldoheiri.webserver.servers.contentcache.StaticContentCache;
+import com.meldoheiri.webserver.servers.httprequesthandler.ConditionalRequests;
+import com.meldoheiri.webserver.servers.httprequesthandler.ContentCodings;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPDates;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequest;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequestHandler;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPResponse;
+import com.meldoheiri.webserver.servers.httprequesthandler.ResponseBody;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+import com.meldoheiri.webserver.servers.router.Router;
+import com.meldoheiri.webserver.validators.PathValidator;
+
+/**
+ * Finds the answer to a request, the same way for every protocol: from the
+ * shared {@link StaticContentCache} when the response is cached, otherwise
+ * from the handler of the matching route.
+ *
+ * {@link #dispatch(HTTPRequest)} returns the answer itself when it is known
+ * right away, or a future when a handler has to run first. Requests routed to
+ * a handler pass the server's {@link AdmissionController} first; one it does
+ * not admit is answered with {@code 503} and {@code Retry-After}. Cacheable
+ * responses the handler produced are loaded into the cache on the thread
+ * completing the handler.
+ */
+public final class RequestDispatcher {
+    private static final Logger LOGGER = System.getLogger(RequestDispatcher.class.getName());
+    public static final HTTPResponse NOT_FOUND = new HTTPResponse("HTTP/1.1 404 Not Found\r\n", Map.of(), "");
+    public static final HTTPResponse BAD_REQUEST = new HTTPResponse("HTTP/1.1 400 Bad Request\r\n", Map.of(), "");
+    public static final HTTPResponse INTERNAL_SERVER_ERROR = new HTTPResponse("HTTP/1.1 500 Internal Server Error\r\n", Map.of(), "");
+
+    private static final PathValidator pathValidator = new PathValidator();
+
+    private final StaticContentCache contentCache;
+    private final Router router;
+    private final AdmissionController admission;
+    private final ServerMetrics metrics;
+    private final Executor handlerExecutor;
+
+    /**
+     * A cached response whose validators match the conditional request, to
+     * be answered with {@code 304}.
+     */
+    public record NotModified(CachedResponse cached) {
+    }
+
+    public RequestDispatcher(ServerContext context, Executor handlerExecutor) {
+        this.contentCache = context.getContentCache();
+        this.router = context.getRouter();
+        this.admission = context.getAdmission();
+        this.metrics = context.getMetrics();
+        this.handlerExecutor = handlerExecutor;
+    }
+
+    /**
+     * @return a {@link CachedResponse}, a {@link NotModified} or an
+     *         {@link HTTPResponse}, or a {@link CompletableFuture} completed with
+     *         one of the first and the last by the handler, or
+     *         {@link #BAD_REQUEST} for a target that is not a valid path and query
+     */
+    public Object dispatch(HTTPRequest request) {
+        String fullPath = request.path();
+        if (!pathValidator.validate(fullPath) || !pathValidator.validateQuery(request.query())) {
+            metrics.parseError();
+            return BAD_REQUEST;
+        }
+        // entries are only cached for paths a GET route answered, and routes are fixed at startup
+        String cacheKey = null;
+        if (contentCache.isEnabled() && "GET".equals(request.method())) {
+            cacheKey = StaticContentCache.normalize(fullPath);
+            // each coding the handler may negotiate is cached as a representation of its own
+            String coding = ContentCodings.negotiate(request.headers().get("Accept-Encoding"));
+            if (coding != null) {
+                cacheKey = cacheKey + ';' + coding;
+            }
+            // range requests go to the handler, which sends the ranges straight from the file
+            CachedResponse cached = request.headers().get("Range") == null ? contentCache.get(cacheKey) : null;
+            if (cached != null) {
+                CachedResponse.Validators validators = cached.validators();
+                if (validators != null && ConditionalRequests.isNotModified(request.headers(), validators.etag(), validators.lastModifiedSeconds())) {
+                    return new NotModified(cached);
+                }
+                return cached;
+            }
+        }
+
+        Router.Match route = router.match(request.method(), fullPath);
+        if (route == null) {
+            return NOT_FOUND;
+        }
+        if (route.handler() == null) {
+            return new HTTPResponse("HTTP/1.1 405 Method Not Allowed\r\n", Map.of("Allow", route.allowedMethods()), "");
+        }
+
+        if (!admission.tryAdmit()) {
+            return admission.rejection();
+        }
+        HTTPRequest handlerRequest = new HTTPRequest(request.method(), fullPath, request.query(), request.headers(), request.body(),
+                route.parameters());
+        CompletableFuture<Object> result = handle(route.handler(), handlerRequest, cacheKey);
+        if (result.isDone()) {
+            admission.release();
+            return resultOf(result);
+        }
+        return result.whenComplete((response, error) -> admission.release());
+    }
+
+    /**
+     * The response a completed handler produced, or 500 when it failed.
+     */
+    public static Object resultOf(CompletableFuture<?> result) {
+        try {
+            return result.join();
+        } catch (RuntimeException e) {
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.log(Level.WARNING, "Request handler failed", e);
+            }
+            return INTERNAL_SERVER_ERROR;
+        }
+    }
+
+    private CompletableFuture<Object> handle(HTTPRequestHandler responseHandler, HTTPRequest request, String cacheKey) {
+        try {
+            // loading the cache entry reads the file, so it stays on the thread completing the handler
+            return responseHandler.handleAsync(request, handlerExecutor).thenApply(response -> loadCached(cacheKey, response));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * The cached response for a cacheable response, or the response itself.
+     */
+    private Object loadCached(String cacheKey, HTTPResponse response) {
+        if (cacheKey != null && response.body() instanceof ResponseBody.FileRegion fileRegion
+                && fileRegion.position() == 0 && response.firstLine().startsWith("HTTP/1.1 200")) {
+            try {
+                CachedResponse cached = contentCache.load(cacheKey, fileRegion.path(), ResponseHeadEncoder.encode(response, fileRegion.length()),
+                        fileRegion.length(), validators(response));
+                if (cached != null) {
+                    return cached;
+                }
+            } catch (IOException e) {
+                // streamed from disk instead
+                if (LOGGER.isLoggable(Level.DEBUG)) {
+                    LOGGER.log(Level.DEBUG, "Cannot cache " + fileRegion.path() + ": " + e.getMessage());
+                }
+            }
+        }
+        return response;
+    }
+
+    /**
+     * The validators of a cacheable response together with the head of the 304
+     * that answers a matching conditional request, or null without an ETag.
+     */
+    private static CachedResponse.Validators validators(HTTPResponse response) {
+        String etag = response.headers().get("ETag");
+        if (etag == null) {
+            return null;
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("ETag", etag);
+        String lastModified = response.headers().get("Last-Modified");
+        if (lastModified != null) {
+            headers.put("Last-Modified", lastModified);
+        }
+        String vary = response.headers().get("Vary");
+        if (vary != null) {
+            headers.put("Vary", vary);
+        }
+        HTTPResponse notModified = new HTTPResponse("HTTP/1.1 304 Not Modified\r\n", headers, ResponseBody.EMPTY);
+        return new CachedResponse.Validators(etag, lastModified == null ? -1 : HTTPDates.parse(lastModified),
+                ResponseHeadEncoder.encode(notModified, 0));
+    }
+}
@@ -0,0 +1,118 @@
+package com.meldoheiri.webserver.servers.httpsocketdatahandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPResponse;
+
+/**
+ * Encodes the status line and headers of a response, except for the
+ * {@code Date} and connection headers, which change between responses.
+ *
+ * The parts every response shares, the common status lines, the
+ * {@code Server} and default {@code Content-Type} headers and the framing
+ * header names, are encoded once when the class is loaded. A response head is
+ * written as a handful of array copies with the content length written digit
+ * by digit, and only headers set by the handler are encoded per response.
+ */
+final class ResponseHeadEncoder {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] HEADER_SEPARATOR = { ':', ' ' };
+    private static final byte[] SERVER = ascii("Server: MyWebServer\r\n");
+    private static final byte[] SERVER_AND_CONTENT_TYPE = ascii("Server: MyWebServer\r\nContent-Type: text/plain\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final Map<String, byte[]> STATUS_LINES = new HashMap<>();
+
+    static {
+        for (String statusLine : new String[] {
+                "HTTP/1.1 200 OK\r\n",
+                "HTTP/1.1 204 No Content\r\n",
+                "HTTP/1.1 206 Partial Content\r\n",
+                "HTTP/1.1 301 Moved Permanently\r\n",
+                "HTTP/1.1 302 Found\r\n",
+                "HTTP/1.1 304 Not Modified\r\n",
+                "HTTP/1.1 400 Bad Request\r\n",
+                "HTTP/1.1 403 Forbidden\r\n",
+                "HTTP/1.1 404 Not Found\r\n",
+                "HTTP/1.1 405 Method Not Allowed\r\n",
+                "HTTP/1.1 416 Range Not Satisfiable\r\n",
+                "HTTP/1.1 500 Internal Server Error\r\n",
+                "HTTP/1.1 503 Service Unavailable\r\n" }) {
+            STATUS_LINES.put(statusLine, ascii(statusLine));
+        }
+    }
+
+    private ResponseHeadEncoder() {
+    }
+
+    /**
+     * Writes the status line and headers, except for the connection headers
+     * and the blank line that ends the header block. A negative content
+     * length selects chunked transfer-coding. The default content type is
+     * left out when the response sets its own; it and the framing headers are
+     * left out when the status has no body.
+     */
+    static void write(OutputStream out, HTTPResponse response, long contentLength) throws IOException {
+        byte[] statusLine = STATUS_LINES.get(response.firstLine());
+        out.write(statusLine != null ? statusLine : ascii(response.firstLine()));
+        boolean bodiless = isBodiless(response.firstLine());
+        out.write(bodiless || response.headers().containsKey("Content-Type") ? SERVER : SERVER_AND_CONTENT_TYPE);
+        for (Map.Entry<String, String> header : response.headers().entrySet()) {
+            out.write(ascii(header.getKey()));
+            out.write(HEADER_SEPARATOR);
+            out.write(ascii(header.getValue()));
+            out.write(CRLF);
+        }
+        if (bodiless) {
+            return;
+        }
+        if (contentLength >= 0) {
+            out.write(CONTENT_LENGTH);
+            writeDecimal(out, contentLength);
+            out.write(CRLF);
+        } else {
+            out.write(TRANSFER_ENCODING_CHUNKED);
+        }
+    }
+
+    /**
+     * The same head as a byte array, for responses that are stored.
+     */
+    static byte[] encode(HTTPResponse response, long contentLength) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        try {
+            write(out, response, contentLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Whether the status never has a body, so 304 does not claim a length of 0
+     * for the representation it stands for.
+     */
+    static boolean isBodiless(String statusLine) {
+        return statusLine.startsWith("HTTP/1.1 304") || statusLine.startsWith("HTTP/1.1 204") || statusLine.startsWith("HTTP/1.1 1");
+    }
+
+    private static void writeDecimal(OutputStream out, long value) throws IOException {
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.write('0' + (int) (value / divisor % 10));
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
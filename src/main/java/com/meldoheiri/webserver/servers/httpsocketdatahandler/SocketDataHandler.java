@@ -1,8 +1,61 @@
 package com.meldoheiri.webserver.servers.httpsocketdatahandler;
 
+import java.nio.ByteBuffer;
+
 import com.meldoheiri.webserver.servers.exceptions.WebServerException;
 
+/**
+ * The protocol spoken on a connection, fed the bytes read from the socket. It
+ * writes its responses to the connection's response stream and tells the
+ * owner of the connection what it is waiting for.
+ */
 public interface SocketDataHandler {
-    boolean read(byte[] data) throws WebServerException;
+    /**
+     * @return true when responses are waiting in the response stream
+     */
+    boolean read(ByteBuffer data) throws WebServerException;
+
+    /**
+     * Pulls more of the responses being sent, to be called once queued bytes
+     * have been written.
+     *
+     * @return true when more bytes were queued
+     */
+    boolean pumpResponse() throws WebServerException;
+
+    /**
+     * Whether the connection has to be closed once the responses written so
+     * far are flushed.
+     */
     boolean shouldCloseConnection();
+
+    /**
+     * Whether requests have been received whose responses are not complete yet.
+     */
+    boolean isResponsePending();
+
+    /**
+     * Whether part of a request has been received, but not all of it.
+     */
+    boolean isRequestInProgress();
+
+    boolean isReadingBody();
+
+    /**
+     * Whether the socket should not be read until request handlers catch up.
+     */
+    boolean isReadPaused();
+
+    /**
+     * The server is shutting down: requests received so far are still
+     * answered and the connection is closed after them. Called on the
+     * connection's I/O thread.
+     */
+    void drain();
+
+    /**
+     * Drops what has not been answered; handlers still running have their
+     * responses discarded when they complete.
+     */
+    void close();
 }
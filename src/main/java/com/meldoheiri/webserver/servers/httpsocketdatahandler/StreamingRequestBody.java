@@ -0,0 +1,202 @@
+package com.meldoheiri.webserver.servers.httpsocketdatahandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.IntConsumer;
+
+import com.meldoheiri.webserver.servers.httprequesthandler.RequestBody;
+
+/**
+ * Request body fed by the parser on the connection's I/O thread and read by
+ * the handler on any thread.
+ *
+ * Chunks the handler has not asked for yet are queued. Once the queue holds
+ * {@link #HIGH_WATERMARK} bytes the body reports itself paused, and the I/O
+ * thread stops reading from the socket until the handler has drained it below
+ * {@link #LOW_WATERMARK}; the drained callback tells the I/O thread to resume.
+ * A pending read is completed on the executor, so handler code chained on it
+ * never runs on a selector thread.
+ *
+ * A body received over a protocol with flow control of its own, such as an
+ * HTTP/2 stream, never pauses; instead the consumed callback is told how many
+ * bytes the handler took, so the sender's window can be reopened.
+ */
+public final class StreamingRequestBody implements RequestBody {
+    static final int HIGH_WATERMARK = 64 * 1024;
+    static final int LOW_WATERMARK = 16 * 1024;
+
+    private final long contentLength;
+    private final Executor executor;
+    private final Runnable onDrained;
+    private final IntConsumer onConsumed;
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+    private CompletableFuture<ByteBuffer> pendingRead;
+    private int queuedBytes = 0;
+    private boolean complete = false;
+    private boolean paused = false;
+    private Throwable failure;
+
+    StreamingRequestBody(long contentLength, Executor executor, Runnable onDrained) {
+        this(contentLength, executor, onDrained, null);
+    }
+
+    /**
+     * @param onConsumed called with the size of every chunk handed to the reader
+     */
+    public StreamingRequestBody(long contentLength, Executor executor, IntConsumer onConsumed) {
+        this(contentLength, executor, null, onConsumed);
+    }
+
+    private StreamingRequestBody(long contentLength, Executor executor, Runnable onDrained, IntConsumer onConsumed) {
+        this.contentLength = contentLength;
+        this.executor = executor;
+        this.onDrained = onDrained;
+        this.onConsumed = onConsumed;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> read() {
+        ByteBuffer chunk;
+        boolean resumed = false;
+        synchronized (this) {
+            if (pendingRead != null) {
+                throw new IllegalStateException("A read of the request body is already pending");
+            }
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            chunk = chunks.pollFirst();
+            if (chunk == null) {
+                if (complete) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                pendingRead = new CompletableFuture<>();
+                return pendingRead;
+            }
+            queuedBytes -= chunk.remaining();
+            if (paused && queuedBytes <= LOW_WATERMARK) {
+                resumed = resume();
+            }
+        }
+        if (resumed) {
+            onDrained.run();
+        }
+        if (onConsumed != null) {
+            onConsumed.accept(chunk.remaining());
+        }
+        return CompletableFuture.completedFuture(chunk);
+    }
+
+    /**
+     * Hands a chunk to the handler, called by the parser.
+     */
+    public void offer(ByteBuffer chunk) {
+        CompletableFuture<ByteBuffer> reader;
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            if (pendingRead == null) {
+                chunks.addLast(chunk);
+                queuedBytes += chunk.remaining();
+                if (onDrained != null && queuedBytes >= HIGH_WATERMARK) {
+                    paused = true;
+                }
+                return;
+            }
+            reader = pendingRead;
+            pendingRead = null;
+        }
+        if (onConsumed != null) {
+            onConsumed.accept(chunk.remaining());
+        }
+        executor.execute(() -> reader.complete(chunk));
+    }
+
+    /**
+     * The last chunk has been offered, called by the parser.
+     */
+    public void complete() {
+        CompletableFuture<ByteBuffer> reader;
+        synchronized (this) {
+            complete = true;
+            reader = pendingRead;
+            pendingRead = null;
+        }
+        if (reader != null) {
+            executor.execute(() -> reader.complete(null));
+        }
+    }
+
+    /**
+     * Fails pending and future reads, e.g. when the connection is closed or the
+     * body is malformed. Queued chunks are dropped.
+     */
+    public void fail(Throwable cause) {
+        CompletableFuture<ByteBuffer> reader;
+        boolean resumed;
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = cause;
+            chunks.clear();
+            queuedBytes = 0;
+            reader = pendingRead;
+            pendingRead = null;
+            resumed = resume();
+        }
+        if (reader != null) {
+            executor.execute(() -> reader.completeExceptionally(cause));
+        }
+        if (resumed) {
+            onDrained.run();
+        }
+    }
+
+    /**
+     * Drops the rest of the body once the response has been sent without it.
+     */
+    public void discard() {
+        fail(new IOException("Request body discarded, the response has been sent"));
+    }
+
+    synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Waits until the handler has drained the queue, for servers that read on a
+     * thread of their own.
+     *
+     * @return false when the body is still paused after the timeout
+     */
+    synchronized boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() / 1_000_000 + timeoutMillis;
+        while (paused) {
+            long remaining = deadline - System.nanoTime() / 1_000_000;
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private boolean resume() {
+        if (!paused) {
+            return false;
+        }
+        paused = false;
+        notifyAll();
+        return true;
+    }
+}
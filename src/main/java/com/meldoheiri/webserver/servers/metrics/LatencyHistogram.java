@@ -0,0 +1,49 @@
+package com.meldoheiri.webserver.servers.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with exponential buckets.
+ *
+ * Bucket {@code i} counts durations of up to 2^i microseconds, the last one
+ * everything longer, so recording is one bucket index computed from the
+ * leading zeros and one atomic increment; there is nothing to resize and
+ * nothing to lock. Readers get a bucket-by-bucket snapshot that may be a few
+ * records behind the writers, which is fine for scraping.
+ */
+public final class LatencyHistogram {
+    // 2^26 microseconds is a little over a minute
+    private static final int BOUNDED_BUCKETS = 27;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDED_BUCKETS + 1);
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = (nanos + 999) / 1000;
+        // smallest i with micros <= 2^i
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        counts.incrementAndGet(Math.min(bucket, BOUNDED_BUCKETS));
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format, in seconds.
+     */
+    void writeTo(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDED_BUCKETS; i++) {
+            cumulative += counts.get(i);
+            out.append(name).append("_bucket{le=\"").append((1L << i) / 1e6).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts.get(BOUNDED_BUCKETS);
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
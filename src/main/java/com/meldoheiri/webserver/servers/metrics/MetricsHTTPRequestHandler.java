@@ -0,0 +1,23 @@
+package com.meldoheiri.webserver.servers.metrics;
+
+import java.util.Map;
+
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequest;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequestHandler;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPResponse;
+
+/**
+ * Serves the server's metrics for Prometheus to scrape, routed for GET only.
+ */
+public class MetricsHTTPRequestHandler implements HTTPRequestHandler {
+    private final ServerMetrics metrics;
+
+    public MetricsHTTPRequestHandler(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public HTTPResponse handle(HTTPRequest request) {
+        return new HTTPResponse("HTTP/1.1 200 OK\r\n", Map.of(), metrics.scrape());
+    }
+}
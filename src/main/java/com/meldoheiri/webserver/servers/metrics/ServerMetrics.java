@@ -0,0 +1,240 @@
+package com.meldoheiri.webserver.servers.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and histograms of one server, updated from every I/O and
+ * handler thread.
+ *
+ * Counters are {@link LongAdder}s, so threads updating them at the same time
+ * land on different cells instead of contending for one cache line; the sum is
+ * only computed when the metrics are scraped. See {@link #scrape()} for the
+ * exported names.
+ */
+public final class ServerMetrics {
+    /**
+     * Why a request was answered with a 503 instead of being handled.
+     */
+    public enum ShedReason {
+        IN_FLIGHT_LIMIT("in_flight_limit"), QUEUE_DELAY("queue_delay"), QUEUE_FULL("queue_full");
+
+        private final String label;
+
+        ShedReason(String label) {
+            this.label = label;
+        }
+    }
+
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder openConnections = new LongAdder();
+    private final LongAdder timedOutConnections = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+    private final LongAdder accessLogDropped = new LongAdder();
+    private final LongAdder inFlightRequests = new LongAdder();
+    private final LongAdder acceptPauses = new LongAdder();
+    private final LongAdder fullTlsHandshakes = new LongAdder();
+    private final LongAdder resumedTlsHandshakes = new LongAdder();
+    private final LongAdder failedTlsHandshakes = new LongAdder();
+    private final LongAdder upstreamRequests = new LongAdder();
+    private final LongAdder upstreamConnectionsOpened = new LongAdder();
+    private final LongAdder upstreamFailures = new LongAdder();
+    private final LongAdder upstreamsMarkedDown = new LongAdder();
+    private final LongAdder[] shedRequests = new LongAdder[ShedReason.values().length];
+    private final LatencyHistogram requestDuration = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram eventLoopIteration = new LatencyHistogram();
+
+    public ServerMetrics() {
+        for (int i = 0; i < shedRequests.length; i++) {
+            shedRequests[i] = new LongAdder();
+        }
+    }
+
+    public void connectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    /**
+     * A connection was closed right away because the server is at its
+     * connection limit while draining its backlog.
+     */
+    public void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    public void connectionOpened() {
+        openConnections.increment();
+    }
+
+    public void connectionClosed() {
+        openConnections.decrement();
+    }
+
+    /**
+     * A connection was closed because one of its timeouts expired.
+     */
+    public void connectionTimedOut() {
+        timedOutConnections.increment();
+    }
+
+    /**
+     * The server stopped accepting connections because it is saturated.
+     */
+    public void acceptPaused() {
+        acceptPauses.increment();
+    }
+
+    public void requestAdmitted() {
+        inFlightRequests.increment();
+    }
+
+    public void requestReleased() {
+        inFlightRequests.decrement();
+    }
+
+    /**
+     * A request or connection was answered with a 503 instead of being
+     * handled.
+     */
+    public void requestShed(ShedReason reason) {
+        shedRequests[reason.ordinal()].increment();
+    }
+
+    public void bytesReceived(long count) {
+        bytesReceived.add(count);
+    }
+
+    public void bytesSent(long count) {
+        bytesSent.add(count);
+    }
+
+    public void parseError() {
+        parseErrors.increment();
+    }
+
+    /**
+     * A TLS handshake completed, either in full or by resuming a session from
+     * the cache or a session ticket.
+     */
+    public void tlsHandshakeCompleted(boolean resumed) {
+        (resumed ? resumedTlsHandshakes : fullTlsHandshakes).increment();
+    }
+
+    public void tlsHandshakeFailed() {
+        failedTlsHandshakes.increment();
+    }
+
+    /**
+     * A request was forwarded to a backend by a proxy route.
+     */
+    public void upstreamRequest() {
+        upstreamRequests.increment();
+    }
+
+    /**
+     * A new connection to a backend was opened, because none of the idle
+     * ones could be reused.
+     */
+    public void upstreamConnectionOpened() {
+        upstreamConnectionsOpened.increment();
+    }
+
+    /**
+     * An exchange with a backend failed with a connection error or a timeout.
+     */
+    public void upstreamFailure() {
+        upstreamFailures.increment();
+    }
+
+    /**
+     * A backend was taken out of rotation after failing too often in a row.
+     */
+    public void upstreamMarkedDown() {
+        upstreamsMarkedDown.increment();
+    }
+
+    /**
+     * An access log entry was dropped because the writer fell behind.
+     */
+    public void accessLogEntryDropped() {
+        accessLogDropped.increment();
+    }
+
+    /**
+     * Time from a request's head being received until its response is
+     * complete.
+     */
+    public void requestCompleted(long nanos) {
+        requestDuration.record(nanos);
+    }
+
+    /**
+     * Time from a request's head being received until its response head is
+     * queued for writing.
+     */
+    public void responseStarted(long nanos) {
+        timeToFirstByte.record(nanos);
+    }
+
+    /**
+     * Time an event loop spent on one iteration, from the selector returning
+     * to the next select.
+     */
+    public void eventLoopIteration(long nanos) {
+        eventLoopIteration.record(nanos);
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format.
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        counter(out, "webserver_connections_accepted_total", "Connections accepted.", acceptedConnections);
+        counter(out, "webserver_connections_rejected_total", "Connections closed at the connection limit.", rejectedConnections);
+        counter(out, "webserver_accept_pauses_total", "Times accepting connections was paused while saturated.", acceptPauses);
+        String shed = "webserver_requests_shed_total";
+        out.append("# HELP ").append(shed).append(" Requests answered with 503 by admission control.\n");
+        out.append("# TYPE ").append(shed).append(" counter\n");
+        for (ShedReason reason : ShedReason.values()) {
+            out.append(shed).append("{reason=\"").append(reason.label).append("\"} ")
+                    .append(shedRequests[reason.ordinal()].sum()).append('\n');
+        }
+        counter(out, "webserver_connections_timed_out_total", "Connections closed by a read, write or keep-alive timeout.", timedOutConnections);
+        counter(out, "webserver_received_bytes_total", "Bytes read from clients.", bytesReceived);
+        counter(out, "webserver_sent_bytes_total", "Bytes written to clients.", bytesSent);
+        counter(out, "webserver_request_parse_errors_total", "Requests refused while parsing.", parseErrors);
+        String handshakes = "webserver_tls_handshakes_total";
+        out.append("# HELP ").append(handshakes).append(" TLS handshakes completed, by whether the session was resumed.\n");
+        out.append("# TYPE ").append(handshakes).append(" counter\n");
+        out.append(handshakes).append("{resumed=\"false\"} ").append(fullTlsHandshakes.sum()).append('\n');
+        out.append(handshakes).append("{resumed=\"true\"} ").append(resumedTlsHandshakes.sum()).append('\n');
+        counter(out, "webserver_tls_handshake_failures_total", "TLS handshakes that failed.", failedTlsHandshakes);
+        counter(out, "webserver_upstream_requests_total", "Requests forwarded to backends.", upstreamRequests);
+        counter(out, "webserver_upstream_connections_opened_total", "Connections opened to backends.", upstreamConnectionsOpened);
+        counter(out, "webserver_upstream_failures_total", "Exchanges with backends that failed with a connection error or timeout.",
+                upstreamFailures);
+        counter(out, "webserver_upstream_marked_down_total", "Times a backend was taken out of rotation.", upstreamsMarkedDown);
+        counter(out, "webserver_access_log_dropped_total", "Access log entries dropped while the writer was behind.", accessLogDropped);
+        gauge(out, "webserver_open_connections", "Connections currently open.", openConnections.sum());
+        gauge(out, "webserver_in_flight_requests", "Requests admitted to a handler and not yet completed.", inFlightRequests.sum());
+        requestDuration.writeTo(out, "webserver_request_duration_seconds", "Time from request head to complete response.");
+        timeToFirstByte.writeTo(out, "webserver_time_to_first_byte_seconds", "Time from request head to response head.");
+        eventLoopIteration.writeTo(out, "webserver_event_loop_iteration_seconds", "Time event loops spend per selector wakeup.");
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, LongAdder value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value.sum()).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
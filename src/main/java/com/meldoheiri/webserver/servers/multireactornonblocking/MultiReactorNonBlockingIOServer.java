@@ -0,0 +1,232 @@
+package com.meldoheiri.webserver.servers.multireactornonblocking;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.ServerContext;
+import com.meldoheiri.webserver.servers.ServerLifecycle;
+import com.meldoheiri.webserver.servers.ServerSockets;
+import com.meldoheiri.webserver.servers.WebServer;
+import com.meldoheiri.webserver.servers.eventloop.EventLoop;
+import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+
+/**
+ * One acceptor thread plus {@code server.noThreads} event loops.
+ *
+ * The calling thread blocks on accept and hands every new connection to the
+ * least loaded event loop, scanning from a rotating start index so that loops
+ * with the same load are picked round-robin. Each loop owns its connections
+ * for their whole lifetime. While the loops hold {@code server.maxConnections}
+ * or admission control is saturated the acceptor stops accepting, leaving new
+ * connections in the backlog.
+ *
+ * With {@code server.reusePort} there is no acceptor thread: every loop binds
+ * a listener of its own to the port with {@code SO_REUSEPORT} and accepts on
+ * it, and the kernel spreads new connections across the listeners, so there
+ * is no single accept queue for all cores to contend on. The connection limit
+ * then applies per loop.
+ *
+ * Stopping ends the accept loop, hands the connections still queued on the
+ * listener to the loops and then drains every loop.
+ */
+public class MultiReactorNonBlockingIOServer implements WebServer {
+    private static final Logger LOGGER = System.getLogger(MultiReactorNonBlockingIOServer.class.getName());
+    private final ServerConfig config;
+    private final ServerContext context;
+    private final ServerLifecycle lifecycle = new ServerLifecycle();
+    private volatile EventLoop[] eventLoops;
+    private int nextEventLoop = 0;
+
+    public MultiReactorNonBlockingIOServer(ServerConfig config) {
+        this.config = config;
+        this.context = new ServerContext(config);
+    }
+
+    @Override
+    public void start() throws WebServerException {
+        int count = Math.max(1, config.getNoThreads());
+        try {
+            if (config.isReusePort()) {
+                acceptOnEventLoops(count);
+            } else {
+                acceptOnCallingThread(count);
+            }
+        } finally {
+            context.close();
+            lifecycle.stopped();
+        }
+    }
+
+    @Override
+    public void stop(Duration drainTimeout) {
+        if (lifecycle.drain(drainTimeout) && config.isReusePort()) {
+            // the loops accept themselves, the acceptor thread drains them otherwise
+            for (EventLoop eventLoop : eventLoops) {
+                eventLoop.drain(drainTimeout);
+            }
+        }
+        lifecycle.awaitStopped();
+    }
+
+    @Override
+    public State getState() {
+        return lifecycle.getState();
+    }
+
+    private void acceptOnCallingThread(int count) throws WebServerException {
+        Thread[] threads = null;
+        try (ServerSocketChannel serverChannel = ServerSockets.openListener(config)) {
+            lifecycle.running();
+            threads = startEventLoops(count);
+
+            boolean paused = false;
+            while (lifecycle.isRunning()) {
+                if (connectionCount() >= config.getMaxConnections() || context.getAdmission().isSaturated()) {
+                    if (!paused) {
+                        paused = true;
+                        context.getMetrics().acceptPaused();
+                    }
+                    ServerSockets.pauseAccept();
+                    continue;
+                }
+                paused = false;
+                SocketChannel clientChannel = ServerSockets.accept(serverChannel);
+                if (clientChannel != null) {
+                    dispatch(clientChannel);
+                }
+            }
+            for (SocketChannel clientChannel : ServerSockets.acceptQueued(serverChannel)) {
+                dispatch(clientChannel);
+            }
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.ERROR)) {
+                LOGGER.log(Level.ERROR, "Listener failed, stopping the event loops", e);
+            }
+            if (threads != null) {
+                // the listener is gone, the loops are stopped rather than left serving nothing but their connections
+                for (EventLoop eventLoop : eventLoops) {
+                    eventLoop.drain(Duration.ZERO);
+                }
+                join(threads);
+            }
+            throw new WebServerException("Server Failure", e);
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.drain(lifecycle.remainingDrainTime());
+        }
+        join(threads);
+    }
+
+    private void dispatch(SocketChannel clientChannel) {
+        if (connectionCount() >= config.getMaxConnections()) {
+            // only reached while draining the backlog, which is not left for later
+            context.getMetrics().connectionRejected();
+            closeQuietly(clientChannel);
+            return;
+        }
+        context.getMetrics().connectionAccepted();
+        selectEventLoop().adopt(clientChannel);
+    }
+
+    /**
+     * Binds one listener per loop and runs the loops until they all end.
+     */
+    private void acceptOnEventLoops(int count) throws WebServerException {
+        EventLoop[] eventLoops = new EventLoop[count];
+        Thread[] threads = new Thread[count];
+        ServerSocketChannel[] serverChannels = new ServerSocketChannel[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                serverChannels[i] = ServerSockets.openListener(config);
+                eventLoops[i] = new EventLoop(context);
+                eventLoops[i].registerServerChannel(serverChannels[i]);
+                threads[i] = new Thread(eventLoops[i], "event-loop-" + i);
+            }
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.ERROR)) {
+                LOGGER.log(Level.ERROR, "Failed to set up the event loops", e);
+            }
+            // none of the loops is running yet, so nothing else closes the listeners
+            for (ServerSocketChannel serverChannel : serverChannels) {
+                closeQuietly(serverChannel);
+            }
+            throw new WebServerException("Server Failure", e);
+        }
+        this.eventLoops = eventLoops;
+        try {
+            lifecycle.running();
+        } catch (IllegalStateException e) {
+            for (ServerSocketChannel serverChannel : serverChannels) {
+                closeQuietly(serverChannel);
+            }
+            throw e;
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        join(threads);
+    }
+
+    private static void join(Thread[] threads) {
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Close failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private Thread[] startEventLoops(int count) throws IOException {
+        EventLoop[] eventLoops = new EventLoop[count];
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            eventLoops[i] = new EventLoop(context);
+            threads[i] = new Thread(eventLoops[i], "event-loop-" + i);
+            threads[i].start();
+        }
+        this.eventLoops = eventLoops;
+        return threads;
+    }
+
+    private EventLoop selectEventLoop() {
+        int start = nextEventLoop;
+        nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+
+        EventLoop selected = eventLoops[start];
+        for (int i = 1; i < eventLoops.length; i++) {
+            EventLoop candidate = eventLoops[(start + i) % eventLoops.length];
+            if (candidate.getConnectionCount() < selected.getConnectionCount()) {
+                selected = candidate;
+            }
+        }
+        return selected;
+    }
+
+    private int connectionCount() {
+        int count = 0;
+        for (EventLoop eventLoop : eventLoops) {
+            count += eventLoop.getConnectionCount();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,740 @@
+package com.meldoheiri.webserver.servers.proactor;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLException;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.ServerContext;
+import com.meldoheiri.webserver.servers.ServerSockets;
+import com.meldoheiri.webserver.servers.bufferpool.BufferPool;
+import com.meldoheiri.webserver.servers.bufferpool.PooledOutputStream;
+import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+import com.meldoheiri.webserver.servers.http2.Http2Connection;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.HTTPSocketDataHandler;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.ProtocolSwitch;
+import com.meldoheiri.webserver.servers.httpsocketdatahandler.SocketDataHandler;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+import com.meldoheiri.webserver.servers.tls.TlsChannel;
+import com.meldoheiri.webserver.servers.tls.TlsContext;
+
+/**
+ * A client connection of the {@link ProactorIOServer}, driven by the
+ * completions of its reads and writes instead of by a selector.
+ *
+ * Completions run on whichever thread of the channel group is free, and
+ * handler responses arrive on the handler threads, so everything that touches
+ * the connection is a task of {@link #execute(Runnable)}: tasks run one at a
+ * time, in order, on the thread that submitted them unless another thread is
+ * running the connection's tasks already, in which case that thread runs them
+ * too. No task ever waits for another one, and the state needs no locks.
+ *
+ * At most one read and one write are pending. A read stays pending while the
+ * connection waits for a request, and no read is started while responses are
+ * being written, the same way an event loop drops read interest. Responses are
+ * copied from the response stream into a staging buffer, a direct buffer of
+ * the pool the kernel writes from while the stream is filled again; files are
+ * sent through it as well, since an asynchronous channel has no
+ * {@code transferTo}. With TLS the staging buffers carry the records, and the
+ * {@link TlsChannel} reads and writes them as its socket.
+ *
+ * Timeouts are the event loop's, one deadline per connection for reading the
+ * headers, reading the body, writing, waiting for the next request or
+ * lingering after the last response. Moving a deadline is a field update; the
+ * server's timer checks it when it fires and is only rescheduled then, or
+ * when the deadline moves closer.
+ */
+final class AsynchronousConnection {
+    private static final Logger LOGGER = System.getLogger(AsynchronousConnection.class.getName());
+    private static final long LINGER_MILLIS = 2_000;
+
+    /**
+     * What the connection is currently waiting for, each with its own timeout.
+     */
+    enum Deadline {
+        READ_HEADER, READ_BODY, WRITE, KEEP_ALIVE,
+        // the last response is written, waiting for the client to close
+        LINGER
+    }
+
+    private static final CompletionHandler<Integer, AsynchronousConnection> READ_COMPLETION = new CompletionHandler<>() {
+        @Override
+        public void completed(Integer bytesRead, AsynchronousConnection connection) {
+            connection.execute(() -> connection.onRead(bytesRead));
+        }
+
+        @Override
+        public void failed(Throwable error, AsynchronousConnection connection) {
+            connection.execute(() -> connection.onReadFailed(error));
+        }
+    };
+
+    private static final CompletionHandler<Integer, AsynchronousConnection> WRITE_COMPLETION = new CompletionHandler<>() {
+        @Override
+        public void completed(Integer written, AsynchronousConnection connection) {
+            connection.execute(() -> connection.onWritten(written));
+        }
+
+        @Override
+        public void failed(Throwable error, AsynchronousConnection connection) {
+            connection.execute(() -> connection.onWriteFailed(error));
+        }
+    };
+
+    private final AsynchronousSocketChannel channel;
+    private final ProactorIOServer server;
+    private final ServerContext context;
+    private final ServerMetrics metrics;
+    private final BufferPool bufferPool;
+    private final PooledOutputStream responseStream;
+    private final SocketAddress remoteAddress;
+    private final Executor completionExecutor;
+    private final StagingChannel staging = new StagingChannel();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    private final long readHeaderTimeoutMillis;
+    private final long readBodyTimeoutMillis;
+    private final long writeTimeoutMillis;
+    private final long keepAliveTimeoutMillis;
+    // null on a plaintext connection
+    private final TlsChannel tls;
+    // replaced by an HTTP/2 connection when the client switches to h2c or picks h2 by ALPN
+    private SocketDataHandler requestHandler;
+    // bytes read from the socket, in read mode unless a read is pending
+    private ByteBuffer input;
+    // bytes to be written to the socket, in write mode unless a write is pending
+    private ByteBuffer output;
+    private boolean readPending = false;
+    private boolean writePending = false;
+    private boolean endOfInput = false;
+    private boolean inputClosed = false;
+    private boolean draining = false;
+    private boolean lingering = false;
+    private boolean closed = false;
+    private Deadline deadline;
+    private long deadlineNanos;
+    // the timer checking the deadline, and the System.nanoTime() it fires at
+    private Future<?> timer;
+    private long timerNanos;
+
+    AsynchronousConnection(AsynchronousSocketChannel channel, ProactorIOServer server, ServerContext context, BufferPool bufferPool)
+            throws IOException {
+        ServerConfig config = context.getConfig();
+        ServerSockets.configure(channel, config);
+        this.channel = channel;
+        this.server = server;
+        this.context = context;
+        this.metrics = context.getMetrics();
+        this.bufferPool = bufferPool;
+        this.responseStream = new PooledOutputStream(bufferPool);
+        this.remoteAddress = channel.getRemoteAddress();
+        this.readHeaderTimeoutMillis = config.getReadHeaderTimeoutMillis();
+        this.readBodyTimeoutMillis = config.getReadBodyTimeoutMillis();
+        this.writeTimeoutMillis = config.getWriteTimeoutMillis();
+        this.keepAliveTimeoutMillis = config.getKeepAliveTimeoutMillis();
+        // handler responses are written by a task of the connection, which then carries on with its I/O
+        this.completionExecutor = task -> execute(() -> {
+            task.run();
+            resume();
+        });
+        TlsContext tlsContext = context.getTls();
+        if (tlsContext != null) {
+            this.tls = new TlsChannel(staging, tlsContext.newEngine(config.isHttp2Enabled()), bufferPool,
+                    context.getHandlerExecutor(), () -> execute(this::onTlsProgress), metrics);
+        } else {
+            this.tls = null;
+        }
+        ProtocolSwitch http2 = null;
+        // over TLS HTTP/2 is chosen in the handshake, not by h2c
+        if (config.isHttp2Enabled() && tls == null) {
+            http2 = (upgradeRequest, received) -> newHttp2Connection().start(upgradeRequest, received);
+        }
+        this.requestHandler = new HTTPSocketDataHandler(responseStream, context, remoteAddress, context.getHandlerExecutor(),
+                completionExecutor, http2);
+    }
+
+    private Http2Connection newHttp2Connection() {
+        Http2Connection connection = new Http2Connection(responseStream, context, remoteAddress, context.getHandlerExecutor(),
+                completionExecutor);
+        this.requestHandler = connection;
+        return connection;
+    }
+
+    /**
+     * Runs the task after the connection's earlier tasks. Safe to call from
+     * any thread, including from a task, which then returns first.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (pendingTasks.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            try {
+                tasks.poll().run();
+            } catch (RuntimeException e) {
+                if (LOGGER.isLoggable(Level.WARNING)) {
+                    LOGGER.log(Level.WARNING, "Connection task failed", e);
+                }
+                close();
+            }
+        } while (pendingTasks.decrementAndGet() != 0);
+    }
+
+    /**
+     * Starts reading the first request. Called once, after the connection
+     * has been added to the server.
+     */
+    void start() {
+        execute(() -> {
+            metrics.connectionOpened();
+            setDeadline(Deadline.READ_HEADER);
+            if (server.isDraining()) {
+                drain();
+            }
+            resume();
+        });
+    }
+
+    /**
+     * The server is stopping: an idle connection is closed, the others after
+     * their last response. A task of the connection.
+     */
+    void drain() {
+        if (draining || closed || lingering || deadline == null) {
+            // one that is not started yet is drained by start()
+            return;
+        }
+        draining = true;
+        if (deadline == Deadline.KEEP_ALIVE && !hasPendingWrites() && !requestHandler.isResponsePending()
+                && !requestHandler.isRequestInProgress()) {
+            close();
+            return;
+        }
+        requestHandler.drain();
+        resume();
+    }
+
+    /**
+     * Carries on with whatever the connection can do next: writing queued
+     * responses, closing after the last one, or reading.
+     */
+    private void resume() {
+        boolean inputTaken = false;
+        while (!closed && !writePending && !lingering) {
+            if (hasPendingWrites()) {
+                if (flushResponses()) {
+                    return;
+                }
+                // a TLS handshake holds the responses back until the client's next records
+            } else if (shouldCloseAfterWrite()) {
+                closeAfterResponse();
+                return;
+            } else if (output != null) {
+                // an idle connection holds no output buffer
+                bufferPool.release(output);
+                output = null;
+            }
+            if (inputClosed) {
+                return;
+            }
+            setReadDeadline();
+            if (!isReadable()) {
+                return;
+            }
+            if (!inputTaken && hasBufferedInput()) {
+                // input that arrived while the handler was behind, or records decrypted in part
+                inputTaken = true;
+                takeInput();
+                continue;
+            }
+            if (!readPending) {
+                startRead();
+            }
+            return;
+        }
+    }
+
+    private boolean isReadable() {
+        return !inputClosed && !requestHandler.isReadPaused() && (tls == null || !tls.isWaitingForTasks());
+    }
+
+    private boolean hasBufferedInput() {
+        if (readPending) {
+            return false;
+        }
+        return (input != null && input.hasRemaining()) || (tls != null && tls.hasBufferedInput());
+    }
+
+    private boolean hasPendingWrites() {
+        return writePending || responseStream.hasRemaining() || (output != null && output.position() > 0)
+                || (tls != null && tls.hasPendingOutput());
+    }
+
+    private boolean shouldCloseAfterWrite() {
+        return (inputClosed && !requestHandler.isResponsePending()) || requestHandler.shouldCloseConnection();
+    }
+
+    private void startRead() {
+        if (input == null) {
+            input = bufferPool.acquire(BufferPool.MEDIUM);
+        } else {
+            input.compact();
+        }
+        readPending = true;
+        channel.read(input, this, READ_COMPLETION);
+    }
+
+    private void onRead(int bytesRead) {
+        readPending = false;
+        if (closed) {
+            releaseBuffers();
+            return;
+        }
+        input.flip();
+        if (lingering) {
+            // discarded undecrypted, the deadline is not extended
+            input.position(input.limit());
+            if (bytesRead == -1) {
+                close();
+            } else {
+                startRead();
+            }
+            return;
+        }
+        if (bytesRead == -1) {
+            endOfInput = true;
+        } else if (tls == null) {
+            metrics.bytesReceived(bytesRead);
+        }
+        takeInput();
+        resume();
+    }
+
+    private void onReadFailed(Throwable error) {
+        readPending = false;
+        if (!closed) {
+            logFailure(error);
+            close();
+        }
+        releaseBuffers();
+    }
+
+    /**
+     * Hands what was read to the request handler, decrypting it first on a
+     * TLS connection.
+     */
+    private void takeInput() {
+        if (tls == null) {
+            if (input.hasRemaining()) {
+                handle(input);
+            } else if (endOfInput) {
+                onEndOfInput();
+            }
+            return;
+        }
+        ByteBuffer decrypted = bufferPool.acquire(BufferPool.MEDIUM);
+        try {
+            do {
+                decrypted.clear();
+                int bytesRead;
+                try {
+                    boolean negotiated = tls.isNegotiated();
+                    bytesRead = tls.read(decrypted);
+                    if (!negotiated && tls.isNegotiated() && TlsContext.H2.equals(tls.getApplicationProtocol())) {
+                        newHttp2Connection().startNegotiated();
+                    }
+                } catch (SSLException e) {
+                    if (LOGGER.isLoggable(Level.DEBUG)) {
+                        LOGGER.log(Level.DEBUG, "TLS failure: " + e.getMessage());
+                    }
+                    close();
+                    return;
+                } catch (IOException e) {
+                    if (LOGGER.isLoggable(Level.DEBUG)) {
+                        LOGGER.log(Level.DEBUG, "Read failed: " + e.getMessage());
+                    }
+                    close();
+                    return;
+                }
+                if (bytesRead == 0) {
+                    // an incomplete record or a handshake step, which may have something to send
+                    return;
+                }
+                if (bytesRead == -1) {
+                    onEndOfInput();
+                    return;
+                }
+                metrics.bytesReceived(bytesRead);
+                decrypted.flip();
+                if (!handle(decrypted)) {
+                    return;
+                }
+            } while (!hasPendingWrites() && isReadable() && hasBufferedInput());
+        } finally {
+            bufferPool.release(decrypted);
+        }
+    }
+
+    /**
+     * @return false when the connection was closed
+     */
+    private boolean handle(ByteBuffer data) {
+        try {
+            requestHandler.read(data);
+            return true;
+        } catch (WebServerException e) {
+            // malformed requests are counted as parse errors by the handler
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Request failed", e);
+            }
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * The client has shut down its side of the connection; it is closed as
+     * soon as pending responses are written.
+     */
+    private void onEndOfInput() {
+        inputClosed = true;
+        if (hasPendingWrites() || requestHandler.isResponsePending()) {
+            setDeadline(Deadline.WRITE);
+        }
+    }
+
+    /**
+     * Moves queued responses into the output buffer and starts writing it.
+     *
+     * @return false when nothing could be written
+     */
+    private boolean flushResponses() {
+        if (output == null) {
+            output = bufferPool.acquire(BufferPool.LARGE);
+        }
+        try {
+            long written;
+            do {
+                if (tls == null) {
+                    written = responseStream.writeTo(staging);
+                } else {
+                    written = responseStream.writeTo(tls);
+                    tls.flush();
+                }
+                metrics.bytesSent(written);
+                // streamed bodies are pulled as fast as the client reads them
+            } while (requestHandler.pumpResponse() && written > 0 && output.hasRemaining());
+        } catch (SSLException e) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "TLS failure: " + e.getMessage());
+            }
+            close();
+            return true;
+        } catch (IOException | WebServerException e) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Write failed", e);
+            }
+            close();
+            return true;
+        }
+        if (output.position() == 0) {
+            return false;
+        }
+        startWrite();
+        // the write timeout runs from the last progress, not from the start of the response
+        setDeadline(Deadline.WRITE);
+        return true;
+    }
+
+    private void startWrite() {
+        output.flip();
+        writePending = true;
+        channel.write(output, this, WRITE_COMPLETION);
+    }
+
+    private void onWritten(int written) {
+        writePending = false;
+        if (closed) {
+            releaseBuffers();
+            return;
+        }
+        if (output.hasRemaining()) {
+            writePending = true;
+            channel.write(output, this, WRITE_COMPLETION);
+            if (written > 0) {
+                setDeadline(Deadline.WRITE);
+            }
+            return;
+        }
+        output.clear();
+        if (lingering) {
+            shutdownOutput();
+            return;
+        }
+        resume();
+    }
+
+    private void onWriteFailed(Throwable error) {
+        writePending = false;
+        if (!closed) {
+            logFailure(error);
+            close();
+        }
+        releaseBuffers();
+    }
+
+    /**
+     * Called once the delegated tasks of a TLS handshake have run, to carry
+     * on with the handshake.
+     */
+    private void onTlsProgress() {
+        if (closed || lingering) {
+            return;
+        }
+        takeInput();
+        resume();
+    }
+
+    /**
+     * Picks the read deadline matching how far the next request got. The body
+     * deadline is extended by every read, the header deadline is not, so a
+     * client cannot hold on to a connection by trickling header bytes.
+     */
+    private void setReadDeadline() {
+        if (requestHandler.isReadingBody()) {
+            setDeadline(Deadline.READ_BODY);
+        } else if (requestHandler.isResponsePending()) {
+            // a handler is producing the response, the write timeout covers it
+            if (deadline != Deadline.WRITE) {
+                setDeadline(Deadline.WRITE);
+            }
+        } else if (deadline == Deadline.READ_HEADER) {
+            return;
+        } else if (requestHandler.isRequestInProgress()) {
+            setDeadline(Deadline.READ_HEADER);
+        } else {
+            setDeadline(Deadline.KEEP_ALIVE);
+        }
+    }
+
+    private void setDeadline(Deadline deadline) {
+        long timeoutMillis = switch (deadline) {
+            case READ_HEADER -> readHeaderTimeoutMillis;
+            case READ_BODY -> readBodyTimeoutMillis;
+            case WRITE -> writeTimeoutMillis;
+            case KEEP_ALIVE -> keepAliveTimeoutMillis;
+            case LINGER -> LINGER_MILLIS;
+        };
+        this.deadline = deadline;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (timer != null && deadlineNanos - timerNanos >= 0) {
+            // the timer fires first and moves itself on to the new deadline
+            return;
+        }
+        scheduleTimer();
+    }
+
+    private void scheduleTimer() {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        timerNanos = deadlineNanos;
+        // null once the server has stopped
+        timer = server.schedule(() -> execute(this::checkDeadline), deadlineNanos - System.nanoTime());
+    }
+
+    private void checkDeadline() {
+        timer = null;
+        if (closed) {
+            return;
+        }
+        if (deadlineNanos - System.nanoTime() > 0) {
+            scheduleTimer();
+            return;
+        }
+        if (deadline != Deadline.LINGER) {
+            metrics.connectionTimedOut();
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Connection timed out: " + deadline);
+            }
+        }
+        close();
+    }
+
+    /**
+     * Closes a connection whose last response is written. As on the event
+     * loops only the output is shut down, after {@code close_notify} on a TLS
+     * connection, and input is discarded until the client closes as well or
+     * {@link #LINGER_MILLIS} have passed, so unread input does not reset the
+     * connection before the client has read the end of the response.
+     */
+    private void closeAfterResponse() {
+        if (inputClosed) {
+            close();
+            return;
+        }
+        lingering = true;
+        if (tls != null) {
+            tls.closeOutbound();
+            if (output != null && output.position() > 0) {
+                startWrite();
+                return;
+            }
+        }
+        shutdownOutput();
+    }
+
+    private void shutdownOutput() {
+        try {
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        setDeadline(Deadline.LINGER);
+        if (!readPending) {
+            startRead();
+        }
+    }
+
+    /**
+     * Closes the socket and drops what has not been answered. Buffers an
+     * operation is still pending on are given back when it completes, which
+     * closing the socket makes it do.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        try {
+            channel.close();
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Connection closed");
+            }
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.DEBUG)) {
+                LOGGER.log(Level.DEBUG, "Close failed: " + e.getMessage());
+            }
+        }
+        requestHandler.close();
+        responseStream.close();
+        if (tls != null) {
+            try {
+                tls.close();
+            } catch (IOException e) {
+                // the socket is closed already
+            }
+        }
+        releaseBuffers();
+        server.connectionClosed(this);
+    }
+
+    private void releaseBuffers() {
+        if (!readPending) {
+            bufferPool.release(input);
+            input = null;
+        }
+        if (!writePending) {
+            bufferPool.release(output);
+            output = null;
+        }
+    }
+
+    private static void logFailure(Throwable error) {
+        // closed by the server, or by the group shutting down
+        if (error instanceof AsynchronousCloseException || error instanceof ClosedChannelException) {
+            return;
+        }
+        if (error instanceof IOException && LOGGER.isLoggable(Level.DEBUG)) {
+            LOGGER.log(Level.DEBUG, "Connection failed: " + error.getMessage());
+        } else if (!(error instanceof IOException) && LOGGER.isLoggable(Level.WARNING)) {
+            LOGGER.log(Level.WARNING, "Connection failed", error);
+        }
+    }
+
+    /**
+     * The socket as a non-blocking channel for the response stream and the
+     * {@link TlsChannel}: reads take the bytes of the last completed read,
+     * writes copy into the output buffer. Neither blocks; a write takes
+     * nothing while the output buffer is being written to the socket.
+     */
+    private final class StagingChannel implements ByteChannel, GatheringByteChannel {
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (readPending || input == null || !input.hasRemaining()) {
+                return endOfInput && !readPending ? -1 : 0;
+            }
+            int count = Math.min(dst.remaining(), input.remaining());
+            dst.put(dst.position(), input, input.position(), count);
+            dst.position(dst.position() + count);
+            input.position(input.position() + count);
+            return count;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            if (writePending) {
+                return 0;
+            }
+            if (output == null) {
+                output = bufferPool.acquire(BufferPool.LARGE);
+            }
+            int count = Math.min(src.remaining(), output.remaining());
+            output.put(output.position(), src, src.position(), count);
+            output.position(output.position() + count);
+            src.position(src.position() + count);
+            return count;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long count = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int written = write(srcs[i]);
+                count += written;
+                if (srcs[i].hasRemaining()) {
+                    break;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.meldoheiri.webserver.servers.proactor;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.ServerContext;
+import com.meldoheiri.webserver.servers.ServerLifecycle;
+import com.meldoheiri.webserver.servers.ServerSockets;
+import com.meldoheiri.webserver.servers.WebServer;
+import com.meldoheiri.webserver.servers.bufferpool.BufferPool;
+import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+
+/**
+ * Completion based I/O: an {@link AsynchronousServerSocketChannel} and
+ * {@link AsynchronousConnection}s in one {@link AsynchronousChannelGroup} of
+ * {@code server.noThreads} threads.
+ *
+ * Nothing is registered for readiness: every accept, read and write is started
+ * with a {@link CompletionHandler}, and the group's threads run the handlers
+ * as operations complete. A connection is not tied to a thread, whichever
+ * group thread is free runs its next completion, so connections spread over
+ * the cores by themselves. The requests are parsed and answered by the same
+ * {@link com.meldoheiri.webserver.servers.httpsocketdatahandler.SocketDataHandler}s
+ * as on the event loops, writing to pooled buffers; the buffers come from a
+ * few pools shared by the group threads, since a connection's completions do
+ * not stay on one thread.
+ *
+ * One accept is pending at a time, and the next one is started when it
+ * completes. While the server holds {@code server.maxConnections} or
+ * admission control is saturated no accept is started, leaving new
+ * connections in the listener's backlog, and the server checks again every
+ * tick.
+ *
+ * Stopping drains the connections like the other servers: the connections
+ * the kernel has queued are still accepted until none arrived for a tick,
+ * then the listener is closed, idle connections are closed and the others
+ * after their last response.
+ */
+public class ProactorIOServer implements WebServer {
+    private static final Logger LOGGER = System.getLogger(ProactorIOServer.class.getName());
+    private static final long TICK_MILLIS = 100;
+
+    private final CompletionHandler<AsynchronousSocketChannel, Void> acceptCompletion = new CompletionHandler<>() {
+        @Override
+        public void completed(AsynchronousSocketChannel clientChannel, Void attachment) {
+            lastAcceptNanos = System.nanoTime();
+            adopt(clientChannel);
+            accept();
+        }
+
+        @Override
+        public void failed(Throwable error, Void attachment) {
+            if (!listener.isOpen()) {
+                return;
+            }
+            // e.g. out of file descriptors, tried again on the next tick
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.log(Level.WARNING, "Accept failed, backing off: " + error.getMessage());
+            }
+            schedule(ProactorIOServer.this::accept, TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS));
+        }
+    };
+
+    private final ServerConfig config;
+    private final ServerContext context;
+    private final ServerLifecycle lifecycle = new ServerLifecycle();
+    private final CountDownLatch drainRequested = new CountDownLatch(1);
+    private final Set<AsynchronousConnection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connectionCount = new AtomicInteger(0);
+    private final ScheduledThreadPoolExecutor timer;
+    private AsynchronousServerSocketChannel listener;
+    private BufferPool[] bufferPools;
+    // only touched by the accept completions, which follow each other
+    private int nextBufferPool = 0;
+    private boolean acceptPaused = false;
+    private volatile boolean draining = false;
+    private volatile long lastAcceptNanos;
+
+    public ProactorIOServer(ServerConfig config) {
+        this.config = config;
+        this.context = new ServerContext(config);
+        this.timer = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().name("proactor-timer").daemon().factory());
+        // connections cancel their timer when they close, which should not leave it queued
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public void start() throws WebServerException {
+        int threads = Math.max(1, config.getNoThreads());
+        AsynchronousChannelGroup group = null;
+        try {
+            group = AsynchronousChannelGroup.withFixedThreadPool(threads, Thread.ofPlatform().name("proactor-", 0).factory());
+            bufferPools = new BufferPool[threads];
+            for (int i = 0; i < threads; i++) {
+                bufferPools[i] = context.getBufferPools().newSharedPool();
+            }
+            try (AsynchronousServerSocketChannel serverChannel = ServerSockets.openListener(config, group)) {
+                this.listener = serverChannel;
+                lifecycle.running();
+                accept();
+                awaitDrainRequest();
+                startDrain();
+            }
+            awaitDrained();
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.ERROR)) {
+                LOGGER.log(Level.ERROR, "Server failed", e);
+            }
+            throw new WebServerException("Server Failure", e);
+        } finally {
+            for (AsynchronousConnection connection : new ArrayList<>(connections)) {
+                connection.execute(connection::close);
+            }
+            if (group != null) {
+                shutdown(group);
+            }
+            timer.shutdownNow();
+            context.close();
+            lifecycle.stopped();
+        }
+    }
+
+    @Override
+    public void stop(Duration drainTimeout) {
+        if (lifecycle.drain(drainTimeout)) {
+            drainRequested.countDown();
+        }
+        lifecycle.awaitStopped();
+    }
+
+    @Override
+    public State getState() {
+        return lifecycle.getState();
+    }
+
+    /**
+     * Starts the next accept, unless the server is saturated. While it
+     * drains, the backlog is accepted whatever the load.
+     */
+    private void accept() {
+        if (!listener.isOpen()) {
+            return;
+        }
+        if (!draining && (connectionCount.get() >= config.getMaxConnections() || context.getAdmission().isSaturated())) {
+            if (!acceptPaused) {
+                acceptPaused = true;
+                context.getMetrics().acceptPaused();
+                if (LOGGER.isLoggable(Level.DEBUG)) {
+                    LOGGER.log(Level.DEBUG, "Accepting paused at " + connectionCount.get() + " connections");
+                }
+            }
+            schedule(this::accept, TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS));
+            return;
+        }
+        acceptPaused = false;
+        listener.accept(null, acceptCompletion);
+    }
+
+    private void adopt(AsynchronousSocketChannel clientChannel) {
+        if (connectionCount.get() >= config.getMaxConnections()) {
+            // only reached while draining the backlog, which is not left for later
+            context.getMetrics().connectionRejected();
+            closeQuietly(clientChannel);
+            return;
+        }
+        context.getMetrics().connectionAccepted();
+        connectionCount.incrementAndGet();
+        AsynchronousConnection connection;
+        try {
+            connection = new AsynchronousConnection(clientChannel, this, context, bufferPools[nextBufferPool]);
+        } catch (IOException e) {
+            // reset before it could be set up
+            connectionCount.decrementAndGet();
+            closeQuietly(clientChannel);
+            return;
+        }
+        nextBufferPool = (nextBufferPool + 1) % bufferPools.length;
+        connections.add(connection);
+        connection.start();
+    }
+
+    private void awaitDrainRequest() {
+        try {
+            drainRequested.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drains the connections, then keeps accepting until the backlog is
+     * empty. Connections accepted from now on are drained as they start.
+     */
+    private void startDrain() {
+        draining = true;
+        for (AsynchronousConnection connection : new ArrayList<>(connections)) {
+            connection.execute(connection::drain);
+        }
+        long quietNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+        long drainStart = System.nanoTime();
+        while (System.nanoTime() - Math.max(drainStart, lastAcceptNanos) < quietNanos && !lifecycle.remainingDrainTime().isZero()) {
+            if (!sleep(TICK_MILLIS / 10)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits until every connection is closed or the drain timeout has passed.
+     */
+    private void awaitDrained() {
+        while (!connections.isEmpty() && !lifecycle.remainingDrainTime().isZero()) {
+            if (!sleep(Math.min(TICK_MILLIS, Math.max(1, lifecycle.remainingDrainTime().toMillis())))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs the task on the server's timer thread after the delay.
+     *
+     * @return null once the server has stopped
+     */
+    Future<?> schedule(Runnable task, long delayNanos) {
+        try {
+            return timer.schedule(task, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Called once by every connection as it closes.
+     */
+    void connectionClosed(AsynchronousConnection connection) {
+        if (connections.remove(connection)) {
+            connectionCount.decrementAndGet();
+            context.getMetrics().connectionClosed();
+        }
+    }
+
+    /**
+     * Number of open connections, including the ones that are accepted but not
+     * started yet.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    private static void shutdown(AsynchronousChannelGroup group) {
+        try {
+            group.shutdownNow();
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.log(Level.WARNING, "Failed to shut down the channel group", e);
+            }
+            return;
+        }
+        try {
+            group.awaitTermination(TICK_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void closeQuietly(AsynchronousSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // never set up as a connection
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.meldoheiri.webserver.servers.proxy;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPHeaders;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequest;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequestHandler;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPResponse;
+import com.meldoheiri.webserver.servers.httprequesthandler.RequestBody;
+import com.meldoheiri.webserver.servers.httprequesthandler.ResponseBody;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+
+/**
+ * Forwards the requests of a route to its backends over HTTP/1.1, with the
+ * path and query as they were requested.
+ *
+ * Each request goes to the available backend with the fewest requests in
+ * progress, ties taken in turn, over one of that backend's idle persistent
+ * {@link UpstreamConnection}s when there is one. Neither body is collected in
+ * memory: the request body is sent on as it arrives and the response body is
+ * read from the backend as the client takes it.
+ *
+ * A backend that cannot be connected to counts as a failure of its
+ * {@link Upstream} and the next backend is tried. A request without a body
+ * that fails on a reused connection, which the backend may have closed just
+ * as it was picked, is sent once more on a new connection. Other failures are
+ * answered with 502 Bad Gateway, timeouts with 504 Gateway Timeout, and a
+ * route whose backends are all out of rotation with 503.
+ *
+ * Hop-by-hop headers are not forwarded in either direction, and the server
+ * frames the response for its own client; the response's {@code Date} and
+ * {@code Server} are the server's own.
+ */
+public class ProxyHTTPRequestHandler implements HTTPRequestHandler {
+    private static final HTTPResponse SERVICE_UNAVAILABLE = new HTTPResponse("HTTP/1.1 503 Service Unavailable\r\n", Map.of(), "");
+    private static final HTTPResponse BAD_GATEWAY = new HTTPResponse("HTTP/1.1 502 Bad Gateway\r\n", Map.of(), "");
+    private static final HTTPResponse GATEWAY_TIMEOUT = new HTTPResponse("HTTP/1.1 504 Gateway Timeout\r\n", Map.of(), "");
+    private static final HTTPResponse BAD_REQUEST = new HTTPResponse("HTTP/1.1 400 Bad Request\r\n", Map.of(), "");
+    private static final Set<String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "te",
+            "trailer", "upgrade", "content-length");
+    private static final Set<String> METHODS_WITH_BODY = Set.of("POST", "PUT", "PATCH");
+    private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "HEAD", "OPTIONS", "PUT", "DELETE");
+    private static final ResponseBody.ChunkProducer NO_BODY = () -> CompletableFuture.completedFuture(null);
+
+    private final Upstream[] upstreams;
+    private final ServerMetrics metrics;
+    private final AtomicInteger nextStart = new AtomicInteger();
+
+    /**
+     * @param backends the {@code host:port} of every backend of the route
+     */
+    public ProxyHTTPRequestHandler(List<String> backends, ServerConfig config, AsynchronousChannelGroup group, ServerMetrics metrics) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("A proxy route needs at least one backend");
+        }
+        this.upstreams = new Upstream[backends.size()];
+        for (int i = 0; i < upstreams.length; i++) {
+            upstreams[i] = new Upstream(backends.get(i), config, group, metrics);
+        }
+        this.metrics = metrics;
+    }
+
+    @Override
+    public HTTPResponse handle(HTTPRequest request) {
+        return handleAsync(request, Runnable::run).join();
+    }
+
+    /**
+     * Completes once the backend's response head has arrived, the body
+     * follows as the server pulls it. The executor is not used, all I/O
+     * completes on the proxy's channel group.
+     */
+    @Override
+    public CompletableFuture<HTTPResponse> handleAsync(HTTPRequest request, Executor executor) {
+        metrics.upstreamRequest();
+        CompletableFuture<HTTPResponse> response = new CompletableFuture<>();
+        forward(request, new ArrayList<>(upstreams.length), true, response);
+        return response;
+    }
+
+    /**
+     * @param tried backends that could not be connected to for this request
+     * @param mayRetry whether a failure on a reused connection may still be retried
+     */
+    private void forward(HTTPRequest request, List<Upstream> tried, boolean mayRetry, CompletableFuture<HTTPResponse> response) {
+        Upstream upstream = pick(tried);
+        if (upstream == null) {
+            response.complete(tried.isEmpty() ? SERVICE_UNAVAILABLE : BAD_GATEWAY);
+            return;
+        }
+        upstream.begin();
+        upstream.acquire().whenComplete((connection, connectError) -> {
+            if (connectError != null) {
+                upstream.end();
+                upstream.failed();
+                tried.add(upstream);
+                if (tried.size() < upstreams.length) {
+                    forward(request, tried, mayRetry, response);
+                } else {
+                    response.complete(errorResponse(unwrap(connectError)));
+                }
+                return;
+            }
+            boolean reused = connection.isReused();
+            long length = request.body().contentLength();
+            RequestBody body = length == 0 ? null : request.body();
+            connection.exchange(requestHead(request, upstream), body, length < 0, "HEAD".equals(request.method())).whenComplete((head, error) -> {
+                if (error == null) {
+                    upstream.succeeded();
+                    response.complete(toResponse(request, head));
+                    return;
+                }
+                Throwable cause = unwrap(error);
+                if (cause instanceof UpstreamConnection.RequestBodyException) {
+                    response.complete(BAD_REQUEST);
+                } else if (reused && mayRetry && body == null && IDEMPOTENT_METHODS.contains(request.method()) && !isTimeout(cause)) {
+                    // the backend closed its idle connections, a new one is opened for the retry
+                    upstream.closeIdle();
+                    forward(request, tried, false, response);
+                } else {
+                    upstream.failed();
+                    response.complete(errorResponse(cause));
+                }
+            });
+        });
+    }
+
+    /**
+     * The available backend with the fewest outstanding requests, starting
+     * the search one backend further each time so ties are spread, or null.
+     */
+    private Upstream pick(List<Upstream> excluded) {
+        long now = System.nanoTime();
+        int start = Math.floorMod(nextStart.getAndIncrement(), upstreams.length);
+        Upstream best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+        for (int i = 0; i < upstreams.length; i++) {
+            Upstream upstream = upstreams[(start + i) % upstreams.length];
+            if (!upstream.isAvailable(now) || excluded.contains(upstream)) {
+                continue;
+            }
+            int outstanding = upstream.outstanding();
+            if (outstanding < bestOutstanding) {
+                best = upstream;
+                bestOutstanding = outstanding;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The request line and headers sent to the backend. The body is framed by
+     * its length, or chunked when the client sent it chunked.
+     */
+    private static ByteBuffer requestHead(HTTPRequest request, Upstream upstream) {
+        StringBuilder head = new StringBuilder(512);
+        head.append(request.method()).append(' ').append(request.target()).append(" HTTP/1.1\r\n");
+        HTTPHeaders headers = request.headers();
+        if (!headers.contains("Host")) {
+            head.append("Host: ").append(upstream.authority()).append("\r\n");
+        }
+        for (int i = 0; i < headers.size(); i++) {
+            String name = headers.name(i);
+            String lowerCaseName = name.toLowerCase(Locale.ROOT);
+            // the client's expectation is met by the server reading the body, the backend gets it right away
+            if (HOP_BY_HOP.contains(lowerCaseName) || lowerCaseName.equals("expect") || headers.containsToken("Connection", name)) {
+                continue;
+            }
+            head.append(name).append(": ").append(headers.value(i)).append("\r\n");
+        }
+        long length = request.body().contentLength();
+        if (length < 0) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else if (length > 0 || METHODS_WITH_BODY.contains(request.method())) {
+            head.append("Content-Length: ").append(length).append("\r\n");
+        }
+        head.append("\r\n");
+        return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static HTTPResponse toResponse(HTTPRequest request, UpstreamConnection.ResponseHead head) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        String connection = null;
+        for (Map.Entry<String, String> header : head.headers().entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Connection")) {
+                connection = header.getValue().toLowerCase(Locale.ROOT);
+            }
+        }
+        for (Map.Entry<String, String> header : head.headers().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (HOP_BY_HOP.contains(name) || name.equals("date") || name.equals("server")
+                    || (connection != null && List.of(connection.split("\\s*,\\s*")).contains(name))) {
+                continue;
+            }
+            // the server only leaves out its default content type when it finds this spelling
+            headers.put(name.equals("content-type") ? "Content-Type" : header.getKey(), header.getValue());
+        }
+        ResponseBody body;
+        if (head.body() != null) {
+            body = head.contentLength() >= 0 ? ResponseBody.ofStream(head.contentLength(), head.body()) : ResponseBody.ofStream(head.body());
+        } else if ("HEAD".equals(request.method()) && head.contentLength() >= 0) {
+            // the length of the body a GET would have had
+            body = ResponseBody.ofStream(head.contentLength(), NO_BODY);
+        } else {
+            body = ResponseBody.EMPTY;
+        }
+        return new HTTPResponse(head.statusLine(), headers, body);
+    }
+
+    private static HTTPResponse errorResponse(Throwable cause) {
+        return isTimeout(cause) ? GATEWAY_TIMEOUT : BAD_GATEWAY;
+    }
+
+    private static boolean isTimeout(Throwable cause) {
+        return cause instanceof InterruptedByTimeoutException || cause instanceof TimeoutException;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
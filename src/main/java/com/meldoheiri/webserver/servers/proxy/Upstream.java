@@ -0,0 +1,165 @@
+package com.meldoheiri.webserver.servers.proxy;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+
+/**
+ * One backend of a proxy route: its pool of idle persistent connections, the
+ * number of requests it is working on and its passive health.
+ *
+ * Idle connections are reused most recently released first, so under light
+ * load a few connections stay warm while the rest age out; connections idle
+ * for longer than the idle timeout are closed instead of being reused.
+ *
+ * Health is judged from the exchanges themselves, nothing is sent to the
+ * backend just to probe it. After {@code maxFails} connection errors or
+ * timeouts in a row the backend is out of rotation for {@code failTimeout}.
+ * The request after that tries it again: another failure takes it out right
+ * away, a success puts it back. A {@code maxFails} of 0 keeps every backend
+ * in rotation.
+ */
+final class Upstream {
+    private final InetSocketAddress address;
+    private final String authority;
+    private final AsynchronousChannelGroup group;
+    private final ServerMetrics metrics;
+    private final int maxIdleConnections;
+    private final long idleTimeoutNanos;
+    private final long connectTimeoutMillis;
+    private final long readTimeoutMillis;
+    private final int maxFails;
+    private final long failTimeoutNanos;
+    private final ConcurrentLinkedDeque<UpstreamConnection> idleConnections = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    // System.nanoTime() until which the backend is out of rotation
+    private volatile long downUntil;
+
+    Upstream(String authority, ServerConfig config, AsynchronousChannelGroup group, ServerMetrics metrics) {
+        int colon = authority.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Backend is not host:port: " + authority);
+        }
+        this.address = new InetSocketAddress(authority.substring(0, colon), Integer.parseInt(authority.substring(colon + 1)));
+        this.authority = authority;
+        this.group = group;
+        this.metrics = metrics;
+        this.maxIdleConnections = config.getProxyMaxIdleConnections();
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getProxyIdleTimeoutMillis());
+        this.connectTimeoutMillis = config.getProxyConnectTimeoutMillis();
+        this.readTimeoutMillis = config.getProxyReadTimeoutMillis();
+        this.maxFails = config.getProxyMaxFails();
+        this.failTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getProxyFailTimeoutMillis());
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    /**
+     * The {@code host:port} the backend was configured with, sent as
+     * {@code Host} when the client sent none.
+     */
+    String authority() {
+        return authority;
+    }
+
+    boolean isAvailable(long now) {
+        return maxFails <= 0 || consecutiveFailures.get() < maxFails || now - downUntil >= 0;
+    }
+
+    /**
+     * Requests sent to the backend whose responses are not complete yet.
+     */
+    int outstanding() {
+        return outstanding.get();
+    }
+
+    void begin() {
+        outstanding.incrementAndGet();
+    }
+
+    void end() {
+        outstanding.decrementAndGet();
+    }
+
+    void succeeded() {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    void failed() {
+        metrics.upstreamFailure();
+        if (maxFails <= 0) {
+            return;
+        }
+        int failures = consecutiveFailures.incrementAndGet();
+        long now = System.nanoTime();
+        // concurrent failures of a backend that is down already do not extend its time out
+        if (failures == maxFails || (failures > maxFails && now - downUntil >= 0)) {
+            downUntil = now + failTimeoutNanos;
+            metrics.upstreamMarkedDown();
+            closeIdle();
+        }
+    }
+
+    /**
+     * An idle connection, or a new one once it is connected.
+     */
+    CompletableFuture<UpstreamConnection> acquire() {
+        long now = System.nanoTime();
+        UpstreamConnection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (now - connection.idleSince < idleTimeoutNanos) {
+                return CompletableFuture.completedFuture(connection);
+            }
+            connection.close();
+        }
+        metrics.upstreamConnectionOpened();
+        return UpstreamConnection.open(this, group, connectTimeoutMillis, readTimeoutMillis);
+    }
+
+    /**
+     * Takes back a connection whose exchange is complete, closing it when the
+     * pool is full. Connections left idle for too long are closed on the way.
+     */
+    void release(UpstreamConnection connection) {
+        long now = System.nanoTime();
+        UpstreamConnection oldest;
+        while ((oldest = idleConnections.peekLast()) != null && now - oldest.idleSince >= idleTimeoutNanos) {
+            if (idleConnections.removeLastOccurrence(oldest)) {
+                idleCount.decrementAndGet();
+                oldest.close();
+            }
+        }
+        if (idleCount.incrementAndGet() > maxIdleConnections) {
+            idleCount.decrementAndGet();
+            connection.close();
+            return;
+        }
+        connection.idleSince = now;
+        idleConnections.offerFirst(connection);
+    }
+
+    /**
+     * Closes the idle connections, e.g. once one of them turned out to be
+     * closed by the backend, which likely closed the others as well.
+     */
+    void closeIdle() {
+        UpstreamConnection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            connection.close();
+        }
+    }
+}
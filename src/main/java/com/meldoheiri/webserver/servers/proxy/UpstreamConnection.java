@@ -0,0 +1,543 @@
+package com.meldoheiri.webserver.servers.proxy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.meldoheiri.webserver.servers.httprequesthandler.RequestBody;
+import com.meldoheiri.webserver.servers.httprequesthandler.ResponseBody;
+
+/**
+ * A persistent HTTP/1.1 connection to a backend, carrying one exchange at a
+ * time.
+ *
+ * The request head is written first. The request body is then streamed from
+ * the client's {@link RequestBody} a chunk at a time while the response head
+ * is awaited, so a backend may answer before it has read the whole body. The
+ * response body is handed to the server as a
+ * {@link ResponseBody.ChunkProducer} that reads from the backend only when the
+ * server asks for the next chunk, so a slow client slows the backend down
+ * instead of its response piling up in memory. Bodies delimited by a length,
+ * by chunked transfer-coding or by the backend closing the connection are
+ * understood; chunked bodies are decoded, the server frames them again for
+ * its own client.
+ *
+ * All I/O is asynchronous on the proxy's channel group, and every read and
+ * write is bounded by the read timeout. Once both bodies are complete the
+ * connection goes back to its {@link Upstream}'s pool, unless either side
+ * asked to close it. Whichever way an exchange ends, it ends once and gives
+ * its place in the backend's outstanding requests back.
+ */
+final class UpstreamConnection {
+    private static final int BUFFER_BYTES = 16 * 1024;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    private final Upstream upstream;
+    private final AsynchronousSocketChannel channel;
+    private final long timeoutMillis;
+    // received bytes not consumed yet, between position and limit
+    private final ByteBuffer input = ByteBuffer.allocateDirect(BUFFER_BYTES).limit(0);
+    // System.nanoTime() at which the connection was put back into the pool
+    long idleSince;
+    // whether an exchange completed on the connection before, the backend may have closed it since
+    private boolean reused = false;
+
+    /**
+     * The status line and headers of a response. {@code body} is null when
+     * the response has none, its exchange is complete then.
+     *
+     * @param contentLength the {@code Content-Length} the backend sent, or -1
+     */
+    record ResponseHead(String statusLine, int status, Map<String, String> headers, long contentLength,
+            ResponseBody.ChunkProducer body) {
+    }
+
+    /**
+     * The request body failed on the client's side, the backend is not to
+     * blame.
+     */
+    static final class RequestBodyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RequestBodyException(Throwable cause) {
+            super("Request body failed", cause);
+        }
+    }
+
+    private UpstreamConnection(Upstream upstream, AsynchronousSocketChannel channel, long timeoutMillis) {
+        this.upstream = upstream;
+        this.channel = channel;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    static CompletableFuture<UpstreamConnection> open(Upstream upstream, AsynchronousChannelGroup group, long connectTimeoutMillis,
+            long timeoutMillis) {
+        AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open(group);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<UpstreamConnection> connected = new CompletableFuture<>();
+        channel.connect(upstream.address(), null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void result, Void attachment) {
+                connected.complete(new UpstreamConnection(upstream, channel, timeoutMillis));
+            }
+
+            @Override
+            public void failed(Throwable error, Void attachment) {
+                connected.completeExceptionally(error);
+            }
+        });
+        // a backend whose host does not answer would otherwise hold the request until the system gives up
+        return connected.orTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS).whenComplete((connection, error) -> {
+            if (error != null) {
+                close(channel);
+            }
+        });
+    }
+
+    boolean isReused() {
+        return reused;
+    }
+
+    /**
+     * Writes the request and completes with the response once its head has
+     * arrived. From here on the exchange ends itself: a failed future means it
+     * has ended already, otherwise it ends with the last chunk of the
+     * response body or when the body is cancelled.
+     *
+     * @param body the request body, or null when the request has none
+     */
+    CompletableFuture<ResponseHead> exchange(ByteBuffer head, RequestBody body, boolean chunked, boolean headRequest) {
+        Exchange exchange = new Exchange(headRequest);
+        return exchange.start(head, body, chunked);
+    }
+
+    void close() {
+        close(channel);
+    }
+
+    private static void close(AsynchronousSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+
+    private CompletableFuture<Void> write(ByteBuffer... buffers) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        writeRemaining(buffers, written);
+        return written;
+    }
+
+    private void writeRemaining(ByteBuffer[] buffers, CompletableFuture<Void> written) {
+        channel.write(buffers, 0, buffers.length, timeoutMillis, TimeUnit.MILLISECONDS, null, new CompletionHandler<Long, Void>() {
+            @Override
+            public void completed(Long count, Void attachment) {
+                if (buffers[buffers.length - 1].hasRemaining()) {
+                    writeRemaining(buffers, written);
+                } else {
+                    written.complete(null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable error, Void attachment) {
+                written.completeExceptionally(error);
+            }
+        });
+    }
+
+    /**
+     * Reads more of the response behind what is left of the input.
+     *
+     * @return the number of bytes read, -1 when the backend closed the connection
+     */
+    private CompletableFuture<Integer> fill() {
+        input.compact();
+        CompletableFuture<Integer> read = new CompletableFuture<>();
+        channel.read(input, timeoutMillis, TimeUnit.MILLISECONDS, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer count, Void attachment) {
+                input.flip();
+                read.complete(count);
+            }
+
+            @Override
+            public void failed(Throwable error, Void attachment) {
+                input.flip();
+                read.completeExceptionally(error);
+            }
+        });
+        return read;
+    }
+
+    /**
+     * The next line of the input without its CRLF, or null when it is not
+     * complete yet.
+     */
+    private String readLine() throws IOException {
+        for (int i = input.position(); i + 1 < input.limit(); i++) {
+            if (input.get(i) == '\r' && input.get(i + 1) == '\n') {
+                byte[] line = new byte[i - input.position()];
+                input.get(line);
+                input.position(input.position() + 2);
+                return new String(line, StandardCharsets.ISO_8859_1);
+            }
+        }
+        if (input.remaining() == input.capacity()) {
+            throw new IOException("Line from the backend exceeds " + BUFFER_BYTES + " bytes");
+        }
+        return null;
+    }
+
+    private enum BodyState {
+        LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE
+    }
+
+    private final class Exchange implements ResponseBody.ChunkProducer {
+        private final boolean headRequest;
+        private final AtomicBoolean ended = new AtomicBoolean();
+        private volatile boolean requestSent = false;
+        private volatile Throwable requestBodyFailure;
+        private boolean keepAlive;
+        private BodyState state;
+        // bytes left of a body with a length, or of the current chunk
+        private long remaining;
+
+        private Exchange(boolean headRequest) {
+            this.headRequest = headRequest;
+        }
+
+        private CompletableFuture<ResponseHead> start(ByteBuffer head, RequestBody body, boolean chunked) {
+            CompletableFuture<ResponseHead> response = write(head).thenCompose(written -> {
+                if (body == null) {
+                    requestSent = true;
+                } else {
+                    CompletableFuture<Void> sent = new CompletableFuture<>();
+                    sendBody(body, chunked, sent);
+                    sent.whenComplete((result, error) -> onBodySent(error));
+                }
+                return readHead();
+            });
+            return response.handle((responseHead, error) -> {
+                if (error == null) {
+                    return responseHead;
+                }
+                finish(false);
+                Throwable cause = requestBodyFailure != null ? requestBodyFailure : error;
+                throw cause instanceof CompletionException completion ? completion : new CompletionException(cause);
+            });
+        }
+
+        private void sendBody(RequestBody body, boolean chunked, CompletableFuture<Void> sent) {
+            body.read().whenComplete((chunk, error) -> {
+                if (error != null) {
+                    sent.completeExceptionally(new RequestBodyException(error));
+                    return;
+                }
+                CompletableFuture<Void> written;
+                if (chunk == null) {
+                    written = chunked ? write(ByteBuffer.wrap(LAST_CHUNK)) : CompletableFuture.completedFuture(null);
+                } else if (!chunk.hasRemaining()) {
+                    written = null;
+                } else if (chunked) {
+                    byte[] size = (Integer.toHexString(chunk.remaining()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                    written = write(ByteBuffer.wrap(size), chunk, ByteBuffer.wrap(CRLF));
+                } else {
+                    written = write(chunk);
+                }
+                if (written == null) {
+                    sendBody(body, chunked, sent);
+                    return;
+                }
+                written.whenComplete((result, writeError) -> {
+                    if (writeError != null) {
+                        sent.completeExceptionally(writeError);
+                    } else if (chunk == null) {
+                        sent.complete(null);
+                    } else {
+                        sendBody(body, chunked, sent);
+                    }
+                });
+            });
+        }
+
+        /**
+         * A client whose body fails ends the exchange, the backend would wait
+         * for the rest of it. A backend that stops reading the body may still
+         * answer, but the connection is not reused.
+         */
+        private void onBodySent(Throwable error) {
+            if (error == null) {
+                requestSent = true;
+            } else if (error instanceof RequestBodyException) {
+                requestBodyFailure = error;
+                close();
+            }
+        }
+
+        private CompletableFuture<ResponseHead> readHead() {
+            try {
+                ResponseHead head = parseHead();
+                if (head != null) {
+                    return CompletableFuture.completedFuture(head);
+                }
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return fill().thenCompose(count -> {
+                if (count < 0) {
+                    throw new CompletionException(new EOFException("Backend closed the connection before the response head"));
+                }
+                return readHead();
+            });
+        }
+
+        /**
+         * Parses the response head once it is complete, skipping interim
+         * {@code 1xx} responses.
+         *
+         * @return null while the head is not complete yet
+         */
+        private ResponseHead parseHead() throws IOException {
+            while (true) {
+                int end = -1;
+                for (int i = input.position(); i + 3 < input.limit(); i++) {
+                    if (input.get(i) == '\r' && input.get(i + 1) == '\n' && input.get(i + 2) == '\r' && input.get(i + 3) == '\n') {
+                        end = i;
+                        break;
+                    }
+                }
+                if (end < 0) {
+                    if (input.remaining() == input.capacity()) {
+                        throw new IOException("Response head from the backend exceeds " + BUFFER_BYTES + " bytes");
+                    }
+                    return null;
+                }
+                byte[] bytes = new byte[end - input.position()];
+                input.get(bytes);
+                input.position(input.position() + 4);
+                String[] lines = new String(bytes, StandardCharsets.ISO_8859_1).split("\r\n");
+                String statusLine = lines[0];
+                if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12) {
+                    throw new IOException("Malformed status line from the backend: " + statusLine);
+                }
+                int status;
+                try {
+                    status = Integer.parseInt(statusLine.substring(9, 12));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed status line from the backend: " + statusLine);
+                }
+                if (status == 101) {
+                    throw new IOException("Backend switched protocols");
+                }
+                if (status >= 100 && status < 200) {
+                    continue;
+                }
+                return responseHead(statusLine, status, lines);
+            }
+        }
+
+        private ResponseHead responseHead(String statusLine, int status, String[] lines) throws IOException {
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new IOException("Malformed header line from the backend: " + lines[i]);
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                // repeated fields are combined into one list, as the response headers are a map
+                headers.merge(name, value, (first, next) -> first + ", " + next);
+            }
+            String connection = header(headers, "Connection");
+            String transferEncoding = header(headers, "Transfer-Encoding");
+            String contentLengthValue = header(headers, "Content-Length");
+            keepAlive = statusLine.startsWith("HTTP/1.1")
+                    && (connection == null || !connection.toLowerCase(Locale.ROOT).contains("close"));
+            long contentLength = -1;
+            if (contentLengthValue != null) {
+                try {
+                    contentLength = Long.parseLong(contentLengthValue);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed Content-Length from the backend: " + contentLengthValue);
+                }
+            }
+            if (headRequest || status == 204 || status == 304) {
+                state = BodyState.DONE;
+            } else if (transferEncoding != null) {
+                if (!transferEncoding.toLowerCase(Locale.ROOT).endsWith("chunked")) {
+                    throw new IOException("Unsupported Transfer-Encoding from the backend: " + transferEncoding);
+                }
+                state = BodyState.CHUNK_SIZE;
+                contentLength = -1;
+            } else if (contentLength >= 0) {
+                state = contentLength == 0 ? BodyState.DONE : BodyState.LENGTH;
+                remaining = contentLength;
+            } else {
+                state = BodyState.UNTIL_CLOSE;
+                keepAlive = false;
+            }
+            String reason = statusLine.length() > 13 ? statusLine.substring(13) : "";
+            ResponseHead head = new ResponseHead("HTTP/1.1 " + status + " " + reason + "\r\n", status, headers, contentLength,
+                    state == BodyState.DONE ? null : this);
+            if (state == BodyState.DONE) {
+                finish(true);
+            }
+            return head;
+        }
+
+        @Override
+        public CompletableFuture<ByteBuffer> next() {
+            try {
+                ByteBuffer chunk = decode();
+                if (chunk != null) {
+                    return CompletableFuture.completedFuture(chunk);
+                }
+            } catch (IOException e) {
+                finish(false);
+                return CompletableFuture.failedFuture(e);
+            }
+            if (state == BodyState.DONE) {
+                finish(true);
+                return CompletableFuture.completedFuture(null);
+            }
+            return fill().thenCompose(count -> {
+                if (count < 0) {
+                    if (state != BodyState.UNTIL_CLOSE) {
+                        throw new CompletionException(new EOFException("Backend closed the connection before the end of the body"));
+                    }
+                    state = BodyState.DONE;
+                }
+                return next();
+            }).whenComplete((chunk, error) -> {
+                if (error != null) {
+                    finish(false);
+                }
+            });
+        }
+
+        @Override
+        public void cancel() {
+            finish(false);
+        }
+
+        /**
+         * The next part of the body that is in the input already.
+         *
+         * @return null when more input is needed, or the body has ended
+         */
+        private ByteBuffer decode() throws IOException {
+            while (true) {
+                switch (state) {
+                    case LENGTH, CHUNK_DATA -> {
+                        if (remaining == 0) {
+                            state = state == BodyState.LENGTH ? BodyState.DONE : BodyState.CHUNK_END;
+                            continue;
+                        }
+                        if (!input.hasRemaining()) {
+                            return null;
+                        }
+                        int length = (int) Math.min(remaining, input.remaining());
+                        remaining -= length;
+                        return take(length);
+                    }
+                    case UNTIL_CLOSE -> {
+                        return input.hasRemaining() ? take(input.remaining()) : null;
+                    }
+                    case CHUNK_SIZE -> {
+                        String line = readLine();
+                        if (line == null) {
+                            return null;
+                        }
+                        int extension = line.indexOf(';');
+                        try {
+                            remaining = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Malformed chunk size from the backend: " + line);
+                        }
+                        state = remaining == 0 ? BodyState.TRAILERS : BodyState.CHUNK_DATA;
+                    }
+                    case CHUNK_END -> {
+                        String line = readLine();
+                        if (line == null) {
+                            return null;
+                        }
+                        if (!line.isEmpty()) {
+                            throw new IOException("Chunk from the backend is longer than its size");
+                        }
+                        state = BodyState.CHUNK_SIZE;
+                    }
+                    case TRAILERS -> {
+                        // trailer fields are dropped, the server sends none
+                        String line = readLine();
+                        if (line == null) {
+                            return null;
+                        }
+                        if (line.isEmpty()) {
+                            state = BodyState.DONE;
+                        }
+                    }
+                    case DONE -> {
+                        return null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Copies bytes out of the input, which is reused for the next read
+         * while the server still holds the chunk.
+         */
+        private ByteBuffer take(int length) {
+            byte[] chunk = new byte[length];
+            input.get(chunk);
+            return ByteBuffer.wrap(chunk);
+        }
+
+        /**
+         * Ends the exchange the first time it is called. A complete exchange
+         * leaves the connection to the next one, unless the backend asked to
+         * close it or sent more than the response.
+         */
+        private void finish(boolean complete) {
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+            if (complete && keepAlive && requestSent && !input.hasRemaining()) {
+                reused = true;
+                upstream.release(UpstreamConnection.this);
+            } else {
+                close();
+            }
+            upstream.end();
+        }
+    }
+
+    private static String header(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+}
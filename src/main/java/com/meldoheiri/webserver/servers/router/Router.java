@@ -0,0 +1,231 @@
+package com.meldoheiri.webserver.servers.router;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequestHandler;
+
+/**
+ * Maps request paths and methods to handlers, built once at startup and
+ * shared by every connection.
+ *
+ * Routes are compiled into a trie with one node per path segment. A segment
+ * is either literal, a parameter written {@code {name}} that matches any one
+ * segment, or a trailing {@code *} that matches the rest of the path,
+ * including nothing. Literal segments are tried before parameters and
+ * parameters before {@code *}. Matching walks the path in place, comparing
+ * segments with {@link String#regionMatches}, so a lookup allocates nothing
+ * unless it captures parameters. The trie is immutable once built and safe to
+ * share between threads.
+ */
+public final class Router {
+    /**
+     * Method key of handlers that accept any method.
+     */
+    public static final String ANY_METHOD = "*";
+    private static final String WILDCARD_PARAMETER = "*";
+
+    private final Node root;
+
+    private Router(Node root) {
+        this.root = root;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the matching route, or null when no route matches the path
+     */
+    public Match match(String method, String path) {
+        int start = path.startsWith("/") ? 1 : 0;
+        return root.match(method, path, start, null);
+    }
+
+    /**
+     * A route matching the path. Its handler is null when the route has no
+     * handler for the method, {@link #allowedMethods()} lists the ones it has.
+     */
+    public record Match(HTTPRequestHandler handler, Map<String, String> parameters, String allowedMethods) {
+    }
+
+    public static final class Builder {
+        private final BuilderNode root = new BuilderNode();
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a handler for the method, or for every method with
+         * {@link Router#ANY_METHOD}, on the path pattern.
+         */
+        public Builder route(String method, String pattern, HTTPRequestHandler handler) {
+            BuilderNode node = root;
+            String[] segments = pattern.startsWith("/") ? pattern.substring(1).split("/", -1) : pattern.split("/", -1);
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                if (segment.equals("*")) {
+                    if (i != segments.length - 1) {
+                        throw new IllegalArgumentException("* must be the last segment: " + pattern);
+                    }
+                    if (node.wildcard == null) {
+                        node.wildcard = new BuilderNode();
+                    }
+                    node = node.wildcard;
+                } else if (segment.startsWith("{") && segment.endsWith("}")) {
+                    String name = segment.substring(1, segment.length() - 1);
+                    if (node.parameter == null) {
+                        node.parameter = new BuilderNode();
+                        node.parameterName = name;
+                    } else if (!node.parameterName.equals(name)) {
+                        throw new IllegalArgumentException("Conflicting parameter names {" + node.parameterName + "} and {" + name + "}: " + pattern);
+                    }
+                    node = node.parameter;
+                } else {
+                    node = node.children.computeIfAbsent(segment, key -> new BuilderNode());
+                }
+            }
+            if (node.handlers.putIfAbsent(method, handler) != null) {
+                throw new IllegalArgumentException("Duplicate route: " + method + " " + pattern);
+            }
+            return this;
+        }
+
+        public Router build() {
+            return new Router(root.compile());
+        }
+    }
+
+    private static final class BuilderNode {
+        private final Map<String, BuilderNode> children = new LinkedHashMap<>();
+        private final Map<String, HTTPRequestHandler> handlers = new LinkedHashMap<>();
+        private BuilderNode parameter;
+        private String parameterName;
+        private BuilderNode wildcard;
+
+        private Node compile() {
+            String[] segments = children.keySet().toArray(new String[0]);
+            Node[] nodes = new Node[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                nodes[i] = children.get(segments[i]).compile();
+            }
+            return new Node(segments, nodes, parameterName, parameter == null ? null : parameter.compile(),
+                    wildcard == null ? null : wildcard.compile(), new HashMap<>(handlers),
+                    handlers.isEmpty() ? null : String.join(", ", handlers.keySet()));
+        }
+    }
+
+    private static final class Node {
+        private final String[] segments;
+        private final Node[] children;
+        private final String parameterName;
+        private final Node parameter;
+        private final Node wildcard;
+        // matches without parameters are created once, so most lookups allocate nothing
+        private final Map<String, Match> matches = new HashMap<>();
+        private final Map<String, HTTPRequestHandler> handlers;
+        private final Match anyMethodMatch;
+        private final Match noMethodMatch;
+        private final String allowedMethods;
+
+        private Node(String[] segments, Node[] children, String parameterName, Node parameter, Node wildcard,
+                Map<String, HTTPRequestHandler> handlers, String allowedMethods) {
+            this.segments = segments;
+            this.children = children;
+            this.parameterName = parameterName;
+            this.parameter = parameter;
+            this.wildcard = wildcard;
+            this.handlers = handlers;
+            this.allowedMethods = allowedMethods;
+            for (Map.Entry<String, HTTPRequestHandler> handler : handlers.entrySet()) {
+                matches.put(handler.getKey(), new Match(handler.getValue(), Map.of(), allowedMethods));
+            }
+            this.anyMethodMatch = matches.get(ANY_METHOD);
+            this.noMethodMatch = new Match(null, Map.of(), allowedMethods);
+        }
+
+        /**
+         * Matches the path from {@code start}, the first character of the next
+         * segment, or the path length when all segments are consumed.
+         */
+        private Match match(String method, String path, int start, List<String> captured) {
+            if (start >= path.length()) {
+                Match match = endMatch(method, captured);
+                if (match != null) {
+                    return match;
+                }
+                return wildcard == null ? null : wildcard.endMatch(method, capture(captured, WILDCARD_PARAMETER, ""));
+            }
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            int length = end - start;
+            // the segment after a trailing slash is empty, it ends the path here
+            int next = end == path.length() ? end : end + 1;
+            for (int i = 0; i < segments.length; i++) {
+                if (segments[i].length() == length && path.regionMatches(start, segments[i], 0, length)) {
+                    Match match = children[i].match(method, path, next, captured);
+                    if (match != null) {
+                        return match;
+                    }
+                    break;
+                }
+            }
+            if (parameter != null && length > 0) {
+                Match match = parameter.match(method, path, next, capture(captured, parameterName, path.substring(start, end)));
+                if (match != null) {
+                    return match;
+                }
+            }
+            if (wildcard != null) {
+                return wildcard.endMatch(method, capture(captured, WILDCARD_PARAMETER, path.substring(start)));
+            }
+            return null;
+        }
+
+        private Match endMatch(String method, List<String> captured) {
+            if (allowedMethods == null) {
+                return null;
+            }
+            if (captured == null) {
+                Match match = matches.get(method);
+                if (match != null) {
+                    return match;
+                }
+                return anyMethodMatch != null ? anyMethodMatch : noMethodMatch;
+            }
+            HTTPRequestHandler handler = handlers.get(method);
+            if (handler == null) {
+                handler = handlers.get(ANY_METHOD);
+            }
+            return new Match(handler, parameters(captured), allowedMethods);
+        }
+
+        private static List<String> capture(List<String> captured, String name, String value) {
+            // copied, so a failed branch does not leak its captures into the next one
+            List<String> result = captured == null ? new ArrayList<>(4) : new ArrayList<>(captured);
+            result.add(name);
+            result.add(value);
+            return result;
+        }
+
+        private static Map<String, String> parameters(List<String> captured) {
+            if (captured == null) {
+                return Map.of();
+            }
+            if (captured.size() == 2) {
+                return Map.of(captured.get(0), captured.get(1));
+            }
+            Map<String, String> parameters = new HashMap<>();
+            for (int i = 0; i < captured.size(); i += 2) {
+                parameters.put(captured.get(i), captured.get(i + 1));
+            }
+            return parameters;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.meldoheiri.webserver.servers.tls;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * The output of an {@link SSLSocket} of the blocking servers as a channel, so
+ * responses are written the same way as on a plain socket.
+ *
+ * Every write of the socket's stream becomes at least one TLS record, so the
+ * buffers of a gathering write are copied into full sized records first
+ * instead of being written one by one. Writes block until the socket took
+ * everything.
+ */
+public final class SSLSocketChannel implements GatheringByteChannel {
+    // the largest plaintext a TLS record carries
+    private static final int RECORD_BYTES = 16 * 1024;
+
+    private final SSLSocket socket;
+    private final OutputStream out;
+    private final byte[] record = new byte[RECORD_BYTES];
+
+    public SSLSocketChannel(SSLSocket socket) throws IOException {
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long written = 0;
+        int filled = 0;
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer src = srcs[i];
+            while (src.hasRemaining()) {
+                int chunk = Math.min(src.remaining(), RECORD_BYTES - filled);
+                src.get(record, filled, chunk);
+                filled += chunk;
+                written += chunk;
+                if (filled == RECORD_BYTES) {
+                    out.write(record, 0, filled);
+                    filled = 0;
+                }
+            }
+        }
+        if (filled > 0) {
+            out.write(record, 0, filled);
+        }
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,444 @@
+package com.meldoheiri.webserver.servers.tls;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+
+import com.meldoheiri.webserver.servers.bufferpool.BufferPool;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+
+/**
+ * TLS over a non-blocking socket channel of an event loop, or over the
+ * staging buffers of an asynchronous connection, with an {@link SSLEngine}.
+ *
+ * {@link #read(ByteBuffer)} and {@link #write(ByteBuffer[], int, int)} move
+ * application bytes and drive the handshake as far as the socket allows, so
+ * neither ever blocks: a read returns 0 while a record is incomplete, a write
+ * consumes nothing until the handshake is done. The handshake's delegated
+ * tasks, the key exchange and signature work, run on a worker executor. While
+ * they run {@link #isWaitingForTasks()} is true and reads make no progress;
+ * once they are done the callback given to the constructor is run, on the
+ * worker thread.
+ *
+ * Records are staged in direct buffers of the connection's
+ * {@link BufferPool}. They are taken when a record arrives or is produced and
+ * given back as soon as they are empty, so an idle connection holds none and
+ * no record allocates. Ciphertext that did not fit the socket stays queued
+ * until {@link #flush()}, see {@link #hasPendingOutput()}; a record that
+ * arrived with more bytes than the reader's buffer took is kept for the next
+ * read, see {@link #hasBufferedInput()}, since the selector will not report
+ * it again.
+ *
+ * Confined to the thread of the event loop, or to one task of the
+ * asynchronous connection at a time, except for the callback.
+ */
+public final class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final ByteBuffer[] NO_DATA = { EMPTY };
+
+    private final ByteChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool pool;
+    private final Executor taskExecutor;
+    private final Runnable onTasksDone;
+    private final ServerMetrics metrics;
+    private final long created = System.currentTimeMillis();
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    // records read from the socket and not unwrapped yet, in write mode
+    private ByteBuffer netIn;
+    // records wrapped and not written to the socket yet, in read mode
+    private ByteBuffer netOut;
+    // unwrapped bytes the reader's buffer had no room for, in read mode
+    private ByteBuffer appIn;
+    private volatile boolean tasksRunning = false;
+    private boolean handshakeComplete = false;
+    private boolean negotiated = false;
+    private boolean inboundDone = false;
+
+    public TlsChannel(ByteChannel channel, SSLEngine engine, BufferPool pool, Executor taskExecutor, Runnable onTasksDone,
+            ServerMetrics metrics) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.pool = pool;
+        this.taskExecutor = taskExecutor;
+        this.onTasksDone = onTasksDone;
+        this.metrics = metrics;
+        // until it begins, the engine reports no handshake at all
+        engine.beginHandshake();
+    }
+
+    /**
+     * Reads and decrypts what the client sent.
+     *
+     * @return the number of bytes read, 0 when no whole record is available
+     *         yet, -1 once the client sent {@code close_notify} or closed the
+     *         connection
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (appIn != null) {
+            return takeBuffered(dst);
+        }
+        while (true) {
+            if (!handshakeComplete && !handshake()) {
+                return inboundDone ? -1 : 0;
+            }
+            if (inboundDone) {
+                return -1;
+            }
+            if (netIn != null) {
+                SSLEngineResult result = unwrap(dst);
+                if (result.getStatus() == Status.CLOSED) {
+                    inboundDone = true;
+                    return -1;
+                }
+                if (isHandshaking(result.getHandshakeStatus())) {
+                    // a key update or renegotiation, answered before reading on
+                    handshakeComplete = false;
+                }
+                if (result.getStatus() != Status.BUFFER_UNDERFLOW) {
+                    int read = appIn != null ? takeBuffered(dst) : result.bytesProduced();
+                    if (read > 0) {
+                        return read;
+                    }
+                    continue;
+                }
+            }
+            int read = fill();
+            if (read < 0) {
+                inboundDone = true;
+                return -1;
+            }
+            if (read == 0) {
+                return 0;
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        single[0] = src;
+        try {
+            return (int) write(single, 0, 1);
+        } finally {
+            single[0] = null;
+        }
+    }
+
+    /**
+     * Encrypts as much of the buffers as fits in records the socket takes.
+     * Records of earlier writes go out first; nothing is consumed before the
+     * handshake is done.
+     *
+     * @return the number of application bytes consumed
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!writeNetOut() || (!handshakeComplete && !handshake())) {
+            return 0;
+        }
+        long consumed = 0;
+        while (hasRemaining(srcs, offset, length)) {
+            if (!hasRoomToWrap() && !writeNetOut()) {
+                break;
+            }
+            SSLEngineResult result = wrap(srcs, offset, length);
+            if (result.getStatus() == Status.CLOSED) {
+                throw new SSLException("TLS connection already closed");
+            }
+            consumed += result.bytesConsumed();
+            if (isHandshaking(result.getHandshakeStatus())) {
+                handshakeComplete = false;
+                break;
+            }
+        }
+        writeNetOut();
+        return consumed;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Writes records the socket did not take earlier, and continues a
+     * handshake that was waiting for them to go out.
+     */
+    public void flush() throws IOException {
+        if (writeNetOut() && !handshakeComplete) {
+            handshake();
+        }
+    }
+
+    /**
+     * Whether records are waiting for the socket to take them.
+     */
+    public boolean hasPendingOutput() {
+        return netOut != null && netOut.hasRemaining();
+    }
+
+    /**
+     * Whether bytes that already left the socket are waiting to be read.
+     */
+    public boolean hasBufferedInput() {
+        return appIn != null || netIn != null;
+    }
+
+    /**
+     * Whether the handshake waits for its delegated tasks.
+     */
+    public boolean isWaitingForTasks() {
+        return tasksRunning;
+    }
+
+    /**
+     * Whether the first handshake has completed, so the application protocol
+     * is known.
+     */
+    public boolean isNegotiated() {
+        return negotiated;
+    }
+
+    /**
+     * The protocol chosen by ALPN, or the empty string when the client did
+     * not ask for one.
+     */
+    public String getApplicationProtocol() {
+        String protocol = engine.getApplicationProtocol();
+        return protocol == null ? "" : protocol;
+    }
+
+    /**
+     * Sends {@code close_notify} as far as the socket takes it without
+     * blocking. The socket stays open.
+     */
+    public void closeOutbound() {
+        if (tasksRunning) {
+            return;
+        }
+        engine.closeOutbound();
+        try {
+            if (hasRoomToWrap()) {
+                wrap(NO_DATA, 0, 1);
+            }
+            writeNetOut();
+        } catch (IOException e) {
+            // the connection is being closed anyway
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Closes the socket and gives the buffers back to the pool, dropping
+     * records that were not written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            pool.release(netIn);
+            pool.release(netOut);
+            pool.release(appIn);
+            netIn = null;
+            netOut = null;
+            appIn = null;
+        }
+    }
+
+    /**
+     * Runs the handshake as far as it gets without blocking.
+     *
+     * @return true once it is complete
+     */
+    private boolean handshake() throws IOException {
+        try {
+            while (!tasksRunning) {
+                switch (engine.getHandshakeStatus()) {
+                    case NOT_HANDSHAKING, FINISHED -> {
+                        completeHandshake();
+                        return true;
+                    }
+                    case NEED_TASK -> runTasks();
+                    case NEED_WRAP -> {
+                        // a flight of several messages is wrapped before anything is written
+                        if (!hasRoomToWrap() && !writeNetOut()) {
+                            return false;
+                        }
+                        if (wrap(NO_DATA, 0, 1).getStatus() == Status.CLOSED) {
+                            writeNetOut();
+                            inboundDone = true;
+                            return false;
+                        }
+                    }
+                    case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                        // the client waits for what was wrapped before answering
+                        writeNetOut();
+                        Status status = netIn == null ? Status.BUFFER_UNDERFLOW : unwrap(EMPTY).getStatus();
+                        if (status == Status.CLOSED) {
+                            inboundDone = true;
+                            return false;
+                        }
+                        if (status == Status.BUFFER_UNDERFLOW) {
+                            int read = fill();
+                            if (read < 0) {
+                                inboundDone = true;
+                                return false;
+                            }
+                            if (read == 0) {
+                                return false;
+                            }
+                        }
+                    }
+                }
+            }
+            return false;
+        } catch (SSLException e) {
+            if (!negotiated) {
+                metrics.tlsHandshakeFailed();
+            }
+            throw e;
+        }
+    }
+
+    private void completeHandshake() {
+        handshakeComplete = true;
+        if (!negotiated) {
+            negotiated = true;
+            metrics.tlsHandshakeCompleted(TlsContext.isResumed(engine.getSession(), created));
+        }
+    }
+
+    private void runTasks() {
+        tasksRunning = true;
+        taskExecutor.execute(() -> {
+            try {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            } finally {
+                tasksRunning = false;
+                onTasksDone.run();
+            }
+        });
+    }
+
+    private static boolean isHandshaking(HandshakeStatus status) {
+        return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * Unwraps the next record into the buffer, or into {@link #appIn} when
+     * the buffer has no room for it.
+     */
+    private SSLEngineResult unwrap(ByteBuffer dst) throws SSLException {
+        netIn.flip();
+        try {
+            SSLEngineResult result = engine.unwrap(netIn, dst);
+            if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+                appIn = pool.acquire(engine.getSession().getApplicationBufferSize());
+                result = engine.unwrap(netIn, appIn);
+                appIn.flip();
+                if (!appIn.hasRemaining()) {
+                    pool.release(appIn);
+                    appIn = null;
+                }
+            }
+            return result;
+        } finally {
+            netIn.compact();
+            if (netIn.position() == 0) {
+                pool.release(netIn);
+                netIn = null;
+            }
+        }
+    }
+
+    private int takeBuffered(ByteBuffer dst) {
+        int count = Math.min(dst.remaining(), appIn.remaining());
+        dst.put(dst.position(), appIn, appIn.position(), count);
+        dst.position(dst.position() + count);
+        appIn.position(appIn.position() + count);
+        if (!appIn.hasRemaining()) {
+            pool.release(appIn);
+            appIn = null;
+        }
+        return count;
+    }
+
+    /**
+     * Reads records from the socket behind the ones already buffered.
+     *
+     * @return the number of bytes read, -1 at the end of input
+     */
+    private int fill() throws IOException {
+        if (netIn == null) {
+            netIn = pool.acquire(engine.getSession().getPacketBufferSize());
+        } else if (!netIn.hasRemaining()) {
+            throw new SSLException("TLS record larger than " + netIn.capacity() + " bytes");
+        }
+        int read = channel.read(netIn);
+        if (netIn.position() == 0) {
+            pool.release(netIn);
+            netIn = null;
+        }
+        return read;
+    }
+
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws SSLException {
+        if (netOut == null) {
+            netOut = pool.acquire(engine.getSession().getPacketBufferSize());
+        } else {
+            netOut.compact();
+        }
+        try {
+            return engine.wrap(srcs, offset, length, netOut);
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    private boolean hasRoomToWrap() {
+        return netOut == null || netOut.capacity() - netOut.remaining() >= engine.getSession().getPacketBufferSize();
+    }
+
+    /**
+     * @return true when every wrapped record is on the wire
+     */
+    private boolean writeNetOut() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        pool.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,113 @@
+package com.meldoheiri.webserver.servers.tls;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+
+/**
+ * The server's TLS identity and settings, created once at startup from the
+ * key store in {@code server.tlsKeyStore}.
+ *
+ * Every connection's engine or socket comes from the same {@link SSLContext},
+ * so they share its server session cache: a client coming back with a session
+ * ID resumes without a full handshake. TLS 1.3 clients, and TLS 1.2 clients
+ * sending an empty session ticket, get stateless session tickets instead,
+ * which the JDK issues by default
+ * ({@code jdk.tls.server.enableSessionTicketExtension}); their resumption does
+ * not depend on the cache at all.
+ *
+ * Protocols are picked by ALPN: {@code h2} when HTTP/2 is enabled and the
+ * connection is served by an event loop, {@code http/1.1} otherwise.
+ */
+public final class TlsContext {
+    public static final String H2 = "h2";
+    public static final String HTTP_1_1 = "http/1.1";
+
+    private final SSLContext sslContext;
+    private final String[] protocols;
+
+    private TlsContext(SSLContext sslContext, String[] protocols) {
+        this.sslContext = sslContext;
+        this.protocols = protocols;
+    }
+
+    /**
+     * @return null when TLS is not enabled
+     */
+    public static TlsContext create(ServerConfig config) {
+        if (!config.isTlsEnabled()) {
+            return null;
+        }
+        if (config.getTlsKeyStore() == null) {
+            throw new IllegalStateException("server.tlsEnabled requires server.tlsKeyStore");
+        }
+        char[] password = config.getTlsKeyStorePassword().toCharArray();
+        try (InputStream in = Files.newInputStream(Path.of(config.getTlsKeyStore()))) {
+            KeyStore keyStore = KeyStore.getInstance(config.getTlsKeyStoreType());
+            keyStore.load(in, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers.getKeyManagers(), null, null);
+            SSLSessionContext sessions = sslContext.getServerSessionContext();
+            sessions.setSessionCacheSize(config.getTlsSessionCacheSize());
+            sessions.setSessionTimeout(config.getTlsSessionTimeoutSeconds());
+            return new TlsContext(sslContext, config.getTlsProtocols());
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot load the key store " + config.getTlsKeyStore(), e);
+        }
+    }
+
+    /**
+     * A server side engine for a connection of an event loop.
+     *
+     * @param http2 whether {@code h2} is offered besides {@code http/1.1}
+     */
+    public SSLEngine newEngine(boolean http2) {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(parameters(engine.getSSLParameters(), http2));
+        return engine;
+    }
+
+    /**
+     * Layers TLS over an accepted socket of the blocking servers, which speak
+     * HTTP/1.1 only. Closing the returned socket closes the accepted one too.
+     * The handshake happens on the first read.
+     */
+    public SSLSocket wrap(Socket socket) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, null, socket.getPort(), true);
+        sslSocket.setUseClientMode(false);
+        sslSocket.setSSLParameters(parameters(sslSocket.getSSLParameters(), false));
+        return sslSocket;
+    }
+
+    /**
+     * Whether a handshake that began at the given time resumed an earlier
+     * session, which keeps its creation time, instead of creating one.
+     */
+    public static boolean isResumed(SSLSession session, long handshakeStartMillis) {
+        return session.getCreationTime() < handshakeStartMillis;
+    }
+
+    private SSLParameters parameters(SSLParameters parameters, boolean http2) {
+        parameters.setProtocols(protocols);
+        parameters.setUseCipherSuitesOrder(true);
+        parameters.setApplicationProtocols(http2 ? new String[] { H2, HTTP_1_1 } : new String[] { HTTP_1_1 });
+        return parameters;
+    }
+}
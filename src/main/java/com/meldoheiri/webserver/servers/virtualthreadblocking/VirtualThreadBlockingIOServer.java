@@ -0,0 +1,32 @@
+package com.meldoheiri.webserver.servers.virtualthreadblocking;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.blockingmultithreaded.BlockingIOServer;
+
+/**
+ * Blocking I/O with one virtual thread per connection.
+ *
+ * An idle keep-alive connection only parks its virtual thread, so the number
+ * of open connections is not bounded by a thread pool. Each connection reads
+ * into its own small buffer, which keeps the memory of idle connections low.
+ */
+public class VirtualThreadBlockingIOServer extends BlockingIOServer {
+    private static final int READ_BUFFER_SIZE = 2 * 1024;
+
+    public VirtualThreadBlockingIOServer(ServerConfig config) {
+        super(config);
+    }
+
+    @Override
+    protected ExecutorService createExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("connection-", 0).factory());
+    }
+
+    @Override
+    protected byte[] readBuffer() {
+        return new byte[READ_BUFFER_SIZE];
+    }
+}
@@ -1,11 +1,61 @@
 package com.meldoheiri.webserver.validators;
 
-import java.util.regex.Pattern;
-
+/**
+ * Accepts absolute paths made of RFC 3986 path characters, and queries made of
+ * RFC 3986 query characters, in one pass over the string without
+ * backtracking.
+ */
 public class PathValidator {
-    private static final Pattern PATH_REGEX = Pattern.compile("^(\\/[a-zA-Z0-9._~!$&'()*+,;=:@%-]*)*$");
+    private static final boolean[] SEGMENT_CHARS = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            SEGMENT_CHARS[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            SEGMENT_CHARS[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            SEGMENT_CHARS[c] = true;
+        }
+        for (char c : "._~!$&'()*+,;=:@%-".toCharArray()) {
+            SEGMENT_CHARS[c] = true;
+        }
+    }
 
     public boolean validate(String path) {
-        return path != null && PATH_REGEX.matcher(path).matches();
+        if (path == null) {
+            return false;
+        }
+        if (path.isEmpty()) {
+            return true;
+        }
+        if (path.charAt(0) != '/') {
+            return false;
+        }
+        for (int i = 1; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c != '/' && (c >= SEGMENT_CHARS.length || !SEGMENT_CHARS[c])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param query the part of the request target after the {@code ?}, null
+     *              when there is none
+     */
+    public boolean validateQuery(String query) {
+        if (query == null) {
+            return true;
+        }
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c != '/' && c != '?' && (c >= SEGMENT_CHARS.length || !SEGMENT_CHARS[c])) {
+                return false;
+            }
+        }
+        return true;
     }
 }
@@ -0,0 +1,39 @@
+package com.meldoheiri.webserver.servers.admission;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.Test;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+
+class AdmissionControllerTest {
+
+    @Test
+    void standingQueueShedsOnlyWhileHandlersRun() throws Exception {
+        ServerConfig config = new ServerConfig();
+        AdmissionController admission = new AdmissionController(config, new ServerMetrics());
+        long delay = TimeUnit.MILLISECONDS.toNanos(config.getQueueDelayTargetMillis() * 2L);
+        Executor slowQueue = admission.monitor(task -> {
+            LockSupport.parkNanos(delay);
+            task.run();
+        });
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getQueueDelayIntervalMillis()) + delay;
+        while (System.nanoTime() - end < 0) {
+            slowQueue.execute(() -> {
+            });
+        }
+
+        assertFalse(admission.isSaturated());
+        assertTrue(admission.tryAdmit());
+        assertTrue(admission.isSaturated());
+        assertFalse(admission.tryAdmit());
+        admission.release();
+        assertFalse(admission.isSaturated());
+    }
+}
@@ -0,0 +1,107 @@
+package com.meldoheiri.webserver.servers.admission;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class QueueDelayMonitorTest {
+    private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long ABOVE = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long BELOW = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long START = 1_000_000_000L;
+
+    private final QueueDelayMonitor monitor = new QueueDelayMonitor(TARGET, INTERVAL);
+
+    @Test
+    void idleMonitorDoesNotShed() {
+        assertFalse(monitor.shouldShed(START));
+        assertFalse(monitor.shouldShed(START + 10 * INTERVAL));
+    }
+
+    @Test
+    void singleSpikeDoesNotShed() {
+        monitor.record(ABOVE, START);
+        assertFalse(monitor.shouldShed(START));
+        assertFalse(monitor.shouldShed(START + INTERVAL / 2));
+        assertFalse(monitor.shouldShed(START + INTERVAL + 1));
+    }
+
+    @Test
+    void spikeAfterIdlePeriodDoesNotShed() {
+        monitor.record(ABOVE, START);
+        monitor.record(ABOVE, START + INTERVAL / 4);
+        // nothing measured for several intervals, then single slow samples again
+        long later = START + 5 * INTERVAL;
+        monitor.record(ABOVE, later);
+        monitor.record(ABOVE, later + 1);
+        assertFalse(monitor.shouldShed(later + 1));
+    }
+
+    @Test
+    void burstThatDrainsDoesNotShed() {
+        long now = START;
+        for (int i = 0; i < 20; i++, now += INTERVAL / 10) {
+            monitor.record(i % 5 == 4 ? BELOW : ABOVE, now);
+        }
+        assertFalse(monitor.shouldShed(now));
+    }
+
+    @Test
+    void sustainedQueueSheds() {
+        long now = START;
+        for (int i = 0; i <= 10; i++, now += INTERVAL / 10) {
+            monitor.record(ABOVE, now);
+        }
+        assertTrue(monitor.shouldShed(now));
+    }
+
+    @Test
+    void intervalNeedsMinimumSamples() {
+        monitor.record(ABOVE, START);
+        monitor.record(ABOVE, START + INTERVAL / 2);
+        monitor.record(ABOVE, START + INTERVAL);
+        assertFalse(monitor.shouldShed(START + INTERVAL));
+        monitor.record(ABOVE, START + INTERVAL + 1);
+        assertTrue(monitor.shouldShed(START + INTERVAL + 1));
+    }
+
+    @Test
+    void delayBelowTargetEndsOverload() {
+        long now = START;
+        for (int i = 0; i <= 10; i++, now += INTERVAL / 10) {
+            monitor.record(ABOVE, now);
+        }
+        assertTrue(monitor.shouldShed(now));
+        monitor.record(BELOW, now);
+        assertFalse(monitor.shouldShed(now));
+        // a new spike has to last a whole interval again
+        monitor.record(ABOVE, now + 1);
+        assertFalse(monitor.shouldShed(now + 1));
+    }
+
+    @Test
+    void intervalWithoutSamplesEndsOverload() {
+        long now = START;
+        for (int i = 0; i <= 10; i++, now += INTERVAL / 10) {
+            monitor.record(ABOVE, now);
+        }
+        assertTrue(monitor.shouldShed(now));
+        assertFalse(monitor.shouldShed(now + 2 * INTERVAL));
+        monitor.record(ABOVE, now + 2 * INTERVAL);
+        assertFalse(monitor.shouldShed(now + 2 * INTERVAL));
+    }
+
+    @Test
+    void zeroTargetNeverSheds() {
+        QueueDelayMonitor disabled = new QueueDelayMonitor(0, INTERVAL);
+        long now = START;
+        for (int i = 0; i <= 10; i++, now += INTERVAL / 10) {
+            disabled.record(ABOVE, now);
+        }
+        assertFalse(disabled.shouldShed(now));
+    }
+}
@@ -0,0 +1,74 @@
+package com.meldoheiri.webserver.servers.contentcache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+
+class StaticContentCacheTest {
+    private static final byte[] HEAD = "HTTP/1.1 200 OK\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void invalidateDropsEntriesOfTheFile() throws IOException {
+        StaticContentCache cache = cache(1024 * 1024);
+        Path file = write("a.txt", 100);
+        CachedResponse entry = cache.load("/a.txt", file, HEAD, 100, null);
+        assertNotNull(entry);
+        assertNotNull(cache.load("/a.txt/", file, HEAD, 100, null));
+        assertSame(entry, cache.get("/a.txt"));
+
+        cache.invalidate(file);
+        assertNull(cache.get("/a.txt"));
+        assertNull(cache.get("/a.txt/"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    void reloadingAfterInvalidationKeepsEvictionWithinBudget() throws IOException {
+        Path first = write("first.txt", 400);
+        Path second = write("second.txt", 400);
+        Path third = write("third.txt", 400);
+        StaticContentCache cache = cache(1000);
+        for (int i = 0; i < 100; i++) {
+            cache.load("/first.txt", first, HEAD, 400, null);
+            cache.invalidate(first);
+        }
+        CachedResponse entry = cache.load("/first.txt", first, HEAD, 400, null);
+        long entrySize = cache.getSize();
+        cache.load("/second.txt", second, HEAD, 400, null);
+        cache.load("/third.txt", third, HEAD, 400, null);
+
+        // the least recently loaded entry makes room, once
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("/first.txt"));
+        assertNotNull(cache.get("/third.txt"));
+        assertEquals(2 * entrySize, cache.getSize());
+        assertNotNull(entry);
+    }
+
+    private static StaticContentCache cache(long maxBytes) {
+        Properties properties = new Properties();
+        properties.setProperty("server.port", "0");
+        properties.setProperty("server.noThreads", "1");
+        properties.setProperty("server.contentCacheMaxBytes", Long.toString(maxBytes));
+        return new StaticContentCache(new ServerConfig(properties));
+    }
+
+    private Path write(String name, int length) throws IOException {
+        return Files.write(directory.resolve(name), new byte[length]);
+    }
+}
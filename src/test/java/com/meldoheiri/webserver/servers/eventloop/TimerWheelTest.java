@@ -0,0 +1,165 @@
+package com.meldoheiri.webserver.servers.eventloop;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+    private static final long TICK = 100;
+    private static final int SLOTS = 8;
+
+    private final TimerWheel<Node> wheel = new TimerWheel<>(TICK, SLOTS);
+    private final List<String> expired = new ArrayList<>();
+
+    @Test
+    void slotCountMustBePowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new TimerWheel<Node>(TICK, 6));
+    }
+
+    @Test
+    void deadlineIsRoundedUpToTheNextTick() {
+        wheel.expire(0, this::record);
+        wheel.schedule(new Node("a"), 150);
+        wheel.expire(100, this::record);
+        wheel.expire(199, this::record);
+        // never early, at most a tick late
+        assertEquals(List.of(), expired);
+        wheel.expire(200, this::record);
+        assertEquals(List.of("a"), expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    void deadlineOnATickExpiresOnThatTick() {
+        wheel.expire(0, this::record);
+        wheel.schedule(new Node("a"), 300);
+        wheel.expire(299, this::record);
+        assertEquals(List.of(), expired);
+        wheel.expire(300, this::record);
+        assertEquals(List.of("a"), expired);
+    }
+
+    @Test
+    void pastDeadlineExpiresOnTheNextTick() {
+        wheel.expire(500, this::record);
+        wheel.schedule(new Node("a"), 450);
+        wheel.expire(599, this::record);
+        assertEquals(List.of(), expired);
+        wheel.expire(600, this::record);
+        assertEquals(List.of("a"), expired);
+    }
+
+    @Test
+    void deadlineBeyondOneRevolutionWaitsForItsRound() {
+        wheel.expire(0, this::record);
+        Node far = new Node("far");
+        // shares its slot with the ticks 2 and 10
+        wheel.schedule(far, SLOTS * TICK + 250);
+        Node near = new Node("near");
+        wheel.schedule(near, 250);
+        for (long now = TICK; now < SLOTS * TICK + 300; now += TICK) {
+            wheel.expire(now, this::record);
+            if (now == 300) {
+                assertEquals(List.of("near"), expired);
+                assertTrue(far.isScheduled());
+            }
+        }
+        assertEquals(List.of("near"), expired);
+        wheel.expire(SLOTS * TICK + 300, this::record);
+        assertEquals(List.of("near", "far"), expired);
+    }
+
+    @Test
+    void longPauseExpiresEveryPassedDeadline() {
+        wheel.expire(0, this::record);
+        for (int i = 1; i <= 20; i++) {
+            wheel.schedule(new Node("t" + i), i * TICK);
+        }
+        Node later = new Node("later");
+        wheel.schedule(later, 50 * TICK);
+        // revolutions later, every slot is visited once
+        wheel.expire(SLOTS * TICK * 4, this::record);
+        assertEquals(20, expired.size());
+        assertTrue(later.isScheduled());
+        assertFalse(wheel.isEmpty());
+    }
+
+    @Test
+    void cancelledTimeoutDoesNotExpire() {
+        wheel.expire(0, this::record);
+        Node a = new Node("a");
+        Node b = new Node("b");
+        Node c = new Node("c");
+        wheel.schedule(a, 200);
+        wheel.schedule(b, 200);
+        wheel.schedule(c, 200);
+        wheel.cancel(b);
+        wheel.cancel(b);
+        assertFalse(b.isScheduled());
+        wheel.expire(200, this::record);
+        assertEquals(List.of("c", "a"), expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    void schedulingAgainMovesTheTimeout() {
+        wheel.expire(0, this::record);
+        Node a = new Node("a");
+        wheel.schedule(a, 200);
+        wheel.schedule(a, 500);
+        wheel.expire(200, this::record);
+        assertEquals(List.of(), expired);
+        wheel.expire(500, this::record);
+        assertEquals(List.of("a"), expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    void callbackMayCancelTheNextTimeoutOfTheSlot() {
+        wheel.expire(0, this::record);
+        Node first = new Node("first");
+        Node second = new Node("second");
+        wheel.schedule(first, 200);
+        // visited first, it is at the head of the slot
+        wheel.schedule(second, 200);
+        wheel.expire(200, timeout -> {
+            record(timeout);
+            wheel.cancel(first);
+        });
+        assertEquals(List.of("second"), expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    void callbackMayScheduleAgain() {
+        wheel.expire(0, this::record);
+        Node a = new Node("a");
+        wheel.schedule(a, 200);
+        wheel.expire(200, timeout -> {
+            record(timeout);
+            wheel.schedule(timeout, 100);
+        });
+        assertEquals(List.of("a"), expired);
+        assertTrue(a.isScheduled());
+        wheel.expire(300, this::record);
+        assertEquals(List.of("a", "a"), expired);
+    }
+
+    private void record(Node timeout) {
+        expired.add(timeout.name);
+    }
+
+    private static final class Node extends TimerWheel.Timeout {
+        final String name;
+
+        Node(String name) {
+            this.name = name;
+        }
+    }
+}
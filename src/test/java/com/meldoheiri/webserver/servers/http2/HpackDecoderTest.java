@@ -0,0 +1,116 @@
+package com.meldoheiri.webserver.servers.http2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Decodes the examples of RFC 7541 Appendix C, each sequence on one decoder
+ * so later blocks refer to the dynamic table entries of earlier ones.
+ */
+class HpackDecoderTest {
+    // the response examples assume a 256 byte table, set by a size update ahead of the first block
+    private static final String TABLE_SIZE_256 = "3fe101";
+    private static final String DATE_21 = "Mon, 21 Oct 2013 20:13:21 GMT";
+    private static final String DATE_22 = "Mon, 21 Oct 2013 20:13:22 GMT";
+    private static final String COOKIE = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+
+    private final HpackDecoder decoder = new HpackDecoder();
+
+    @Test
+    void requestsWithoutHuffmanCoding() throws Http2Exception {
+        // C.3
+        assertBlock("828684410f7777772e6578616d706c652e636f6d", 57,
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertBlock("828684be58086e6f2d6361636865", 110,
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+        assertBlock("828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565", 164,
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+    }
+
+    @Test
+    void requestsWithHuffmanCoding() throws Http2Exception {
+        // C.4
+        assertBlock("828684418cf1e3c2e5f23a6ba0ab90f4ff", 57,
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertBlock("828684be5886a8eb10649cbf", 110,
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+        assertBlock("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf", 164,
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+    }
+
+    @Test
+    void responsesWithoutHuffmanCodingEvictOldEntries() throws Http2Exception {
+        // C.5
+        assertBlock(TABLE_SIZE_256 + "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d54"
+                + "6e1768747470733a2f2f7777772e6578616d706c652e636f6d", 222,
+                ":status", "302", "cache-control", "private", "date", DATE_21, "location", "https://www.example.com");
+        assertBlock("4803333037c1c0bf", 222,
+                ":status", "307", "cache-control", "private", "date", DATE_21, "location", "https://www.example.com");
+        assertBlock("88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a6970"
+                + "7738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167653d333630303b2076657273696f6e3d31",
+                215, ":status", "200", "cache-control", "private", "date", DATE_22, "location", "https://www.example.com",
+                "content-encoding", "gzip", "set-cookie", COOKIE);
+    }
+
+    @Test
+    void responsesWithHuffmanCodingEvictOldEntries() throws Http2Exception {
+        // C.6
+        assertBlock(TABLE_SIZE_256 + "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3",
+                222, ":status", "302", "cache-control", "private", "date", DATE_21, "location", "https://www.example.com");
+        assertBlock("4883640effc1c0bf", 222,
+                ":status", "307", "cache-control", "private", "date", DATE_21, "location", "https://www.example.com");
+        assertBlock("88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007",
+                215, ":status", "200", "cache-control", "private", "date", DATE_22, "location", "https://www.example.com",
+                "content-encoding", "gzip", "set-cookie", COOKIE);
+    }
+
+    @Test
+    void literalWithoutIndexingIsNotAdded() throws Http2Exception {
+        // C.2.2 and C.2.3
+        assertBlock("040c2f73616d706c652f70617468", 0, ":path", "/sample/path");
+        assertBlock("100870617373776f726406736563726574", 0, "password", "secret");
+    }
+
+    @Test
+    void sizeUpdateToZeroEmptiesTheTable() throws Http2Exception {
+        assertBlock("828684410f7777772e6578616d706c652e636f6d", 57,
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertBlock("2082", 0, ":method", "GET");
+        assertThrows(Http2Exception.class, () -> decode("be"));
+    }
+
+    @Test
+    void invalidBlocksAreCompressionErrors() {
+        // index 0, an index past the dynamic table, a size above the limit, a size update after a field,
+        // a string past the end of the block, a truncated integer and Huffman padding of zeros
+        for (String block : List.of("80", "be", "3fe21f", "823f21", "4188", "41ff8f", "418100")) {
+            Http2Exception e = assertThrows(Http2Exception.class, () -> decode(block), block);
+            assertEquals(Http2Frame.COMPRESSION_ERROR, e.getErrorCode());
+        }
+    }
+
+    private void decode(String hex) throws Http2Exception {
+        byte[] block = HexFormat.of().parseHex(hex);
+        decoder.decode(block, 0, block.length);
+    }
+
+    private void assertBlock(String hex, int tableSize, String... fields) throws Http2Exception {
+        decode(hex);
+        List<String> decoded = new ArrayList<>();
+        byte[] data = decoder.data();
+        int[] offsets = decoder.offsets();
+        for (int i = 0; i < decoder.count(); i++) {
+            decoded.add(new String(data, offsets[i * 4], offsets[i * 4 + 1] - offsets[i * 4], StandardCharsets.ISO_8859_1));
+            decoded.add(new String(data, offsets[i * 4 + 2], offsets[i * 4 + 3] - offsets[i * 4 + 2], StandardCharsets.ISO_8859_1));
+        }
+        assertEquals(List.of(fields), decoded);
+        assertEquals(tableSize, decoder.tableSize());
+    }
+}
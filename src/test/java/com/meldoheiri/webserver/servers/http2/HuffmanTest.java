@@ -0,0 +1,77 @@
+package com.meldoheiri.webserver.servers.http2;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import org.junit.jupiter.api.Test;
+
+class HuffmanTest {
+
+    @Test
+    void decodesTheRfcExamples() throws Http2Exception {
+        // RFC 7541 C.4.1, C.4.2, C.4.3 and C.6.1
+        assertDecodes("f1e3c2e5f23a6ba0ab90f4ff", "www.example.com");
+        assertDecodes("a8eb10649cbf", "no-cache");
+        assertDecodes("25a849e95ba97d7f", "custom-key");
+        assertDecodes("25a849e95bb8e8b4bf", "custom-value");
+        assertDecodes("6402", "302");
+        assertDecodes("aec3771a4b", "private");
+        assertDecodes("d07abe941054d444a8200595040b8166e082a62d1bff", "Mon, 21 Oct 2013 20:13:21 GMT");
+        assertDecodes("9d29ad171863c78f0b97c8e9ae82ae43d3", "https://www.example.com");
+    }
+
+    @Test
+    void encodesTheRfcExamples() {
+        assertEncodes("www.example.com", "f1e3c2e5f23a6ba0ab90f4ff");
+        assertEncodes("no-cache", "a8eb10649cbf");
+        assertEncodes("Mon, 21 Oct 2013 20:13:21 GMT", "d07abe941054d444a8200595040b8166e082a62d1bff");
+    }
+
+    @Test
+    void everySymbolSurvivesARoundTrip() throws Http2Exception {
+        byte[] value = new byte[256];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        byte[] encoded = new byte[Huffman.encodedLength(value)];
+        assertEquals(encoded.length, Huffman.encode(value, encoded, 0));
+        byte[] decoded = new byte[encoded.length * 8 / 5 + 1];
+        int end = Huffman.decode(encoded, 0, encoded.length, decoded, 0);
+        assertArrayEquals(value, Arrays.copyOf(decoded, end));
+    }
+
+    @Test
+    void paddingMustBeShortPrefixOfEos() {
+        // '0' is 00000, padded with zeros instead of ones
+        assertInvalid("00");
+        // a whole byte of padding
+        assertInvalid("f1e3c2e5f23a6ba0ab90f4ffff");
+        // EOS itself, 30 ones
+        assertInvalid("fffffffc");
+    }
+
+    private static void assertDecodes(String hex, String expected) throws Http2Exception {
+        byte[] source = HexFormat.of().parseHex(hex);
+        byte[] target = new byte[source.length * 8 / 5 + 1];
+        int end = Huffman.decode(source, 0, source.length, target, 0);
+        assertEquals(expected, new String(target, 0, end, StandardCharsets.ISO_8859_1));
+    }
+
+    private static void assertEncodes(String value, String hex) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] target = new byte[Huffman.encodedLength(bytes)];
+        Huffman.encode(bytes, target, 0);
+        assertEquals(hex, HexFormat.of().formatHex(target));
+    }
+
+    private static void assertInvalid(String hex) {
+        byte[] source = HexFormat.of().parseHex(hex);
+        Http2Exception e = assertThrows(Http2Exception.class, () -> Huffman.decode(source, 0, source.length, new byte[64], 0));
+        assertEquals(Http2Frame.COMPRESSION_ERROR, e.getErrorCode());
+    }
+}
@@ -0,0 +1,138 @@
+package com.meldoheiri.webserver.servers.httpsocketdatahandler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.meldoheiri.webserver.servers.exceptions.HTTPStatusException;
+import com.meldoheiri.webserver.servers.exceptions.WebServerException;
+
+class HTTPRequestParserTest {
+    private final HTTPRequestParser parser = new HTTPRequestParser();
+
+    @Test
+    void repeatedEqualContentLengthIsAccepted() throws WebServerException {
+        assertTrue(parse("POST /a HTTP/1.1\r\nContent-Length: 3\r\nContent-Length: 3\r\n\r\nabc"));
+        assertEquals(3, parser.getRequest().body().contentLength());
+    }
+
+    @Test
+    void differingContentLengthsAreRefused() {
+        assertBadRequest("POST /a HTTP/1.1\r\nContent-Length: 3\r\nContent-Length: 30\r\n\r\nabc");
+    }
+
+    @Test
+    void transferEncodingWithContentLengthIsRefused() {
+        assertBadRequest("POST /a HTTP/1.1\r\nContent-Length: 3\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n");
+        parser.reset();
+        assertBadRequest("POST /a HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 3\r\n\r\n3\r\nabc\r\n0\r\n\r\n");
+    }
+
+    @Test
+    void whitespaceBeforeColonIsRefused() {
+        assertBadRequest("POST /a HTTP/1.1\r\nContent-Length : 5\r\n\r\nGET /");
+        parser.reset();
+        assertBadRequest("POST /a HTTP/1.1\r\nContent-Length\t: 5\r\n\r\nGET /");
+    }
+
+    @Test
+    void headerLineWithoutColonIsRefused() {
+        assertBadRequest("GET /a HTTP/1.1\r\nHost localhost\r\n\r\n");
+        parser.reset();
+        assertBadRequest("GET /a HTTP/1.1\r\n: value\r\n\r\n");
+    }
+
+    @Test
+    void foldedHeaderLineIsRefused() {
+        assertBadRequest("GET /a HTTP/1.1\r\nAccept: text/html,\r\n text/plain\r\n\r\n");
+        parser.reset();
+        assertBadRequest("GET /a HTTP/1.1\r\nAccept: text/html,\r\n\ttext/plain: x\r\n\r\n");
+    }
+
+    @Test
+    void codingsOtherThanChunkedAloneAreNotImplemented() {
+        assertStatus(501, "POST /a HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n");
+        parser.reset();
+        assertStatus(501, "POST /a HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n");
+        parser.reset();
+        assertStatus(501, "POST /a HTTP/1.1\r\nTransfer-Encoding: gzip\r\nTransfer-Encoding: chunked\r\n\r\n");
+        parser.reset();
+        assertStatus(501, "POST /a HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: chunked\r\n\r\n");
+    }
+
+    @Test
+    void chunkedBodyIsReceived() throws Exception {
+        assertTrue(parse("POST /a HTTP/1.1\r\nTransfer-Encoding: Chunked\r\n\r\n"));
+        StreamingRequestBody body = parser.getBody();
+        assertTrue(parse("3 ;ext=1\r\nabc\r\n2\t\r\nde\r\n0\r\nTrailer: x\r\n\r\nGET /b HTTP/1.1\r\n\r\n"));
+        assertEquals("/b", parser.getRequest().path());
+        assertEquals("abcde", new String(body.readAllBytes().get(5, TimeUnit.SECONDS), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void whitespaceInsideChunkSizeIsRefused() throws WebServerException {
+        assertTrue(parse("POST /a HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"));
+        assertThrows(WebServerException.class, () -> parse("1 0\r\n0123456789abcdef\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    void bareCarriageReturnInChunkSizeIsRefused() throws WebServerException {
+        assertTrue(parse("POST /a HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"));
+        assertThrows(WebServerException.class, () -> parse("1\r0\r\n0123456789abcdef\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    void whitespaceBeforeChunkSizeIsRefused() throws WebServerException {
+        assertTrue(parse("POST /a HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"));
+        assertThrows(WebServerException.class, () -> parse(" 3\r\nabc\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    void malformedRequestLineIsBadRequest() {
+        assertBadRequest("GET /a\r\n\r\n");
+        parser.reset();
+        assertBadRequest("GET  /a HTTP/1.1\r\n\r\n");
+        parser.reset();
+        assertBadRequest("GET /a FTP/1.1\r\n\r\n");
+    }
+
+    @Test
+    void unknownMethodIsNotImplemented() {
+        assertStatus(501, "BREW /pot HTTP/1.1\r\n\r\n");
+    }
+
+    @Test
+    void otherVersionsAreNotSupported() {
+        assertStatus(505, "GET /a HTTP/1.0\r\n\r\n");
+        parser.reset();
+        assertStatus(505, "GET /a HTTP/2.0\r\n\r\n");
+    }
+
+    @Test
+    void contentLengthDoesNotCarryOverToNextRequest() throws WebServerException {
+        assertTrue(parse("POST /a HTTP/1.1\r\nContent-Length: 3\r\n\r\n"));
+        // the body ends the first request, the second one is chunked on its own
+        ByteBuffer rest = ByteBuffer.wrap("abcPOST /b HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        assertTrue(parser.parse(rest));
+        assertEquals(-1, parser.getRequest().body().contentLength());
+    }
+
+    private boolean parse(String request) throws WebServerException {
+        return parser.parse(ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private void assertBadRequest(String request) {
+        assertStatus(400, request);
+    }
+
+    private void assertStatus(int status, String request) {
+        HTTPStatusException e = assertThrows(HTTPStatusException.class, () -> parse(request));
+        assertEquals(status, e.getStatusCode());
+    }
+}
@@ -0,0 +1,123 @@
+package com.meldoheiri.webserver.servers.httpsocketdatahandler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.WebServer;
+import com.meldoheiri.webserver.servers.singlethreadednonblocking.SingleThreadedNonBlockingIOServer;
+
+/**
+ * Runs requests on keep-alive connections against an event loop server.
+ */
+class HTTPSocketDataHandlerTest {
+    private static final String PAGE = "/MyWebApp/index.html";
+    private static final Pattern CONTENT_LENGTH = Pattern.compile("\r\nContent-Length: (\\d+)\r\n", Pattern.CASE_INSENSITIVE);
+
+    @Test
+    void headFromFileIsFollowedByNextResponse() throws Exception {
+        headThenGet("0");
+    }
+
+    @Test
+    void headFromContentCacheIsFollowedByNextResponse() throws Exception {
+        headThenGet("1048576");
+    }
+
+    private static void headThenGet(String contentCacheMaxBytes) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("server.contentCacheMaxBytes", contentCacheMaxBytes);
+        try (RunningServer server = new RunningServer(properties); Socket socket = server.connect()) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            // the cache is filled by the first request for a file
+            for (int i = 0; i < 2; i++) {
+                out.write(("HEAD " + PAGE + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                String head = readHead(in);
+                assertTrue(head.startsWith("HTTP/1.1 200 OK\r\n"), head);
+                assertTrue(contentLength(head) > 0, head);
+            }
+            out.write(("GET " + PAGE + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            String head = readHead(in);
+            assertTrue(head.startsWith("HTTP/1.1 200 OK\r\n"), head);
+            byte[] body = in.readAllBytes();
+            assertEquals(contentLength(head), body.length);
+            assertTrue(new String(body, StandardCharsets.ISO_8859_1).contains("<"));
+        }
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                break;
+            }
+            head.write(b);
+        }
+        return head.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static int contentLength(String head) {
+        Matcher matcher = CONTENT_LENGTH.matcher(head);
+        assertTrue(matcher.find(), head);
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    private static final class RunningServer implements AutoCloseable {
+        private final int port;
+        private final WebServer server;
+        private final Thread thread;
+
+        RunningServer(Properties properties) throws Exception {
+            try (ServerSocket reserved = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                port = reserved.getLocalPort();
+            }
+            properties.setProperty("server.host", "127.0.0.1");
+            properties.setProperty("server.port", Integer.toString(port));
+            properties.setProperty("server.noThreads", "1");
+            server = new SingleThreadedNonBlockingIOServer(new ServerConfig(properties));
+            thread = new Thread(() -> {
+                try {
+                    server.start();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            thread.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (server.getState() != WebServer.State.RUNNING && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+            assertEquals(WebServer.State.RUNNING, server.getState());
+        }
+
+        Socket connect() throws IOException {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setSoTimeout(5000);
+            return socket;
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            server.stop(Duration.ofSeconds(1));
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+}
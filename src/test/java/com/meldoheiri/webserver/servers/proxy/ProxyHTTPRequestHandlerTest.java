@@ -0,0 +1,272 @@
+package com.meldoheiri.webserver.servers.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPHeaders;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPRequest;
+import com.meldoheiri.webserver.servers.httprequesthandler.HTTPResponse;
+import com.meldoheiri.webserver.servers.httprequesthandler.RequestBody;
+import com.meldoheiri.webserver.servers.httprequesthandler.ResponseBody;
+import com.meldoheiri.webserver.servers.metrics.ServerMetrics;
+
+class ProxyHTTPRequestHandlerTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final List<StubBackend> backends = new ArrayList<>();
+    private final ServerMetrics metrics = new ServerMetrics();
+    private AsynchronousChannelGroup group;
+
+    @BeforeEach
+    void openGroup() throws IOException {
+        group = AsynchronousChannelGroup.withFixedThreadPool(2, Executors.defaultThreadFactory());
+    }
+
+    @AfterEach
+    void close() throws IOException, InterruptedException {
+        for (StubBackend backend : backends) {
+            backend.close();
+        }
+        group.shutdownNow();
+        group.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void sendsEachRequestToTheBackendWithFewestOutstanding() throws Exception {
+        CountDownLatch releaseA = new CountDownLatch(1);
+        CountDownLatch releaseB = new CountDownLatch(1);
+        StubBackend a = backend(0, held(releaseA, "a"));
+        StubBackend b = backend(0, held(releaseB, "b"));
+        ProxyHTTPRequestHandler proxy = proxy(config(3, 10_000), a, b);
+
+        List<CompletableFuture<HTTPResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            responses.add(proxy.handleAsync(get("/api/" + i), Runnable::run));
+        }
+        awaitRequests(a, 2);
+        awaitRequests(b, 2);
+
+        releaseA.countDown();
+        int completed = 0;
+        for (CompletableFuture<HTTPResponse> response : responses) {
+            try {
+                HTTPResponse answered = response.get(1, TimeUnit.SECONDS);
+                assertEquals("a", readBody(answered));
+                completed++;
+            } catch (TimeoutException e) {
+                // held by b
+            }
+        }
+        assertEquals(2, completed);
+
+        // a has nothing outstanding any more, b still has two requests
+        List<CompletableFuture<HTTPResponse>> next = List.of(proxy.handleAsync(get("/api/4"), Runnable::run),
+                proxy.handleAsync(get("/api/5"), Runnable::run));
+        for (CompletableFuture<HTTPResponse> response : next) {
+            assertEquals("a", readBody(response.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        }
+        assertEquals(4, a.requests.size());
+        assertEquals(2, b.requests.size());
+        releaseB.countDown();
+    }
+
+    @Test
+    void takesAFailingBackendOutOfRotationAndBackIn() throws Exception {
+        int downPort;
+        try (ServerSocket reserved = new ServerSocket(0)) {
+            downPort = reserved.getLocalPort();
+        }
+        StubBackend b = backend(0, StubBackend.ok("b"));
+        ProxyHTTPRequestHandler proxy = new ProxyHTTPRequestHandler(List.of("127.0.0.1:" + downPort, b.authority()), config(1, 500),
+                group, metrics);
+
+        for (int i = 0; i < 4; i++) {
+            HTTPResponse response = proxy.handleAsync(get("/api/" + i), Runnable::run).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertEquals("HTTP/1.1 200 OK", response.firstLine().trim());
+            assertEquals("b", readBody(response));
+        }
+        String scrape = metrics.scrape();
+        assertTrue(scrape.contains("webserver_upstream_marked_down_total 1\n"), scrape);
+        // out of rotation, it is not tried again until the fail timeout has passed
+        assertTrue(scrape.contains("webserver_upstream_failures_total 1\n"), scrape);
+
+        StubBackend a = backend(downPort, StubBackend.ok("a"));
+        Thread.sleep(600);
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            bodies.add(readBody(proxy.handleAsync(get("/api/" + i), Runnable::run).get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        }
+        assertTrue(bodies.contains("a"), bodies.toString());
+        assertFalse(a.requests.isEmpty());
+    }
+
+    @Test
+    void streamsContentLengthBodiesBothWays() throws Exception {
+        StubBackend backend = backend(0, (request, in, out) -> StubBackend.writeResponse(out, "echo " + request.bodyText()));
+        ProxyHTTPRequestHandler proxy = proxy(config(3, 10_000), backend);
+        byte[] body = "hello world".getBytes(StandardCharsets.ISO_8859_1);
+
+        HTTPResponse response = proxy.handleAsync(new HTTPRequest("POST", "/api/echo", HTTPHeaders.EMPTY, RequestBody.of(body)),
+                Runnable::run).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        StubBackend.Request received = backend.requests.get(0);
+        assertEquals("POST /api/echo HTTP/1.1", received.requestLine());
+        assertEquals("11", received.headers().get("content-length"));
+        assertEquals("hello world", received.bodyText());
+        ResponseBody.Stream stream = assertInstanceOf(ResponseBody.Stream.class, response.body());
+        assertEquals(16, stream.length());
+        assertEquals("echo hello world", readBody(response));
+    }
+
+    @Test
+    void streamsChunkedBodiesBothWays() throws Exception {
+        StubBackend backend = backend(0, (request, in, out) -> {
+            out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            for (String chunk : List.of("echo ", request.bodyText(), "!")) {
+                out.write((Integer.toHexString(chunk.length()) + "\r\n" + chunk + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+            }
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        });
+        ProxyHTTPRequestHandler proxy = proxy(config(3, 10_000), backend);
+
+        HTTPResponse response = proxy.handleAsync(new HTTPRequest("POST", "/api/echo?q=1", HTTPHeaders.EMPTY,
+                chunked("one ", "two ", "three")), Runnable::run).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        StubBackend.Request received = backend.requests.get(0);
+        assertEquals("POST /api/echo?q=1 HTTP/1.1", received.requestLine());
+        assertEquals("chunked", received.headers().get("transfer-encoding"));
+        assertEquals("one two three", received.bodyText());
+        ResponseBody.Stream stream = assertInstanceOf(ResponseBody.Stream.class, response.body());
+        assertEquals(-1, stream.length());
+        assertEquals("echo one two three!", readBody(response));
+    }
+
+    @Test
+    void clientAbortClosesTheBackendConnection() throws Exception {
+        CountDownLatch backendSawClose = new CountDownLatch(1);
+        StubBackend backend = backend(0, (request, in, out) -> {
+            out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            // the rest of the body never comes, the proxy has to give the connection up
+            try {
+                if (in.read() == -1) {
+                    backendSawClose.countDown();
+                }
+            } catch (IOException e) {
+                backendSawClose.countDown();
+            }
+            throw new IOException("Connection closed");
+        });
+        ProxyHTTPRequestHandler proxy = proxy(config(3, 10_000), backend);
+
+        HTTPResponse response = proxy.handleAsync(get("/api/stream"), Runnable::run).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        ResponseBody.Stream stream = assertInstanceOf(ResponseBody.Stream.class, response.body());
+        ByteBuffer first = stream.producer().next().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("hello", StandardCharsets.ISO_8859_1.decode(first).toString());
+        stream.producer().cancel();
+
+        assertTrue(backendSawClose.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private StubBackend backend(int port, StubBackend.Responder responder) throws IOException {
+        StubBackend backend = new StubBackend(port, responder);
+        backends.add(backend);
+        return backend;
+    }
+
+    private ProxyHTTPRequestHandler proxy(ServerConfig config, StubBackend... upstreams) {
+        List<String> authorities = new ArrayList<>();
+        for (StubBackend upstream : upstreams) {
+            authorities.add(upstream.authority());
+        }
+        return new ProxyHTTPRequestHandler(authorities, config, group, metrics);
+    }
+
+    private static ServerConfig config(int maxFails, int failTimeoutMillis) {
+        Properties properties = new Properties();
+        properties.setProperty("server.host", "127.0.0.1");
+        properties.setProperty("server.port", "0");
+        properties.setProperty("server.noThreads", "1");
+        properties.setProperty("server.proxyMaxFails", Integer.toString(maxFails));
+        properties.setProperty("server.proxyFailTimeoutMillis", Integer.toString(failTimeoutMillis));
+        return new ServerConfig(properties);
+    }
+
+    private static StubBackend.Responder held(CountDownLatch release, String body) {
+        return (request, in, out) -> {
+            release.await();
+            StubBackend.writeResponse(out, body);
+        };
+    }
+
+    private static HTTPRequest get(String path) {
+        return new HTTPRequest("GET", path, HTTPHeaders.EMPTY, RequestBody.EMPTY);
+    }
+
+    private static RequestBody chunked(String... chunks) {
+        Iterator<String> remaining = List.of(chunks).iterator();
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return -1;
+            }
+
+            @Override
+            public CompletableFuture<ByteBuffer> read() {
+                ByteBuffer chunk = remaining.hasNext() ? ByteBuffer.wrap(remaining.next().getBytes(StandardCharsets.ISO_8859_1)) : null;
+                return CompletableFuture.completedFuture(chunk);
+            }
+        };
+    }
+
+    /**
+     * Pulls the whole body, which ends the exchange with the backend.
+     */
+    private static String readBody(HTTPResponse response) throws Exception {
+        if (response.body() instanceof ResponseBody.Bytes bytes) {
+            return new String(bytes.bytes(), StandardCharsets.ISO_8859_1);
+        }
+        ResponseBody.Stream stream = assertInstanceOf(ResponseBody.Stream.class, response.body());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        ByteBuffer chunk;
+        while ((chunk = stream.producer().next().get(TIMEOUT_SECONDS, TimeUnit.SECONDS)) != null) {
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.get(bytes);
+            body.write(bytes);
+        }
+        return body.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void awaitRequests(StubBackend backend, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (backend.requests.size() < count && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, backend.requests.size());
+    }
+}
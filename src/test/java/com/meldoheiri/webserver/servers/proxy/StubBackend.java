@@ -0,0 +1,165 @@
+package com.meldoheiri.webserver.servers.proxy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A blocking HTTP/1.1 backend on the loopback interface, one thread per
+ * connection, that records the requests it receives and answers them with a
+ * {@link Responder}.
+ */
+final class StubBackend implements Closeable {
+    /**
+     * Writes the response to a request. The input is the connection's, for
+     * responders that wait for the proxy to close it.
+     */
+    @FunctionalInterface
+    interface Responder {
+        void respond(Request request, InputStream in, OutputStream out) throws IOException, InterruptedException;
+    }
+
+    /**
+     * @param headers the request headers, by lower case name
+     */
+    record Request(String requestLine, Map<String, String> headers, byte[] body) {
+        String bodyText() {
+            return new String(body, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    final List<Request> requests = new CopyOnWriteArrayList<>();
+    private final ServerSocket serverSocket;
+    private final Responder responder;
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param port the port to listen on, 0 for any free one
+     */
+    StubBackend(int port, Responder responder) throws IOException {
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.responder = responder;
+        threads.execute(this::acceptLoop);
+    }
+
+    String authority() {
+        return "127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    static Responder ok(String body) {
+        return (request, in, out) -> writeResponse(out, body);
+    }
+
+    static void writeResponse(OutputStream out, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.ISO_8859_1);
+        out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + bytes.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.write(bytes);
+        out.flush();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                sockets.add(socket);
+                threads.execute(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            Request request;
+            while ((request = readRequest(in)) != null) {
+                requests.add(request);
+                responder.respond(request, in, out);
+            }
+        } catch (IOException e) {
+            // the proxy closed the connection
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return null;
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+        byte[] body;
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            int size;
+            while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                chunks.write(in.readNBytes(size));
+                readLine(in);
+            }
+            readLine(in);
+            body = chunks.toByteArray();
+        } else if (headers.containsKey("content-length")) {
+            body = in.readNBytes(Integer.parseInt(headers.get("content-length")));
+        } else {
+            body = new byte[0];
+        }
+        return new Request(requestLine, headers, body);
+    }
+
+    /**
+     * @return the line without its CRLF, or null at the end of the input
+     *         before the line started
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException();
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        threads.shutdownNow();
+    }
+}
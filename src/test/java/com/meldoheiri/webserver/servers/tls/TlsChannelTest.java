@@ -0,0 +1,226 @@
+package com.meldoheiri.webserver.servers.tls;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.meldoheiri.webserver.serverconfig.ServerConfig;
+import com.meldoheiri.webserver.servers.WebServer;
+import com.meldoheiri.webserver.servers.singlethreadednonblocking.SingleThreadedNonBlockingIOServer;
+
+/**
+ * Runs TLS connections against an event loop server with a self-signed key
+ * store generated for the test.
+ */
+class TlsChannelTest {
+    private static final String PASSWORD = "changeit";
+    private static final String HTTP_1_1 = TlsContext.HTTP_1_1;
+    private static final String CLOSE_REQUEST = "GET /metrics HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+
+    @TempDir
+    static Path directory;
+    private static int port;
+    private static KeyStore trustStore;
+    private static WebServer server;
+    private static Thread serverThread;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        Path keyStore = directory.resolve("server.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(), "-genkeypair",
+                "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost", "-ext", "SAN=ip:127.0.0.1",
+                "-validity", "1", "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        assertTrue(keytool.waitFor(30, TimeUnit.SECONDS));
+        assertEquals(0, keytool.exitValue());
+
+        KeyStore serverKeys = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            serverKeys.load(in, PASSWORD.toCharArray());
+        }
+        trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("server", serverKeys.getCertificate("server"));
+
+        try (ServerSocket reserved = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = reserved.getLocalPort();
+        }
+        Properties properties = new Properties();
+        properties.setProperty("server.host", "127.0.0.1");
+        properties.setProperty("server.port", Integer.toString(port));
+        properties.setProperty("server.noThreads", "1");
+        properties.setProperty("server.tlsEnabled", "true");
+        properties.setProperty("server.tlsKeyStore", keyStore.toString());
+        properties.setProperty("server.tlsKeyStorePassword", PASSWORD);
+        properties.setProperty("server.contentCacheMaxBytes", "0");
+        server = new SingleThreadedNonBlockingIOServer(new ServerConfig(properties));
+        serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        serverThread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (server.getState() != WebServer.State.RUNNING && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(WebServer.State.RUNNING, server.getState());
+    }
+
+    @AfterAll
+    static void stopServer() throws InterruptedException {
+        if (server != null) {
+            server.stop(Duration.ofSeconds(1));
+            serverThread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    @Test
+    void completesTheHandshakeAndAnswers() throws Exception {
+        try (SSLSocket socket = connect(clientContext(), HTTP_1_1)) {
+            socket.startHandshake();
+            assertEquals("TLSv1.3", socket.getSession().getProtocol());
+            String response = exchange(socket, CLOSE_REQUEST);
+            assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), response);
+        }
+    }
+
+    @Test
+    void negotiatesHttp2ByAlpn() throws Exception {
+        try (SSLSocket socket = connect(clientContext(), TlsContext.H2, TlsContext.HTTP_1_1)) {
+            socket.startHandshake();
+            assertEquals(TlsContext.H2, socket.getApplicationProtocol());
+        }
+        try (SSLSocket socket = connect(clientContext(), TlsContext.HTTP_1_1)) {
+            socket.startHandshake();
+            assertEquals(TlsContext.HTTP_1_1, socket.getApplicationProtocol());
+        }
+    }
+
+    @Test
+    void resumesTheSession() throws Exception {
+        SSLContext client = clientContext();
+        long resumedBefore = resumedHandshakes();
+        // reading the response takes in the session ticket sent after the handshake
+        try (SSLSocket socket = connect(client, HTTP_1_1)) {
+            exchange(socket, CLOSE_REQUEST);
+        }
+        try (SSLSocket socket = connect(client, HTTP_1_1)) {
+            exchange(socket, CLOSE_REQUEST);
+        }
+        assertEquals(resumedBefore + 1, resumedHandshakes());
+    }
+
+    @Test
+    void sendsCloseNotifyAfterTheLastResponse() throws Exception {
+        SSLEngine engine = clientContext().createSSLEngine("127.0.0.1", port);
+        engine.setUseClientMode(true);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            assertTrue(readsCloseNotify(engine, channel, ByteBuffer.wrap(CLOSE_REQUEST.getBytes(StandardCharsets.US_ASCII))));
+        }
+    }
+
+    private static SSLContext clientContext() throws Exception {
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trustStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    private static SSLSocket connect(SSLContext context, String... applicationProtocols) throws IOException {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("127.0.0.1", port);
+        socket.setSoTimeout(5_000);
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setApplicationProtocols(applicationProtocols);
+        socket.setSSLParameters(parameters);
+        return socket;
+    }
+
+    private static String exchange(SSLSocket socket, String request) throws IOException {
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+        socket.getOutputStream().flush();
+        return new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static long resumedHandshakes() throws Exception {
+        try (SSLSocket socket = connect(clientContext(), HTTP_1_1)) {
+            String metrics = exchange(socket, CLOSE_REQUEST);
+            Matcher resumed = Pattern.compile("webserver_tls_handshakes_total\\{resumed=\"true\"\\} (\\d+)").matcher(metrics);
+            assertTrue(resumed.find(), metrics);
+            return Long.parseLong(resumed.group(1));
+        }
+    }
+
+    /**
+     * Sends the request and reads whatever comes back.
+     *
+     * @return true when the server ended the connection with
+     *         {@code close_notify}, false when the socket was closed without it
+     */
+    private static boolean readsCloseNotify(SSLEngine engine, SocketChannel channel, ByteBuffer request) throws Exception {
+        ByteBuffer netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        ByteBuffer netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize()).flip();
+        ByteBuffer appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        engine.beginHandshake();
+        while (true) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                    || (status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && request.hasRemaining())) {
+                engine.wrap(request, netOut.clear());
+                netOut.flip();
+                while (netOut.hasRemaining()) {
+                    channel.write(netOut);
+                }
+            } else {
+                SSLEngineResult result = engine.unwrap(netIn, appIn.clear());
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return true;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    netIn.compact();
+                    int read = channel.read(netIn);
+                    netIn.flip();
+                    if (read < 0) {
+                        return false;
+                    }
+                }
+            }
+        }
+    }
+}